@@ -0,0 +1,101 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2EncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.Payload;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one notification in {@link ApnsHttp2ClientHandler}: the write path alone for String
+ * and pre-encoded payloads, and a full send-to-ack round trip for accepted and rejected
+ * notifications.
+ * <p/>
+ * The write benchmarks answer each stream in an invocation-level tear-down, outside the
+ * measurement, so the handler's in-flight table stays at one entry instead of growing with the
+ * invocations. Invocation-level fixtures add timestamping overhead of their own; compare the
+ * two write benchmarks with each other rather than with the round trips.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApnsHttp2ClientHandlerBenchmark {
+
+    static final String TOKEN = "9d564a114490146deb03cc13e700e4071438ba6c74272e202fbd7548b10dc974";
+    static final String TOPIC = "com.linkedkeeper.apns.benchmark";
+
+    private EmbeddedApnsConnection<ApnsPushNotification> connection;
+    private ApnsPushNotification notification;
+
+    private ByteBuf encodedPayload;
+    private ApnsPushNotification encodedNotification;
+
+    /**
+     * The stream a write benchmark left open. Only the write benchmarks use this state, so only
+     * they pay for its invocation-level tear-down.
+     */
+    @State(Scope.Thread)
+    public static class WrittenStream {
+
+        private int streamId;
+
+        @TearDown(Level.Invocation)
+        public void answer(final ApnsHttp2ClientHandlerBenchmark benchmark) {
+            /** the iteration's tear-down may have closed the connection before the last invocation's **/
+            if (benchmark.connection.channel().isOpen()) {
+                benchmark.connection.respondAccepted(this.streamId);
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        this.connection = new EmbeddedApnsConnection<>();
+        this.notification = new ApnsHttp2PushNotification(TOKEN, TOPIC, Payload.newPayload()
+                .alertBody("Your order #1234567 has shipped and will arrive tomorrow.")
+                .badge(1)
+                .sound()
+                .build());
+
+        this.encodedPayload = ByteBufUtil.writeUtf8(PooledByteBufAllocator.DEFAULT, this.notification.getPayload());
+        this.encodedNotification = new ApnsHttp2EncodedPushNotification(TOKEN, TOPIC, this.encodedPayload);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        this.connection.close();
+        this.encodedPayload.release();
+    }
+
+    @Benchmark
+    public int writeNotification(final WrittenStream writtenStream) {
+        writtenStream.streamId = this.connection.write(this.notification);
+        return writtenStream.streamId;
+    }
+
+    @Benchmark
+    public int writeEncodedNotification(final WrittenStream writtenStream) {
+        writtenStream.streamId = this.connection.write(this.encodedNotification);
+        return writtenStream.streamId;
+    }
+
+    @Benchmark
+    public long roundTripAccepted() {
+        this.connection.respondAccepted(this.connection.write(this.notification));
+        return this.connection.responses();
+    }
+
+    @Benchmark
+    public long roundTripRejected() {
+        this.connection.respondRejected(this.connection.write(this.notification));
+        return this.connection.responses();
+    }
+}
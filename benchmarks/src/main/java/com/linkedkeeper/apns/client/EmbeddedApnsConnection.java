@@ -0,0 +1,160 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An {@link ApnsHttp2ClientHandler} living in an {@link EmbeddedChannel}, with hand-encoded
+ * server frames so benchmarks can exercise the handler without a network or a gateway.
+ * <p/>
+ * Response HEADERS blocks only use the HPACK static table, so the same bytes are valid for
+ * every stream once the stream id is patched in.
+ */
+class EmbeddedApnsConnection<T extends ApnsPushNotification> {
+
+    static final String AUTHORITY = "api.push.apple.com";
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int STREAM_ID_OFFSET = 5;
+
+    private static final byte TYPE_DATA = 0x0;
+    private static final byte TYPE_HEADERS = 0x1;
+    private static final byte TYPE_SETTINGS = 0x4;
+    private static final byte TYPE_WINDOW_UPDATE = 0x8;
+
+    private static final byte FLAG_END_STREAM = 0x1;
+    private static final byte FLAG_END_HEADERS = 0x4;
+
+    /** HPACK static table indices for ":status: 200" and ":status: 400" **/
+    private static final byte STATUS_200 = (byte) 0x88;
+    private static final byte STATUS_400 = (byte) 0x8c;
+
+    private final NioEventLoopGroup clientEventLoopGroup = new NioEventLoopGroup(1);
+    private final ApnsHttp2Client<T> apnsHttp2Client;
+    private final ApnsHttp2ClientHandler<T> handler;
+    private final EmbeddedChannel channel;
+
+    private final ByteBuf acceptedResponse;
+    private final ByteBuf rejectedResponse;
+
+    private long responses = 0;
+
+    private final GenericFutureListener<Future<ApnsPushNotificationResponse<T>>> responseListener = new GenericFutureListener<Future<ApnsPushNotificationResponse<T>>>() {
+        @Override
+        public void operationComplete(final Future<ApnsPushNotificationResponse<T>> future) throws Exception {
+            EmbeddedApnsConnection.this.responses++;
+        }
+    };
+
+    EmbeddedApnsConnection() {
+        this.apnsHttp2Client = new ApnsHttp2Client<>((SslContext) null, this.clientEventLoopGroup);
+
+        this.handler = new ApnsHttp2ClientHandler.ApnsHttp2ClientHandlerBuilder<T>()
+                .server(false)
+                .apnsHttp2Client(this.apnsHttp2Client)
+                .authority(AUTHORITY)
+                .maxUnflushedNotifications(ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS)
+                .encoderEnforceMaxConcurrentStreams(false)
+                .build();
+
+        this.channel = new EmbeddedChannel(this.handler);
+
+        /** server preface, then open the connection flow-control window as far as it goes **/
+        final ByteBuf serverPreface = Unpooled.buffer();
+        writeFrameHeader(serverPreface, 0, TYPE_SETTINGS, (byte) 0, 0);
+        writeFrameHeader(serverPreface, 4, TYPE_WINDOW_UPDATE, (byte) 0, 0);
+        serverPreface.writeInt(Integer.MAX_VALUE - 65535);
+        this.channel.writeInbound(serverPreface);
+        this.drainOutbound();
+
+        this.acceptedResponse = Unpooled.buffer();
+        writeFrameHeader(this.acceptedResponse, 1, TYPE_HEADERS, (byte) (FLAG_END_HEADERS | FLAG_END_STREAM), 0);
+        this.acceptedResponse.writeByte(STATUS_200);
+
+        final byte[] reason = "{\"reason\":\"BadDeviceToken\"}".getBytes(StandardCharsets.UTF_8);
+        this.rejectedResponse = Unpooled.buffer();
+        writeFrameHeader(this.rejectedResponse, 1, TYPE_HEADERS, FLAG_END_HEADERS, 0);
+        this.rejectedResponse.writeByte(STATUS_400);
+        writeFrameHeader(this.rejectedResponse, reason.length, TYPE_DATA, FLAG_END_STREAM, 0);
+        this.rejectedResponse.writeBytes(reason);
+    }
+
+    private static void writeFrameHeader(final ByteBuf buffer, final int length, final byte type, final byte flags, final int streamId) {
+        buffer.writeMedium(length);
+        buffer.writeByte(type);
+        buffer.writeByte(flags);
+        buffer.writeInt(streamId);
+    }
+
+    ApnsHttp2ClientHandler<T> handler() {
+        return this.handler;
+    }
+
+    EmbeddedChannel channel() {
+        return this.channel;
+    }
+
+    long responses() {
+        return this.responses;
+    }
+
+    /**
+     * Writes and flushes one notification, then discards everything the handler wrote.
+     *
+     * @return the id of the stream the notification was written on
+     */
+    int write(final T notification) {
+        final DefaultPromise<ApnsPushNotificationResponse<T>> responsePromise = new DefaultPromise<>(this.channel.eventLoop());
+        responsePromise.addListener(this.responseListener);
+
+        this.channel.write(new PendingNotification<>(notification, responsePromise));
+        this.channel.flush();
+        this.drainOutbound();
+        return this.handler.connection().local().lastStreamCreated();
+    }
+
+    /**
+     * Answers the stream through the handler's response path, which also takes the notification
+     * off its in-flight table.
+     */
+    void respondAccepted(final int streamId) {
+        this.respond(this.acceptedResponse, streamId);
+    }
+
+    void respondRejected(final int streamId) {
+        /** both the HEADERS and the DATA frame carry the stream id **/
+        this.rejectedResponse.setInt(FRAME_HEADER_LENGTH + 1 + STREAM_ID_OFFSET, streamId);
+        this.respond(this.rejectedResponse, streamId);
+    }
+
+    private void respond(final ByteBuf template, final int streamId) {
+        template.setInt(STREAM_ID_OFFSET, streamId);
+        this.channel.writeInbound(template.retainedDuplicate());
+        this.drainOutbound();
+    }
+
+    void drainOutbound() {
+        Object message;
+        while ((message = this.channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    void close() {
+        this.channel.finishAndReleaseAll();
+        this.acceptedResponse.release();
+        this.rejectedResponse.release();
+        this.clientEventLoopGroup.shutdownGracefully();
+    }
+}
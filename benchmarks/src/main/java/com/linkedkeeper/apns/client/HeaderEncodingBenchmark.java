@@ -0,0 +1,84 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersEncoder;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the request headers of one notification from scratch and from the connection's
+ * {@link ApnsHttp2RequestHeaders} templates, and HPACK-encoding them with a long-lived encoder
+ * as the connection would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderEncodingBenchmark {
+
+    private static final AsciiString APNS_EXPIRATION_HEADER = new AsciiString("apns-expiration");
+    private static final AsciiString APNS_TOPIC_HEADER = new AsciiString("apns-topic");
+    private static final AsciiString APNS_PRIORITY_HEADER = new AsciiString("apns-priority");
+
+    private DefaultHttp2HeadersEncoder encoder;
+    private ByteBuf buffer;
+
+    private ApnsHttp2RequestHeaders requestHeaders;
+    private ApnsPushNotification notification;
+
+    @Setup
+    public void setUp() {
+        this.encoder = new DefaultHttp2HeadersEncoder();
+        this.buffer = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+
+        this.requestHeaders = new ApnsHttp2RequestHeaders(EmbeddedApnsConnection.AUTHORITY);
+        this.notification = new ApnsHttp2PushNotification(ApnsHttp2ClientHandlerBenchmark.TOKEN,
+                ApnsHttp2ClientHandlerBenchmark.TOPIC, "{}", null, DeliveryPriority.IMMEDIATE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.buffer.release();
+    }
+
+    @Benchmark
+    public Http2Headers buildHeaders() {
+        return new DefaultHttp2Headers()
+                .method(HttpMethod.POST.asciiName())
+                .authority(EmbeddedApnsConnection.AUTHORITY)
+                .path("/3/device/" + ApnsHttp2ClientHandlerBenchmark.TOKEN)
+                .addInt(APNS_EXPIRATION_HEADER, 0)
+                .addInt(APNS_PRIORITY_HEADER, DeliveryPriority.IMMEDIATE.getCode())
+                .add(APNS_TOPIC_HEADER, ApnsHttp2ClientHandlerBenchmark.TOPIC);
+    }
+
+    @Benchmark
+    public int buildAndEncodeHeaders() throws Http2Exception {
+        this.buffer.clear();
+        this.encoder.encodeHeaders(this.buildHeaders(), this.buffer);
+        return this.buffer.readableBytes();
+    }
+
+    @Benchmark
+    public Http2Headers templateHeaders() {
+        return this.requestHeaders.headersFor(this.notification);
+    }
+
+    @Benchmark
+    public int templateAndEncodeHeaders() throws Http2Exception {
+        this.buffer.clear();
+        this.encoder.encodeHeaders(this.templateHeaders(), this.buffer);
+        return this.buffer.readableBytes();
+    }
+}
@@ -0,0 +1,94 @@
+package com.linkedkeeper.apns.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building a typical alert payload with {@link PayloadBuilder}, with a reused
+ * {@link StreamingPayloadBuilder} and by rendering a {@link PayloadTemplate}, to a String and
+ * to the bytes that go on the wire.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBuilderBenchmark {
+
+    private static final String ALERT = "Your order #1234567 has shipped and will arrive tomorrow.";
+
+    private final StreamingPayloadBuilder streamingBuilder = Payload.newStreamingPayload();
+
+    private final PayloadTemplate template = PayloadTemplate.compile(Payload.newPayload()
+            .alertBody("Your order #${orderId} has shipped and will arrive tomorrow.")
+            .badge(1)
+            .sound()
+            .addField("orderId", "${orderId}")
+            .build());
+
+    @Benchmark
+    public String buildAlert() {
+        return Payload.newPayload()
+                .alertBody(ALERT)
+                .badge(1)
+                .sound()
+                .addField("orderId", 1234567)
+                .build();
+    }
+
+    @Benchmark
+    public byte[] buildAlertBytes() {
+        return this.buildAlert().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String streamAlert() {
+        return this.streamingBuilder.reset()
+                .alertBody(ALERT)
+                .badge(1)
+                .sound()
+                .addField("orderId", 1234567)
+                .build();
+    }
+
+    @Benchmark
+    public byte[] streamAlertBytes() {
+        return this.streamingBuilder.reset()
+                .alertBody(ALERT)
+                .badge(1)
+                .sound()
+                .addField("orderId", 1234567)
+                .buildBytes();
+    }
+
+    @Benchmark
+    public int streamAlertBuffer() {
+        final ByteBuf payload = this.streamingBuilder.reset()
+                .alertBody(ALERT)
+                .badge(1)
+                .sound()
+                .addField("orderId", 1234567)
+                .buildBuffer(PooledByteBufAllocator.DEFAULT);
+        final int size = payload.readableBytes();
+        payload.release();
+        return size;
+    }
+
+    @Benchmark
+    public byte[] renderTemplateBytes() {
+        return this.template.renderBytes("1234567");
+    }
+
+    @Benchmark
+    public int renderTemplateBuffer() {
+        final ByteBuf payload = this.template.render(PooledByteBufAllocator.DEFAULT, "1234567");
+        final int size = payload.readableBytes();
+        payload.release();
+        return size;
+    }
+}
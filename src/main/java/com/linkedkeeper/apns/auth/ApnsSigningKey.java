@@ -0,0 +1,140 @@
+package com.linkedkeeper.apns.auth;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.base64.Base64;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Objects;
+
+/**
+ * The ES256 key APNs issues for provider-token authentication (the {@code .p8} file), with the
+ * team and key ids that go into every token signed with it.
+ */
+public final class ApnsSigningKey {
+
+    static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    /** length of each of r and s in a P-256 signature **/
+    private static final int COORDINATE_LENGTH = 32;
+
+    private final String teamId;
+    private final String keyId;
+    private final ECPrivateKey privateKey;
+
+    public ApnsSigningKey(final String teamId, final String keyId, final ECPrivateKey privateKey) throws InvalidKeyException {
+        this.teamId = Objects.requireNonNull(teamId, "Team id must not be null.");
+        this.keyId = Objects.requireNonNull(keyId, "Key id must not be null.");
+        this.privateKey = Objects.requireNonNull(privateKey, "Private key must not be null.");
+
+        /** fail on a key that can't sign ES256 here rather than on the first rotation **/
+        try {
+            Signature.getInstance(SIGNATURE_ALGORITHM).initSign(privateKey);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new InvalidKeyException(e);
+        }
+    }
+
+    public static ApnsSigningKey loadFromPkcs8File(final File p8File, final String teamId, final String keyId) throws IOException, InvalidKeyException {
+        try (final InputStream p8InputStream = new FileInputStream(p8File)) {
+            return loadFromInputStream(p8InputStream, teamId, keyId);
+        }
+    }
+
+    /**
+     * Reads a PEM-encoded PKCS#8 private key, as found in the {@code .p8} file from Apple.
+     */
+    public static ApnsSigningKey loadFromInputStream(final InputStream p8InputStream, final String teamId, final String keyId) throws IOException, InvalidKeyException {
+        final StringBuilder base64 = new StringBuilder();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(p8InputStream, StandardCharsets.US_ASCII));
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("-----")) {
+                base64.append(line.trim());
+            }
+        }
+
+        final ByteBuf encoded = Unpooled.copiedBuffer(base64, StandardCharsets.US_ASCII);
+        final ByteBuf decoded = Base64.decode(encoded);
+        try {
+            final byte[] keyBytes = new byte[decoded.readableBytes()];
+            decoded.readBytes(keyBytes);
+
+            final PrivateKey privateKey = KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+            if (!(privateKey instanceof ECPrivateKey)) {
+                throw new InvalidKeyException("Signing key is not an EC private key.");
+            }
+            return new ApnsSigningKey(teamId, keyId, (ECPrivateKey) privateKey);
+        } catch (final NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new InvalidKeyException(e);
+        } finally {
+            encoded.release();
+            decoded.release();
+        }
+    }
+
+    public String getTeamId() {
+        return this.teamId;
+    }
+
+    public String getKeyId() {
+        return this.keyId;
+    }
+
+    /**
+     * @return the ES256 signature of the content in JOSE form, r and s as 32 bytes each
+     */
+    byte[] sign(final byte[] content) throws SignatureException {
+        final byte[] derSignature;
+        try {
+            final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(this.privateKey);
+            signature.update(content);
+            derSignature = signature.sign();
+        } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new SignatureException(e);
+        }
+        return derToJose(derSignature);
+    }
+
+    /**
+     * The JCA signs ECDSA as a DER sequence of two integers; JWS wants both integers as
+     * fixed-length big-endian bytes, one after the other.
+     */
+    static byte[] derToJose(final byte[] der) throws SignatureException {
+        if (der.length < 8 || der[0] != 0x30) {
+            throw new SignatureException("Not a DER encoded ECDSA signature.");
+        }
+
+        /** skip the sequence header, whose length takes one or two bytes **/
+        int offset = (der[1] & 0x80) != 0 ? 2 + (der[1] & 0x7f) : 2;
+
+        final byte[] jose = new byte[COORDINATE_LENGTH * 2];
+        for (int i = 0; i < 2; i++) {
+            if (der[offset] != 0x02) {
+                throw new SignatureException("Not a DER encoded ECDSA signature.");
+            }
+            int length = der[offset + 1];
+            offset += 2;
+
+            /** drop the sign byte DER adds in front of a high first byte **/
+            while (length > COORDINATE_LENGTH && der[offset] == 0) {
+                offset++;
+                length--;
+            }
+            if (length > COORDINATE_LENGTH) {
+                throw new SignatureException("ECDSA signature coordinate is longer than " + COORDINATE_LENGTH + " bytes.");
+            }
+
+            System.arraycopy(der, offset, jose, (i + 1) * COORDINATE_LENGTH - length, length);
+            offset += length;
+        }
+        return jose;
+    }
+}
@@ -0,0 +1,73 @@
+package com.linkedkeeper.apns.auth;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.base64.Base64Dialect;
+import io.netty.util.AsciiString;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SignatureException;
+
+/**
+ * A signed APNs provider token (an ES256 JWT) and the {@code authorization} header value that
+ * carries it. Signed once, then sent unchanged on every request until it is rotated.
+ */
+public final class AuthenticationToken {
+
+    private final String token;
+    private final long issuedAtMillis;
+    private final AsciiString authorizationHeader;
+
+    private AuthenticationToken(final String token, final long issuedAtMillis) {
+        this.token = token;
+        this.issuedAtMillis = issuedAtMillis;
+        this.authorizationHeader = new AsciiString("bearer " + token);
+    }
+
+    public static AuthenticationToken sign(final ApnsSigningKey signingKey, final long issuedAtMillis) throws SignatureException {
+        final String header = "{\"alg\":\"ES256\",\"kid\":\"" + signingKey.getKeyId() + "\"}";
+        final String claims = "{\"iss\":\"" + signingKey.getTeamId() + "\",\"iat\":" + issuedAtMillis / 1000 + "}";
+
+        final String content = base64Url(header.getBytes(StandardCharsets.UTF_8)) + "." + base64Url(claims.getBytes(StandardCharsets.UTF_8));
+        final byte[] signature = signingKey.sign(content.getBytes(StandardCharsets.US_ASCII));
+
+        return new AuthenticationToken(content + "." + base64Url(signature), issuedAtMillis);
+    }
+
+    /**
+     * Base64url without padding, as JWS requires.
+     */
+    static String base64Url(final byte[] bytes) {
+        final ByteBuf encoded = Base64.encode(Unpooled.wrappedBuffer(bytes), false, Base64Dialect.URL_SAFE);
+        try {
+            int length = encoded.readableBytes();
+            while (length > 0 && encoded.getByte(encoded.readerIndex() + length - 1) == '=') {
+                length--;
+            }
+            return encoded.toString(encoded.readerIndex(), length, StandardCharsets.US_ASCII);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    public String getToken() {
+        return this.token;
+    }
+
+    public long getIssuedAtMillis() {
+        return this.issuedAtMillis;
+    }
+
+    /**
+     * @return {@code bearer <token>}, encoded once
+     */
+    public AsciiString getAuthorizationHeader() {
+        return this.authorizationHeader;
+    }
+
+    @Override
+    public String toString() {
+        return "AuthenticationToken [issuedAtMillis=" + this.issuedAtMillis + "]";
+    }
+}
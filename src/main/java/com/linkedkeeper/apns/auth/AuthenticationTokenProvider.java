@@ -0,0 +1,119 @@
+package com.linkedkeeper.apns.auth;
+
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SignatureException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the current provider token for a signing key and rotates it in the background. Reading
+ * the token is a volatile read; it is signed once per rotation, never per request, so one
+ * provider can back every connection and every topic of a team.
+ * <p/>
+ * APNs refuses tokens older than an hour and rejects updates more often than every twenty
+ * minutes. Once a token is {@link #ROTATE_AFTER_MILLIS} old, the next read hands the signing of
+ * its successor to the executor and keeps returning the current token meanwhile. Only a token
+ * left unused until it is almost expired is replaced on the reading thread.
+ */
+public class AuthenticationTokenProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthenticationTokenProvider.class);
+
+    static final long ROTATE_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(45);
+    static final long EXPIRE_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(55);
+    static final long MIN_ROTATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    private final ApnsSigningKey signingKey;
+    private final EventExecutor executor;
+
+    private volatile AuthenticationToken token;
+    private final AtomicBoolean rotating = new AtomicBoolean(false);
+
+    private final Runnable rotateTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                AuthenticationTokenProvider.this.rotate();
+            } catch (final SignatureException e) {
+                logger.error("Failed to sign a new provider token, keeping the current one.", e);
+            } finally {
+                AuthenticationTokenProvider.this.rotating.set(false);
+            }
+        }
+    };
+
+    public AuthenticationTokenProvider(final ApnsSigningKey signingKey) throws SignatureException {
+        this(signingKey, GlobalEventExecutor.INSTANCE);
+    }
+
+    /**
+     * Signs the first token right away.
+     *
+     * @param executor where rotations are signed
+     */
+    public AuthenticationTokenProvider(final ApnsSigningKey signingKey, final EventExecutor executor) throws SignatureException {
+        this.signingKey = signingKey;
+        this.executor = executor;
+        this.rotate();
+    }
+
+    public ApnsSigningKey getSigningKey() {
+        return this.signingKey;
+    }
+
+    public AuthenticationToken getToken() {
+        AuthenticationToken token = this.token;
+        final long age = this.currentTimeMillis() - token.getIssuedAtMillis();
+
+        if (age >= EXPIRE_AFTER_MILLIS) {
+            synchronized (this) {
+                if (this.token == token) {
+                    try {
+                        this.rotate();
+                    } catch (final SignatureException e) {
+                        throw new IllegalStateException("Failed to sign a new provider token.", e);
+                    }
+                }
+                token = this.token;
+            }
+        } else if (age >= ROTATE_AFTER_MILLIS && this.rotating.compareAndSet(false, true)) {
+            this.executor.execute(this.rotateTask);
+        }
+        return token;
+    }
+
+    /**
+     * @return the {@code authorization} header value of the current token
+     */
+    public AsciiString getAuthorizationHeader() {
+        return this.getToken().getAuthorizationHeader();
+    }
+
+    /**
+     * Called when APNs answered {@code ExpiredProviderToken}, e.g. after a clock jump. Rotates in
+     * the background unless the current token is too young to be replaced yet.
+     */
+    public void onTokenExpired() {
+        final long age = this.currentTimeMillis() - this.token.getIssuedAtMillis();
+        if (age >= MIN_ROTATE_INTERVAL_MILLIS && this.rotating.compareAndSet(false, true)) {
+            this.executor.execute(this.rotateTask);
+        }
+    }
+
+    /**
+     * The clock tokens are issued and aged by; tests override it to skip ahead.
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private synchronized void rotate() throws SignatureException {
+        this.token = AuthenticationToken.sign(this.signingKey, this.currentTimeMillis());
+        logger.debug("Signed new provider token for key {}.", this.signingKey.getKeyId());
+    }
+}
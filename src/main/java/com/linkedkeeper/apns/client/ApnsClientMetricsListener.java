@@ -0,0 +1,79 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.RejectionReason;
+
+/**
+ * Receives the lifecycle events of a client's notifications and connections, e.g. to export
+ * them to a monitoring system. Notification and flush events are called on the connection's
+ * event loop, so implementations must be cheap, thread-safe and must not throw.
+ * <p/>
+ * A notification is in flight from {@link #handleNotificationWritten()} until one of
+ * {@link #handleWriteFailure()}, {@link #handleNotificationAccepted()},
+ * {@link #handleNotificationRejected(RejectionReason)}, {@link #handleNotificationFailed()},
+ * {@link #handleNotificationReplayed()} or {@link #handleNotificationRetried(RejectionReason)}.
+ * @see ApnsHttp2Client#setMetricsListener(ApnsClientMetricsListener)
+ */
+public interface ApnsClientMetricsListener {
+
+    /**
+     * A stream was opened and the notification's frames were written.
+     */
+    void handleNotificationWritten();
+
+    /**
+     * Writing a notification's frames failed.
+     */
+    void handleWriteFailure();
+
+    void handleNotificationAccepted();
+
+    void handleNotificationRejected(RejectionReason reason);
+
+    /**
+     * A written notification got no response because its connection closed.
+     */
+    void handleNotificationFailed();
+
+    /**
+     * A written notification the server went away without processing was queued again, to be
+     * written on another connection.
+     */
+    void handleNotificationReplayed();
+
+    /**
+     * A rejected notification will be written again once its retry delay has passed; see
+     * {@link ApnsHttp2Client#setRetryPolicy(RetryPolicy)}.
+     */
+    void handleNotificationRetried(RejectionReason reason);
+
+    /**
+     * A notification failed before it was written: refused or dropped by a full pending queue,
+     * over its device token's rate, or still queued when its connection closed.
+     */
+    void handleNotificationDropped();
+
+    /**
+     * A notification to a device token known to be invalid completed with the token's last
+     * rejection without being sent; see {@link InvalidDeviceTokenCache}.
+     */
+    void handleNotificationSkipped(RejectionReason reason);
+
+    /**
+     * Written frames were flushed to the socket.
+     *
+     * @param notifications the notifications written since the previous flush
+     * @param payloadBytes  their payload bytes
+     */
+    void handleFlush(int notifications, int payloadBytes);
+
+    /**
+     * A connection, first or reconnected, completed its HTTP/2 handshake.
+     */
+    void handleConnectionAdded();
+
+    void handleConnectionRemoved();
+
+    void handleConnectionFailed();
+
+    void handlePingRoundTrip(long roundTripNanos);
+}
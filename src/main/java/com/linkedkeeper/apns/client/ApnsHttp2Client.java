@@ -1,8 +1,14 @@
 package com.linkedkeeper.apns.client;
 
+import com.linkedkeeper.apns.auth.ApnsSigningKey;
+import com.linkedkeeper.apns.auth.AuthenticationTokenProvider;
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotificationResponse;
 import com.linkedkeeper.apns.data.ApnsPushNotification;
 import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.RejectionReason;
 import com.linkedkeeper.apns.exceptions.ClientNotConnectedException;
+import com.linkedkeeper.apns.exceptions.PendingQueueFullException;
+import com.linkedkeeper.apns.exceptions.RateLimitExceededException;
 import com.linkedkeeper.apns.utils.P12Utils;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
@@ -35,12 +41,12 @@ import java.security.KeyStore;
 import java.security.KeyStore.PrivateKeyEntry;
 import java.security.KeyStoreException;
 import java.security.PrivateKey;
+import java.security.SignatureException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author frank@linkedkeeper.com on 2016/12/27.
@@ -49,6 +55,7 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
 
     private static final Logger logger = LoggerFactory.getLogger(ApnsHttp2Client.class);
 
+    private static final String EPOLL_CLASS = "io.netty.channel.epoll.Epoll";
     private static final String EPOLL_EVENT_LOOP_GROUP_CLASS = "io.netty.channel.epoll.EpollEventLoopGroup";
     private static final String EPOLL_SOCKET_CHANNEL_CLASS = "io.netty.channel.epoll.EpollSocketChannel";
 
@@ -60,22 +67,93 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
     private volatile ChannelPromise connectionReadyPromise;
     private volatile ChannelPromise reconnectionPromise;
     private long reconnectDelaySeconds = ApnsHttp2Properties.INITIAL_RECONNECT_DELAY_SECONDS;
-
-    private final Map<T, Promise<ApnsPushNotificationResponse<T>>> responsePromises = new IdentityHashMap<>();
+    private String host;
+    private int port;
+
+    /** a connection opened to take over from the current one before it runs out of stream ids **/
+    private volatile ChannelPromise replacementPromise;
+    /** the connection a replacement took over from, closing once its open streams are answered **/
+    private volatile Channel drainingChannel;
+    private volatile long streamIdRolloverThreshold = ApnsHttp2Properties.DEFAULT_STREAM_ID_ROLLOVER_THRESHOLD;
+
+    /** notifications handed to the channel whose response promise is not yet done, readable from any thread **/
+    private final AtomicInteger inFlightNotifications = new AtomicInteger();
+    private volatile long maxConcurrentStreams = Long.MAX_VALUE;
+
+    /** 0 sizes the pending queue from the server's MAX_CONCURRENT_STREAMS **/
+    private volatile int maxPendingNotifications = 0;
+    private volatile OverflowPolicy overflowPolicy = ApnsHttp2Properties.DEFAULT_OVERFLOW_POLICY;
+    private volatile int maxUnflushedNotifications = ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS;
+    private volatile int maxUnflushedBytes = ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_BYTES;
+    private volatile ApnsClientMetricsListener metricsListener = NoopApnsClientMetricsListener.INSTANCE;
+    private volatile boolean latencyHistogramsEnabled = false;
+    /** the histograms of the current connection, if it records latencies **/
+    private volatile ConnectionLatencyHistograms latencyHistograms;
+    /** replaced as a whole when a policy changes, so the event loop reads it without a lock **/
+    private volatile Map<RejectionReason, RetryPolicy> retryPolicies = Collections.emptyMap();
+    private volatile DeviceTokenRateLimiter deviceTokenRateLimiter;
+    private volatile InvalidDeviceTokenCache invalidDeviceTokenCache;
+    private volatile OutboxJournal outboxJournal;
+    /** written by the handler on the event loop whenever its pending queue changes **/
+    private volatile int queuedNotifications = 0;
+
+    /** senders waiting for room under OverflowPolicy.BLOCK wait on this lock **/
+    private final Object pendingCapacityLock = new Object();
+    private volatile int blockedSenders = 0;
+
+    private final GenericFutureListener<Future<ApnsPushNotificationResponse<T>>> inFlightListener = new GenericFutureListener<Future<ApnsPushNotificationResponse<T>>>() {
+        @Override
+        public void operationComplete(final Future<ApnsPushNotificationResponse<T>> future) throws Exception {
+            ApnsHttp2Client.this.inFlightNotifications.decrementAndGet();
+
+            if (ApnsHttp2Client.this.blockedSenders > 0) {
+                synchronized (ApnsHttp2Client.this.pendingCapacityLock) {
+                    ApnsHttp2Client.this.pendingCapacityLock.notifyAll();
+                }
+            }
+        }
+    };
+
+    /** this listener's effect is get reconnectionPromise after connect success. **/
+    private final GenericFutureListener<ChannelFuture> connectionReadyListener = new GenericFutureListener<ChannelFuture>() {
+        @Override
+        public void operationComplete(final ChannelFuture future) throws Exception {
+            logger.info("connectionReadyPromise operationComplete, this connectionReadyPromise {}, this reconnectionPromise {}",
+                    ApnsHttp2Client.this.connectionReadyPromise, ApnsHttp2Client.this.reconnectionPromise);
+            if (future.isSuccess()) {
+                ApnsHttp2Client.this.metricsListener.handleConnectionAdded();
+                synchronized (ApnsHttp2Client.this.bootstrap) {
+                    if (ApnsHttp2Client.this.reconnectionPromise != null) {
+                        logger.info("Connection to {} restored.", future.channel().remoteAddress());
+                        ApnsHttp2Client.this.reconnectionPromise.trySuccess();
+                    } else {
+                        logger.info("Connected to {}.", future.channel().remoteAddress());
+                    }
+                    ApnsHttp2Client.this.reconnectDelaySeconds = ApnsHttp2Properties.INITIAL_RECONNECT_DELAY_SECONDS;
+                    ApnsHttp2Client.this.reconnectionPromise = future.channel().newPromise();
+                }
+            } else {
+                ApnsHttp2Client.this.metricsListener.handleConnectionFailed();
+                logger.error("Failed to connect.", future.cause());
+            }
+        }
+    };
 
     private ArrayList<String> identities;
 
     private static final ClientNotConnectedException NOT_CONNECTED_EXCEPTION = new ClientNotConnectedException();
+    static final Set<RejectionReason> RETRYABLE_REASONS = EnumSet.of(RejectionReason.TOO_MANY_REQUESTS,
+            RejectionReason.INTERNAL_SERVER_ERROR, RejectionReason.SERVICE_UNAVAILABLE, RejectionReason.SHUTDOWN);
+    private static final PendingQueueFullException PENDING_QUEUE_FULL_EXCEPTION = new PendingQueueFullException("Pending queue is full.");
+    private static final RateLimitExceededException RATE_LIMIT_EXCEEDED_EXCEPTION = new RateLimitExceededException("Device token is over its rate limit.");
 
     public ApnsHttp2Client(final File p12File, final String password) throws IOException, KeyStoreException {
         this(p12File, password, null);
     }
 
     public ApnsHttp2Client(final File p12File, final String password, final EventLoopGroup eventLoopGroup) throws IOException, KeyStoreException {
-        this(ApnsHttp2Client.getSslContextWithP12File(p12File, password), eventLoopGroup);
-        try (final InputStream p12InputStream = new FileInputStream(p12File)) {
-            loadIdentifiers(loadKeyStore(p12InputStream, password));
-        }
+        /** the file is parsed once, for both the SSL context and the identities **/
+        this(ApnsHttp2Client.loadKeyStore(p12File, password), password, eventLoopGroup);
     }
 
     public ApnsHttp2Client(KeyStore keyStore, final String password) throws SSLException {
@@ -92,7 +170,7 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
         throw new Http2Exception(Http2Error.CONNECT_ERROR, errorResponse.getReason());
     }
 
-    private static KeyStore loadKeyStore(final InputStream p12InputStream, final String password) throws SSLException {
+    static KeyStore loadKeyStore(final InputStream p12InputStream, final String password) throws SSLException {
         try {
             return P12Utils.loadPCKS12KeyStore(p12InputStream, password);
         } catch (KeyStoreException | IOException e) {
@@ -101,13 +179,33 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
     }
 
     private void loadIdentifiers(KeyStore keyStore) throws SSLException {
+        this.identities = getIdentities(keyStore);
+    }
+
+    static ArrayList<String> getIdentities(KeyStore keyStore) throws SSLException {
         try {
-            this.identities = P12Utils.getIdentitiesForP12File(keyStore);
+            return P12Utils.getIdentitiesForP12File(keyStore);
         } catch (KeyStoreException | IOException e) {
             throw new SSLException(e);
         }
     }
 
+    void setIdentities(final ArrayList<String> identities) {
+        this.identities = identities;
+    }
+
+    /**
+     * Authenticates with provider tokens signed by the given key instead of a client
+     * certificate, so the connection can send to every topic of the key's team.
+     */
+    public ApnsHttp2Client(final ApnsSigningKey signingKey) throws SSLException, SignatureException {
+        this(signingKey, null);
+    }
+
+    public ApnsHttp2Client(final ApnsSigningKey signingKey, final EventLoopGroup eventLoopGroup) throws SSLException, SignatureException {
+        this(ApnsHttp2Client.getBaseSslContextBuilder().build(), eventLoopGroup, new AuthenticationTokenProvider(signingKey));
+    }
+
     public ApnsHttp2Client(final X509Certificate certificate, final PrivateKey privateKey, final String privateKeyPassword) throws SSLException {
         this(certificate, privateKey, privateKeyPassword, null);
     }
@@ -116,13 +214,13 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
         this(ApnsHttp2Client.getSslContextWithCertificateAndPrivateKey(certificate, privateKey, privateKeyPassword), eventLoopGroup);
     }
 
-    private static SslContext getSslContextWithP12File(final File p12File, final String password) throws IOException, KeyStoreException {
+    static KeyStore loadKeyStore(final File p12File, final String password) throws IOException {
         try (final InputStream p12InputStream = new FileInputStream(p12File)) {
-            return ApnsHttp2Client.getSslContextWithP12InputStream(loadKeyStore(p12InputStream, password), password);
+            return ApnsHttp2Client.loadKeyStore(p12InputStream, password);
         }
     }
 
-    private static SslContext getSslContextWithP12InputStream(final KeyStore keyStore, final String password) throws SSLException {
+    static SslContext getSslContextWithP12InputStream(final KeyStore keyStore, final String password) throws SSLException {
         final X509Certificate x509Certificate;
         final PrivateKey privateKey;
         try {
@@ -145,7 +243,7 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
                 .build();
     }
 
-    private static SslContextBuilder getBaseSslContextBuilder() {
+    static SslContextBuilder getBaseSslContextBuilder() {
         final SslProvider sslProvider;
 
         if (OpenSsl.isAvailable()) {
@@ -169,17 +267,42 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
     }
 
     protected ApnsHttp2Client(final SslContext sslContext, final EventLoopGroup eventLoopGroup) {
+        this(sslContext, eventLoopGroup, null);
+    }
+
+    /**
+     * @param tokenProvider the provider of the {@code authorization} header, or {@code null} when
+     *                      the SSL context carries a client certificate
+     */
+    ApnsHttp2Client(final SslContext sslContext, final EventLoopGroup eventLoopGroup, final AuthenticationTokenProvider tokenProvider) {
+        this(sslContext, eventLoopGroup, tokenProvider, ApnsHttp2Properties.DEFAULT_USE_NATIVE_TRANSPORT);
+    }
+
+    /**
+     * @param useNativeTransport whether a client that creates its own event loop group should use
+     *                           epoll when it is available; ignored if a group is given
+     */
+    ApnsHttp2Client(final SslContext sslContext, final EventLoopGroup eventLoopGroup, final AuthenticationTokenProvider tokenProvider, final boolean useNativeTransport) {
         this.bootstrap = new Bootstrap();
 
         if (eventLoopGroup != null) {
             this.bootstrap.group(eventLoopGroup);
             this.shouldShutDownEventLoopGroup = false;
         } else {
-            this.bootstrap.group(new NioEventLoopGroup(1));
+            this.bootstrap.group(ApnsHttp2Client.newEventLoopGroup(1, useNativeTransport));
             this.shouldShutDownEventLoopGroup = true;
         }
         this.bootstrap.channel(this.getSocketChannelClass(this.bootstrap.config().group()));
         this.bootstrap.option(ChannelOption.TCP_NODELAY, true);
+        this.bootstrap.option(ChannelOption.ALLOCATOR, ApnsHttp2Properties.DEFAULT_ALLOCATOR);
+        this.bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                ApnsHttp2Properties.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK, ApnsHttp2Properties.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK));
+        if (ApnsHttp2Properties.DEFAULT_SEND_BUFFER_SIZE > 0) {
+            this.bootstrap.option(ChannelOption.SO_SNDBUF, ApnsHttp2Properties.DEFAULT_SEND_BUFFER_SIZE);
+        }
+        if (ApnsHttp2Properties.DEFAULT_RECEIVE_BUFFER_SIZE > 0) {
+            this.bootstrap.option(ChannelOption.SO_RCVBUF, ApnsHttp2Properties.DEFAULT_RECEIVE_BUFFER_SIZE);
+        }
         this.bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             protected void initChannel(final SocketChannel channel) throws Exception {
@@ -194,12 +317,23 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
                     @Override
                     protected void configurePipeline(final ChannelHandlerContext context, final String protocol) {
                         if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                            final ConnectionLatencyHistograms latencyHistograms =
+                                    ApnsHttp2Client.this.latencyHistogramsEnabled ? new ConnectionLatencyHistograms() : null;
+                            if (ApnsHttp2Client.this.readyPromiseFor(context.channel()) != ApnsHttp2Client.this.replacementPromise) {
+                                /** a replacement's histograms are taken over together with its notifications **/
+                                ApnsHttp2Client.this.latencyHistograms = latencyHistograms;
+                            }
+
                             final ApnsHttp2ClientHandler<T> apnsHttp2ClientHandler = new ApnsHttp2ClientHandler.ApnsHttp2ClientHandlerBuilder<T>()
                                     .server(false)
                                     .apnsHttp2Client(ApnsHttp2Client.this)
                                     .authority(((InetSocketAddress) context.channel().remoteAddress()).getHostName())
-                                    .maxUnflushedNotifications(ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS)
-                                    .encoderEnforceMaxConcurrentStreams(true)
+                                    .tokenProvider(tokenProvider)
+                                    .maxUnflushedNotifications(ApnsHttp2Client.this.maxUnflushedNotifications)
+                                    .maxUnflushedBytes(ApnsHttp2Client.this.maxUnflushedBytes)
+                                    .latencyHistograms(latencyHistograms)
+                                    .streamIdRolloverThreshold(ApnsHttp2Client.this.streamIdRolloverThreshold)
+                                    .encoderEnforceMaxConcurrentStreams(false)
                                     .build();
 
                             synchronized (ApnsHttp2Client.this.bootstrap) {
@@ -209,8 +343,7 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
                             }
 
                             /** IdleStateHandler is send heart-beat to apns that remain the connection **/
-                            context.pipeline().addLast(new IdleStateHandler(0,
-                                    ApnsHttp2Properties.DEFAULT_FLUSH_AFTER_IDLE_MILLIS,
+                            context.pipeline().addLast(new IdleStateHandler(0, 0,
                                     ApnsHttp2Properties.PING_IDLE_TIME_MILLIS,
                                     TimeUnit.MILLISECONDS));
                             context.pipeline().addLast(apnsHttp2ClientHandler);
@@ -218,7 +351,7 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
                             context.channel().eventLoop().submit(new Runnable() {
                                 @Override
                                 public void run() {
-                                    final ChannelPromise connectionReadyPromise = ApnsHttp2Client.this.connectionReadyPromise;
+                                    final ChannelPromise connectionReadyPromise = ApnsHttp2Client.this.readyPromiseFor(context.channel());
                                     if (connectionReadyPromise != null) {
                                         connectionReadyPromise.trySuccess();
                                     }
@@ -232,7 +365,7 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
 
                     @Override
                     protected void handshakeFailure(final ChannelHandlerContext context, final Throwable cause) throws Exception {
-                        final ChannelPromise connectionReadyPromise = ApnsHttp2Client.this.connectionReadyPromise;
+                        final ChannelPromise connectionReadyPromise = ApnsHttp2Client.this.readyPromiseFor(context.channel());
                         if (connectionReadyPromise != null) {
                             connectionReadyPromise.tryFailure(cause);
                         }
@@ -243,6 +376,45 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
         });
     }
 
+    /**
+     * Returns {@code true} if Netty's epoll transport is on the classpath and its native library
+     * loads on this platform.
+     */
+    static boolean isNativeTransportAvailable() {
+        try {
+            return (Boolean) Class.forName(EPOLL_CLASS).getMethod("isAvailable").invoke(null);
+        } catch (final ReflectiveOperationException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an epoll event loop group if asked to and epoll is available, or an NIO group
+     * otherwise.
+     */
+    static EventLoopGroup newEventLoopGroup(final int threads, final boolean useNativeTransport) {
+        if (useNativeTransport && isNativeTransportAvailable()) {
+            try {
+                return (EventLoopGroup) Class.forName(EPOLL_EVENT_LOOP_GROUP_CLASS).getConstructor(int.class).newInstance(threads);
+            } catch (final ReflectiveOperationException e) {
+                logger.warn("Failed to create an epoll event loop group, falling back to NIO.", e);
+            }
+        }
+        return new NioEventLoopGroup(threads);
+    }
+
+    /**
+     * Sets channel options for the next connection, replacing the defaults of the same options.
+     */
+    @SuppressWarnings("unchecked")
+    void setChannelOptions(final Map<ChannelOption<?>, Object> channelOptions) {
+        synchronized (this.bootstrap) {
+            for (final Map.Entry<ChannelOption<?>, Object> channelOption : channelOptions.entrySet()) {
+                this.bootstrap.option((ChannelOption<Object>) channelOption.getKey(), channelOption.getValue());
+            }
+        }
+    }
+
     private Class<? extends Channel> getSocketChannelClass(final EventLoopGroup eventLoopGroup) {
         if (eventLoopGroup == null) {
             logger.warn("Asked for socket channel class to work with null event loop group, returning NioSocketChannel class.");
@@ -300,65 +472,13 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
             synchronized (this.bootstrap) {
                 logger.info("connect {}:{}. this connectionReadyPromise {}.", host, port, this.connectionReadyPromise);
                 if (this.connectionReadyPromise == null) {
+                    this.host = host;
+                    this.port = port;
+                    this.maxConcurrentStreams = Long.MAX_VALUE;
                     final ChannelFuture connectFuture = this.bootstrap.connect(host, port);
                     this.connectionReadyPromise = connectFuture.channel().newPromise();
-                    /** this listener is add in channel, its effect is attempt to reconnect when the channel close **/
-                    connectFuture.channel().closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
-                        @Override
-                        public void operationComplete(final ChannelFuture future) throws Exception {
-                            logger.info("connectFuture.channel close operationComplete, this connectionReadyPromise {}, this reconnectionPromise {}",
-                                    ApnsHttp2Client.this.connectionReadyPromise, ApnsHttp2Client.this.reconnectionPromise);
-                            synchronized (ApnsHttp2Client.this.bootstrap) {
-                                if (ApnsHttp2Client.this.connectionReadyPromise != null) {
-                                    ApnsHttp2Client.this.connectionReadyPromise.tryFailure(
-                                            new IllegalStateException("Channel closed before HTTP/2 preface completed."));
-                                    ApnsHttp2Client.this.connectionReadyPromise = null;
-                                }
-                                if (ApnsHttp2Client.this.reconnectionPromise != null) {
-                                    logger.error("Disconnected. Next automatic reconnection attempt in {} seconds.", ApnsHttp2Client.this.reconnectDelaySeconds);
-                                    future.channel().eventLoop().schedule(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            logger.warn("Attempting to reconnect.");
-                                            ApnsHttp2Client.this.connect(host, port);
-                                        }
-                                    }, ApnsHttp2Client.this.reconnectDelaySeconds, TimeUnit.SECONDS);
-                                    ApnsHttp2Client.this.reconnectDelaySeconds = Math.min(ApnsHttp2Client.this.reconnectDelaySeconds, ApnsHttp2Properties.MAX_RECONNECT_DELAY_SECONDS);
-                                }
-                            }
-                            future.channel().eventLoop().submit(new Runnable() {
-                                @Override
-                                public void run() {
-                                    for (final Promise<ApnsPushNotificationResponse<T>> responsePromise : ApnsHttp2Client.this.responsePromises.values()) {
-                                        responsePromise.tryFailure(new ClientNotConnectedException("Client disconnected unexpectedly."));
-                                    }
-                                    ApnsHttp2Client.this.responsePromises.clear();
-                                }
-                            });
-                        }
-                    });
-                    /** this listener's effect is get reconnectionPromise after connect success. **/
-                    this.connectionReadyPromise.addListener(new GenericFutureListener<ChannelFuture>() {
-                        @Override
-                        public void operationComplete(final ChannelFuture future) throws Exception {
-                            logger.info("connectionReadyPromise operationComplete, this connectionReadyPromise {}, this reconnectionPromise {}",
-                                    ApnsHttp2Client.this.connectionReadyPromise, ApnsHttp2Client.this.reconnectionPromise);
-                            if (future.isSuccess()) {
-                                synchronized (ApnsHttp2Client.this.bootstrap) {
-                                    if (ApnsHttp2Client.this.reconnectionPromise != null) {
-                                        logger.info("Connection to {} restored.", future.channel().remoteAddress());
-                                        ApnsHttp2Client.this.reconnectionPromise.trySuccess();
-                                    } else {
-                                        logger.info("Connected to {}.", future.channel().remoteAddress());
-                                    }
-                                    ApnsHttp2Client.this.reconnectDelaySeconds = ApnsHttp2Properties.INITIAL_RECONNECT_DELAY_SECONDS;
-                                    ApnsHttp2Client.this.reconnectionPromise = future.channel().newPromise();
-                                }
-                            } else {
-                                logger.error("Failed to connect.", future.cause());
-                            }
-                        }
-                    });
+                    connectFuture.channel().closeFuture().addListener(this.newChannelCloseListener(host, port));
+                    this.connectionReadyPromise.addListener(this.connectionReadyListener);
                 }
 
                 if (this.connectionReadyPromise != null) {
@@ -370,15 +490,563 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
         return connectionReadyFuture;
     }
 
+    /**
+     * Returns the ready promise of the given channel, which is either the current connection or
+     * its replacement, or {@code null} for any other channel.
+     */
+    private ChannelPromise readyPromiseFor(final Channel channel) {
+        final ChannelPromise replacementPromise = this.replacementPromise;
+        if (replacementPromise != null && replacementPromise.channel() == channel) {
+            return replacementPromise;
+        }
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
+        return connectionReadyPromise != null && connectionReadyPromise.channel() == channel ? connectionReadyPromise : null;
+    }
+
+    /**
+     * this listener is add in channel, its effect is attempt to reconnect when the channel close.
+     * A replacement that fails is simply dropped, and a drained connection is expected to close.
+     */
+    private GenericFutureListener<ChannelFuture> newChannelCloseListener(final String host, final int port) {
+        return new GenericFutureListener<ChannelFuture>() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                logger.info("connectFuture.channel close operationComplete, this connectionReadyPromise {}, this reconnectionPromise {}",
+                        ApnsHttp2Client.this.connectionReadyPromise, ApnsHttp2Client.this.reconnectionPromise);
+                synchronized (ApnsHttp2Client.this.bootstrap) {
+                    if (future.channel() == ApnsHttp2Client.this.drainingChannel) {
+                        ApnsHttp2Client.this.drainingChannel = null;
+                        ApnsHttp2Client.this.metricsListener.handleConnectionRemoved();
+                        return;
+                    }
+                    final ChannelPromise replacementPromise = ApnsHttp2Client.this.replacementPromise;
+                    if (replacementPromise != null && replacementPromise.channel() == future.channel()) {
+                        ApnsHttp2Client.this.replacementPromise = null;
+                        replacementPromise.tryFailure(new IllegalStateException("Channel closed before HTTP/2 preface completed."));
+                        return;
+                    }
+                    if (ApnsHttp2Client.this.connectionReadyPromise == null || ApnsHttp2Client.this.connectionReadyPromise.channel() != future.channel()) {
+                        /** a channel this client already let go of **/
+                        return;
+                    }
+
+                    if (ApnsHttp2Client.this.connectionReadyPromise.isSuccess()) {
+                        ApnsHttp2Client.this.metricsListener.handleConnectionRemoved();
+                    }
+                    ApnsHttp2Client.this.connectionReadyPromise.tryFailure(
+                            new IllegalStateException("Channel closed before HTTP/2 preface completed."));
+                    ApnsHttp2Client.this.connectionReadyPromise = null;
+
+                    if (replacementPromise != null) {
+                        /** a replacement is already on its way; it takes over like a reconnection would **/
+                        logger.warn("Disconnected before the replacement connection was ready; it takes over once connected.");
+                        ApnsHttp2Client.this.replacementPromise = null;
+                        ApnsHttp2Client.this.connectionReadyPromise = replacementPromise;
+                        ApnsHttp2Client.this.adoptLatencyHistograms(replacementPromise.channel());
+                        replacementPromise.addListener(ApnsHttp2Client.this.connectionReadyListener);
+                    } else if (ApnsHttp2Client.this.reconnectionPromise != null) {
+                        logger.error("Disconnected. Next automatic reconnection attempt in {} seconds.", ApnsHttp2Client.this.reconnectDelaySeconds);
+                        future.channel().eventLoop().schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                logger.warn("Attempting to reconnect.");
+                                ApnsHttp2Client.this.connect(host, port);
+                            }
+                        }, ApnsHttp2Client.this.reconnectDelaySeconds, TimeUnit.SECONDS);
+                        ApnsHttp2Client.this.reconnectDelaySeconds = Math.min(ApnsHttp2Client.this.reconnectDelaySeconds, ApnsHttp2Properties.MAX_RECONNECT_DELAY_SECONDS);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a replacement for the given connection, which is running out of stream ids or was
+     * told to go away. The connection keeps sending, or queueing, until the replacement has
+     * received the server's settings, then hands over to it; see
+     * {@link #handleInitialSettings(Channel)}. Does nothing if the given channel is no longer
+     * the current connection or a replacement is already on its way.
+     */
+    void rollOver(final Channel channel) {
+        synchronized (this.bootstrap) {
+            if (this.connectionReadyPromise == null || this.connectionReadyPromise.channel() != channel
+                    || this.replacementPromise != null || this.reconnectionPromise == null) {
+                return;
+            }
+
+            logger.info("Opening a replacement for connection {}.", channel);
+            final ChannelFuture connectFuture = this.bootstrap.connect(this.host, this.port);
+            this.replacementPromise = connectFuture.channel().newPromise();
+            connectFuture.channel().closeFuture().addListener(this.newChannelCloseListener(this.host, this.port));
+            this.replacementPromise.addListener(new GenericFutureListener<ChannelFuture>() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    /** no reconnection promise means the client was disconnected meanwhile **/
+                    if (!future.isSuccess() && ApnsHttp2Client.this.reconnectionPromise != null) {
+                        ApnsHttp2Client.this.metricsListener.handleConnectionFailed();
+                        logger.error("Failed to open a replacement connection. Next attempt in {} seconds.", ApnsHttp2Client.this.reconnectDelaySeconds, future.cause());
+                        channel.eventLoop().schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                ApnsHttp2Client.this.rollOver(channel);
+                            }
+                        }, ApnsHttp2Client.this.reconnectDelaySeconds, TimeUnit.SECONDS);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by a connection's handler once the server's first settings arrived. If the channel
+     * is a replacement it becomes the current connection, and the connection it replaces
+     * drains.
+     */
+    void handleInitialSettings(final Channel channel) {
+        final Channel replacedChannel;
+        synchronized (this.bootstrap) {
+            final ChannelPromise replacementPromise = this.replacementPromise;
+            if (replacementPromise == null || replacementPromise.channel() != channel) {
+                return;
+            }
+            if (!replacementPromise.isDone()) {
+                /** the settings may be read before the pipeline reports the connection ready **/
+                replacementPromise.addListener(new GenericFutureListener<ChannelFuture>() {
+                    @Override
+                    public void operationComplete(final ChannelFuture future) throws Exception {
+                        if (future.isSuccess()) {
+                            ApnsHttp2Client.this.handleInitialSettings(channel);
+                        }
+                    }
+                });
+                return;
+            }
+            if (!replacementPromise.isSuccess()) {
+                return;
+            }
+
+            replacedChannel = this.connectionReadyPromise.channel();
+            this.connectionReadyPromise = replacementPromise;
+            this.replacementPromise = null;
+            this.drainingChannel = replacedChannel;
+            this.adoptLatencyHistograms(channel);
+        }
+
+        this.metricsListener.handleConnectionAdded();
+        logger.info("Replacement connection {} took over from {}.", channel, replacedChannel);
+
+        final ApnsHttp2ClientHandler<?> replacedHandler = replacedChannel.pipeline().get(ApnsHttp2ClientHandler.class);
+        if (replacedHandler != null) {
+            replacedChannel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    replacedHandler.drain();
+                }
+            });
+        }
+    }
+
+    private void adoptLatencyHistograms(final Channel channel) {
+        final ApnsHttp2ClientHandler<?> handler = channel.pipeline().get(ApnsHttp2ClientHandler.class);
+        if (handler != null) {
+            this.latencyHistograms = handler.getLatencyHistograms();
+        }
+    }
+
+    /**
+     * Hands a notification that reached a draining or closed connection, or is due for a retry,
+     * to the current connection, waiting for it if it is still connecting; runs on the event
+     * loop of the connection the notification was last written to.
+     */
+    void redirectNotification(final PendingNotification<T> pendingNotification) {
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
+
+        if (connectionReadyPromise != null && !connectionReadyPromise.isDone()) {
+            connectionReadyPromise.addListener(new GenericFutureListener<ChannelFuture>() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    ApnsHttp2Client.this.redirectNotification(pendingNotification);
+                }
+            });
+        } else if (connectionReadyPromise != null && connectionReadyPromise.isSuccess() && connectionReadyPromise.channel().isActive()) {
+            final Channel channel = connectionReadyPromise.channel();
+            channel.write(pendingNotification, channel.voidPromise());
+        } else {
+            this.metricsListener.handleNotificationDropped();
+            pendingNotification.getResponsePromise().tryFailure(new ClientNotConnectedException("Client disconnected unexpectedly."));
+        }
+    }
+
+    /**
+     * Sets after how many stream ids a connection opens its replacement; applies from the next
+     * connection on.
+     */
+    void setStreamIdRolloverThreshold(final long streamIdRolloverThreshold) {
+        this.streamIdRolloverThreshold = streamIdRolloverThreshold;
+    }
+
     public boolean isConnected() {
         final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
         return (connectionReadyPromise != null && connectionReadyPromise.isSuccess());
     }
 
+    /**
+     * Returns {@code true} if this client has no connection, is not connecting and will not
+     * reconnect by itself, i.e. its first connection attempt failed or it was disconnected.
+     */
+    boolean isAbandoned() {
+        synchronized (this.bootstrap) {
+            return this.connectionReadyPromise == null && this.reconnectionPromise == null;
+        }
+    }
+
     void waitForInitialSettings() throws InterruptedException {
         this.connectionReadyPromise.channel().pipeline().get(ApnsHttp2ClientHandler.class).waitForInitialSettings();
     }
 
+    void setMaxConcurrentStreams(final long maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    /**
+     * Returns the number of streams this client could still open without exceeding the
+     * MAX_CONCURRENT_STREAMS setting advertised by the server. Until the server settings arrive
+     * the limit is assumed to be {@link ApnsHttp2Properties#ASSUMED_MAX_CONCURRENT_STREAMS}, so a
+     * new connection ranks by its in-flight notifications instead of taking all the traffic.
+     */
+    long getAvailableStreams() {
+        final long maxConcurrentStreams = this.maxConcurrentStreams;
+        return (maxConcurrentStreams == Long.MAX_VALUE ? ApnsHttp2Properties.ASSUMED_MAX_CONCURRENT_STREAMS : maxConcurrentStreams)
+                - this.inFlightNotifications.get();
+    }
+
+    int getInFlightNotifications() {
+        return this.inFlightNotifications.get();
+    }
+
+    /**
+     * Sets how many notifications may wait for a stream once MAX_CONCURRENT_STREAMS streams are
+     * open. By default the queue holds twice the server's MAX_CONCURRENT_STREAMS.
+     *
+     * @param maxPendingNotifications the queue capacity, or 0 for the default
+     */
+    public void setMaxPendingNotifications(final int maxPendingNotifications) {
+        if (maxPendingNotifications < 0) {
+            throw new IllegalArgumentException("Pending queue capacity must not be negative.");
+        }
+        this.maxPendingNotifications = maxPendingNotifications;
+    }
+
+    int getMaxPendingNotifications() {
+        return this.maxPendingNotifications;
+    }
+
+    /**
+     * Sets what happens to a notification sent while the pending queue is full;
+     * {@link OverflowPolicy#BLOCK} by default.
+     */
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "Overflow policy must not be null.");
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * Written notifications are flushed once the event loop has run every write queued so far,
+     * so a lone notification goes out at once and a burst goes out in one write. These caps
+     * flush a long burst early, after the given number of notifications or payload bytes. They
+     * apply from the next connection on.
+     */
+    public void setMaxUnflushedNotifications(final int maxUnflushedNotifications) {
+        if (maxUnflushedNotifications < 1) {
+            throw new IllegalArgumentException("Flush size must be at least one notification.");
+        }
+        this.maxUnflushedNotifications = maxUnflushedNotifications;
+    }
+
+    /**
+     * @see #setMaxUnflushedNotifications(int)
+     */
+    public void setMaxUnflushedBytes(final int maxUnflushedBytes) {
+        if (maxUnflushedBytes < 1) {
+            throw new IllegalArgumentException("Flush size must be at least one byte.");
+        }
+        this.maxUnflushedBytes = maxUnflushedBytes;
+    }
+
+    /**
+     * Reports this client's notification, flush and connection events to the given listener.
+     * One listener may serve several clients.
+     */
+    public void setMetricsListener(final ApnsClientMetricsListener metricsListener) {
+        this.metricsListener = Objects.requireNonNull(metricsListener, "Metrics listener must not be null.");
+    }
+
+    ApnsClientMetricsListener getMetricsListener() {
+        return this.metricsListener;
+    }
+
+    /**
+     * Records the {@link LatencyStage}s of every notification into histograms of the
+     * connection, from the next connection on. Off by default; it costs a few
+     * {@code System.nanoTime()} calls per notification.
+     *
+     * @see #getLatencyHistograms()
+     */
+    public void setLatencyHistogramsEnabled(final boolean latencyHistogramsEnabled) {
+        this.latencyHistogramsEnabled = latencyHistogramsEnabled;
+    }
+
+    /**
+     * Returns the latency histograms of the current connection, or {@code null} if it doesn't
+     * record latencies. A reconnection starts new histograms.
+     */
+    public ConnectionLatencyHistograms getLatencyHistograms() {
+        return this.latencyHistograms;
+    }
+
+    /**
+     * Sends notifications that APNs rejected with {@code TooManyRequests},
+     * {@code InternalServerError}, {@code ServiceUnavailable} or {@code Shutdown} again
+     * according to the given policy, or {@code null} to complete them with the rejection as
+     * before. Off by default.
+     * <p/>
+     * Retries wait on the event loop's timer; the response future completes only with the last
+     * attempt's outcome, and a notification whose expiration would pass before its next attempt
+     * completes with its last rejection. A retrying notification keeps its room in the pending
+     * queue, so senders slow down while APNs pushes back.
+     *
+     * @see #setRetryPolicy(RejectionReason, RetryPolicy)
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        synchronized (this.bootstrap) {
+            this.retryPolicies = withRetryPolicy(this.retryPolicies, RETRYABLE_REASONS, retryPolicy);
+        }
+    }
+
+    /**
+     * Sets the retry policy of one rejection reason, e.g. a longer backoff for
+     * {@code TooManyRequests}, which APNs sends for too many notifications to one device.
+     * Retrying reasons that won't pass, like {@code BadDeviceToken}, only delays the rejection.
+     */
+    public void setRetryPolicy(final RejectionReason reason, final RetryPolicy retryPolicy) {
+        Objects.requireNonNull(reason, "Rejection reason must not be null.");
+        synchronized (this.bootstrap) {
+            this.retryPolicies = withRetryPolicy(this.retryPolicies, EnumSet.of(reason), retryPolicy);
+        }
+    }
+
+    void setRetryPolicies(final Map<RejectionReason, RetryPolicy> retryPolicies) {
+        this.retryPolicies = retryPolicies;
+    }
+
+    /**
+     * @return a copy of the given policies with the given reasons set to the given policy, or
+     * removed if it is {@code null}
+     */
+    static Map<RejectionReason, RetryPolicy> withRetryPolicy(final Map<RejectionReason, RetryPolicy> retryPolicies, final Set<RejectionReason> reasons, final RetryPolicy retryPolicy) {
+        final Map<RejectionReason, RetryPolicy> copy = new EnumMap<>(RejectionReason.class);
+        copy.putAll(retryPolicies);
+        for (final RejectionReason reason : reasons) {
+            if (retryPolicy == null) {
+                copy.remove(reason);
+            } else {
+                copy.put(reason, retryPolicy);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Schedules the next attempt of a rejected notification if its reason has a retry policy
+     * with attempts left and the notification doesn't expire before then. Runs on the event
+     * loop of the connection that got the rejection.
+     *
+     * @return {@code false} if the notification should complete with the rejection
+     */
+    boolean scheduleRetry(final EventLoop eventLoop, final PendingNotification<T> pendingNotification, final RejectionReason reason) {
+        final RetryPolicy retryPolicy = reason == null ? null : this.retryPolicies.get(reason);
+        if (retryPolicy == null || pendingNotification.retries + 1 >= retryPolicy.getMaxAttempts() || this.reconnectionPromise == null) {
+            return false;
+        }
+
+        final long delayMillis = retryPolicy.getDelayMillis(pendingNotification.retries + 1);
+        final Date expiration = pendingNotification.getNotification().getExpiration();
+        if (expiration != null && System.currentTimeMillis() + delayMillis >= expiration.getTime()) {
+            return false;
+        }
+
+        pendingNotification.retries++;
+        this.scheduleRedirect(eventLoop, pendingNotification, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        return true;
+    }
+
+    /**
+     * Writes the notification to the current connection once the delay has passed.
+     */
+    private void scheduleRedirect(final EventLoop eventLoop, final PendingNotification<T> pendingNotification, final long delayNanos) {
+        eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ApnsHttp2Client.this.redirectNotification(pendingNotification);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS).addListener(new GenericFutureListener<Future<Object>>() {
+            @Override
+            public void operationComplete(final Future<Object> future) throws Exception {
+                /** cancelled by the event loop shutting down on disconnect **/
+                if (future.isCancelled()) {
+                    ApnsHttp2Client.this.metricsListener.handleNotificationDropped();
+                    pendingNotification.getResponsePromise().tryFailure(new ClientNotConnectedException("Client disconnected unexpectedly."));
+                }
+            }
+        });
+    }
+
+    /**
+     * Paces notifications per device token with the given limiter, or not at all with
+     * {@code null}, the default. A notification over its token's rate waits on the event loop's
+     * timer, keeping its room in the pending queue, or fails with a
+     * {@link RateLimitExceededException} if it would wait longer than the limiter allows.
+     */
+    public void setDeviceTokenRateLimiter(final DeviceTokenRateLimiter deviceTokenRateLimiter) {
+        this.deviceTokenRateLimiter = deviceTokenRateLimiter;
+    }
+
+    /**
+     * Completes notifications to device tokens the given cache knows to be invalid locally, and
+     * teaches it every {@code Unregistered} and {@code BadDeviceToken} rejection; {@code null},
+     * the default, sends every notification.
+     */
+    public void setInvalidDeviceTokenCache(final InvalidDeviceTokenCache invalidDeviceTokenCache) {
+        this.invalidDeviceTokenCache = invalidDeviceTokenCache;
+    }
+
+    InvalidDeviceTokenCache getInvalidDeviceTokenCache() {
+        return this.invalidDeviceTokenCache;
+    }
+
+    /**
+     * Journals every notification in the given outbox before writing it, and marks it done once
+     * it is answered, or fails before the client is disconnected; {@code null}, the default,
+     * journals nothing. Notifications rejected locally, by the pending queue, the rate limiter
+     * or the invalid device token cache, are never journaled.
+     */
+    public void setOutboxJournal(final OutboxJournal outboxJournal) {
+        this.outboxJournal = outboxJournal;
+    }
+
+    /**
+     * @return the rejection the notification's token got last, or {@code null} if it should be
+     * sent
+     */
+    private ApnsPushNotificationResponse<T> cachedRejection(final InvalidDeviceTokenCache invalidDeviceTokenCache, final T notification) {
+        final long rejection = invalidDeviceTokenCache.find(notification.getToken());
+        if (rejection == 0) {
+            return null;
+        }
+
+        final RejectionReason reason = InvalidDeviceTokenCache.reason(rejection);
+        this.metricsListener.handleNotificationSkipped(reason);
+
+        /** APNs only dates Unregistered rejections **/
+        return new ApnsHttp2PushNotificationResponse<>(notification, false, reason.getReason(), reason,
+                reason == RejectionReason.UNREGISTERED ? new Date(InvalidDeviceTokenCache.invalidationMillis(rejection)) : null);
+    }
+
+    /**
+     * @return 0 to send now, the nanoseconds to wait, or -1 if the notification must fail
+     */
+    private long acquireRateLimit(final T notification) {
+        final DeviceTokenRateLimiter deviceTokenRateLimiter = this.deviceTokenRateLimiter;
+        return deviceTokenRateLimiter == null ? 0 : deviceTokenRateLimiter.acquire(notification.getToken());
+    }
+
+    /**
+     * Returns the number of notifications waiting for a stream on the current connection.
+     */
+    public int getQueuedNotifications() {
+        return this.queuedNotifications;
+    }
+
+    void setQueuedNotifications(final int queuedNotifications) {
+        this.queuedNotifications = queuedNotifications;
+    }
+
+    /**
+     * Checks that {@code count} more notifications fit in the open streams plus the pending
+     * queue, waiting up to {@link ApnsHttp2Properties#MAX_BLOCKED_SEND_MILLIS} for responses to
+     * free room under {@link OverflowPolicy#BLOCK}. The count is read without a lock, so
+     * concurrent senders may overshoot a little; the handler's queue is the hard limit.
+     *
+     * @return {@code false} if the notifications should fail with a full queue
+     */
+    private boolean reservePendingCapacity(final Channel channel, final int count) {
+        final OverflowPolicy overflowPolicy = this.overflowPolicy;
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST || this.hasPendingCapacity(count)) {
+            return true;
+        }
+        if (overflowPolicy == OverflowPolicy.FAIL_FAST || isEventLoopThread(channel)) {
+            return false;
+        }
+
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ApnsHttp2Properties.MAX_BLOCKED_SEND_MILLIS);
+        synchronized (this.pendingCapacityLock) {
+            this.blockedSenders++;
+            try {
+                while (!this.hasPendingCapacity(count) && channel.isActive()) {
+                    final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        return false;
+                    }
+                    this.pendingCapacityLock.wait(Math.min(remainingMillis, ApnsHttp2Properties.BLOCKED_SEND_RECHECK_MILLIS));
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                this.blockedSenders--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A sender on an event loop thread must never wait: the responses that would wake it may
+     * have to be read by that very thread. Pool members, tenants and response listeners share
+     * event loop groups, so any loop of the channel's group counts, and any other Netty event
+     * loop thread too.
+     */
+    private static boolean isEventLoopThread(final Channel channel) {
+        if (Thread.currentThread() instanceof FastThreadLocalThread) {
+            return true;
+        }
+        for (final EventExecutor eventLoop : channel.eventLoop().parent()) {
+            if (eventLoop.inEventLoop()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasPendingCapacity(final int count) {
+        final int inFlight = this.inFlightNotifications.get();
+        final long maxConcurrentStreams = this.maxConcurrentStreams;
+
+        /**
+         * no limit before the server's SETTINGS or from a server that never sends one, like the
+         * handler, which opens streams freely until then; a batch larger than the whole limit
+         * still goes out once nothing else is in flight
+         **/
+        if (inFlight == 0 || maxConcurrentStreams >= Integer.MAX_VALUE) {
+            return true;
+        }
+        /** subtracted, not added, so that neither side can overflow **/
+        return (long) inFlight + count - maxConcurrentStreams
+                <= ApnsHttp2ClientHandler.pendingQueueCapacity(this.maxPendingNotifications, maxConcurrentStreams);
+    }
+
     public Future<Void> getReconnectionFuture() {
         final Future<Void> reconnectionFuture;
         synchronized (this.bootstrap) {
@@ -396,47 +1064,195 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
 
     public Future<ApnsPushNotificationResponse<T>> sendNotification(final T notification) {
         final Future<ApnsPushNotificationResponse<T>> responseFuture;
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
+        final InvalidDeviceTokenCache invalidDeviceTokenCache = this.invalidDeviceTokenCache;
+        final ApnsPushNotificationResponse<T> cachedRejection =
+                invalidDeviceTokenCache != null ? this.cachedRejection(invalidDeviceTokenCache, notification) : null;
+
+        if (cachedRejection != null) {
+            responseFuture = new SucceededFuture<>(GlobalEventExecutor.INSTANCE, cachedRejection);
+        } else if (connectionReadyPromise != null && connectionReadyPromise.isSuccess() && connectionReadyPromise.channel().isActive()) {
+            final Channel channel = connectionReadyPromise.channel();
+            final long sentNanos = this.latencyHistogramsEnabled ? System.nanoTime() : 0;
+
+            if (!this.reservePendingCapacity(channel, 1)) {
+                this.metricsListener.handleNotificationDropped();
+                responseFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, PENDING_QUEUE_FULL_EXCEPTION);
+            } else {
+                final long rateLimitDelayNanos = this.acquireRateLimit(notification);
+
+                if (rateLimitDelayNanos < 0) {
+                    this.metricsListener.handleNotificationDropped();
+                    responseFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, RATE_LIMIT_EXCEEDED_EXCEPTION);
+                } else {
+                    final Promise<ApnsPushNotificationResponse<T>> responsePromise = this.newResponsePromise(channel, notification);
 
-        if (connectionReadyPromise != null && connectionReadyPromise.isSuccess() && connectionReadyPromise.channel().isActive()) {
-            verifyTopic(notification);
+                    if (rateLimitDelayNanos > 0) {
+                        this.scheduleRedirect(channel.eventLoop(), new PendingNotification<>(notification, responsePromise, sentNanos), rateLimitDelayNanos);
+                    } else {
+                        channel.eventLoop().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                ApnsHttp2Client.this.writeNotification(channel, notification, responsePromise, sentNanos);
+                            }
+                        });
+                    }
 
-            final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
-            final DefaultPromise<ApnsPushNotificationResponse<T>> responsePromise
-                    = new DefaultPromise<>(connectionReadyPromise.channel().eventLoop());
+                    responseFuture = responsePromise;
+                }
+            }
+        } else {
+            logger.error("Failed to send push notification because client is not connected: {}", notification);
+            responseFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+        }
 
-            connectionReadyPromise.channel().eventLoop().submit(new Runnable() {
+        return responseFuture;
+    }
+
+    /**
+     * Sends a batch of notifications with a single hand-off to the event loop. The batch is
+     * flushed once it has been written, or in pieces no larger than the flush caps; see
+     * {@link #setMaxUnflushedNotifications(int)}.
+     *
+     * @return one response future per notification, in iteration order, plus a future for the
+     * whole batch
+     */
+    public BatchSendResult<T> sendNotifications(final Collection<T> notifications) {
+        return this.sendNotifications(new ArrayList<>(notifications));
+    }
+
+    /**
+     * Same as {@link #sendNotifications(Collection)}; the iterator is drained on the calling
+     * thread before the batch is handed to the event loop.
+     */
+    public BatchSendResult<T> sendNotifications(final Iterator<T> notifications) {
+        final ArrayList<T> batch = new ArrayList<>();
+        while (notifications.hasNext()) {
+            batch.add(notifications.next());
+        }
+        return this.sendNotifications(batch);
+    }
+
+    private BatchSendResult<T> sendNotifications(final List<T> notifications) {
+        final InvalidDeviceTokenCache invalidDeviceTokenCache = this.invalidDeviceTokenCache;
+        if (invalidDeviceTokenCache == null) {
+            return this.sendNotificationsToConnection(notifications);
+        }
+
+        final List<Future<ApnsPushNotificationResponse<T>>> skippedFutures = new ArrayList<>(notifications.size());
+        final List<T> sentNotifications = new ArrayList<>(notifications.size());
+        for (final T notification : notifications) {
+            final ApnsPushNotificationResponse<T> cachedRejection = this.cachedRejection(invalidDeviceTokenCache, notification);
+            if (cachedRejection != null) {
+                skippedFutures.add(new SucceededFuture<>(GlobalEventExecutor.INSTANCE, cachedRejection));
+            } else {
+                skippedFutures.add(null);
+                sentNotifications.add(notification);
+            }
+        }
+        if (sentNotifications.size() == notifications.size()) {
+            return this.sendNotificationsToConnection(notifications);
+        }
+
+        /** put the skipped notifications' futures back in the batch's order **/
+        final Iterator<Future<ApnsPushNotificationResponse<T>>> sentFutures =
+                this.sendNotificationsToConnection(sentNotifications).getResponseFutures().iterator();
+        final List<Future<ApnsPushNotificationResponse<T>>> responseFutures = new ArrayList<>(notifications.size());
+        for (final Future<ApnsPushNotificationResponse<T>> skippedFuture : skippedFutures) {
+            responseFutures.add(skippedFuture != null ? skippedFuture : sentFutures.next());
+        }
+        return new BatchSendResult<>(responseFutures);
+    }
+
+    private BatchSendResult<T> sendNotificationsToConnection(final List<T> notifications) {
+        final List<Future<ApnsPushNotificationResponse<T>>> responseFutures = new ArrayList<>(notifications.size());
+        final ChannelPromise connectionReadyPromise = this.connectionReadyPromise;
+        final long sentNanos = this.latencyHistogramsEnabled ? System.nanoTime() : 0;
+
+        if (connectionReadyPromise != null && connectionReadyPromise.isSuccess() && connectionReadyPromise.channel().isActive()
+                && !this.reservePendingCapacity(connectionReadyPromise.channel(), notifications.size())) {
+            final Future<ApnsPushNotificationResponse<T>> failedFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, PENDING_QUEUE_FULL_EXCEPTION);
+            for (int i = 0; i < notifications.size(); i++) {
+                this.metricsListener.handleNotificationDropped();
+                responseFutures.add(failedFuture);
+            }
+        } else if (connectionReadyPromise != null && connectionReadyPromise.isSuccess() && connectionReadyPromise.channel().isActive()) {
+            final Channel channel = connectionReadyPromise.channel();
+            final List<T> writableNotifications = new ArrayList<>(notifications.size());
+            final List<Promise<ApnsPushNotificationResponse<T>>> responsePromises = new ArrayList<>(notifications.size());
+
+            for (final T notification : notifications) {
+                final long rateLimitDelayNanos = this.acquireRateLimit(notification);
+                if (rateLimitDelayNanos < 0) {
+                    this.metricsListener.handleNotificationDropped();
+                    responseFutures.add(new FailedFuture<ApnsPushNotificationResponse<T>>(GlobalEventExecutor.INSTANCE, RATE_LIMIT_EXCEEDED_EXCEPTION));
+                    continue;
+                }
+
+                final Promise<ApnsPushNotificationResponse<T>> responsePromise = this.newResponsePromise(channel, notification);
+                responseFutures.add(responsePromise);
+
+                if (rateLimitDelayNanos > 0) {
+                    this.scheduleRedirect(channel.eventLoop(), new PendingNotification<>(notification, responsePromise, sentNanos), rateLimitDelayNanos);
+                } else {
+                    writableNotifications.add(notification);
+                    responsePromises.add(responsePromise);
+                }
+            }
+
+            channel.eventLoop().execute(new Runnable() {
                 @Override
                 public void run() {
-                    if (ApnsHttp2Client.this.responsePromises.containsKey(notification)) {
-                        responsePromise.setFailure(new IllegalStateException(
-                                "The given notification has already been sent and not yet resolved."));
-                    } else {
-                        ApnsHttp2Client.this.responsePromises.put(notification, responsePromise);
+                    for (int i = 0; i < writableNotifications.size(); i++) {
+                        ApnsHttp2Client.this.writeNotification(channel, writableNotifications.get(i), responsePromises.get(i), sentNanos);
                     }
                 }
             });
+        } else {
+            logger.error("Failed to send {} push notifications because client is not connected.", notifications.size());
+            final Future<ApnsPushNotificationResponse<T>> failedFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+            for (int i = 0; i < notifications.size(); i++) {
+                responseFutures.add(failedFuture);
+            }
+        }
 
-            connectionReadyPromise.channel().write(notification).addListener(new GenericFutureListener<ChannelFuture>() {
-                @Override
-                public void operationComplete(final ChannelFuture future) throws Exception {
-                    if (!future.isSuccess()) {
-                        logger.error("Failed to write push notification: {}", notification, future.cause());
+        return new BatchSendResult<>(responseFutures);
+    }
 
-                        ApnsHttp2Client.this.responsePromises.remove(notification);
-                        responsePromise.tryFailure(future.cause());
-                    } else {
-                        logger.info("Success to write push notification: {}", notification);
+    private Promise<ApnsPushNotificationResponse<T>> newResponsePromise(final Channel channel, final T notification) {
+        verifyTopic(notification);
+
+        final Promise<ApnsPushNotificationResponse<T>> responsePromise = new DefaultPromise<>(channel.eventLoop());
+        this.inFlightNotifications.incrementAndGet();
+        responsePromise.addListener(this.inFlightListener);
+
+        final OutboxJournal outboxJournal = this.outboxJournal;
+        if (outboxJournal != null) {
+            final long entryId = outboxJournal.append(notification);
+            responsePromise.addListener(new GenericFutureListener<Future<ApnsPushNotificationResponse<T>>>() {
+                @Override
+                public void operationComplete(final Future<ApnsPushNotificationResponse<T>> future) throws Exception {
+                    /** a notification cut off by disconnecting stays journaled for the next start **/
+                    if (future.isSuccess() || ApnsHttp2Client.this.reconnectionPromise != null) {
+                        outboxJournal.complete(entryId);
                     }
                 }
             });
-
-            responseFuture = responsePromise;
-        } else {
-            logger.error("Failed to send push notification because client is not connected: {}", notification);
-            responseFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
         }
+        return responsePromise;
+    }
 
-        return responseFuture;
+    /**
+     * Writes the notification without flushing; must run on the channel's event loop. Once the
+     * write reaches {@link ApnsHttp2ClientHandler} the handler owns the response promise.
+     */
+    private void writeNotification(final Channel channel, final T notification, final Promise<ApnsPushNotificationResponse<T>> responsePromise, final long sentNanos) {
+        if (!channel.isActive()) {
+            this.metricsListener.handleNotificationDropped();
+            responsePromise.tryFailure(new ClientNotConnectedException("Client disconnected unexpectedly."));
+            return;
+        }
+        channel.write(new PendingNotification<>(notification, responsePromise, sentNanos), channel.voidPromise());
     }
 
     private void verifyTopic(T notification) {
@@ -447,15 +1263,6 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
         }
     }
 
-    protected void handlePushNotificationResponse(final ApnsPushNotificationResponse<T> response) {
-        logger.info("Received response from APNs gateway: {}", response);
-        if (response.getApnsPushNotification() != null) {
-            this.responsePromises.remove(response.getApnsPushNotification()).setSuccess(response);
-        } else {
-            this.responsePromises.clear();
-        }
-    }
-
     public void setGracefulShutdownTimeout(final long timeoutMillis) {
         synchronized (this.bootstrap) {
             this.gracefulShutdownTimeoutMillis = timeoutMillis;
@@ -474,6 +1281,13 @@ public class ApnsHttp2Client<T extends ApnsPushNotification> {
         synchronized (this.bootstrap) {
             this.reconnectionPromise = null;
 
+            if (this.replacementPromise != null) {
+                this.replacementPromise.channel().close();
+            }
+            if (this.drainingChannel != null) {
+                this.drainingChannel.close();
+            }
+
             final Future<Void> channelCloseFuture;
 
             if (this.connectionReadyPromise != null) {
@@ -0,0 +1,252 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.auth.ApnsSigningKey;
+import com.linkedkeeper.apns.auth.AuthenticationTokenProvider;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.RejectionReason;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.ssl.SslContext;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Builds a client or a pool with transport and socket tuning the constructors don't reach:
+ * <pre>
+ * ApnsHttp2Client&lt;ApnsPushNotification&gt; client = new ApnsHttp2ClientBuilder&lt;ApnsPushNotification&gt;()
+ *         .clientCredentials(new File("/path/to/certificate.p12"), pwd)
+ *         .writeBufferWaterMark(256 * 1024, 512 * 1024)
+ *         .sendBufferSize(1024 * 1024)
+ *         .build();
+ * </pre>
+ * Without an event loop group the client creates its own and uses epoll when it is available,
+ * NIO otherwise. Unset options keep the client defaults: a shared pooled direct allocator,
+ * 128/256 KiB write buffer watermarks and the OS socket buffer sizes.
+ */
+public class ApnsHttp2ClientBuilder<T extends ApnsPushNotification> {
+
+    private SslContext sslContext;
+    private ArrayList<String> identities;
+    private AuthenticationTokenProvider tokenProvider;
+
+    private EventLoopGroup eventLoopGroup;
+    private boolean useNativeTransport = ApnsHttp2Properties.DEFAULT_USE_NATIVE_TRANSPORT;
+
+    private final Map<ChannelOption<?>, Object> channelOptions = new LinkedHashMap<>();
+
+    private ApnsClientMetricsListener metricsListener = NoopApnsClientMetricsListener.INSTANCE;
+    private boolean latencyHistogramsEnabled = false;
+    private Map<RejectionReason, RetryPolicy> retryPolicies = Collections.emptyMap();
+    private DeviceTokenRateLimiter deviceTokenRateLimiter;
+    private InvalidDeviceTokenCache invalidDeviceTokenCache;
+    private OutboxJournal outboxJournal;
+
+    public ApnsHttp2ClientBuilder<T> clientCredentials(final File p12File, final String password) throws IOException, KeyStoreException {
+        return this.clientCredentials(ApnsHttp2Client.loadKeyStore(p12File, password), password);
+    }
+
+    public ApnsHttp2ClientBuilder<T> clientCredentials(final KeyStore keyStore, final String password) throws SSLException {
+        this.sslContext = ApnsHttp2Client.getSslContextWithP12InputStream(keyStore, password);
+        this.identities = ApnsHttp2Client.getIdentities(keyStore);
+        this.tokenProvider = null;
+        return this;
+    }
+
+    public ApnsHttp2ClientBuilder<T> clientCredentials(final X509Certificate certificate, final PrivateKey privateKey, final String privateKeyPassword) throws SSLException {
+        this.sslContext = ApnsHttp2Client.getBaseSslContextBuilder()
+                .keyManager(privateKey, privateKeyPassword, certificate)
+                .build();
+        this.identities = null;
+        this.tokenProvider = null;
+        return this;
+    }
+
+    /**
+     * Authenticates with provider tokens signed by the given key instead of a client
+     * certificate.
+     */
+    public ApnsHttp2ClientBuilder<T> signingKey(final ApnsSigningKey signingKey) throws SSLException, SignatureException {
+        this.sslContext = ApnsHttp2Client.getBaseSslContextBuilder().build();
+        this.identities = null;
+        this.tokenProvider = new AuthenticationTokenProvider(signingKey);
+        return this;
+    }
+
+    /**
+     * Uses the given SSL context as is; it must negotiate {@code h2} through ALPN.
+     */
+    ApnsHttp2ClientBuilder<T> sslContext(final SslContext sslContext) {
+        this.sslContext = sslContext;
+        this.identities = null;
+        this.tokenProvider = null;
+        return this;
+    }
+
+    /**
+     * Runs the connections on the given group, which the caller shuts down. Its type decides
+     * the transport.
+     */
+    public ApnsHttp2ClientBuilder<T> eventLoopGroup(final EventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+        return this;
+    }
+
+    /**
+     * Whether a client that creates its own event loop group uses epoll when it is available;
+     * {@code true} by default.
+     */
+    public ApnsHttp2ClientBuilder<T> useNativeTransport(final boolean useNativeTransport) {
+        this.useNativeTransport = useNativeTransport;
+        return this;
+    }
+
+    public ApnsHttp2ClientBuilder<T> allocator(final ByteBufAllocator allocator) {
+        return this.option(ChannelOption.ALLOCATOR, allocator);
+    }
+
+    /**
+     * Notifications wait in the pending queue while more than {@code high} bytes are queued
+     * for the socket, until it drains below {@code low}.
+     */
+    public ApnsHttp2ClientBuilder<T> writeBufferWaterMark(final int low, final int high) {
+        return this.option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(low, high));
+    }
+
+    /**
+     * Sets SO_SNDBUF. On Linux a fixed size turns off the kernel's send buffer auto-tuning.
+     */
+    public ApnsHttp2ClientBuilder<T> sendBufferSize(final int sendBufferSize) {
+        return this.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+    }
+
+    /**
+     * Sets SO_RCVBUF. On Linux a fixed size turns off the kernel's receive buffer auto-tuning.
+     */
+    public ApnsHttp2ClientBuilder<T> receiveBufferSize(final int receiveBufferSize) {
+        return this.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+    }
+
+    /**
+     * Sets any channel option, e.g. one of {@code EpollChannelOption}. Options the transport
+     * doesn't know are logged and ignored by Netty.
+     */
+    public <V> ApnsHttp2ClientBuilder<T> option(final ChannelOption<V> option, final V value) {
+        if (value == null) {
+            this.channelOptions.remove(option);
+        } else {
+            this.channelOptions.put(option, value);
+        }
+        return this;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setMetricsListener(ApnsClientMetricsListener)
+     */
+    public ApnsHttp2ClientBuilder<T> metricsListener(final ApnsClientMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setLatencyHistogramsEnabled(boolean)
+     */
+    public ApnsHttp2ClientBuilder<T> latencyHistograms(final boolean latencyHistogramsEnabled) {
+        this.latencyHistogramsEnabled = latencyHistogramsEnabled;
+        return this;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setRetryPolicy(RetryPolicy)
+     */
+    public ApnsHttp2ClientBuilder<T> retryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicies = ApnsHttp2Client.withRetryPolicy(this.retryPolicies, ApnsHttp2Client.RETRYABLE_REASONS, retryPolicy);
+        return this;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setRetryPolicy(RejectionReason, RetryPolicy)
+     */
+    public ApnsHttp2ClientBuilder<T> retryPolicy(final RejectionReason reason, final RetryPolicy retryPolicy) {
+        Objects.requireNonNull(reason, "Rejection reason must not be null.");
+        this.retryPolicies = ApnsHttp2Client.withRetryPolicy(this.retryPolicies, EnumSet.of(reason), retryPolicy);
+        return this;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setDeviceTokenRateLimiter(DeviceTokenRateLimiter)
+     */
+    public ApnsHttp2ClientBuilder<T> deviceTokenRateLimiter(final DeviceTokenRateLimiter deviceTokenRateLimiter) {
+        this.deviceTokenRateLimiter = deviceTokenRateLimiter;
+        return this;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setInvalidDeviceTokenCache(InvalidDeviceTokenCache)
+     */
+    public ApnsHttp2ClientBuilder<T> invalidDeviceTokenCache(final InvalidDeviceTokenCache invalidDeviceTokenCache) {
+        this.invalidDeviceTokenCache = invalidDeviceTokenCache;
+        return this;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setOutboxJournal(OutboxJournal)
+     */
+    public ApnsHttp2ClientBuilder<T> outboxJournal(final OutboxJournal outboxJournal) {
+        this.outboxJournal = outboxJournal;
+        return this;
+    }
+
+    public ApnsHttp2Client<T> build() {
+        this.checkCredentials();
+
+        final ApnsHttp2Client<T> client = new ApnsHttp2Client<>(this.sslContext, this.eventLoopGroup, this.tokenProvider, this.useNativeTransport);
+        client.setIdentities(this.identities);
+        client.setChannelOptions(new LinkedHashMap<>(this.channelOptions));
+        client.setMetricsListener(this.metricsListener);
+        client.setLatencyHistogramsEnabled(this.latencyHistogramsEnabled);
+        client.setRetryPolicies(this.retryPolicies);
+        client.setDeviceTokenRateLimiter(this.deviceTokenRateLimiter);
+        client.setInvalidDeviceTokenCache(this.invalidDeviceTokenCache);
+        client.setOutboxJournal(this.outboxJournal);
+        return client;
+    }
+
+    /**
+     * Builds a pool of {@code poolSize} connections with the same settings. A pool that creates
+     * its own event loop group gives each connection its own thread.
+     */
+    public ApnsHttp2ClientPool<T> buildPool(final int poolSize) {
+        this.checkCredentials();
+
+        final ApnsHttp2ClientPool<T> pool = new ApnsHttp2ClientPool<>(this.sslContext, this.identities, this.tokenProvider, poolSize, this.eventLoopGroup, this.useNativeTransport);
+        pool.setChannelOptions(new LinkedHashMap<>(this.channelOptions));
+        pool.setMetricsListener(this.metricsListener);
+        pool.setLatencyHistogramsEnabled(this.latencyHistogramsEnabled);
+        pool.setRetryPolicies(this.retryPolicies);
+        pool.setDeviceTokenRateLimiter(this.deviceTokenRateLimiter);
+        pool.setInvalidDeviceTokenCache(this.invalidDeviceTokenCache);
+        pool.setOutboxJournal(this.outboxJournal);
+        return pool;
+    }
+
+    private void checkCredentials() {
+        if (this.sslContext == null) {
+            throw new IllegalStateException("Client credentials or a signing key must be set before building a client.");
+        }
+    }
+}
@@ -1,21 +1,26 @@
 package com.linkedkeeper.apns.client;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.linkedkeeper.apns.auth.AuthenticationTokenProvider;
+import com.linkedkeeper.apns.data.ApnsEncodedPushNotification;
 import com.linkedkeeper.apns.data.ApnsHttp2PushNotificationResponse;
 import com.linkedkeeper.apns.data.ApnsPushNotification;
-import com.linkedkeeper.apns.utils.DateAsMillisecondsSinceEpochTypeAdapter;
+import com.linkedkeeper.apns.data.RejectionReason;
+import com.linkedkeeper.apns.exceptions.CertificateNotValidException;
+import com.linkedkeeper.apns.exceptions.ClientNotConnectedException;
+import com.linkedkeeper.apns.exceptions.PendingQueueFullException;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
-import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http2.*;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.WriteTimeoutException;
-import io.netty.util.AsciiString;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.PromiseCombiner;
 import io.netty.util.concurrent.ScheduledFuture;
@@ -37,37 +42,73 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
     private final AtomicBoolean receivedInitialSettings = new AtomicBoolean(false);
     private long nextStreamId = 1;
 
-    private final Map<Integer, Http2Headers> headersByStreamId = new HashMap<>();
-    private final Map<Integer, T> pushNotificationsByStreamId = new HashMap<>();
+    /** once past this stream id the client opens a replacement connection **/
+    private final long streamIdRolloverThreshold;
+    private boolean rolloverRequested = false;
+    /** set once a replacement took over; no more streams are opened and the connection closes when they are answered **/
+    private boolean draining = false;
+    private boolean drained = false;
+    /** set once the server sent a GOAWAY that doesn't fail the client; queued notifications wait for a replacement **/
+    private boolean goingAway = false;
+
+    /** one entry per open stream, keyed by the primitive stream id; only touched on the event loop **/
+    private final IntObjectMap<PendingNotification<T>> inFlightNotifications = new IntObjectHashMap<>();
+    /** notifications waiting for a stream, oldest first; only touched on the event loop **/
+    private final ArrayDeque<PendingNotification<T>> pendingNotifications = new ArrayDeque<>();
 
     private final ApnsHttp2Client<T> apnsHttp2Client;
-    private final String authority;
+    private final AuthenticationTokenProvider tokenProvider;
+    private final ApnsHttp2RequestHeaders requestHeaders;
+
+    /** null unless latencies are recorded; then the notifications written since the last flush **/
+    private final ConnectionLatencyHistograms latencyHistograms;
+    private final ArrayList<PendingNotification<T>> unflushedPendingNotifications;
 
     private long nextPingId = new Random().nextLong();
     private ScheduledFuture<?> pingTimeoutFuture;
+    private long pingSentNanos;
 
     private final int maxUnflushedNotifications;
+    private final int maxUnflushedBytes;
     private int unflushedNotifications = 0;
+    private int unflushedBytes = 0;
 
-    private static final int PING_TIMEOUT_SECONDS = 30;
+    /** set while a flush is queued behind the tasks the event loop is running now **/
+    private boolean flushScheduled = false;
+    private ChannelHandlerContext context;
 
-    private static final String APNS_PATH_PREFIX = "/3/device/";
-    private static final AsciiString APNS_EXPIRATION_HEADER = new AsciiString("apns-expiration");
-    private static final AsciiString APNS_TOPIC_HEADER = new AsciiString("apns-topic");
-    private static final AsciiString APNS_PRIORITY_HEADER = new AsciiString("apns-priority");
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            ApnsHttp2ClientHandler.this.flushScheduled = false;
+
+            if (ApnsHttp2ClientHandler.this.unflushedNotifications > 0) {
+                try {
+                    ApnsHttp2ClientHandler.this.flush(ApnsHttp2ClientHandler.this.context);
+                } catch (final Http2Exception e) {
+                    ApnsHttp2ClientHandler.this.onError(ApnsHttp2ClientHandler.this.context, e);
+                }
+            }
+        }
+    };
+
+    private static final int PING_TIMEOUT_SECONDS = 30;
 
-    private static final int INITIAL_PAYLOAD_BUFFER_CAPACITY = 4096;
     private static final long STREAM_ID_RESET_THRESHOLD = Integer.MAX_VALUE - 1;
 
-    private static final Gson gson = new GsonBuilder()
-            .registerTypeAdapter(Date.class, new DateAsMillisecondsSinceEpochTypeAdapter())
-            .create();
+    /** a GOAWAY for these reasons fails the client; any other only moves it to a new connection **/
+    private static final Set<RejectionReason> FATAL_GOAWAY_REASONS = EnumSet.of(
+            RejectionReason.BAD_CERTIFICATE, RejectionReason.BAD_CERTIFICATE_ENVIRONMENT, RejectionReason.FORBIDDEN);
 
     public static class ApnsHttp2ClientHandlerBuilder<S extends ApnsPushNotification> extends AbstractHttp2ConnectionHandlerBuilder<ApnsHttp2ClientHandler<S>, ApnsHttp2ClientHandlerBuilder<S>> {
 
         private ApnsHttp2Client<S> apnsHttp2Client;
         private String authority;
-        private int maxUnflushedNotifications = 0;
+        private AuthenticationTokenProvider tokenProvider;
+        private int maxUnflushedNotifications = ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS;
+        private int maxUnflushedBytes = ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_BYTES;
+        private ConnectionLatencyHistograms latencyHistograms;
+        private long streamIdRolloverThreshold = ApnsHttp2Properties.DEFAULT_STREAM_ID_ROLLOVER_THRESHOLD;
 
         public ApnsHttp2ClientHandlerBuilder<S> apnsHttp2Client(final ApnsHttp2Client<S> apnsHttp2Client) {
             this.apnsHttp2Client = apnsHttp2Client;
@@ -87,6 +128,15 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
             return this.authority;
         }
 
+        public ApnsHttp2ClientHandlerBuilder<S> tokenProvider(final AuthenticationTokenProvider tokenProvider) {
+            this.tokenProvider = tokenProvider;
+            return this;
+        }
+
+        public AuthenticationTokenProvider tokenProvider() {
+            return this.tokenProvider;
+        }
+
         public ApnsHttp2ClientHandlerBuilder<S> maxUnflushedNotifications(final int maxUnflushedNotifications) {
             this.maxUnflushedNotifications = maxUnflushedNotifications;
             return this;
@@ -96,6 +146,33 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
             return this.maxUnflushedNotifications;
         }
 
+        public ApnsHttp2ClientHandlerBuilder<S> maxUnflushedBytes(final int maxUnflushedBytes) {
+            this.maxUnflushedBytes = maxUnflushedBytes;
+            return this;
+        }
+
+        public int maxUnflushedBytes() {
+            return this.maxUnflushedBytes;
+        }
+
+        public ApnsHttp2ClientHandlerBuilder<S> latencyHistograms(final ConnectionLatencyHistograms latencyHistograms) {
+            this.latencyHistograms = latencyHistograms;
+            return this;
+        }
+
+        public ConnectionLatencyHistograms latencyHistograms() {
+            return this.latencyHistograms;
+        }
+
+        public ApnsHttp2ClientHandlerBuilder<S> streamIdRolloverThreshold(final long streamIdRolloverThreshold) {
+            this.streamIdRolloverThreshold = streamIdRolloverThreshold;
+            return this;
+        }
+
+        public long streamIdRolloverThreshold() {
+            return this.streamIdRolloverThreshold;
+        }
+
         @Override
         public ApnsHttp2ClientHandlerBuilder<S> server(final boolean isServer) {
             return super.server(isServer);
@@ -110,7 +187,7 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
         public ApnsHttp2ClientHandler<S> build(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder, final Http2Settings initialSettings) throws Exception {
             Objects.requireNonNull(this.authority, "Authority must be set before building an HttpClientHandler.");
 
-            final ApnsHttp2ClientHandler<S> handler = new ApnsHttp2ClientHandler<>(decoder, encoder, initialSettings, this.apnsHttp2Client, this.authority, this.maxUnflushedNotifications);
+            final ApnsHttp2ClientHandler<S> handler = new ApnsHttp2ClientHandler<>(decoder, encoder, initialSettings, this.apnsHttp2Client, this.authority, this.tokenProvider, this.maxUnflushedNotifications, this.maxUnflushedBytes, this.latencyHistograms, this.streamIdRolloverThreshold);
             this.frameListener(handler.new ApnsHttp2ClientHandlerFrameAdapter());
             return handler;
         }
@@ -126,29 +203,55 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
         public void onSettingsRead(final ChannelHandlerContext context, final Http2Settings settings) {
             logger.trace("Received settings from APNs gateway: {}", settings);
 
+            if (settings.maxConcurrentStreams() != null) {
+                ApnsHttp2ClientHandler.this.apnsHttp2Client.setMaxConcurrentStreams(settings.maxConcurrentStreams());
+            }
+
+            final boolean initialSettings;
             synchronized (ApnsHttp2ClientHandler.this.receivedInitialSettings) {
-                ApnsHttp2ClientHandler.this.receivedInitialSettings.set(true);
+                initialSettings = !ApnsHttp2ClientHandler.this.receivedInitialSettings.getAndSet(true);
                 ApnsHttp2ClientHandler.this.receivedInitialSettings.notifyAll();
             }
+
+            if (initialSettings) {
+                ApnsHttp2ClientHandler.this.apnsHttp2Client.handleInitialSettings(context.channel());
+            }
         }
 
         @Override
         public int onDataRead(final ChannelHandlerContext context, final int streamId, final ByteBuf data, final int padding, final boolean endOfStream) throws Http2Exception {
-            logger.trace("Received data from APNs gateway on stream {}: {}", streamId, data.toString(StandardCharsets.UTF_8));
+            if (logger.isTraceEnabled()) {
+                logger.trace("Received data from APNs gateway on stream {}: {}", streamId, data.toString(StandardCharsets.UTF_8));
+            }
 
             final int bytesProcessed = data.readableBytes() + padding;
 
             if (endOfStream) {
-                final Http2Headers headers = ApnsHttp2ClientHandler.this.headersByStreamId.remove(streamId);
-                final T pushNotification = ApnsHttp2ClientHandler.this.pushNotificationsByStreamId.remove(streamId);
-
-                final boolean success = HttpResponseStatus.OK.equals(HttpResponseStatus.parseLine(headers.status()));
-                final ErrorResponse errorResponse = gson.fromJson(data.toString(StandardCharsets.UTF_8), ErrorResponse.class);
-
-                ApnsHttp2ClientHandler.this.apnsHttp2Client.handlePushNotificationResponse(new ApnsHttp2PushNotificationResponse<>(
-                        pushNotification, success, errorResponse.getReason(), errorResponse.getTimestamp()));
+                final PendingNotification<T> pendingNotification = ApnsHttp2ClientHandler.this.inFlightNotifications.remove(streamId);
+
+                if (pendingNotification != null) {
+                    final ByteBuf body = pendingNotification.responseBody != null
+                            ? pendingNotification.responseBody.writeBytes(data, data.readerIndex(), data.readableBytes())
+                            : data;
+                    pendingNotification.responseBody = null;
+
+                    ApnsHttp2ClientHandler.this.recordResponseLatencies(pendingNotification);
+                    ApnsHttp2ClientHandler.this.complete(pendingNotification, decodeResponse(pendingNotification, body));
+                } else {
+                    logger.error("Gateway sent a response on stream {} with no notification in flight.", streamId);
+                }
             } else {
-                logger.error("Gateway sent a DATA frame that was not the end of a stream.");
+                final PendingNotification<T> pendingNotification = ApnsHttp2ClientHandler.this.inFlightNotifications.get(streamId);
+
+                if (pendingNotification != null) {
+                    /** APNs bodies fit one frame, but HTTP/2 may split them anywhere; gather the pieces on the heap **/
+                    if (pendingNotification.responseBody == null) {
+                        pendingNotification.responseBody = Unpooled.buffer(2 * data.readableBytes());
+                    }
+                    pendingNotification.responseBody.writeBytes(data, data.readerIndex(), data.readableBytes());
+                } else {
+                    logger.error("Gateway sent data on stream {} with no notification in flight.", streamId);
+                }
             }
 
             return bytesProcessed;
@@ -163,24 +266,48 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
         public void onHeadersRead(final ChannelHandlerContext context, final int streamId, final Http2Headers headers, final int padding, final boolean endOfStream) throws Http2Exception {
             logger.trace("Received headers from APNs gateway on stream {}: {}", streamId, headers);
 
-            final boolean success = HttpResponseStatus.OK.equals(HttpResponseStatus.parseLine(headers.status()));
+            final int status = ApnsResponseDecoder.parseStatus(headers.status());
 
             if (endOfStream) {
+                final boolean success = status == HttpResponseStatus.OK.code();
                 if (!success) {
                     logger.error("Gateway sent an end-of-stream HEADERS frame for an unsuccessful notification.");
                 }
-                final T pushNotification = ApnsHttp2ClientHandler.this.pushNotificationsByStreamId.remove(streamId);
-                ApnsHttp2ClientHandler.this.apnsHttp2Client.handlePushNotificationResponse(new ApnsHttp2PushNotificationResponse<>(
-                        pushNotification, success, null, null));
+                final PendingNotification<T> pendingNotification = ApnsHttp2ClientHandler.this.inFlightNotifications.remove(streamId);
+
+                if (pendingNotification != null) {
+                    ApnsHttp2ClientHandler.this.recordResponseLatencies(pendingNotification);
+                    ApnsHttp2ClientHandler.this.complete(pendingNotification, new ApnsHttp2PushNotificationResponse<>(
+                            pendingNotification.getNotification(), success, null, success ? null : RejectionReason.UNKNOWN, null));
+                } else {
+                    logger.error("Gateway sent a response on stream {} with no notification in flight.", streamId);
+                }
             } else {
-                ApnsHttp2ClientHandler.this.headersByStreamId.put(streamId, headers);
+                final PendingNotification<T> pendingNotification = ApnsHttp2ClientHandler.this.inFlightNotifications.get(streamId);
+
+                if (pendingNotification != null) {
+                    pendingNotification.status = status;
+                } else {
+                    logger.error("Gateway sent headers on stream {} with no notification in flight.", streamId);
+                }
             }
         }
 
+        @Override
+        public void onRstStreamRead(final ChannelHandlerContext context, final int streamId, final long errorCode) {
+            logger.warn("Gateway reset stream {} with error code {}.", streamId, errorCode);
+
+            final Http2Error error = Http2Error.valueOf(errorCode);
+            ApnsHttp2ClientHandler.this.failStream(streamId, Http2Exception.streamError(streamId,
+                    error != null ? error : Http2Error.INTERNAL_ERROR, "Gateway reset stream %d with error code %d.", streamId, errorCode));
+        }
+
         @Override
         public void onPingAckRead(final ChannelHandlerContext context, final ByteBuf data) {
             if (ApnsHttp2ClientHandler.this.pingTimeoutFuture != null) {
                 logger.trace("Received reply to ping.");
+                ApnsHttp2ClientHandler.this.apnsHttp2Client.getMetricsListener().handlePingRoundTrip(
+                        System.nanoTime() - ApnsHttp2ClientHandler.this.pingSentNanos);
                 ApnsHttp2ClientHandler.this.pingTimeoutFuture.cancel(false);
             } else {
                 logger.error("Received PING ACK, but no corresponding outbound PING found.");
@@ -189,85 +316,470 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
 
         @Override
         public void onGoAwayRead(final ChannelHandlerContext context, final int lastStreamId, final long errorCode, final ByteBuf debugData) throws Http2Exception {
-            logger.info("Received GoAway from APNs server: {}", debugData.toString(StandardCharsets.UTF_8));
+            logger.info("Received GoAway from APNs server after stream {}: {}", lastStreamId, debugData.toString(StandardCharsets.UTF_8));
+
+            final RejectionReason reason = ApnsResponseDecoder.readReason(debugData);
+
+            if (FATAL_GOAWAY_REASONS.contains(reason)) {
+                final long timestamp = ApnsResponseDecoder.readTimestamp(debugData);
+                ApnsHttp2ClientHandler.this.failNotifications(new CertificateNotValidException(reason.getReason()));
 
-            ErrorResponse errorResponse = gson.fromJson(debugData.toString(StandardCharsets.UTF_8), ErrorResponse.class);
-            ApnsHttp2ClientHandler.this.apnsHttp2Client.abortConnection(errorResponse);
+                ApnsHttp2ClientHandler.this.apnsHttp2Client.abortConnection(new ErrorResponse(
+                        reason.getReason(), timestamp == ApnsResponseDecoder.NO_TIMESTAMP ? null : new Date(timestamp)));
+            } else {
+                /** streams up to lastStreamId are answered as usual, the rest goes to the replacement **/
+                ApnsHttp2ClientHandler.this.goingAway = true;
+                ApnsHttp2ClientHandler.this.replayUnprocessedStreams(lastStreamId);
+                ApnsHttp2ClientHandler.this.apnsHttp2Client.rollOver(context.channel());
+            }
         }
     }
 
 
-    protected ApnsHttp2ClientHandler(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder, final Http2Settings initialSettings, final ApnsHttp2Client<T> apnsHttp2Client, final String authority, final int maxUnflushedNotifications) {
+    protected ApnsHttp2ClientHandler(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder, final Http2Settings initialSettings, final ApnsHttp2Client<T> apnsHttp2Client, final String authority, final AuthenticationTokenProvider tokenProvider, final int maxUnflushedNotifications, final int maxUnflushedBytes, final ConnectionLatencyHistograms latencyHistograms, final long streamIdRolloverThreshold) {
         super(decoder, encoder, initialSettings);
 
         this.apnsHttp2Client = apnsHttp2Client;
-        this.authority = authority;
+        this.tokenProvider = tokenProvider;
+        this.requestHeaders = new ApnsHttp2RequestHeaders(authority, tokenProvider);
         this.maxUnflushedNotifications = maxUnflushedNotifications;
+        this.maxUnflushedBytes = maxUnflushedBytes;
+        this.latencyHistograms = latencyHistograms;
+        this.unflushedPendingNotifications = latencyHistograms != null ? new ArrayList<PendingNotification<T>>() : null;
+        this.streamIdRolloverThreshold = streamIdRolloverThreshold;
     }
 
     @Override
-    public void write(final ChannelHandlerContext context, final Object payload, final ChannelPromise writePromise) throws Http2Exception {
-        try {
-            final T pushNotification = (T) payload;
-            final int streamId = (int) this.nextStreamId;
-
-            final Http2Headers headers = new DefaultHttp2Headers()
-                    .method(HttpMethod.POST.asciiName())
-                    .authority(this.authority)
-                    .path(APNS_PATH_PREFIX + pushNotification.getToken())
-                    .addInt(APNS_EXPIRATION_HEADER, pushNotification.getExpiration() == null ? 0 : (int) (pushNotification.getExpiration().getTime() / 1000));
-
-            if (pushNotification.getPriority() != null) {
-                headers.addInt(APNS_PRIORITY_HEADER, pushNotification.getPriority().getCode());
+    public void handlerAdded(final ChannelHandlerContext context) throws Exception {
+        this.context = context;
+        super.handlerAdded(context);
+    }
+
+    /**
+     * Builds the response of a stream that ended with a DATA frame. Known reasons are matched
+     * against the body bytes; only an unknown reason or a timestamp allocates.
+     */
+    private ApnsHttp2PushNotificationResponse<T> decodeResponse(final PendingNotification<T> pendingNotification, final ByteBuf body) {
+        if (pendingNotification.status == HttpResponseStatus.OK.code()) {
+            return new ApnsHttp2PushNotificationResponse<>(pendingNotification.getNotification(), true, null, null, null);
+        }
+
+        RejectionReason reason = ApnsResponseDecoder.readReason(body);
+        String reasonString = reason.getReason();
+        if (reason == RejectionReason.UNKNOWN) {
+            reasonString = ApnsResponseDecoder.readReasonString(body);
+            /** a known reason may still be spelled with escapes **/
+            reason = RejectionReason.fromReason(reasonString);
+        }
+        final long timestamp = ApnsResponseDecoder.readTimestamp(body);
+
+        if (reason == RejectionReason.EXPIRED_PROVIDER_TOKEN && this.tokenProvider != null) {
+            this.tokenProvider.onTokenExpired();
+        }
+
+        return new ApnsHttp2PushNotificationResponse<>(pendingNotification.getNotification(), false, reasonString, reason,
+                timestamp == ApnsResponseDecoder.NO_TIMESTAMP ? null : new Date(timestamp));
+    }
+
+    /**
+     * Completes the notification with its response, unless the client's retry policy for the
+     * rejection reason sends it again later. A final rejection teaches the client's invalid
+     * device token cache, if it has one.
+     */
+    private void complete(final PendingNotification<T> pendingNotification, final ApnsHttp2PushNotificationResponse<T> response) {
+        final ApnsClientMetricsListener metricsListener = this.apnsHttp2Client.getMetricsListener();
+
+        if (response.isAccepted()) {
+            metricsListener.handleNotificationAccepted();
+        } else if (this.apnsHttp2Client.scheduleRetry(this.context.channel().eventLoop(), pendingNotification, response.getRejectionReasonType())) {
+            metricsListener.handleNotificationRetried(response.getRejectionReasonType());
+            return;
+        } else {
+            metricsListener.handleNotificationRejected(response.getRejectionReasonType());
+
+            final InvalidDeviceTokenCache invalidDeviceTokenCache = this.apnsHttp2Client.getInvalidDeviceTokenCache();
+            if (invalidDeviceTokenCache != null) {
+                invalidDeviceTokenCache.handleRejection(pendingNotification.getNotification().getToken(),
+                        response.getRejectionReasonType(), response.getTokenInvalidationTimestamp());
             }
-            if (pushNotification.getTopic() != null) {
-                headers.add(APNS_TOPIC_HEADER, pushNotification.getTopic());
+        }
+
+        pendingNotification.getResponsePromise().trySuccess(response);
+    }
+
+    /**
+     * Opens a stream for the notification right away when the server allows one more stream and
+     * the channel is writable; otherwise the notification waits in the pending queue. The write
+     * promise only tells that the notification was taken, its response promise tells the rest.
+     */
+    @Override
+    public void write(final ChannelHandlerContext context, final Object message, final ChannelPromise writePromise) throws Http2Exception {
+        if (!(message instanceof PendingNotification)) {
+            logger.error("Unexpected object in pipeline: {}", message);
+            context.write(message, writePromise);
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        final PendingNotification<T> pendingNotification = (PendingNotification<T>) message;
+
+        if (this.draining) {
+            this.apnsHttp2Client.redirectNotification(pendingNotification);
+        } else if (this.pendingNotifications.isEmpty() && this.canOpenStream(context)) {
+            this.writeStream(context, pendingNotification);
+        } else {
+            this.enqueue(context, pendingNotification);
+        }
+
+        writePromise.trySuccess();
+    }
+
+    /**
+     * Streams are only opened while this returns {@code true}, so the encoder never has to
+     * buffer a stream beyond MAX_CONCURRENT_STREAMS and the outbound buffer stays within the
+     * channel's write buffer watermarks.
+     */
+    private boolean canOpenStream(final ChannelHandlerContext context) {
+        return context.channel().isWritable()
+                && this.connection().local().canOpenStream()
+                && !this.connection().goAwayReceived();
+    }
+
+    private void enqueue(final ChannelHandlerContext context, final PendingNotification<T> pendingNotification) throws Http2Exception {
+        if (this.pendingNotifications.size() >= this.pendingQueueCapacity()) {
+            this.apnsHttp2Client.getMetricsListener().handleNotificationDropped();
+
+            if (this.apnsHttp2Client.getOverflowPolicy() == OverflowPolicy.DROP_OLDEST) {
+                this.pendingNotifications.poll().getResponsePromise().tryFailure(
+                        new PendingQueueFullException("Dropped from a full pending queue."));
+            } else {
+                pendingNotification.getResponsePromise().tryFailure(
+                        new PendingQueueFullException("Pending queue is full."));
+                return;
             }
+        }
 
-            final ChannelPromise headersPromise = context.newPromise();
-            this.encoder().writeHeaders(context, streamId, headers, 0, false, headersPromise);
-            logger.trace("Wrote headers on stream {}: {}", streamId, headers);
+        this.pendingNotifications.add(pendingNotification);
+        this.apnsHttp2Client.setQueuedNotifications(this.pendingNotifications.size());
 
-            final ByteBuf payloadBuffer = context.alloc().ioBuffer(INITIAL_PAYLOAD_BUFFER_CAPACITY);
-            payloadBuffer.writeBytes(pushNotification.getPayload().getBytes(StandardCharsets.UTF_8));
+        /** the channel only becomes writable again once what was written reaches the socket **/
+        if (!context.channel().isWritable() && this.unflushedNotifications > 0) {
+            this.flush(context);
+        }
+    }
 
-            final ChannelPromise dataPromise = context.newPromise();
-            this.encoder().writeData(context, streamId, payloadBuffer, 0, true, dataPromise);
+    /**
+     * Opens streams for queued notifications for as long as the server and the channel allow.
+     */
+    private void drainPendingNotifications(final ChannelHandlerContext context) throws Http2Exception {
+        if (this.pendingNotifications.isEmpty()) {
+            return;
+        }
+
+        while (!this.pendingNotifications.isEmpty() && this.canOpenStream(context)) {
+            this.writeStream(context, this.pendingNotifications.poll());
+        }
+        this.apnsHttp2Client.setQueuedNotifications(this.pendingNotifications.size());
+    }
+
+    private int pendingQueueCapacity() {
+        return (int) Math.min(Integer.MAX_VALUE, pendingQueueCapacity(
+                this.apnsHttp2Client.getMaxPendingNotifications(), this.connection().local().maxActiveStreams()));
+    }
+
+    /**
+     * @param maxPendingNotifications the configured capacity, or 0 to size it from the server
+     * @param maxConcurrentStreams    the MAX_CONCURRENT_STREAMS setting of the server
+     */
+    static long pendingQueueCapacity(final int maxPendingNotifications, final long maxConcurrentStreams) {
+        if (maxPendingNotifications > 0) {
+            return maxPendingNotifications;
+        }
+        return maxConcurrentStreams >= Integer.MAX_VALUE
+                ? Integer.MAX_VALUE
+                : ApnsHttp2Properties.DEFAULT_PENDING_QUEUE_STREAMS_FACTOR * maxConcurrentStreams;
+    }
+
+    private void writeStream(final ChannelHandlerContext context, final PendingNotification<T> pendingNotification) throws Http2Exception {
+        final long writeStartNanos = this.latencyHistograms != null ? System.nanoTime() : 0;
+        final T pushNotification = pendingNotification.getNotification();
+        final int streamId = (int) this.nextStreamId;
+
+        /**
+         * the template itself, overwritten by the next stream of its topic; safe only because
+         * canOpenStream gates every stream and the encoder does not enforce
+         * MAX_CONCURRENT_STREAMS, so it HPACK-encodes the headers right here instead of
+         * buffering them for later
+         **/
+        final Http2Headers headers = this.requestHeaders.reusedHeadersFor(pushNotification);
+
+        /** register before writing, a response can only arrive after the frames went out **/
+        this.inFlightNotifications.put(streamId, pendingNotification);
+
+        final ChannelPromise headersPromise = context.newPromise();
+        this.encoder().writeHeaders(context, streamId, headers, 0, false, headersPromise);
+        logger.trace("Wrote headers on stream {}: {}", streamId, headers);
+
+        final ByteBuf payloadBuffer;
+        if (pushNotification instanceof ApnsEncodedPushNotification) {
+            /** no copy; the caller keeps its reference and the DATA frame releases this one **/
+            payloadBuffer = ((ApnsEncodedPushNotification) pushNotification).getPayloadBuffer().retainedDuplicate();
+        } else {
+            /** sized to the payload; ByteBufUtil.writeUtf8 would reserve three bytes per char **/
+            final String payload = pushNotification.getPayload();
+            if (isAscii(payload)) {
+                payloadBuffer = context.alloc().ioBuffer(payload.length());
+                ByteBufUtil.writeAscii(payloadBuffer, payload);
+            } else {
+                final byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+                payloadBuffer = context.alloc().ioBuffer(payloadBytes.length);
+                payloadBuffer.writeBytes(payloadBytes);
+            }
+        }
+
+        final int payloadLength = payloadBuffer.readableBytes();
+        final ChannelPromise dataPromise = context.newPromise();
+        this.encoder().writeData(context, streamId, payloadBuffer, 0, true, dataPromise);
+        if (logger.isTraceEnabled()) {
             logger.trace("Wrote payload on stream {}: {}", streamId, pushNotification.getPayload());
+        }
+
+        final ChannelPromise streamPromise = context.newPromise();
+        final PromiseCombiner promiseCombiner = new PromiseCombiner();
+        promiseCombiner.addAll(headersPromise, dataPromise);
+        promiseCombiner.finish(streamPromise);
+
+        streamPromise.addListener(new GenericFutureListener<ChannelPromise>() {
+            @Override
+            public void operationComplete(final ChannelPromise future) throws Exception {
+                if (!future.isSuccess()) {
+                    logger.trace("Failed to write push notification on stream {}.", streamId, future.cause());
+
+                    final Http2Connection connection = ApnsHttp2ClientHandler.this.connection();
+                    if (connection.goAwayReceived() && streamId > connection.local().lastStreamKnownByPeer()) {
+                        /** a stream the server never saw; onGoAwayRead, which runs before Netty closes it, replayed it already **/
+                        return;
+                    }
 
-            final PromiseCombiner promiseCombiner = new PromiseCombiner();
-            promiseCombiner.addAll(headersPromise, dataPromise);
-            promiseCombiner.finish(writePromise);
-
-            writePromise.addListener(new GenericFutureListener<ChannelPromise>() {
-                @Override
-                public void operationComplete(final ChannelPromise future) throws Exception {
-                    if (future.isSuccess()) {
-                        ApnsHttp2ClientHandler.this.pushNotificationsByStreamId.put(streamId, pushNotification);
-                    } else {
-                        logger.trace("Failed to write push notification on stream {}.", streamId, future.cause());
+                    /** channelInactive may have failed it already **/
+                    if (ApnsHttp2ClientHandler.this.inFlightNotifications.remove(streamId) != null) {
+                        ApnsHttp2ClientHandler.this.apnsHttp2Client.getMetricsListener().handleWriteFailure();
+                        pendingNotification.getResponsePromise().tryFailure(future.cause());
                     }
                 }
-            });
+            }
+        });
 
-            this.nextStreamId += 2;
+        this.nextStreamId += 2;
+        this.apnsHttp2Client.getMetricsListener().handleNotificationWritten();
 
-            if (++this.unflushedNotifications >= this.maxUnflushedNotifications) {
-                this.flush(context);
+        if (this.latencyHistograms != null) {
+            final long writtenNanos = System.nanoTime();
+            if (pendingNotification.sentNanos != 0) {
+                this.latencyHistograms.record(LatencyStage.QUEUE, writeStartNanos - pendingNotification.sentNanos);
             }
-            if (this.nextStreamId >= STREAM_ID_RESET_THRESHOLD) {
-                context.close();
+            this.latencyHistograms.record(LatencyStage.WRITE, writtenNanos - writeStartNanos);
+
+            pendingNotification.writtenNanos = writtenNanos;
+            this.unflushedPendingNotifications.add(pendingNotification);
+        }
+
+        this.unflushedBytes += payloadLength;
+        if (++this.unflushedNotifications >= this.maxUnflushedNotifications || this.unflushedBytes >= this.maxUnflushedBytes) {
+            this.flush(context);
+        } else if (!this.flushScheduled) {
+            /** runs once the event loop is through the writes already queued, so a burst goes out in one flush **/
+            this.flushScheduled = true;
+            context.channel().eventLoop().execute(this.flushTask);
+        }
+        if (this.nextStreamId >= STREAM_ID_RESET_THRESHOLD) {
+            /** the replacement didn't make it in time **/
+            context.close();
+        } else if (this.nextStreamId >= this.streamIdRolloverThreshold && !this.rolloverRequested) {
+            this.rolloverRequested = true;
+            this.apnsHttp2Client.rollOver(context.channel());
+        }
+    }
+
+    /**
+     * Stops opening streams on this connection once a replacement has taken over: queued and
+     * later notifications go to the replacement, and the connection closes gracefully once the
+     * streams still open are answered. Must run on the event loop.
+     */
+    void drain() {
+        this.draining = true;
+
+        while (!this.pendingNotifications.isEmpty()) {
+            this.apnsHttp2Client.redirectNotification(this.pendingNotifications.poll());
+        }
+        this.closeIfDrained();
+    }
+
+    /**
+     * Moves the notifications of streams the server will not process to the front of the
+     * pending queue, in the order they were written, to be written again on the replacement.
+     */
+    private void replayUnprocessedStreams(final int lastStreamId) {
+        final int[] streamIds = new int[this.inFlightNotifications.size()];
+        int unprocessedStreams = 0;
+        for (final IntObjectMap.PrimitiveEntry<PendingNotification<T>> entry : this.inFlightNotifications.entries()) {
+            if (entry.key() > lastStreamId) {
+                streamIds[unprocessedStreams++] = entry.key();
             }
-        } catch (final ClassCastException e) {
-            logger.error("Unexpected object in pipeline: {}", payload);
-            context.write(payload, writePromise);
+        }
+        Arrays.sort(streamIds, 0, unprocessedStreams);
+
+        for (int i = unprocessedStreams - 1; i >= 0; i--) {
+            this.apnsHttp2Client.getMetricsListener().handleNotificationReplayed();
+            this.pendingNotifications.addFirst(this.inFlightNotifications.remove(streamIds[i]));
+        }
+        if (unprocessedStreams > 0) {
+            logger.info("Replaying {} notifications the server did not process.", unprocessedStreams);
+            this.apnsHttp2Client.setQueuedNotifications(this.pendingNotifications.size());
+        }
+
+        if (this.draining) {
+            this.drain();
         }
     }
 
+    /**
+     * A stream error resets the stream, so its notification will never be answered.
+     */
+    @Override
+    protected void onStreamError(final ChannelHandlerContext context, final Throwable cause, final Http2Exception.StreamException http2Exception) {
+        super.onStreamError(context, cause, http2Exception);
+        this.failStream(http2Exception.streamId(), http2Exception);
+    }
+
+    /**
+     * Fails the notification of a stream that was reset before it was answered.
+     */
+    private void failStream(final int streamId, final Throwable cause) {
+        final PendingNotification<T> pendingNotification = this.inFlightNotifications.remove(streamId);
+
+        if (pendingNotification != null) {
+            this.apnsHttp2Client.getMetricsListener().handleNotificationFailed();
+            pendingNotification.getResponsePromise().tryFailure(cause);
+        }
+    }
+
+    private void closeIfDrained() {
+        if (this.draining && !this.drained && this.inFlightNotifications.isEmpty()) {
+            this.drained = true;
+            logger.info("Closing drained connection {}.", this.context.channel());
+            this.context.close();
+        }
+    }
+
+    /**
+     * @return the number of streams whose notification awaits a response; must be called on
+     * the event loop
+     */
+    int getInFlightNotifications() {
+        return this.inFlightNotifications.size();
+    }
+
+    ConnectionLatencyHistograms getLatencyHistograms() {
+        return this.latencyHistograms;
+    }
+
+    private void recordResponseLatencies(final PendingNotification<T> pendingNotification) {
+        if (this.latencyHistograms != null && pendingNotification.flushedNanos != 0) {
+            final long respondedNanos = System.nanoTime();
+            this.latencyHistograms.record(LatencyStage.SERVER, respondedNanos - pendingNotification.flushedNanos);
+            if (pendingNotification.sentNanos != 0) {
+                this.latencyHistograms.record(LatencyStage.TOTAL, respondedNanos - pendingNotification.sentNanos);
+            }
+        }
+    }
+
+    private static boolean isAscii(final String string) {
+        for (int i = 0; i < string.length(); i++) {
+            if (string.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public void flush(final ChannelHandlerContext context) throws Http2Exception {
         super.flush(context);
+
+        if (this.unflushedNotifications > 0) {
+            this.apnsHttp2Client.getMetricsListener().handleFlush(this.unflushedNotifications, this.unflushedBytes);
+        }
+        if (this.latencyHistograms != null && !this.unflushedPendingNotifications.isEmpty()) {
+            final long flushedNanos = System.nanoTime();
+            for (int i = 0; i < this.unflushedPendingNotifications.size(); i++) {
+                final PendingNotification<T> pendingNotification = this.unflushedPendingNotifications.get(i);
+                this.latencyHistograms.record(LatencyStage.FLUSH, flushedNanos - pendingNotification.writtenNanos);
+                pendingNotification.flushedNanos = flushedNanos;
+            }
+            this.unflushedPendingNotifications.clear();
+        }
         this.unflushedNotifications = 0;
+        this.unflushedBytes = 0;
+    }
+
+    /**
+     * Responses read in this batch may have closed streams; open streams for queued notifications
+     * before the flush in super. A draining connection closes once its last response is read.
+     */
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext context) throws Exception {
+        this.drainPendingNotifications(context);
+        super.channelReadComplete(context);
+        this.closeIfDrained();
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext context) throws Exception {
+        if (context.channel().isWritable()) {
+            this.drainPendingNotifications(context);
+        }
+        super.channelWritabilityChanged(context);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext context) throws Exception {
+        super.channelInactive(context);
+
+        if (this.goingAway) {
+            /** the replacement, connected or not yet, has taken this connection's place by now **/
+            while (!this.pendingNotifications.isEmpty()) {
+                this.apnsHttp2Client.redirectNotification(this.pendingNotifications.poll());
+            }
+        }
+
+        if (!this.inFlightNotifications.isEmpty() || !this.pendingNotifications.isEmpty()) {
+            this.failNotifications(new ClientNotConnectedException("Client disconnected unexpectedly."));
+        }
+    }
+
+    /**
+     * Fails every notification in flight or queued on this connection.
+     */
+    private void failNotifications(final Exception cause) {
+        final ApnsClientMetricsListener metricsListener = this.apnsHttp2Client.getMetricsListener();
+
+        for (final PendingNotification<T> pendingNotification : this.inFlightNotifications.values()) {
+            metricsListener.handleNotificationFailed();
+            pendingNotification.getResponsePromise().tryFailure(cause);
+        }
+        this.inFlightNotifications.clear();
+
+        for (final PendingNotification<T> pendingNotification : this.pendingNotifications) {
+            metricsListener.handleNotificationDropped();
+            pendingNotification.getResponsePromise().tryFailure(cause);
+        }
+        this.pendingNotifications.clear();
+        this.apnsHttp2Client.setQueuedNotifications(0);
+
+        if (this.unflushedPendingNotifications != null) {
+            this.unflushedPendingNotifications.clear();
+        }
     }
 
     @Override
@@ -275,17 +787,14 @@ class ApnsHttp2ClientHandler<T extends ApnsPushNotification> extends Http2Connec
         if (event instanceof IdleStateEvent) {
             final IdleStateEvent idleStateEvent = (IdleStateEvent) event;
 
-            if (IdleState.WRITER_IDLE.equals(idleStateEvent.state())) {
-                if (this.unflushedNotifications > 0) {
-                    this.flush(context);
-                }
-            } else {
+            if (IdleState.ALL_IDLE.equals(idleStateEvent.state())) {
                 assert PING_TIMEOUT_SECONDS < ApnsHttp2Properties.PING_IDLE_TIME_MILLIS;
 
                 logger.info("Sending ping due to inactivity.");
 
                 final ByteBuf pingDataBuffer = context.alloc().ioBuffer(8, 8);
                 pingDataBuffer.writeLong(this.nextPingId++);
+                this.pingSentNanos = System.nanoTime();
 
                 this.encoder().writePing(context, false, pingDataBuffer, context.newPromise().addListener(new GenericFutureListener<ChannelFuture>() {
                     @Override
@@ -0,0 +1,554 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.auth.ApnsSigningKey;
+import com.linkedkeeper.apns.auth.AuthenticationTokenProvider;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.RejectionReason;
+import com.linkedkeeper.apns.exceptions.ClientNotConnectedException;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.SignatureException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps a fixed number of HTTP/2 connections to the same APNs host and routes every
+ * notification to the connected member with the most free stream slots.
+ * <p/>
+ * All members share one {@link SslContext} and one event loop group. A member whose connection
+ * is gone and that is not reconnecting by itself (its first connect failed, or the server shut
+ * the connection down) is replaced by a fresh one with back-off, while the other members keep
+ * sending.
+ */
+public class ApnsHttp2ClientPool<T extends ApnsPushNotification> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ApnsHttp2ClientPool.class);
+
+    private final SslContext sslContext;
+    private final EventLoopGroup eventLoopGroup;
+    private final boolean shouldShutDownEventLoopGroup;
+    private final ArrayList<String> identities;
+    private final AuthenticationTokenProvider tokenProvider;
+
+    private final AtomicReferenceArray<ApnsHttp2Client<T>> members;
+
+    private volatile String host;
+    private volatile int port;
+    private volatile boolean closed = false;
+
+    /** {@code null} keeps the handler's default **/
+    private volatile Long gracefulShutdownTimeoutMillis;
+    private volatile int maxPendingNotifications = 0;
+    private volatile OverflowPolicy overflowPolicy = ApnsHttp2Properties.DEFAULT_OVERFLOW_POLICY;
+    private volatile int maxUnflushedNotifications = ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS;
+    private volatile int maxUnflushedBytes = ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_BYTES;
+    private volatile Map<ChannelOption<?>, Object> channelOptions = Collections.emptyMap();
+    private volatile ApnsClientMetricsListener metricsListener = NoopApnsClientMetricsListener.INSTANCE;
+    private volatile boolean latencyHistogramsEnabled = false;
+    private volatile Map<RejectionReason, RetryPolicy> retryPolicies = Collections.emptyMap();
+    private volatile DeviceTokenRateLimiter deviceTokenRateLimiter;
+    private volatile InvalidDeviceTokenCache invalidDeviceTokenCache;
+    private volatile OutboxJournal outboxJournal;
+
+    private ScheduledFuture<?> healthCheckFuture;
+    private final long[] replaceDelaySeconds;
+    private final long[] nextReplaceTimes;
+
+    private static final long HEALTH_CHECK_INTERVAL_SECONDS = 1;
+
+    private static final ClientNotConnectedException NOT_CONNECTED_EXCEPTION = new ClientNotConnectedException();
+
+    public ApnsHttp2ClientPool(final File p12File, final String password, final int poolSize) throws IOException, KeyStoreException {
+        this(p12File, password, poolSize, null);
+    }
+
+    public ApnsHttp2ClientPool(final File p12File, final String password, final int poolSize, final EventLoopGroup eventLoopGroup) throws IOException, KeyStoreException {
+        this(ApnsHttp2Client.loadKeyStore(p12File, password), password, poolSize, eventLoopGroup);
+    }
+
+    public ApnsHttp2ClientPool(final KeyStore keyStore, final String password, final int poolSize) throws SSLException {
+        this(keyStore, password, poolSize, null);
+    }
+
+    public ApnsHttp2ClientPool(final KeyStore keyStore, final String password, final int poolSize, final EventLoopGroup eventLoopGroup) throws SSLException {
+        this(ApnsHttp2Client.getSslContextWithP12InputStream(keyStore, password), ApnsHttp2Client.getIdentities(keyStore), poolSize, eventLoopGroup);
+    }
+
+    /**
+     * A pool authenticating with provider tokens signed by the given key. All members share one
+     * token, so the pool can send to every topic of the key's team.
+     */
+    public ApnsHttp2ClientPool(final ApnsSigningKey signingKey, final int poolSize) throws SSLException, SignatureException {
+        this(signingKey, poolSize, null);
+    }
+
+    public ApnsHttp2ClientPool(final ApnsSigningKey signingKey, final int poolSize, final EventLoopGroup eventLoopGroup) throws SSLException, SignatureException {
+        this(ApnsHttp2Client.getBaseSslContextBuilder().build(), null, new AuthenticationTokenProvider(signingKey), poolSize, eventLoopGroup);
+    }
+
+    protected ApnsHttp2ClientPool(final SslContext sslContext, final ArrayList<String> identities, final int poolSize, final EventLoopGroup eventLoopGroup) {
+        this(sslContext, identities, null, poolSize, eventLoopGroup);
+    }
+
+    ApnsHttp2ClientPool(final SslContext sslContext, final ArrayList<String> identities, final AuthenticationTokenProvider tokenProvider, final int poolSize, final EventLoopGroup eventLoopGroup) {
+        this(sslContext, identities, tokenProvider, poolSize, eventLoopGroup, ApnsHttp2Properties.DEFAULT_USE_NATIVE_TRANSPORT);
+    }
+
+    /**
+     * @param useNativeTransport whether a pool that creates its own event loop group should use
+     *                           epoll when it is available; ignored if a group is given
+     */
+    ApnsHttp2ClientPool(final SslContext sslContext, final ArrayList<String> identities, final AuthenticationTokenProvider tokenProvider, final int poolSize, final EventLoopGroup eventLoopGroup, final boolean useNativeTransport) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, but was " + poolSize);
+        }
+        this.sslContext = sslContext;
+        this.identities = identities;
+        this.tokenProvider = tokenProvider;
+
+        if (eventLoopGroup != null) {
+            this.eventLoopGroup = eventLoopGroup;
+            this.shouldShutDownEventLoopGroup = false;
+        } else {
+            /** one I/O thread per connection, so each member gets its own event loop **/
+            this.eventLoopGroup = ApnsHttp2Client.newEventLoopGroup(poolSize, useNativeTransport);
+            this.shouldShutDownEventLoopGroup = true;
+        }
+
+        this.members = new AtomicReferenceArray<>(poolSize);
+        this.replaceDelaySeconds = new long[poolSize];
+        this.nextReplaceTimes = new long[poolSize];
+        Arrays.fill(this.replaceDelaySeconds, ApnsHttp2Properties.INITIAL_RECONNECT_DELAY_SECONDS);
+        for (int i = 0; i < poolSize; i++) {
+            this.members.set(i, this.newMember());
+        }
+    }
+
+    protected ApnsHttp2Client<T> newMember() {
+        final ApnsHttp2Client<T> member = new ApnsHttp2Client<>(this.sslContext, this.eventLoopGroup, this.tokenProvider);
+        member.setIdentities(this.identities);
+        final Long gracefulShutdownTimeoutMillis = this.gracefulShutdownTimeoutMillis;
+        if (gracefulShutdownTimeoutMillis != null) {
+            member.setGracefulShutdownTimeout(gracefulShutdownTimeoutMillis);
+        }
+        member.setMaxPendingNotifications(this.maxPendingNotifications);
+        member.setOverflowPolicy(this.overflowPolicy);
+        member.setMaxUnflushedNotifications(this.maxUnflushedNotifications);
+        member.setMaxUnflushedBytes(this.maxUnflushedBytes);
+        member.setChannelOptions(this.channelOptions);
+        member.setMetricsListener(this.metricsListener);
+        member.setLatencyHistogramsEnabled(this.latencyHistogramsEnabled);
+        member.setRetryPolicies(this.retryPolicies);
+        member.setDeviceTokenRateLimiter(this.deviceTokenRateLimiter);
+        member.setInvalidDeviceTokenCache(this.invalidDeviceTokenCache);
+        member.setOutboxJournal(this.outboxJournal);
+        return member;
+    }
+
+    public int getPoolSize() {
+        return this.members.length();
+    }
+
+    public Future<Void> connect(final String host) {
+        return this.connect(host, ApnsHttp2Properties.DEFAULT_APNS_PORT);
+    }
+
+    public Future<Void> connectSandBox() {
+        return this.connect(ApnsHttp2Properties.DEVELOPMENT_APNS_HOST, ApnsHttp2Properties.DEFAULT_APNS_PORT);
+    }
+
+    public Future<Void> connectProduction() {
+        return this.connect(ApnsHttp2Properties.PRODUCTION_APNS_HOST, ApnsHttp2Properties.DEFAULT_APNS_PORT);
+    }
+
+    /**
+     * Connects every member of the pool. The returned future succeeds as soon as one member is
+     * ready to send, and fails only if every member failed its first attempt; dead members keep
+     * being replaced in the background either way.
+     */
+    public Future<Void> connect(final String host, final int port) {
+        if (this.closed || this.eventLoopGroup.isShuttingDown() || this.eventLoopGroup.isShutdown()) {
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE,
+                    new IllegalStateException("Client pool has been shut down and cannot be restarted."));
+        }
+
+        this.host = host;
+        this.port = port;
+
+        final Promise<Void> poolReadyPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+        final AtomicInteger remainingAttempts = new AtomicInteger(this.members.length());
+
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).connect(host, port).addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(final Future<Void> future) throws Exception {
+                    if (future.isSuccess()) {
+                        poolReadyPromise.trySuccess(null);
+                    } else if (remainingAttempts.decrementAndGet() == 0) {
+                        poolReadyPromise.tryFailure(future.cause());
+                    }
+                }
+            });
+        }
+
+        synchronized (this.replaceDelaySeconds) {
+            if (this.healthCheckFuture == null) {
+                this.healthCheckFuture = this.eventLoopGroup.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        ApnsHttp2ClientPool.this.replaceDeadMembers();
+                    }
+                }, HEALTH_CHECK_INTERVAL_SECONDS, HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+        return poolReadyPromise;
+    }
+
+    /**
+     * Replaces every member that is neither connected nor trying to reconnect by itself, backing
+     * off per member while the replacements keep failing.
+     */
+    private void replaceDeadMembers() {
+        if (this.closed) {
+            return;
+        }
+        final long now = System.nanoTime();
+
+        for (int i = 0; i < this.members.length(); i++) {
+            final int index = i;
+            final ApnsHttp2Client<T> deadMember = this.members.get(index);
+
+            synchronized (this.replaceDelaySeconds) {
+                if (!deadMember.isAbandoned() || now - this.nextReplaceTimes[index] < 0) {
+                    continue;
+                }
+                this.nextReplaceTimes[index] = now + TimeUnit.SECONDS.toNanos(this.replaceDelaySeconds[index]);
+            }
+
+            final ApnsHttp2Client<T> member = this.newMember();
+            if (!this.members.compareAndSet(index, deadMember, member)) {
+                continue;
+            }
+            logger.warn("Pool member {} lost its connection, replacing it.", index);
+            deadMember.disconnect();
+
+            member.connect(this.host, this.port).addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(final Future<Void> future) throws Exception {
+                    synchronized (ApnsHttp2ClientPool.this.replaceDelaySeconds) {
+                        if (future.isSuccess()) {
+                            logger.info("Pool member {} replaced.", index);
+                            ApnsHttp2ClientPool.this.replaceDelaySeconds[index] = ApnsHttp2Properties.INITIAL_RECONNECT_DELAY_SECONDS;
+                        } else {
+                            ApnsHttp2ClientPool.this.replaceDelaySeconds[index] = Math.min(
+                                    ApnsHttp2ClientPool.this.replaceDelaySeconds[index] * 2, ApnsHttp2Properties.MAX_RECONNECT_DELAY_SECONDS);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    public boolean isConnected() {
+        for (int i = 0; i < this.members.length(); i++) {
+            if (this.members.get(i).isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the connected member with the most free stream slots, or {@code null} if no
+     * member is connected.
+     */
+    ApnsHttp2Client<T> leastLoadedMember() {
+        ApnsHttp2Client<T> leastLoaded = null;
+        long mostAvailableStreams = Long.MIN_VALUE;
+
+        for (int i = 0; i < this.members.length(); i++) {
+            final ApnsHttp2Client<T> member = this.members.get(i);
+            if (member.isConnected()) {
+                final long availableStreams = member.getAvailableStreams();
+                if (availableStreams > mostAvailableStreams) {
+                    leastLoaded = member;
+                    mostAvailableStreams = availableStreams;
+                }
+            }
+        }
+        return leastLoaded;
+    }
+
+    public Future<ApnsPushNotificationResponse<T>> sendNotification(final T notification) {
+        final ApnsHttp2Client<T> member = this.leastLoadedMember();
+
+        if (member == null) {
+            logger.error("Failed to send push notification because no pool member is connected: {}", notification);
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+        }
+        return member.sendNotification(notification);
+    }
+
+    /**
+     * Splits the batch evenly over the connected members; each member hands its share to its
+     * event loop at once.
+     *
+     * @see ApnsHttp2Client#sendNotifications(Collection)
+     */
+    public BatchSendResult<T> sendNotifications(final Collection<T> notifications) {
+        final List<T> batch = new ArrayList<>(notifications);
+        final List<ApnsHttp2Client<T>> connectedMembers = new ArrayList<>(this.members.length());
+        for (int i = 0; i < this.members.length(); i++) {
+            final ApnsHttp2Client<T> member = this.members.get(i);
+            if (member.isConnected()) {
+                connectedMembers.add(member);
+            }
+        }
+
+        if (connectedMembers.isEmpty()) {
+            logger.error("Failed to send {} push notifications because no pool member is connected.", batch.size());
+            final Future<ApnsPushNotificationResponse<T>> failedFuture = new FailedFuture<>(GlobalEventExecutor.INSTANCE, NOT_CONNECTED_EXCEPTION);
+            return new BatchSendResult<>(Collections.nCopies(batch.size(), failedFuture));
+        }
+        if (connectedMembers.size() == 1) {
+            return connectedMembers.get(0).sendNotifications(batch);
+        }
+
+        final List<Future<ApnsPushNotificationResponse<T>>> responseFutures = new ArrayList<>(batch.size());
+        final int shareSize = (batch.size() + connectedMembers.size() - 1) / connectedMembers.size();
+        for (int i = 0, from = 0; from < batch.size(); i++, from += shareSize) {
+            final List<T> share = batch.subList(from, Math.min(from + shareSize, batch.size()));
+            responseFutures.addAll(connectedMembers.get(i).sendNotifications(share).getResponseFutures());
+        }
+        return new BatchSendResult<>(responseFutures);
+    }
+
+    public BatchSendResult<T> sendNotifications(final Iterator<T> notifications) {
+        final List<T> batch = new ArrayList<>();
+        while (notifications.hasNext()) {
+            batch.add(notifications.next());
+        }
+        return this.sendNotifications(batch);
+    }
+
+    public void setGracefulShutdownTimeout(final long timeoutMillis) {
+        this.gracefulShutdownTimeoutMillis = timeoutMillis;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setGracefulShutdownTimeout(timeoutMillis);
+        }
+    }
+
+    /**
+     * @see ApnsHttp2Client#setMaxPendingNotifications(int)
+     */
+    public void setMaxPendingNotifications(final int maxPendingNotifications) {
+        if (maxPendingNotifications < 0) {
+            throw new IllegalArgumentException("Pending queue capacity must not be negative.");
+        }
+        this.maxPendingNotifications = maxPendingNotifications;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setMaxPendingNotifications(maxPendingNotifications);
+        }
+    }
+
+    /**
+     * @see ApnsHttp2Client#setOverflowPolicy(OverflowPolicy)
+     */
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "Overflow policy must not be null.");
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setOverflowPolicy(overflowPolicy);
+        }
+    }
+
+    /**
+     * Reports the events of every member, present and future, to the given listener.
+     *
+     * @see ApnsHttp2Client#setMetricsListener(ApnsClientMetricsListener)
+     */
+    public void setMetricsListener(final ApnsClientMetricsListener metricsListener) {
+        this.metricsListener = Objects.requireNonNull(metricsListener, "Metrics listener must not be null.");
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setMetricsListener(metricsListener);
+        }
+    }
+
+    /**
+     * @see ApnsHttp2Client#setLatencyHistogramsEnabled(boolean)
+     */
+    public void setLatencyHistogramsEnabled(final boolean latencyHistogramsEnabled) {
+        this.latencyHistogramsEnabled = latencyHistogramsEnabled;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setLatencyHistogramsEnabled(latencyHistogramsEnabled);
+        }
+    }
+
+    /**
+     * @see ApnsHttp2Client#setRetryPolicy(RetryPolicy)
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.setRetryPolicies(ApnsHttp2Client.withRetryPolicy(this.retryPolicies, ApnsHttp2Client.RETRYABLE_REASONS, retryPolicy));
+    }
+
+    /**
+     * @see ApnsHttp2Client#setRetryPolicy(RejectionReason, RetryPolicy)
+     */
+    public void setRetryPolicy(final RejectionReason reason, final RetryPolicy retryPolicy) {
+        Objects.requireNonNull(reason, "Rejection reason must not be null.");
+        this.setRetryPolicies(ApnsHttp2Client.withRetryPolicy(this.retryPolicies, EnumSet.of(reason), retryPolicy));
+    }
+
+    void setRetryPolicies(final Map<RejectionReason, RetryPolicy> retryPolicies) {
+        this.retryPolicies = retryPolicies;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setRetryPolicies(retryPolicies);
+        }
+    }
+
+    /**
+     * Paces every member with the same limiter, so a device token has one rate across the pool.
+     *
+     * @see ApnsHttp2Client#setDeviceTokenRateLimiter(DeviceTokenRateLimiter)
+     */
+    public void setDeviceTokenRateLimiter(final DeviceTokenRateLimiter deviceTokenRateLimiter) {
+        this.deviceTokenRateLimiter = deviceTokenRateLimiter;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setDeviceTokenRateLimiter(deviceTokenRateLimiter);
+        }
+    }
+
+    /**
+     * Shares the given cache between every member, so a token one member learned to be invalid
+     * is skipped by all.
+     *
+     * @see ApnsHttp2Client#setInvalidDeviceTokenCache(InvalidDeviceTokenCache)
+     */
+    public void setInvalidDeviceTokenCache(final InvalidDeviceTokenCache invalidDeviceTokenCache) {
+        this.invalidDeviceTokenCache = invalidDeviceTokenCache;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setInvalidDeviceTokenCache(invalidDeviceTokenCache);
+        }
+    }
+
+    /**
+     * Journals the notifications of every member in the same outbox.
+     *
+     * @see ApnsHttp2Client#setOutboxJournal(OutboxJournal)
+     */
+    public void setOutboxJournal(final OutboxJournal outboxJournal) {
+        this.outboxJournal = outboxJournal;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setOutboxJournal(outboxJournal);
+        }
+    }
+
+    /**
+     * Returns the latency histograms of every member connection that records latencies.
+     */
+    public List<ConnectionLatencyHistograms> getLatencyHistograms() {
+        final List<ConnectionLatencyHistograms> latencyHistograms = new ArrayList<>(this.members.length());
+        for (int i = 0; i < this.members.length(); i++) {
+            final ConnectionLatencyHistograms memberHistograms = this.members.get(i).getLatencyHistograms();
+            if (memberHistograms != null) {
+                latencyHistograms.add(memberHistograms);
+            }
+        }
+        return latencyHistograms;
+    }
+
+    /**
+     * @see ApnsHttp2Client#setChannelOptions(Map)
+     */
+    void setChannelOptions(final Map<ChannelOption<?>, Object> channelOptions) {
+        this.channelOptions = channelOptions;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setChannelOptions(channelOptions);
+        }
+    }
+
+    /**
+     * @see ApnsHttp2Client#setMaxUnflushedNotifications(int)
+     */
+    public void setMaxUnflushedNotifications(final int maxUnflushedNotifications) {
+        if (maxUnflushedNotifications < 1) {
+            throw new IllegalArgumentException("Flush size must be at least one notification.");
+        }
+        this.maxUnflushedNotifications = maxUnflushedNotifications;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setMaxUnflushedNotifications(maxUnflushedNotifications);
+        }
+    }
+
+    /**
+     * @see ApnsHttp2Client#setMaxUnflushedBytes(int)
+     */
+    public void setMaxUnflushedBytes(final int maxUnflushedBytes) {
+        if (maxUnflushedBytes < 1) {
+            throw new IllegalArgumentException("Flush size must be at least one byte.");
+        }
+        this.maxUnflushedBytes = maxUnflushedBytes;
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).setMaxUnflushedBytes(maxUnflushedBytes);
+        }
+    }
+
+    /**
+     * Returns the number of notifications waiting for a stream, summed over all members.
+     */
+    public int getQueuedNotifications() {
+        int queuedNotifications = 0;
+        for (int i = 0; i < this.members.length(); i++) {
+            queuedNotifications += this.members.get(i).getQueuedNotifications();
+        }
+        return queuedNotifications;
+    }
+
+    public Future<Void> disconnect() {
+        logger.info("Disconnecting client pool.");
+        this.closed = true;
+
+        synchronized (this.replaceDelaySeconds) {
+            if (this.healthCheckFuture != null) {
+                this.healthCheckFuture.cancel(false);
+            }
+        }
+
+        final Promise<Void> disconnectPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+        final AtomicInteger remainingMembers = new AtomicInteger(this.members.length());
+
+        for (int i = 0; i < this.members.length(); i++) {
+            this.members.get(i).disconnect().addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(final Future<Void> future) throws Exception {
+                    if (remainingMembers.decrementAndGet() > 0) {
+                        return;
+                    }
+                    if (ApnsHttp2ClientPool.this.shouldShutDownEventLoopGroup) {
+                        ApnsHttp2ClientPool.this.eventLoopGroup.shutdownGracefully().addListener(new GenericFutureListener<Future<Object>>() {
+                            @Override
+                            public void operationComplete(final Future<Object> future) throws Exception {
+                                disconnectPromise.trySuccess(null);
+                            }
+                        });
+                    } else {
+                        disconnectPromise.trySuccess(null);
+                    }
+                }
+            });
+        }
+        return disconnectPromise;
+    }
+}
@@ -1,15 +1,41 @@
 package com.linkedkeeper.apns.client;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
 class ApnsHttp2Properties {
 
     static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 20_000;
-    static final long DEFAULT_FLUSH_AFTER_IDLE_MILLIS = 50;
-    static final int DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS = 1280;
+    /** a flush goes out at the end of each event loop pass, or earlier once either cap is reached **/
+    static final int DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS = 256;
+    static final int DEFAULT_MAX_UNFLUSHED_BYTES = 64 * 1024;
+    /** without an explicit size the pending queue holds this many times MAX_CONCURRENT_STREAMS **/
+    static final int DEFAULT_PENDING_QUEUE_STREAMS_FACTOR = 2;
+    static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+    /** how long a sender blocked by a full pending queue waits before its notifications fail **/
+    static final long MAX_BLOCKED_SEND_MILLIS = 30_000;
+    /** a blocked sender looks again this often, in case the connection closed without a response to wake it **/
+    static final long BLOCKED_SEND_RECHECK_MILLIS = 100;
     static final String PRODUCTION_APNS_HOST = "api.push.apple.com";
     static final String DEVELOPMENT_APNS_HOST = "api.development.push.apple.com";
     static final int DEFAULT_APNS_PORT = 443;
     static final int ALTERNATE_APNS_PORT = 2197;
     static final long INITIAL_RECONNECT_DELAY_SECONDS = 1;
     static final long MAX_RECONNECT_DELAY_SECONDS = 60;
+    /** the stream limit a pool ranks a connection by until its server announces one; APNs usually allows 1000 **/
+    static final long ASSUMED_MAX_CONCURRENT_STREAMS = 1000;
     static final int PING_IDLE_TIME_MILLIS = 60_000;
+    /** a connection opens its replacement after three quarters of its stream ids, well before they run out **/
+    static final long DEFAULT_STREAM_ID_ROLLOVER_THRESHOLD = Integer.MAX_VALUE / 4 * 3;
+
+    /** use epoll where it is available when the client creates its own event loop group **/
+    static final boolean DEFAULT_USE_NATIVE_TRANSPORT = true;
+    /** Netty's shared pool, direct where the platform allows, so TLS reads and writes need no heap copy **/
+    static final ByteBufAllocator DEFAULT_ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+    /** above one flush of payload plus headers, so a single flush doesn't make the channel unwritable **/
+    static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 128 * 1024;
+    static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 256 * 1024;
+    /** 0 keeps the OS default, which leaves the kernel's buffer auto-tuning on **/
+    static final int DEFAULT_SEND_BUFFER_SIZE = 0;
+    static final int DEFAULT_RECEIVE_BUFFER_SIZE = 0;
 }
@@ -0,0 +1,135 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.auth.AuthenticationTokenProvider;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Request header templates of one connection, keyed by topic and priority. The constant
+ * headers ({@code :method}, {@code :authority}, {@code apns-topic}, {@code apns-priority}) are
+ * encoded into {@link AsciiString}s once per template; only {@code :path} and
+ * {@code apns-expiration} are replaced per stream, plus {@code authorization} with token
+ * authentication, whose value only changes when the token is rotated.
+ * <p/>
+ * {@link #headersFor} returns a copy of the template with those headers set, owned by the
+ * caller. {@link #reusedHeadersFor} sets them on the template itself, which the next call
+ * overwrites; it is only for a caller that encodes the headers before asking again. Not
+ * thread-safe; use from the event loop only.
+ */
+final class ApnsHttp2RequestHeaders {
+
+    private static final byte[] APNS_PATH_PREFIX = "/3/device/".getBytes(StandardCharsets.US_ASCII);
+
+    private static final AsciiString APNS_EXPIRATION_HEADER = new AsciiString("apns-expiration");
+    private static final AsciiString APNS_TOPIC_HEADER = new AsciiString("apns-topic");
+    private static final AsciiString APNS_PRIORITY_HEADER = new AsciiString("apns-priority");
+    private static final AsciiString AUTHORIZATION_HEADER = new AsciiString("authorization");
+
+    private static final AsciiString NO_EXPIRATION = new AsciiString("0");
+
+    /** more topics than this on one connection means something is wrong; start over instead of growing **/
+    private static final int MAX_TOPICS = 64;
+
+    private static final DeliveryPriority[] PRIORITIES = DeliveryPriority.values();
+
+    private final AsciiString authority;
+    private final AuthenticationTokenProvider tokenProvider;
+
+    /** one slot per priority, slot 0 for notifications without a priority **/
+    private final Map<String, Http2Headers[]> templatesByTopic = new HashMap<>();
+
+    ApnsHttp2RequestHeaders(final String authority) {
+        this(authority, null);
+    }
+
+    /**
+     * @param tokenProvider the provider of the {@code authorization} header, or {@code null}
+     */
+    ApnsHttp2RequestHeaders(final String authority, final AuthenticationTokenProvider tokenProvider) {
+        this.authority = new AsciiString(authority);
+        this.tokenProvider = tokenProvider;
+    }
+
+    /**
+     * @return the request headers for the given notification, owned by the caller
+     */
+    Http2Headers headersFor(final ApnsPushNotification notification) {
+        return this.fill(new DefaultHttp2Headers(false).add(this.template(notification.getTopic(), notification.getPriority())),
+                notification);
+    }
+
+    /**
+     * @return the template of the given notification's topic and priority, with its per-stream
+     * headers set; only valid until the next call for the same topic and priority
+     */
+    Http2Headers reusedHeadersFor(final ApnsPushNotification notification) {
+        return this.fill(this.template(notification.getTopic(), notification.getPriority()), notification);
+    }
+
+    private Http2Headers fill(final Http2Headers headers, final ApnsPushNotification notification) {
+        headers.path(pathFor(notification.getToken()));
+
+        if (notification.getExpiration() == null) {
+            headers.set(APNS_EXPIRATION_HEADER, NO_EXPIRATION);
+        } else {
+            headers.setInt(APNS_EXPIRATION_HEADER, (int) (notification.getExpiration().getTime() / 1000));
+        }
+
+        if (this.tokenProvider != null) {
+            headers.set(AUTHORIZATION_HEADER, this.tokenProvider.getAuthorizationHeader());
+        }
+
+        return headers;
+    }
+
+    private Http2Headers template(final String topic, final DeliveryPriority priority) {
+        Http2Headers[] templates = this.templatesByTopic.get(topic);
+
+        if (templates == null) {
+            if (this.templatesByTopic.size() >= MAX_TOPICS) {
+                this.templatesByTopic.clear();
+            }
+            templates = new Http2Headers[PRIORITIES.length + 1];
+            this.templatesByTopic.put(topic, templates);
+        }
+
+        final int slot = priority == null ? 0 : priority.ordinal() + 1;
+        if (templates[slot] == null) {
+            final Http2Headers headers = new DefaultHttp2Headers()
+                    .method(HttpMethod.POST.asciiName())
+                    .authority(this.authority);
+
+            if (priority != null) {
+                headers.add(APNS_PRIORITY_HEADER, new AsciiString(String.valueOf(priority.getCode())));
+            }
+            if (topic != null) {
+                headers.add(APNS_TOPIC_HEADER, new AsciiString(topic));
+            }
+            templates[slot] = headers;
+        }
+
+        return templates[slot];
+    }
+
+    /**
+     * Encodes {@code /3/device/<token>} straight into the bytes of an {@link AsciiString}; device
+     * tokens are hex, so one byte per char is exact.
+     */
+    static AsciiString pathFor(final String token) {
+        final byte[] path = new byte[APNS_PATH_PREFIX.length + token.length()];
+        System.arraycopy(APNS_PATH_PREFIX, 0, path, 0, APNS_PATH_PREFIX.length);
+
+        for (int i = 0; i < token.length(); i++) {
+            path[APNS_PATH_PREFIX.length + i] = (byte) token.charAt(i);
+        }
+
+        return new AsciiString(path, false);
+    }
+}
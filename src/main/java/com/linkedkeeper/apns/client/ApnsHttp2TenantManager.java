@@ -0,0 +1,444 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.auth.ApnsSigningKey;
+import com.linkedkeeper.apns.auth.AuthenticationTokenProvider;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.utils.P12Utils;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.concurrent.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends for many apps, each with its own certificate or signing key, over one event loop group:
+ * <pre>
+ * ApnsHttp2TenantManager manager = new ApnsHttp2TenantManager(4);
+ * manager.register("shop", new File("/path/to/shop.p12"), pwd);
+ * manager.register("news", new File("/path/to/news.p12"), pwd);
+ * Future&lt;ApnsPushNotificationResponse&lt;ApnsPushNotification&gt;&gt; response = manager.sendNotification("shop", notification);
+ * </pre>
+ * Registering a tenant connects nothing: its client is created and connected on its first send,
+ * and disconnected again once it has had nothing in flight for the idle timeout, so only busy
+ * tenants hold a connection. Tenants whose certificates are the same share one
+ * {@link SslContext}, as do all tenants with signing keys. Threads are bounded by the group,
+ * however many tenants there are.
+ */
+public class ApnsHttp2TenantManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(ApnsHttp2TenantManager.class);
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    /** the key of the one SSL context, without a client certificate, for all signing key tenants **/
+    private static final String TOKEN_AUTHENTICATION_FINGERPRINT = "token";
+
+    private final EventLoopGroup eventLoopGroup;
+    private final boolean shouldShutDownEventLoopGroup;
+
+    private final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+    /** SSL contexts by certificate fingerprint; guarded by itself **/
+    private final Map<String, SharedSslContext> sslContexts = new HashMap<>();
+
+    private volatile String host = ApnsHttp2Properties.PRODUCTION_APNS_HOST;
+    private volatile int port = ApnsHttp2Properties.DEFAULT_APNS_PORT;
+    private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private volatile boolean closed = false;
+    private volatile X509Certificate trustedServerCertificate;
+
+    private ScheduledFuture<?> evictionFuture;
+
+    private static class Tenant {
+        private final String fingerprint;
+        private final SslContext sslContext;
+        private final ArrayList<String> identities;
+        private final AuthenticationTokenProvider tokenProvider;
+
+        /** the client and its connection, guarded by the tenant; {@code null} while idle **/
+        private ApnsHttp2Client<ApnsPushNotification> client;
+        private Future<Void> connectFuture;
+        private volatile long lastSendNanos;
+
+        private Tenant(final String fingerprint, final SslContext sslContext, final ArrayList<String> identities, final AuthenticationTokenProvider tokenProvider) {
+            this.fingerprint = fingerprint;
+            this.sslContext = sslContext;
+            this.identities = identities;
+            this.tokenProvider = tokenProvider;
+        }
+    }
+
+    private static class SharedSslContext {
+        private final SslContext sslContext;
+        private int tenants;
+
+        private SharedSslContext(final SslContext sslContext) {
+            this.sslContext = sslContext;
+        }
+    }
+
+    /**
+     * A manager with one event loop thread per available processor.
+     */
+    public ApnsHttp2TenantManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ApnsHttp2TenantManager(final int eventLoopThreads) {
+        this(ApnsHttp2Client.newEventLoopGroup(eventLoopThreads, ApnsHttp2Properties.DEFAULT_USE_NATIVE_TRANSPORT), true);
+    }
+
+    /**
+     * A manager whose clients run on the given group, which it leaves running when it is
+     * disconnected.
+     */
+    public ApnsHttp2TenantManager(final EventLoopGroup eventLoopGroup) {
+        this(eventLoopGroup, false);
+    }
+
+    private ApnsHttp2TenantManager(final EventLoopGroup eventLoopGroup, final boolean shouldShutDownEventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.shouldShutDownEventLoopGroup = shouldShutDownEventLoopGroup;
+        this.scheduleEviction();
+    }
+
+    /**
+     * Sets the APNs server that clients connect to from now on; production by default.
+     */
+    public void setApnsServer(final String host, final int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void useSandBox() {
+        this.setApnsServer(ApnsHttp2Properties.DEVELOPMENT_APNS_HOST, ApnsHttp2Properties.DEFAULT_APNS_PORT);
+    }
+
+    /**
+     * Sets how long a tenant's connection may go without sends before it is closed; five
+     * minutes by default.
+     */
+    public void setIdleTimeout(final long idleTimeout, final TimeUnit unit) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive.");
+        }
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.scheduleEviction();
+    }
+
+    /**
+     * Trusts the given server certificate in the SSL contexts created from now on, e.g. a mock
+     * server's self-signed one.
+     */
+    void setTrustedServerCertificate(final X509Certificate trustedServerCertificate) {
+        this.trustedServerCertificate = trustedServerCertificate;
+    }
+
+    public void register(final String tenantId, final File p12File, final String password) throws IOException {
+        this.register(tenantId, ApnsHttp2Client.loadKeyStore(p12File, password), password);
+    }
+
+    /**
+     * Registers a tenant authenticating with the key store's client certificate, replacing any
+     * tenant of the same id. Its default topic is the certificate's first identity.
+     */
+    public void register(final String tenantId, final KeyStore keyStore, final String password) throws SSLException {
+        final X509Certificate certificate;
+        final PrivateKey privateKey;
+        final String fingerprint;
+        try {
+            final PrivateKeyEntry privateKeyEntry = P12Utils.getFirstPrivateKeyEntryFromP12InputStream(keyStore, password);
+            if (!(privateKeyEntry.getCertificate() instanceof X509Certificate)) {
+                throw new KeyStoreException("Found a certificate in the provided PKCS#12 file, but it was not an X.509 certificate.");
+            }
+            certificate = (X509Certificate) privateKeyEntry.getCertificate();
+            privateKey = privateKeyEntry.getPrivateKey();
+            fingerprint = fingerprint(certificate.getEncoded());
+        } catch (final KeyStoreException | IOException | CertificateEncodingException e) {
+            throw new SSLException(e);
+        }
+
+        final SslContext sslContext;
+        synchronized (this.sslContexts) {
+            SharedSslContext sharedSslContext = this.sslContexts.get(fingerprint);
+            if (sharedSslContext == null) {
+                sharedSslContext = new SharedSslContext(this.newSslContextBuilder()
+                        .keyManager(privateKey, password, certificate)
+                        .build());
+                this.sslContexts.put(fingerprint, sharedSslContext);
+            }
+            sharedSslContext.tenants++;
+            sslContext = sharedSslContext.sslContext;
+        }
+        this.putTenant(tenantId, new Tenant(fingerprint, sslContext, ApnsHttp2Client.getIdentities(keyStore), null));
+    }
+
+    /**
+     * Registers a tenant authenticating with provider tokens signed by the given key, replacing
+     * any tenant of the same id.
+     */
+    public void register(final String tenantId, final ApnsSigningKey signingKey) throws SSLException, SignatureException {
+        final AuthenticationTokenProvider tokenProvider = new AuthenticationTokenProvider(signingKey);
+
+        final SslContext sslContext;
+        synchronized (this.sslContexts) {
+            SharedSslContext sharedSslContext = this.sslContexts.get(TOKEN_AUTHENTICATION_FINGERPRINT);
+            if (sharedSslContext == null) {
+                sharedSslContext = new SharedSslContext(this.newSslContextBuilder().build());
+                this.sslContexts.put(TOKEN_AUTHENTICATION_FINGERPRINT, sharedSslContext);
+            }
+            sharedSslContext.tenants++;
+            sslContext = sharedSslContext.sslContext;
+        }
+        this.putTenant(tenantId, new Tenant(TOKEN_AUTHENTICATION_FINGERPRINT, sslContext, null, tokenProvider));
+    }
+
+    /**
+     * Removes the tenant and closes its connection once its notifications in flight are
+     * answered.
+     *
+     * @return {@code false} if no tenant has the id
+     */
+    public boolean unregister(final String tenantId) {
+        final Tenant tenant = this.tenants.remove(tenantId);
+        if (tenant == null) {
+            return false;
+        }
+        this.retireTenant(tenant);
+        return true;
+    }
+
+    /**
+     * Sends the notification with the tenant's credentials. A tenant without a connection is
+     * connected first, on the calling thread, so the first send of an idle tenant waits for
+     * the TLS handshake; it must not be made from an event loop.
+     */
+    public Future<ApnsPushNotificationResponse<ApnsPushNotification>> sendNotification(final String tenantId, final ApnsPushNotification notification) throws InterruptedException {
+        final Tenant tenant = this.tenants.get(tenantId);
+        if (tenant == null) {
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, new IllegalArgumentException("Unknown tenant: " + tenantId));
+        }
+
+        /** stamped before the client is taken, so the eviction task can't close it under this send **/
+        tenant.lastSendNanos = System.nanoTime();
+
+        final ApnsHttp2Client<ApnsPushNotification> client;
+        final Future<Void> connectFuture;
+        synchronized (tenant) {
+            if (this.closed || this.tenants.get(tenantId) != tenant) {
+                return new FailedFuture<>(GlobalEventExecutor.INSTANCE, new IllegalStateException("Tenant " + tenantId + " is no longer registered."));
+            }
+            if (tenant.client == null || tenant.client.isAbandoned()) {
+                tenant.client = this.newClient(tenant);
+                tenant.connectFuture = tenant.client.connect(this.host, this.port);
+                logger.info("Connecting tenant {}.", tenantId);
+            }
+            client = tenant.client;
+            connectFuture = tenant.connectFuture;
+        }
+
+        if (!connectFuture.await().isSuccess()) {
+            return new FailedFuture<>(GlobalEventExecutor.INSTANCE, connectFuture.cause());
+        }
+        return client.sendNotification(notification);
+    }
+
+    public int getRegisteredTenants() {
+        return this.tenants.size();
+    }
+
+    /**
+     * @return the tenants holding a client, connected or connecting
+     */
+    public int getConnectedTenants() {
+        int connectedTenants = 0;
+        for (final Tenant tenant : this.tenants.values()) {
+            synchronized (tenant) {
+                if (tenant.client != null) {
+                    connectedTenants++;
+                }
+            }
+        }
+        return connectedTenants;
+    }
+
+    /**
+     * @return the SSL contexts the registered tenants share
+     */
+    public int getDistinctSslContexts() {
+        synchronized (this.sslContexts) {
+            return this.sslContexts.size();
+        }
+    }
+
+    /**
+     * Disconnects every tenant, and shuts down the event loop group if the manager created it.
+     */
+    public Future<Void> disconnect() {
+        logger.info("Disconnecting tenant manager.");
+        this.closed = true;
+
+        synchronized (this.sslContexts) {
+            if (this.evictionFuture != null) {
+                this.evictionFuture.cancel(false);
+            }
+        }
+
+        final List<ApnsHttp2Client<ApnsPushNotification>> clients = new ArrayList<>();
+        for (final Tenant tenant : this.tenants.values()) {
+            synchronized (tenant) {
+                if (tenant.client != null) {
+                    clients.add(tenant.client);
+                    tenant.client = null;
+                    tenant.connectFuture = null;
+                }
+            }
+        }
+
+        final Promise<Void> disconnectPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+        if (clients.isEmpty()) {
+            this.shutDownEventLoopGroup(disconnectPromise);
+            return disconnectPromise;
+        }
+
+        final AtomicInteger remainingClients = new AtomicInteger(clients.size());
+        final GenericFutureListener<Future<Void>> clientDisconnectListener = new GenericFutureListener<Future<Void>>() {
+            @Override
+            public void operationComplete(final Future<Void> future) throws Exception {
+                if (remainingClients.decrementAndGet() == 0) {
+                    ApnsHttp2TenantManager.this.shutDownEventLoopGroup(disconnectPromise);
+                }
+            }
+        };
+        for (final ApnsHttp2Client<ApnsPushNotification> client : clients) {
+            client.disconnect().addListener(clientDisconnectListener);
+        }
+        return disconnectPromise;
+    }
+
+    private void shutDownEventLoopGroup(final Promise<Void> disconnectPromise) {
+        if (this.shouldShutDownEventLoopGroup) {
+            this.eventLoopGroup.shutdownGracefully().addListener(new GenericFutureListener<Future<Object>>() {
+                @Override
+                public void operationComplete(final Future<Object> future) throws Exception {
+                    disconnectPromise.trySuccess(null);
+                }
+            });
+        } else {
+            disconnectPromise.trySuccess(null);
+        }
+    }
+
+    private SslContextBuilder newSslContextBuilder() {
+        final SslContextBuilder sslContextBuilder = ApnsHttp2Client.getBaseSslContextBuilder();
+        if (this.trustedServerCertificate != null) {
+            sslContextBuilder.trustManager(this.trustedServerCertificate);
+        }
+        return sslContextBuilder;
+    }
+
+    private ApnsHttp2Client<ApnsPushNotification> newClient(final Tenant tenant) {
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2Client<>(tenant.sslContext, this.eventLoopGroup, tenant.tokenProvider);
+        client.setIdentities(tenant.identities);
+        return client;
+    }
+
+    private void putTenant(final String tenantId, final Tenant tenant) {
+        final Tenant replacedTenant = this.tenants.put(tenantId, tenant);
+        if (replacedTenant != null) {
+            this.retireTenant(replacedTenant);
+        }
+    }
+
+    private void retireTenant(final Tenant tenant) {
+        final ApnsHttp2Client<ApnsPushNotification> client;
+        synchronized (tenant) {
+            client = tenant.client;
+            tenant.client = null;
+            tenant.connectFuture = null;
+        }
+        if (client != null) {
+            client.disconnect();
+        }
+
+        synchronized (this.sslContexts) {
+            final SharedSslContext sharedSslContext = this.sslContexts.get(tenant.fingerprint);
+            if (sharedSslContext != null && --sharedSslContext.tenants == 0) {
+                this.sslContexts.remove(tenant.fingerprint);
+            }
+        }
+    }
+
+    private void scheduleEviction() {
+        synchronized (this.sslContexts) {
+            if (this.evictionFuture != null) {
+                this.evictionFuture.cancel(false);
+            }
+            if (this.closed) {
+                return;
+            }
+            /** checked twice per timeout, so a connection outlives its timeout by half of it at most **/
+            final long evictionIntervalNanos = Math.max(this.idleTimeoutNanos / 2, TimeUnit.MILLISECONDS.toNanos(1));
+            this.evictionFuture = this.eventLoopGroup.next().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    ApnsHttp2TenantManager.this.evictIdleTenants();
+                }
+            }, evictionIntervalNanos, evictionIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void evictIdleTenants() {
+        final long idleSinceNanos = System.nanoTime() - this.idleTimeoutNanos;
+        for (final Map.Entry<String, Tenant> entry : this.tenants.entrySet()) {
+            final Tenant tenant = entry.getValue();
+            final ApnsHttp2Client<ApnsPushNotification> client;
+            synchronized (tenant) {
+                client = tenant.client;
+                if (client == null || tenant.lastSendNanos - idleSinceNanos > 0 || client.getInFlightNotifications() > 0) {
+                    continue;
+                }
+                tenant.client = null;
+                tenant.connectFuture = null;
+            }
+            logger.info("Disconnecting idle tenant {}.", entry.getKey());
+            client.disconnect();
+        }
+    }
+
+    private static String fingerprint(final byte[] encodedCertificate) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(encodedCertificate);
+        } catch (final NoSuchAlgorithmException e) {
+            /** every JRE has SHA-256 **/
+            throw new IllegalStateException(e);
+        }
+
+        final StringBuilder fingerprint = new StringBuilder(digest.length * 2);
+        for (final byte b : digest) {
+            fingerprint.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return fingerprint.toString();
+    }
+}
@@ -0,0 +1,211 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.RejectionReason;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes APNs responses straight from the frames: the {@code :status} header as three digits,
+ * and the {@code {"reason": ..., "timestamp": ...}} body by scanning the buffer for the two
+ * keys. A known reason maps onto a {@link RejectionReason} constant without creating a String;
+ * the buffer's indexes are left untouched.
+ */
+final class ApnsResponseDecoder {
+
+    static final int NO_TIMESTAMP = -1;
+
+    private static final byte[] REASON_KEY = "\"reason\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP_KEY = "\"timestamp\"".getBytes(StandardCharsets.US_ASCII);
+
+    private ApnsResponseDecoder() {
+    }
+
+    /**
+     * @return the status code, or {@code 0} if the header is not three digits
+     */
+    static int parseStatus(final CharSequence status) {
+        if (status == null || status.length() != 3) {
+            return 0;
+        }
+
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            final char digit = status.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return 0;
+            }
+            code = code * 10 + (digit - '0');
+        }
+        return code;
+    }
+
+    /**
+     * @return the reason of the body, {@link RejectionReason#UNKNOWN} if it is missing or unknown
+     */
+    static RejectionReason readReason(final ByteBuf body) {
+        final int start = stringValueStart(body);
+        if (start < 0) {
+            return RejectionReason.UNKNOWN;
+        }
+        return RejectionReason.fromReason(body, start, stringValueEnd(body, start) - start);
+    }
+
+    /**
+     * Decodes the reason into a String, resolving JSON escapes; only worth it for reasons
+     * {@link #readReason} didn't know.
+     *
+     * @return the reason of the body, or {@code null} if there is none
+     */
+    static String readReasonString(final ByteBuf body) {
+        final int start = stringValueStart(body);
+        if (start < 0) {
+            return null;
+        }
+        final int end = stringValueEnd(body, start);
+        final String reason = body.toString(start, end - start, StandardCharsets.UTF_8);
+        return body.indexOf(start, end, (byte) '\\') < 0 ? reason : unescape(reason);
+    }
+
+    /**
+     * Resolves the escapes of a JSON string; a broken escape is kept as it is.
+     */
+    private static String unescape(final String escaped) {
+        final StringBuilder builder = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            final char c = escaped.charAt(i);
+            if (c != '\\' || i + 1 == escaped.length()) {
+                builder.append(c);
+                continue;
+            }
+
+            final char escape = escaped.charAt(++i);
+            switch (escape) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 < escaped.length() && isHex(escaped, i + 1, i + 5)) {
+                        builder.append((char) Integer.parseInt(escaped.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    } else {
+                        builder.append('\\').append(escape);
+                    }
+                    break;
+                default:
+                    /** \", \\ and \/ stand for themselves **/
+                    builder.append(escape);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean isHex(final String string, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.digit(string.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the timestamp of the body in milliseconds since the epoch, or {@link #NO_TIMESTAMP}
+     */
+    static long readTimestamp(final ByteBuf body) {
+        int index = valueStart(body, TIMESTAMP_KEY);
+        if (index < 0) {
+            return NO_TIMESTAMP;
+        }
+
+        final int end = body.writerIndex();
+        long timestamp = 0;
+        boolean digits = false;
+        for (; index < end; index++) {
+            final byte b = body.getByte(index);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            timestamp = timestamp * 10 + (b - '0');
+            digits = true;
+        }
+        return digits ? timestamp : NO_TIMESTAMP;
+    }
+
+    /**
+     * @return the index of the first char of the reason string, after its opening quote, or -1
+     */
+    private static int stringValueStart(final ByteBuf body) {
+        final int index = valueStart(body, REASON_KEY);
+        if (index < 0 || index >= body.writerIndex() || body.getByte(index) != '"') {
+            return -1;
+        }
+        return index + 1;
+    }
+
+    /**
+     * @return the index of the closing quote of the string starting at the given index
+     */
+    private static int stringValueEnd(final ByteBuf body, final int start) {
+        final int end = body.writerIndex();
+        for (int index = start; index < end; index++) {
+            final byte b = body.getByte(index);
+            if (b == '\\') {
+                index++;
+            } else if (b == '"') {
+                return index;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return the index of the value following the given quoted key and its colon, or -1
+     */
+    private static int valueStart(final ByteBuf body, final byte[] key) {
+        final int end = body.writerIndex() - key.length;
+
+        for (int index = body.readerIndex(); index <= end; index++) {
+            if (matches(body, index, key)) {
+                int valueIndex = skipWhitespace(body, index + key.length);
+                if (valueIndex < body.writerIndex() && body.getByte(valueIndex) == ':') {
+                    return skipWhitespace(body, valueIndex + 1);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(final ByteBuf body, final int index, final byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (body.getByte(index + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(final ByteBuf body, int index) {
+        final int end = body.writerIndex();
+        while (index < end) {
+            final byte b = body.getByte(index);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+}
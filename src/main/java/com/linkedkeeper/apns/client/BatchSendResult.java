@@ -0,0 +1,73 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import io.netty.util.concurrent.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The outcome of sending a batch of notifications: one response future per notification, in
+ * the order the notifications were given, and a future for the batch as a whole.
+ * <p/>
+ * The batch future completes once every response future has completed. It fails with the
+ * first failure cause if any notification could not be sent; rejected notifications still
+ * count as sent.
+ */
+public class BatchSendResult<T extends ApnsPushNotification> {
+
+    private final List<Future<ApnsPushNotificationResponse<T>>> responseFutures;
+    private final Promise<Void> batchPromise = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
+
+    private final AtomicInteger remaining;
+    private final AtomicReference<Throwable> firstCause = new AtomicReference<>();
+
+    BatchSendResult(final List<Future<ApnsPushNotificationResponse<T>>> responseFutures) {
+        this.responseFutures = Collections.unmodifiableList(responseFutures);
+        this.remaining = new AtomicInteger(responseFutures.size());
+
+        if (responseFutures.isEmpty()) {
+            this.batchPromise.setSuccess(null);
+            return;
+        }
+
+        /** one listener instance shared by every future of the batch **/
+        final GenericFutureListener<Future<ApnsPushNotificationResponse<T>>> completionListener = new GenericFutureListener<Future<ApnsPushNotificationResponse<T>>>() {
+            @Override
+            public void operationComplete(final Future<ApnsPushNotificationResponse<T>> future) throws Exception {
+                if (!future.isSuccess()) {
+                    BatchSendResult.this.firstCause.compareAndSet(null, future.cause());
+                }
+                if (BatchSendResult.this.remaining.decrementAndGet() == 0) {
+                    final Throwable cause = BatchSendResult.this.firstCause.get();
+                    if (cause == null) {
+                        BatchSendResult.this.batchPromise.trySuccess(null);
+                    } else {
+                        BatchSendResult.this.batchPromise.tryFailure(cause);
+                    }
+                }
+            }
+        };
+        for (final Future<ApnsPushNotificationResponse<T>> responseFuture : responseFutures) {
+            responseFuture.addListener(completionListener);
+        }
+    }
+
+    /**
+     * @return the response futures, in the order the notifications were given
+     */
+    public List<Future<ApnsPushNotificationResponse<T>>> getResponseFutures() {
+        return this.responseFutures;
+    }
+
+    public Future<Void> getBatchFuture() {
+        return this.batchPromise;
+    }
+
+    public int size() {
+        return this.responseFutures.size();
+    }
+}
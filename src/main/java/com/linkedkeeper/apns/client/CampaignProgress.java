@@ -0,0 +1,86 @@
+package com.linkedkeeper.apns.client;
+
+/**
+ * A point-in-time view of a {@link CampaignSender}'s run.
+ */
+public final class CampaignProgress {
+
+    private final long sent;
+    private final long accepted;
+    private final long rejected;
+    private final long failed;
+    private final long checkpointOffset;
+    private final long fileLength;
+    private final long elapsedNanos;
+
+    CampaignProgress(final long sent, final long accepted, final long rejected, final long failed,
+                     final long checkpointOffset, final long fileLength, final long elapsedNanos) {
+        this.sent = sent;
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.failed = failed;
+        this.checkpointOffset = checkpointOffset;
+        this.fileLength = fileLength;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the tokens read from the file in this run, each of which was sent or failed
+     */
+    public long getSentNotifications() {
+        return this.sent;
+    }
+
+    public long getAcceptedNotifications() {
+        return this.accepted;
+    }
+
+    public long getRejectedNotifications() {
+        return this.rejected;
+    }
+
+    /**
+     * @return the notifications that got no answer from APNs, e.g. because the pool was not
+     * connected or the payload was too large
+     */
+    public long getFailedNotifications() {
+        return this.failed;
+    }
+
+    public long getCompletedNotifications() {
+        return this.accepted + this.rejected + this.failed;
+    }
+
+    public long getInFlightNotifications() {
+        return this.sent - this.getCompletedNotifications();
+    }
+
+    /**
+     * @return the offset in the token file before which every token has been answered; a run
+     * started from here again misses no token
+     */
+    public long getCheckpointOffset() {
+        return this.checkpointOffset;
+    }
+
+    public long getFileLength() {
+        return this.fileLength;
+    }
+
+    public long getElapsedMillis() {
+        return this.elapsedNanos / 1_000_000;
+    }
+
+    /**
+     * @return the notifications completed per second since the run started
+     */
+    public double getNotificationsPerSecond() {
+        return this.elapsedNanos > 0 ? this.getCompletedNotifications() * 1e9 / this.elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d sent, %d accepted, %d rejected, %d failed, %.0f/s, checkpoint at %d of %d bytes",
+                this.sent, this.accepted, this.rejected, this.failed, this.getNotificationsPerSecond(), this.checkpointOffset, this.fileLength);
+    }
+}
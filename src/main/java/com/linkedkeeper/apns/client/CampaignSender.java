@@ -0,0 +1,439 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2EncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.PayloadTemplate;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends one notification per line of a token file through a pool, keeping a fixed number in
+ * flight, so a campaign to tens of millions of devices runs in constant memory:
+ * <pre>
+ * CampaignSender campaign = new CampaignSender(pool, new File("tokens.tsv"),
+ *         PayloadTemplate.compile("{\"aps\":{\"alert\":\"Hi ${name}\",\"badge\":${badge}}}"), "com.example.app");
+ * campaign.setResultFile(new File("results.tsv"));
+ * campaign.setCheckpointFile(new File("campaign.checkpoint"));
+ * CampaignProgress progress = campaign.run();
+ * </pre>
+ * Each line holds a token, then the values of the template's slots in slot order, separated by
+ * tabs; blank lines are skipped. The file is read through read-only memory mappings of up to
+ * 64 MiB at a time, never loaded as a whole.
+ * <p/>
+ * Each answer is appended to the result file as {@code token ACCEPTED},
+ * {@code token REJECTED reason [invalidation timestamp]} or {@code token FAILED message},
+ * tab-separated, in the order the answers arrive. The event loops only queue these lines; the
+ * thread in {@link #run()} writes them, so no disk write ever holds up a connection. Progress
+ * and throughput are logged every progress interval, when the checkpoint is saved as well: the
+ * offset before which every line has been answered. A run started from the checkpoint, after a crash or {@link #stop()},
+ * misses no token but may send the tokens answered after the checkpoint once more.
+ */
+public class CampaignSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(CampaignSender.class);
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1_000;
+    private static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 10_000;
+
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    /** how long the sending thread waits for a permit before checking whether progress is due **/
+    private static final long PERMIT_POLL_MILLIS = 100;
+
+    private final ApnsHttp2ClientPool<ApnsPushNotification> pool;
+    private final File tokenFile;
+    private final PayloadTemplate payloadTemplate;
+    private final String topic;
+    /** the rendered payload of a template without slots, shared by every notification **/
+    private final byte[] constantPayload;
+
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private long progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PROGRESS_INTERVAL_MILLIS);
+    private File resultFile;
+    private File checkpointFile;
+    private Long startOffset;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** the offsets of the lines whose notifications are not answered yet **/
+    private final ConcurrentSkipListSet<Long> inFlightOffsets = new ConcurrentSkipListSet<>();
+    /** the offset of the next line to read; every line before it was sent **/
+    private volatile long readOffset;
+    private volatile long fileLength;
+    private volatile long startNanos;
+    private volatile boolean stopped = false;
+
+    private volatile Writer resultWriter;
+    /** result lines queued by the event loops for the running thread to write **/
+    private final ConcurrentLinkedQueue<String> pendingResults = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param topic the topic of every notification, or {@code null} for the pool's default
+     */
+    public CampaignSender(final ApnsHttp2ClientPool<ApnsPushNotification> pool, final File tokenFile, final PayloadTemplate payloadTemplate, final String topic) {
+        this.pool = pool;
+        this.tokenFile = tokenFile;
+        this.payloadTemplate = payloadTemplate;
+        this.topic = topic;
+        this.constantPayload = payloadTemplate.getSlotNames().isEmpty() ? payloadTemplate.renderBytes() : null;
+    }
+
+    /**
+     * Sets how many notifications may wait for an answer at once; 1000 by default. Size it to
+     * the pool's connections times their MAX_CONCURRENT_STREAMS to keep every stream busy.
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one notification must be allowed in flight.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets how often progress is logged and the checkpoint saved; every 10 seconds by default.
+     */
+    public void setProgressInterval(final long progressInterval, final TimeUnit unit) {
+        this.progressIntervalNanos = unit.toNanos(progressInterval);
+    }
+
+    /**
+     * Appends the answer for each token to the given file; none are written by default.
+     */
+    public void setResultFile(final File resultFile) {
+        this.resultFile = resultFile;
+    }
+
+    /**
+     * Saves the checkpoint offset to the given file. A run without a start offset of its own
+     * resumes from the offset saved there, if the file exists.
+     */
+    public void setCheckpointFile(final File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Starts the run at the given offset of the token file, which must be the start of a line,
+     * e.g. an earlier run's {@link CampaignProgress#getCheckpointOffset()}.
+     */
+    public void setStartOffset(final long startOffset) {
+        this.startOffset = startOffset;
+    }
+
+    /**
+     * Sets the most bytes of the token file mapped at once; a line must fit in it.
+     */
+    void setWindowSize(final int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Makes {@link #run()} stop reading, wait for the notifications in flight and return; its
+     * checkpoint then points at the first line not sent.
+     */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * Sends a notification for every line from the start offset on, on the calling thread, and
+     * returns once all of them are answered or failed.
+     */
+    public CampaignProgress run() throws IOException, InterruptedException {
+        final long startOffset = this.startOffset != null ? this.startOffset : this.readCheckpoint();
+        final int maxInFlight = this.maxInFlight;
+        final Semaphore permits = new Semaphore(maxInFlight);
+        /** a template without slots is a broadcast: every notification shares one payload buffer **/
+        final PayloadBroadcast broadcast = this.constantPayload != null ? new PayloadBroadcast(this.constantPayload, this.topic) : null;
+
+        try (final RandomAccessFile file = new RandomAccessFile(this.tokenFile, "r");
+             final Writer resultWriter = this.resultFile == null ? null : new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(this.resultFile, startOffset > 0), StandardCharsets.UTF_8), 64 * 1024)) {
+            final MappedLineReader reader = new MappedLineReader(file.getChannel(), startOffset, this.windowSize);
+            this.resultWriter = resultWriter;
+            this.fileLength = file.length();
+            this.readOffset = startOffset;
+            this.startNanos = System.nanoTime();
+            logger.info("Campaign {} starting at offset {} of {} bytes.", this.tokenFile.getName(), startOffset, this.fileLength);
+
+            long nextProgressNanos = this.startNanos + this.progressIntervalNanos;
+            String line;
+            while (!this.stopped && (line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    while (!permits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        this.writePendingResults();
+                        nextProgressNanos = this.reportProgressIfDue(nextProgressNanos);
+                    }
+                    this.send(line, reader.getLineOffset(), permits, broadcast);
+                }
+                this.readOffset = reader.getOffset();
+                this.writePendingResults();
+                nextProgressNanos = this.reportProgressIfDue(nextProgressNanos);
+            }
+
+            while (!permits.tryAcquire(maxInFlight, PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                this.writePendingResults();
+                nextProgressNanos = this.reportProgressIfDue(nextProgressNanos);
+            }
+
+            final CampaignProgress progress = this.reportProgress();
+            logger.info("Campaign {} {}: {}.", this.tokenFile.getName(), this.stopped ? "stopped" : "finished", progress);
+            return progress;
+        } finally {
+            this.resultWriter = null;
+            this.pendingResults.clear();
+            if (broadcast != null) {
+                broadcast.close();
+            }
+        }
+    }
+
+    private void send(final String line, final long lineOffset, final Semaphore permits, final PayloadBroadcast broadcast) {
+        final int tab = line.indexOf('\t');
+        final String token = tab < 0 ? line : line.substring(0, tab);
+        this.sent.incrementAndGet();
+
+        byte[] payload = null;
+        if (broadcast == null) {
+            try {
+                payload = this.renderPayload(line, tab);
+            } catch (final IllegalArgumentException e) {
+                /** a malformed value or a payload over the size limit fails this line only **/
+                this.failed.incrementAndGet();
+                this.writeResult(token + "\tFAILED\t" + e.getMessage());
+                permits.release();
+                return;
+            }
+        }
+
+        this.inFlightOffsets.add(lineOffset);
+        final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture = broadcast != null
+                ? broadcast.sendTo(this.pool, token)
+                : this.pool.sendNotification(new ApnsHttp2EncodedPushNotification(token, this.topic, payload));
+        responseFuture.addListener(
+                new GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>>() {
+                    @Override
+                    public void operationComplete(final Future<ApnsPushNotificationResponse<ApnsPushNotification>> future) throws Exception {
+                        CampaignSender.this.handleResponse(token, future);
+                        CampaignSender.this.inFlightOffsets.remove(lineOffset);
+                        permits.release();
+                    }
+                });
+    }
+
+    private byte[] renderPayload(final String line, final int tab) {
+        final String[] columns = tab < 0 ? new String[0] : line.substring(tab + 1).split("\t", -1);
+        final Object[] values = new Object[this.payloadTemplate.getSlotNames().size()];
+        if (columns.length < values.length) {
+            throw new IllegalArgumentException("Line has " + columns.length + " values for " + values.length + " slots.");
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = this.payloadTemplate.isStringSlot(i) ? columns[i] : parseLiteral(columns[i]);
+        }
+        return this.payloadTemplate.renderBytes(values);
+    }
+
+    /**
+     * @throws NumberFormatException if the value is neither a boolean nor a number
+     */
+    private static Object parseLiteral(final String value) {
+        if ("true".equals(value) || "false".equals(value)) {
+            return Boolean.valueOf(value);
+        }
+        if (value.indexOf('.') >= 0 || value.indexOf('e') >= 0 || value.indexOf('E') >= 0) {
+            return Double.valueOf(value);
+        }
+        return Long.valueOf(value);
+    }
+
+    private void handleResponse(final String token, final Future<ApnsPushNotificationResponse<ApnsPushNotification>> future) {
+        final StringBuilder result = new StringBuilder(token.length() + 48).append(token);
+
+        if (!future.isSuccess()) {
+            this.failed.incrementAndGet();
+            result.append("\tFAILED\t").append(future.cause().getClass().getSimpleName());
+        } else if (future.getNow().isAccepted()) {
+            this.accepted.incrementAndGet();
+            result.append("\tACCEPTED");
+        } else {
+            this.rejected.incrementAndGet();
+            result.append("\tREJECTED\t").append(future.getNow().getRejectionReason());
+            if (future.getNow().getTokenInvalidationTimestamp() != null) {
+                result.append('\t').append(future.getNow().getTokenInvalidationTimestamp().getTime());
+            }
+        }
+        this.writeResult(result.toString());
+    }
+
+    /**
+     * Queues a line for the running thread; called on the event loops, so it must not block.
+     */
+    private void writeResult(final String result) {
+        if (this.resultWriter != null) {
+            this.pendingResults.add(result);
+        }
+    }
+
+    /**
+     * Writes the result lines queued so far; called on the running thread only.
+     */
+    private void writePendingResults() throws IOException {
+        final Writer resultWriter = this.resultWriter;
+        if (resultWriter == null) {
+            return;
+        }
+        String result;
+        while ((result = this.pendingResults.poll()) != null) {
+            resultWriter.write(result);
+            resultWriter.write('\n');
+        }
+    }
+
+    public CampaignProgress getProgress() {
+        /** read the offset first, so a line sent meanwhile can't make the checkpoint skip it **/
+        final long readOffset = this.readOffset;
+        final Long oldestInFlightOffset = this.inFlightOffsets.ceiling(Long.MIN_VALUE);
+
+        return new CampaignProgress(this.sent.get(), this.accepted.get(), this.rejected.get(), this.failed.get(),
+                oldestInFlightOffset != null ? Math.min(oldestInFlightOffset, readOffset) : readOffset,
+                this.fileLength, System.nanoTime() - this.startNanos);
+    }
+
+    private long reportProgressIfDue(final long nextProgressNanos) throws IOException {
+        final long now = System.nanoTime();
+        if (now - nextProgressNanos < 0) {
+            return nextProgressNanos;
+        }
+        logger.info("Campaign {}: {}.", this.tokenFile.getName(), this.reportProgress());
+        return now + this.progressIntervalNanos;
+    }
+
+    /**
+     * Writes and flushes the results, then saves the checkpoint, so no line before the
+     * checkpoint lacks its result: a line's result is queued before its offset leaves the
+     * in-flight set.
+     */
+    private CampaignProgress reportProgress() throws IOException {
+        final CampaignProgress progress = this.getProgress();
+        this.writePendingResults();
+        if (this.resultWriter != null) {
+            this.resultWriter.flush();
+        }
+
+        if (this.checkpointFile != null) {
+            final File temporaryFile = new File(this.checkpointFile.getPath() + ".tmp");
+            try (final Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), StandardCharsets.US_ASCII)) {
+                writer.write(Long.toString(progress.getCheckpointOffset()));
+            }
+            Files.move(temporaryFile.toPath(), this.checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return progress;
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (this.checkpointFile == null || !this.checkpointFile.exists()) {
+            return 0;
+        }
+        final String checkpoint = new String(Files.readAllBytes(this.checkpointFile.toPath()), StandardCharsets.US_ASCII).trim();
+        try {
+            return Long.parseLong(checkpoint);
+        } catch (final NumberFormatException e) {
+            throw new IOException("Campaign checkpoint " + this.checkpointFile + " holds no offset: " + checkpoint, e);
+        }
+    }
+
+    /**
+     * Reads lines through a window mapped over the file, mapping the next window once a line
+     * runs past the end of the current one.
+     */
+    private static final class MappedLineReader {
+
+        private final FileChannel channel;
+        private final long fileLength;
+        private final int windowSize;
+
+        private MappedByteBuffer window;
+        private long windowOffset;
+
+        private long lineOffset;
+        private long offset;
+
+        MappedLineReader(final FileChannel channel, final long offset, final int windowSize) throws IOException {
+            this.channel = channel;
+            this.fileLength = channel.size();
+            this.windowSize = windowSize;
+            this.offset = offset;
+        }
+
+        /**
+         * @return the next line without its line break, or {@code null} at the end of the file
+         */
+        String readLine() throws IOException {
+            while (this.offset < this.fileLength) {
+                if (this.window == null || this.offset >= this.windowOffset + this.window.limit()) {
+                    this.map(this.offset);
+                }
+
+                final int start = (int) (this.offset - this.windowOffset);
+                final int limit = this.window.limit();
+                int end = start;
+                while (end < limit && this.window.get(end) != '\n') {
+                    end++;
+                }
+
+                if (end == limit && this.windowOffset + limit < this.fileLength) {
+                    if (start == 0) {
+                        throw new IOException("Line at offset " + this.offset + " is longer than " + this.windowSize + " bytes.");
+                    }
+                    /** the line continues past the window; map the next one from the line's start **/
+                    this.map(this.offset);
+                    continue;
+                }
+
+                this.lineOffset = this.offset;
+                this.offset = this.windowOffset + Math.min(end + 1, limit);
+
+                final int length = end > start && this.window.get(end - 1) == '\r' ? end - 1 - start : end - start;
+                final byte[] line = new byte[length];
+                this.window.position(start);
+                this.window.get(line);
+                return new String(line, StandardCharsets.UTF_8);
+            }
+            return null;
+        }
+
+        private void map(final long offset) throws IOException {
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(this.windowSize, this.fileLength - offset));
+            this.windowOffset = offset;
+        }
+
+        long getLineOffset() {
+            return this.lineOffset;
+        }
+
+        /**
+         * @return the offset of the next line
+         */
+        long getOffset() {
+            return this.offset;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.linkedkeeper.apns.client;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms of one connection, one per {@link LatencyStage}, in microseconds with two
+ * significant digits. The connection's event loop records into wait-free recorders; any thread
+ * may take a {@link #snapshot()} at any time without stalling it.
+ */
+public class ConnectionLatencyHistograms {
+
+    /** longer latencies are recorded as this value **/
+    static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private static final LatencyStage[] STAGES = LatencyStage.values();
+
+    private final SingleWriterRecorder[] recorders = new SingleWriterRecorder[STAGES.length];
+
+    /** reader side, guarded by this **/
+    private final Histogram[] intervalHistograms = new Histogram[STAGES.length];
+    private final Histogram[] cumulativeHistograms = new Histogram[STAGES.length];
+
+    ConnectionLatencyHistograms() {
+        for (int i = 0; i < STAGES.length; i++) {
+            this.recorders[i] = new SingleWriterRecorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+            this.cumulativeHistograms[i] = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        }
+    }
+
+    /**
+     * Records one latency; must be called from the connection's event loop only.
+     */
+    void record(final LatencyStage stage, final long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        this.recorders[stage.ordinal()].recordValue(Math.max(0, Math.min(micros, HIGHEST_TRACKABLE_MICROS)));
+    }
+
+    /**
+     * Returns every latency recorded on this connection so far.
+     */
+    public synchronized LatencySnapshot snapshot() {
+        final Histogram[] histograms = new Histogram[STAGES.length];
+
+        for (int i = 0; i < STAGES.length; i++) {
+            this.intervalHistograms[i] = this.recorders[i].getIntervalHistogram(this.intervalHistograms[i]);
+            this.cumulativeHistograms[i].add(this.intervalHistograms[i]);
+            histograms[i] = this.cumulativeHistograms[i].copy();
+        }
+        return new LatencySnapshot(histograms);
+    }
+}
@@ -0,0 +1,203 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.RejectionReason;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts every event in {@link AtomicLong}s, so the event loops of a pool can share one
+ * instance. Read the counters from any thread, e.g. from a scheduled exporter; each getter is
+ * a point-in-time value, and the means are read from two counters one after the other.
+ */
+public class CountingApnsClientMetricsListener implements ApnsClientMetricsListener {
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /** filled once here and only read afterwards **/
+    private final Map<RejectionReason, AtomicLong> rejectedByReason = new EnumMap<>(RejectionReason.class);
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedNotifications = new AtomicLong();
+    private final AtomicLong flushedPayloadBytes = new AtomicLong();
+
+    private final AtomicLong connectionsAdded = new AtomicLong();
+    private final AtomicLong connectionsRemoved = new AtomicLong();
+    private final AtomicLong connectionFailures = new AtomicLong();
+
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong pingRoundTripNanos = new AtomicLong();
+
+    public CountingApnsClientMetricsListener() {
+        for (final RejectionReason reason : RejectionReason.values()) {
+            this.rejectedByReason.put(reason, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void handleNotificationWritten() {
+        this.written.incrementAndGet();
+    }
+
+    @Override
+    public void handleWriteFailure() {
+        this.writeFailures.incrementAndGet();
+    }
+
+    @Override
+    public void handleNotificationAccepted() {
+        this.accepted.incrementAndGet();
+    }
+
+    @Override
+    public void handleNotificationRejected(final RejectionReason reason) {
+        this.rejected.incrementAndGet();
+        this.rejectedByReason.get(reason == null ? RejectionReason.UNKNOWN : reason).incrementAndGet();
+    }
+
+    @Override
+    public void handleNotificationFailed() {
+        this.failed.incrementAndGet();
+    }
+
+    @Override
+    public void handleNotificationReplayed() {
+        this.replayed.incrementAndGet();
+    }
+
+    @Override
+    public void handleNotificationRetried(final RejectionReason reason) {
+        this.retried.incrementAndGet();
+    }
+
+    @Override
+    public void handleNotificationDropped() {
+        this.dropped.incrementAndGet();
+    }
+
+    @Override
+    public void handleNotificationSkipped(final RejectionReason reason) {
+        this.skipped.incrementAndGet();
+    }
+
+    @Override
+    public void handleFlush(final int notifications, final int payloadBytes) {
+        this.flushes.incrementAndGet();
+        this.flushedNotifications.addAndGet(notifications);
+        this.flushedPayloadBytes.addAndGet(payloadBytes);
+    }
+
+    @Override
+    public void handleConnectionAdded() {
+        this.connectionsAdded.incrementAndGet();
+    }
+
+    @Override
+    public void handleConnectionRemoved() {
+        this.connectionsRemoved.incrementAndGet();
+    }
+
+    @Override
+    public void handleConnectionFailed() {
+        this.connectionFailures.incrementAndGet();
+    }
+
+    @Override
+    public void handlePingRoundTrip(final long roundTripNanos) {
+        this.pings.incrementAndGet();
+        this.pingRoundTripNanos.addAndGet(roundTripNanos);
+    }
+
+    public long getWrittenNotifications() {
+        return this.written.get();
+    }
+
+    public long getWriteFailures() {
+        return this.writeFailures.get();
+    }
+
+    public long getAcceptedNotifications() {
+        return this.accepted.get();
+    }
+
+    public long getRejectedNotifications() {
+        return this.rejected.get();
+    }
+
+    public long getRejectedNotifications(final RejectionReason reason) {
+        return this.rejectedByReason.get(reason).get();
+    }
+
+    public long getFailedNotifications() {
+        return this.failed.get();
+    }
+
+    public long getReplayedNotifications() {
+        return this.replayed.get();
+    }
+
+    public long getRetriedNotifications() {
+        return this.retried.get();
+    }
+
+    public long getDroppedNotifications() {
+        return this.dropped.get();
+    }
+
+    public long getSkippedNotifications() {
+        return this.skipped.get();
+    }
+
+    /**
+     * Returns the notifications written and not yet answered. The counters are read one after
+     * the other, so under load the result is approximate.
+     */
+    public long getInFlightNotifications() {
+        return this.written.get() - this.writeFailures.get() - this.accepted.get()
+                - this.rejected.get() - this.failed.get() - this.replayed.get() - this.retried.get();
+    }
+
+    public long getFlushes() {
+        return this.flushes.get();
+    }
+
+    public double getMeanFlushNotifications() {
+        final long flushes = this.flushes.get();
+        return flushes == 0 ? 0 : (double) this.flushedNotifications.get() / flushes;
+    }
+
+    public double getMeanFlushPayloadBytes() {
+        final long flushes = this.flushes.get();
+        return flushes == 0 ? 0 : (double) this.flushedPayloadBytes.get() / flushes;
+    }
+
+    public long getConnectionsAdded() {
+        return this.connectionsAdded.get();
+    }
+
+    public long getConnectionsRemoved() {
+        return this.connectionsRemoved.get();
+    }
+
+    public long getConnectionFailures() {
+        return this.connectionFailures.get();
+    }
+
+    public long getPings() {
+        return this.pings.get();
+    }
+
+    public long getMeanPingRoundTripNanos() {
+        final long pings = this.pings.get();
+        return pings == 0 ? 0 : this.pingRoundTripNanos.get() / pings;
+    }
+}
@@ -0,0 +1,157 @@
+package com.linkedkeeper.apns.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces notifications per device token, so a fan-out that hits one device too often is held
+ * back locally instead of spending streams on {@code TooManyRequests} rejections:
+ * <pre>
+ * client.setDeviceTokenRateLimiter(new DeviceTokenRateLimiter(10, 1, TimeUnit.MINUTES));
+ * </pre>
+ * Each token gets a bucket of {@code permits} notifications that refills evenly over
+ * {@code period}. A notification that finds its bucket empty is delayed until the bucket
+ * refills, if that is within {@code maxDelay}, or fails at once with a
+ * {@link com.linkedkeeper.apns.exceptions.RateLimitExceededException}.
+ * <p/>
+ * The bucket is kept as a single {@code long}, the time at which it will be full again (the
+ * generic cell rate algorithm), next to a 64-bit hash of the token, in fixed-size open
+ * addressing tables. A bucket that is full again is as good as absent, so its slot is reused
+ * without any sweep; when all slots a token may take are busy, the one that refills first is
+ * forgotten early. Memory stays at 16 bytes per slot whatever the number of tokens.
+ * Thread-safe; one limiter may serve every client of a pool.
+ */
+public class DeviceTokenRateLimiter {
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /** a power of two, so concurrent senders rarely wait on the same lock **/
+    private static final int SEGMENTS = 16;
+    /** slots a token may take, starting at its hash **/
+    private static final int MAX_PROBES = 8;
+
+    /** nanoseconds between two notifications once a bucket is empty **/
+    private final long emissionIntervalNanos;
+    /** how far ahead of now a bucket's full time may be while it still has a permit **/
+    private final long burstToleranceNanos;
+    private final long maxDelayNanos;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    /** times are kept relative to this, so they are positive and 0 marks an empty slot **/
+    private final long originNanos = System.nanoTime() - 1;
+
+    private static final class Segment {
+        final long[] tokenHashes;
+        /** when each bucket is full again, in nanoseconds after originNanos **/
+        final long[] fullNanos;
+        final int mask;
+
+        Segment(final int slots) {
+            this.tokenHashes = new long[slots];
+            this.fullNanos = new long[slots];
+            this.mask = slots - 1;
+        }
+    }
+
+    /**
+     * Allows {@code permits} notifications per token and period, up to {@code permits} at once,
+     * failing any over the limit; tracks up to 65536 tokens.
+     */
+    public DeviceTokenRateLimiter(final int permits, final long period, final TimeUnit unit) {
+        this(permits, period, 0, unit, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param maxDelay how long a notification over the limit may wait for its bucket to refill
+     *                 before it fails instead; 0 fails it at once
+     * @param capacity the number of tokens tracked at the same time, rounded up to a power of two
+     */
+    public DeviceTokenRateLimiter(final int permits, final long period, final long maxDelay, final TimeUnit unit, final int capacity) {
+        if (permits < 1 || period < 1) {
+            throw new IllegalArgumentException("Rate must allow at least one notification in a positive period.");
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("Maximum delay must not be negative.");
+        }
+        if (capacity < SEGMENTS * MAX_PROBES) {
+            throw new IllegalArgumentException("Capacity must be at least " + SEGMENTS * MAX_PROBES + " tokens.");
+        }
+        this.emissionIntervalNanos = Math.max(1, unit.toNanos(period) / permits);
+        this.burstToleranceNanos = this.emissionIntervalNanos * (permits - 1);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+
+        final int slots = Integer.highestOneBit(capacity / SEGMENTS - 1) << 1;
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(slots);
+        }
+    }
+
+    /**
+     * Takes a permit from the token's bucket, or reserves the next one if the caller may wait
+     * for it.
+     *
+     * @return 0 to send now, the nanoseconds to wait before sending, or -1 if the notification
+     * is over the limit and must not be sent
+     */
+    long acquire(final String token) {
+        final long hash = hash(token);
+        final Segment segment = this.segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+        final long now = System.nanoTime() - this.originNanos;
+
+        synchronized (segment) {
+            final int slot = findSlot(segment, hash, now);
+            final long fullNanos = Math.max(segment.fullNanos[slot], now);
+            final long waitNanos = fullNanos - now - this.burstToleranceNanos;
+
+            if (waitNanos > this.maxDelayNanos) {
+                return -1;
+            }
+            segment.tokenHashes[slot] = hash;
+            segment.fullNanos[slot] = fullNanos + this.emissionIntervalNanos;
+            return Math.max(waitNanos, 0);
+        }
+    }
+
+    /**
+     * Returns the token's slot, or else the first slot whose bucket is full again, or else the
+     * one that refills first, whose bucket starts over.
+     */
+    private static int findSlot(final Segment segment, final long hash, final long now) {
+        int reusableSlot = -1;
+        int earliestSlot = -1;
+
+        for (int i = 0, slot = (int) hash & segment.mask; i < MAX_PROBES; i++, slot = (slot + 1) & segment.mask) {
+            if (segment.tokenHashes[slot] == hash) {
+                return slot;
+            }
+            if (segment.fullNanos[slot] <= now) {
+                if (reusableSlot < 0) {
+                    reusableSlot = slot;
+                }
+            } else if (earliestSlot < 0 || segment.fullNanos[slot] < segment.fullNanos[earliestSlot]) {
+                earliestSlot = slot;
+            }
+        }
+
+        final int slot = reusableSlot >= 0 ? reusableSlot : earliestSlot;
+        segment.fullNanos[slot] = 0;
+        return slot;
+    }
+
+    /**
+     * FNV-1a over the token's chars, finished with the MurmurHash3 mix so both ends of the hash
+     * are usable; collisions between two tokens are negligible at 64 bits.
+     */
+    static long hash(final String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,46 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.RejectionReason;
+
+import java.util.Date;
+
+/**
+ * A device token APNs reported as no longer valid, as handed to an
+ * {@link InvalidDeviceTokenSink}.
+ */
+public final class InvalidDeviceToken {
+
+    private final String token;
+    private final RejectionReason reason;
+    private final Date invalidationTimestamp;
+
+    InvalidDeviceToken(final String token, final RejectionReason reason, final Date invalidationTimestamp) {
+        this.token = token;
+        this.reason = reason;
+        this.invalidationTimestamp = invalidationTimestamp;
+    }
+
+    public String getToken() {
+        return this.token;
+    }
+
+    /**
+     * @return {@link RejectionReason#UNREGISTERED} or {@link RejectionReason#BAD_DEVICE_TOKEN}
+     */
+    public RejectionReason getReason() {
+        return this.reason;
+    }
+
+    /**
+     * @return when APNs last saw the token valid, or when the rejection arrived if APNs didn't
+     * say
+     */
+    public Date getInvalidationTimestamp() {
+        return this.invalidationTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "InvalidDeviceToken [token=" + this.token + ", reason=" + this.reason + ", invalidationTimestamp=" + this.invalidationTimestamp + "]";
+    }
+}
@@ -0,0 +1,259 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.RejectionReason;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the device tokens APNs rejected as {@code Unregistered} or {@code BadDeviceToken},
+ * so a client completes later notifications to them locally, with the same rejection, instead
+ * of spending a stream and a round trip on each:
+ * <pre>
+ * InvalidDeviceTokenCache cache = new InvalidDeviceTokenCache();
+ * cache.setSink(tokenPruner, 500, 5, TimeUnit.SECONDS);
+ * pool.setInvalidDeviceTokenCache(cache);
+ * </pre>
+ * Each token takes 16 bytes, a 64-bit hash and its rejection packed with the invalidation time,
+ * in fixed-size open addressing tables; once the slots a token may take are all used, the
+ * entry invalidated longest ago makes room. A device that registers the same token again after
+ * it was invalidated must be cleared with {@link #handleTokenRegistered(String, Date)}.
+ * <p/>
+ * Newly learned tokens are handed to the sink in batches on the cache's executor, once a batch
+ * is full or the oldest token waited for the given delay. Thread-safe; one cache may serve
+ * every client of a pool.
+ */
+public class InvalidDeviceTokenCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(InvalidDeviceTokenCache.class);
+
+    private static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    private static final RejectionReason[] REASONS = RejectionReason.values();
+
+    private static final int SEGMENTS = 16;
+    private static final int MAX_PROBES = 8;
+
+    /** a sink that falls this many batches behind loses the newest tokens **/
+    private static final int MAX_UNREPORTED_BATCHES = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final EventExecutor executor;
+
+    private volatile InvalidDeviceTokenSink sink;
+    private int batchSize;
+    private long maxDelayNanos;
+
+    /** tokens learned but not handed to the sink yet, guarded by itself **/
+    private final ArrayList<InvalidDeviceToken> unreportedTokens = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            InvalidDeviceTokenCache.this.flush();
+        }
+    };
+
+    private static final class Segment {
+        final long[] tokenHashes;
+        /** the invalidation time in milliseconds shifted left by 8, or'ed with the reason's ordinal; 0 when empty **/
+        final long[] rejections;
+        final int mask;
+
+        Segment(final int slots) {
+            this.tokenHashes = new long[slots];
+            this.rejections = new long[slots];
+            this.mask = slots - 1;
+        }
+    }
+
+    /**
+     * Tracks up to 262144 tokens and hands them to the sink on the global event executor.
+     */
+    public InvalidDeviceTokenCache() {
+        this(DEFAULT_CAPACITY, GlobalEventExecutor.INSTANCE);
+    }
+
+    /**
+     * @param capacity the number of tokens tracked, rounded up to a power of two
+     * @param executor where the sink is called
+     */
+    public InvalidDeviceTokenCache(final int capacity, final EventExecutor executor) {
+        if (capacity < SEGMENTS * MAX_PROBES) {
+            throw new IllegalArgumentException("Capacity must be at least " + SEGMENTS * MAX_PROBES + " tokens.");
+        }
+        this.executor = executor;
+
+        final int slots = Integer.highestOneBit(capacity / SEGMENTS - 1) << 1;
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(slots);
+        }
+    }
+
+    /**
+     * Hands newly learned tokens to the given sink, or to none with {@code null}.
+     *
+     * @param batchSize the tokens handed over at once
+     * @param maxDelay  how long a token waits at most for its batch to fill
+     */
+    public void setSink(final InvalidDeviceTokenSink sink, final int batchSize, final long maxDelay, final TimeUnit unit) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least one token.");
+        }
+        synchronized (this.unreportedTokens) {
+            this.batchSize = batchSize;
+            this.maxDelayNanos = unit.toNanos(maxDelay);
+            this.sink = sink;
+        }
+    }
+
+    public boolean contains(final String token) {
+        return this.find(token) != 0;
+    }
+
+    /**
+     * Forgets the token if it was invalidated before the given registration time, so
+     * notifications to it are sent again.
+     *
+     * @return {@code true} if the token was forgotten
+     */
+    public boolean handleTokenRegistered(final String token, final Date registrationTime) {
+        final long hash = DeviceTokenRateLimiter.hash(token);
+        final Segment segment = this.segmentFor(hash);
+
+        synchronized (segment) {
+            final int slot = findSlot(segment, hash);
+            if (slot >= 0 && invalidationMillis(segment.rejections[slot]) < registrationTime.getTime()) {
+                segment.tokenHashes[slot] = 0;
+                segment.rejections[slot] = 0;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the token's rejection as packed in the tables, or 0 if the token isn't known
+     */
+    long find(final String token) {
+        final long hash = DeviceTokenRateLimiter.hash(token);
+        final Segment segment = this.segmentFor(hash);
+
+        synchronized (segment) {
+            final int slot = findSlot(segment, hash);
+            return slot >= 0 ? segment.rejections[slot] : 0;
+        }
+    }
+
+    /**
+     * Learns from a rejection; anything but {@code Unregistered} and {@code BadDeviceToken} is
+     * ignored.
+     *
+     * @param invalidationTimestamp when APNs last saw the token valid, or {@code null}
+     */
+    void handleRejection(final String token, final RejectionReason reason, final Date invalidationTimestamp) {
+        if (reason != RejectionReason.UNREGISTERED && reason != RejectionReason.BAD_DEVICE_TOKEN) {
+            return;
+        }
+
+        final long invalidationMillis = invalidationTimestamp != null ? invalidationTimestamp.getTime() : System.currentTimeMillis();
+        final long rejection = invalidationMillis << 8 | reason.ordinal();
+        final long hash = DeviceTokenRateLimiter.hash(token);
+        final Segment segment = this.segmentFor(hash);
+        final boolean learned;
+
+        synchronized (segment) {
+            int slot = findSlot(segment, hash);
+            learned = slot < 0;
+
+            if (learned) {
+                slot = (int) hash & segment.mask;
+                for (int i = 1, probe = (slot + 1) & segment.mask; i < MAX_PROBES && segment.rejections[slot] != 0; i++, probe = (probe + 1) & segment.mask) {
+                    if (segment.rejections[probe] == 0 || segment.rejections[probe] < segment.rejections[slot]) {
+                        slot = probe;
+                    }
+                }
+                segment.tokenHashes[slot] = hash;
+            }
+            segment.rejections[slot] = rejection;
+        }
+
+        if (learned && this.sink != null) {
+            this.report(new InvalidDeviceToken(token, reason, new Date(invalidationMillis)));
+        }
+    }
+
+    private void report(final InvalidDeviceToken invalidDeviceToken) {
+        synchronized (this.unreportedTokens) {
+            if (this.unreportedTokens.size() >= this.batchSize * MAX_UNREPORTED_BATCHES) {
+                logger.warn("Invalid device token sink is falling behind, not reporting {}.", invalidDeviceToken.getToken());
+                return;
+            }
+            this.unreportedTokens.add(invalidDeviceToken);
+
+            if (this.unreportedTokens.size() >= this.batchSize) {
+                this.executor.execute(this.flushTask);
+            } else if (!this.flushScheduled) {
+                this.flushScheduled = true;
+                this.executor.schedule(this.flushTask, this.maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Hands every token learned so far to the sink on the calling thread, e.g. before shutting
+     * down.
+     */
+    public void flush() {
+        final InvalidDeviceTokenSink sink = this.sink;
+
+        while (true) {
+            final List<InvalidDeviceToken> batch;
+            synchronized (this.unreportedTokens) {
+                if (this.unreportedTokens.isEmpty()) {
+                    this.flushScheduled = false;
+                    return;
+                }
+                final int batchSize = Math.min(this.batchSize, this.unreportedTokens.size());
+                batch = new ArrayList<>(this.unreportedTokens.subList(0, batchSize));
+                this.unreportedTokens.subList(0, batchSize).clear();
+            }
+
+            if (sink != null) {
+                try {
+                    sink.handleInvalidDeviceTokens(batch);
+                } catch (final Exception e) {
+                    logger.error("Invalid device token sink failed on a batch of {} tokens.", batch.size(), e);
+                }
+            }
+        }
+    }
+
+    private Segment segmentFor(final long hash) {
+        return this.segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static int findSlot(final Segment segment, final long hash) {
+        for (int i = 0, slot = (int) hash & segment.mask; i < MAX_PROBES; i++, slot = (slot + 1) & segment.mask) {
+            if (segment.tokenHashes[slot] == hash && segment.rejections[slot] != 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    static RejectionReason reason(final long rejection) {
+        return REASONS[(int) (rejection & 0xff)];
+    }
+
+    static long invalidationMillis(final long rejection) {
+        return rejection >>> 8;
+    }
+}
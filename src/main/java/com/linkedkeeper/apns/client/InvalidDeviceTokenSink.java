@@ -0,0 +1,17 @@
+package com.linkedkeeper.apns.client;
+
+import java.util.List;
+
+/**
+ * Receives the device tokens an {@link InvalidDeviceTokenCache} learned about, in batches, e.g.
+ * to delete them from the application's database.
+ * @see InvalidDeviceTokenCache#setSink(InvalidDeviceTokenSink, int, long, java.util.concurrent.TimeUnit)
+ */
+public interface InvalidDeviceTokenSink {
+
+    /**
+     * Called on the cache's executor, or on the thread calling
+     * {@link InvalidDeviceTokenCache#flush()}. The list is the sink's to keep.
+     */
+    void handleInvalidDeviceTokens(List<InvalidDeviceToken> invalidDeviceTokens);
+}
@@ -0,0 +1,59 @@
+package com.linkedkeeper.apns.client;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * A point-in-time copy of a connection's latency histograms; values are in microseconds.
+ * @see ConnectionLatencyHistograms#snapshot()
+ */
+public final class LatencySnapshot {
+
+    private static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Histogram[] histograms;
+
+    LatencySnapshot(final Histogram[] histograms) {
+        this.histograms = histograms;
+    }
+
+    public long getCount(final LatencyStage stage) {
+        return this.histograms[stage.ordinal()].getTotalCount();
+    }
+
+    public long getValueAtPercentile(final LatencyStage stage, final double percentile) {
+        return this.histograms[stage.ordinal()].getValueAtPercentile(percentile);
+    }
+
+    public long getMaxValue(final LatencyStage stage) {
+        return this.histograms[stage.ordinal()].getMaxValue();
+    }
+
+    public double getMean(final LatencyStage stage) {
+        return this.histograms[stage.ordinal()].getMean();
+    }
+
+    /**
+     * @return a copy of the stage's histogram, e.g. to merge the snapshots of several
+     * connections
+     */
+    public Histogram getHistogram(final LatencyStage stage) {
+        return this.histograms[stage.ordinal()].copy();
+    }
+
+    /**
+     * One line per stage with its count and p50, p90, p99, p99.9 and max in microseconds.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (final LatencyStage stage : LatencyStage.values()) {
+            builder.append(String.format("%-6s count=%d", stage, this.getCount(stage)));
+            for (final double percentile : REPORTED_PERCENTILES) {
+                builder.append(String.format(" p%s=%dus", percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile),
+                        this.getValueAtPercentile(stage, percentile)));
+            }
+            builder.append(String.format(" max=%dus%n", this.getMaxValue(stage)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package com.linkedkeeper.apns.client;
+
+/**
+ * The stages of one notification's latency, each measured with {@link System#nanoTime()}.
+ */
+public enum LatencyStage {
+
+    /**
+     * From {@code sendNotification} until the event loop starts writing the stream, including
+     * the hand-off to the event loop and any wait in the pending queue.
+     */
+    QUEUE,
+
+    /**
+     * Encoding and writing the HEADERS and DATA frames.
+     */
+    WRITE,
+
+    /**
+     * From the end of the write until the flush that sends it to the socket.
+     */
+    FLUSH,
+
+    /**
+     * From the flush until the response is read: the network plus APNs.
+     */
+    SERVER,
+
+    /**
+     * From {@code sendNotification} until the response is read.
+     */
+    TOTAL
+}
@@ -0,0 +1,70 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.RejectionReason;
+
+/**
+ * Ignores every event; the listener of a client that was given none.
+ */
+public final class NoopApnsClientMetricsListener implements ApnsClientMetricsListener {
+
+    public static final NoopApnsClientMetricsListener INSTANCE = new NoopApnsClientMetricsListener();
+
+    private NoopApnsClientMetricsListener() {
+    }
+
+    @Override
+    public void handleNotificationWritten() {
+    }
+
+    @Override
+    public void handleWriteFailure() {
+    }
+
+    @Override
+    public void handleNotificationAccepted() {
+    }
+
+    @Override
+    public void handleNotificationRejected(final RejectionReason reason) {
+    }
+
+    @Override
+    public void handleNotificationFailed() {
+    }
+
+    @Override
+    public void handleNotificationReplayed() {
+    }
+
+    @Override
+    public void handleNotificationRetried(final RejectionReason reason) {
+    }
+
+    @Override
+    public void handleNotificationDropped() {
+    }
+
+    @Override
+    public void handleNotificationSkipped(final RejectionReason reason) {
+    }
+
+    @Override
+    public void handleFlush(final int notifications, final int payloadBytes) {
+    }
+
+    @Override
+    public void handleConnectionAdded() {
+    }
+
+    @Override
+    public void handleConnectionRemoved() {
+    }
+
+    @Override
+    public void handleConnectionFailed() {
+    }
+
+    @Override
+    public void handlePingRoundTrip(final long roundTripNanos) {
+    }
+}
@@ -0,0 +1,514 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsEncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2EncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A durable outbox for a client or pool: every notification is appended to a memory-mapped
+ * journal before it is written to a connection, and marked done once APNs answered it. After a
+ * crash or a deploy, the notifications that were never answered and haven't expired are
+ * recovered when the journal is opened again:
+ * <pre>
+ * OutboxJournal journal = new OutboxJournal(new File("/var/lib/apns/outbox"));
+ * pool.setOutboxJournal(journal);
+ * pool.connectProduction().await();
+ * pool.sendNotifications(journal.getRecoveredNotifications());
+ * </pre>
+ * The journal is a directory of fixed-size segment files, appended to in turn. An entry holds
+ * the whole notification and a CRC, so a torn entry ends a segment instead of being replayed;
+ * marking it done rewrites a single byte in place. A segment is deleted once every entry in it
+ * is done and a newer segment took over.
+ * <p/>
+ * Appends and done markers only write into the mapped files, which survive the process dying;
+ * every segment written to is forced to disk by a group commit every {@code commitInterval}.
+ * A machine crash therefore loses at most the entries appended in the last interval, and
+ * replays at most the notifications answered in it: delivery is at least once, with duplicates
+ * bounded by the commit interval. A notification that fails before its client is
+ * disconnected, e.g. with a full pending queue, is done as well, since its sender learned of
+ * the failure; one cut off by the client's disconnection stays in the journal. Close the
+ * journal after disconnecting.
+ */
+public class OutboxJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxJournal.class);
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+
+    private static final byte ENCODED_PAYLOAD = 1;
+
+    /** length, state and CRC ahead of the checksummed body **/
+    private static final int ENTRY_HEADER_SIZE = 9;
+    /** flags, priority, expiration and the three lengths **/
+    private static final int ENTRY_FIXED_BODY_SIZE = 18;
+    /** the largest entry: a 4 KB payload with a generous token and topic **/
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final int segmentSize;
+
+    /** segments with entries that are not done yet, or the current one, by sequence number **/
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private Segment currentSegment;
+    private byte[] scratch = new byte[1024];
+    private final CRC32 crc = new CRC32();
+
+    /** recovered notifications, until they are sent again and take over their old entries **/
+    private final Map<ApnsPushNotification, Long> recoveredEntryIds = new IdentityHashMap<>();
+    private final List<ApnsPushNotification> recoveredNotifications;
+
+    /** segments with entries or done markers written since the last commit **/
+    private final Set<Segment> uncommittedSegments = new HashSet<>();
+    private boolean closed = false;
+    private final ScheduledFuture<?> commitFuture;
+
+    private static final class Segment {
+        final int sequence;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        /** entries not done yet **/
+        int pendingEntries;
+        /** set once the file is closed, under the segment's own lock, so a commit never forces it afterwards **/
+        boolean released;
+
+        Segment(final int sequence, final File file, final RandomAccessFile randomAccessFile, final MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Opens or creates a journal with 64 MiB segments, committed every 10 ms on the global event
+     * executor.
+     */
+    public OutboxJournal(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS, GlobalEventExecutor.INSTANCE);
+    }
+
+    /**
+     * @param segmentSize    the size of each segment file, at least 64 KiB
+     * @param commitInterval how often appended entries are forced to disk
+     * @param executor       where the commits run
+     */
+    public OutboxJournal(final File directory, final int segmentSize, final long commitInterval, final TimeUnit unit, final EventExecutor executor) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least " + MIN_SEGMENT_SIZE + " bytes.");
+        }
+        if (commitInterval < 1) {
+            throw new IllegalArgumentException("Commit interval must be positive.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        this.recoveredNotifications = Collections.unmodifiableList(this.recover());
+
+        this.commitFuture = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                OutboxJournal.this.commit();
+            }
+        }, commitInterval, commitInterval, unit);
+    }
+
+    /**
+     * Returns the notifications that were journaled but never answered before the journal was
+     * last closed, oldest first, without those that expired meanwhile. Each keeps its entry until
+     * it is sent again through a client using this journal and answered.
+     */
+    public List<ApnsPushNotification> getRecoveredNotifications() {
+        return this.recoveredNotifications;
+    }
+
+    /**
+     * Reads every segment left in the directory, marks expired entries done, and deletes the
+     * segments that have nothing left to replay.
+     */
+    private List<ApnsPushNotification> recover() throws IOException {
+        final File[] files = this.directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        final List<ApnsPushNotification> recovered = new ArrayList<>();
+        int lastSequence = 0;
+
+        /** zero-padded names sort in sequence order **/
+        Arrays.sort(files);
+        for (final File file : files) {
+            final int sequence = Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+            lastSequence = Math.max(lastSequence, sequence);
+
+            final Segment segment = openSegment(sequence, file, (int) file.length());
+            final long now = System.currentTimeMillis();
+            final int entries = recovered.size();
+
+            for (int offset = 0; offset + ENTRY_HEADER_SIZE <= segment.buffer.capacity(); ) {
+                final int length = segment.buffer.getInt(offset);
+                if (length < ENTRY_HEADER_SIZE - 4 + ENTRY_FIXED_BODY_SIZE || offset + 4 + length > segment.buffer.capacity()) {
+                    /** the end of what was appended, or an entry torn by a crash **/
+                    break;
+                }
+                final ApnsPushNotification notification = this.readEntry(segment.buffer, offset, length);
+                if (notification == null) {
+                    logger.warn("Outbox journal segment {} is damaged at offset {}; ignoring the rest of it.", file, offset);
+                    break;
+                }
+                if (segment.buffer.get(offset + 4) == PENDING) {
+                    final Date expiration = notification.getExpiration();
+                    if (expiration != null && expiration.getTime() <= now) {
+                        segment.buffer.put(offset + 4, DONE);
+                    } else {
+                        segment.pendingEntries++;
+                        recovered.add(notification);
+                        this.recoveredEntryIds.put(notification, entryId(sequence, offset));
+                    }
+                }
+                offset += 4 + length;
+            }
+
+            if (segment.pendingEntries > 0) {
+                logger.info("Recovered {} notifications from outbox journal segment {}.", recovered.size() - entries, file);
+                this.segments.put(sequence, segment);
+            } else {
+                this.deleteSegment(segment);
+            }
+        }
+
+        this.currentSegment = this.newSegment(lastSequence + 1);
+        return recovered;
+    }
+
+    /**
+     * @return the notification of the entry at the given offset, or {@code null} if its CRC
+     * doesn't match
+     */
+    private ApnsPushNotification readEntry(final MappedByteBuffer buffer, final int offset, final int length) {
+        final byte[] body = new byte[length - 5];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset + ENTRY_HEADER_SIZE);
+        view.get(body);
+
+        this.crc.reset();
+        this.crc.update(body, 0, body.length);
+        if ((int) this.crc.getValue() != buffer.getInt(offset + 5)) {
+            return null;
+        }
+
+        final ByteBuffer in = ByteBuffer.wrap(body);
+        final byte flags = in.get();
+        final byte priorityCode = in.get();
+        final long expirationMillis = in.getLong();
+        final String token = readString(in, in.getShort());
+        final String topic = readString(in, in.getShort());
+        final byte[] payload = new byte[in.getInt()];
+        in.get(payload);
+
+        final Date expiration = expirationMillis != 0 ? new Date(expirationMillis) : null;
+        final DeliveryPriority priority = priorityCode != 0 ? DeliveryPriority.getFromCode(priorityCode) : null;
+        if ((flags & ENCODED_PAYLOAD) != 0) {
+            return new ApnsHttp2EncodedPushNotification(token, topic, payload, expiration, priority);
+        }
+        return new ApnsHttp2PushNotification(token, topic, new String(payload, StandardCharsets.UTF_8), expiration, priority);
+    }
+
+    private static String readString(final ByteBuffer in, final short length) {
+        if (length < 0) {
+            return null;
+        }
+        final String string = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+
+    /**
+     * Journals a notification before it is written to a connection. A recovered notification
+     * takes over its existing entry instead.
+     *
+     * @return the entry's id, or 0 if the notification could not be journaled and goes out
+     * without an entry
+     */
+    long append(final ApnsPushNotification notification) {
+        final byte[] token = encode(notification.getToken());
+        final byte[] topic = encode(notification.getTopic());
+        final ByteBuf payloadBuffer = notification instanceof ApnsEncodedPushNotification
+                ? ((ApnsEncodedPushNotification) notification).getPayloadBuffer() : null;
+        final byte[] payload = payloadBuffer == null ? encode(notification.getPayload() != null ? notification.getPayload() : "") : null;
+        final int payloadLength = payloadBuffer != null ? payloadBuffer.readableBytes() : payload.length;
+        final int length = ENTRY_HEADER_SIZE + ENTRY_FIXED_BODY_SIZE
+                + (token != null ? token.length : 0) + (topic != null ? topic.length : 0) + payloadLength;
+
+        synchronized (this) {
+            if (!this.recoveredEntryIds.isEmpty()) {
+                final Long entryId = this.recoveredEntryIds.remove(notification);
+                if (entryId != null) {
+                    return entryId;
+                }
+            }
+            if (this.closed) {
+                return 0;
+            }
+            if (length > this.segmentSize) {
+                logger.error("Notification of {} bytes is larger than an outbox journal segment; sending it without an entry.", length);
+                return 0;
+            }
+
+            if (this.currentSegment.buffer.position() + length > this.segmentSize) {
+                try {
+                    this.rollOver();
+                } catch (final IOException e) {
+                    logger.error("Failed to open a new outbox journal segment; sending without an entry.", e);
+                    return 0;
+                }
+            }
+
+            if (this.scratch.length < length) {
+                this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+            }
+            final byte[] entry = this.scratch;
+            int index = ENTRY_HEADER_SIZE;
+            entry[index++] = payloadBuffer != null ? ENCODED_PAYLOAD : 0;
+            entry[index++] = (byte) (notification.getPriority() != null ? notification.getPriority().getCode() : 0);
+            index = putLong(entry, index, notification.getExpiration() != null ? notification.getExpiration().getTime() : 0);
+            index = putBytes(entry, index, token);
+            index = putBytes(entry, index, topic);
+            index = putInt(entry, index, payloadLength);
+            if (payloadBuffer != null) {
+                payloadBuffer.getBytes(payloadBuffer.readerIndex(), entry, index, payloadLength);
+            } else {
+                System.arraycopy(payload, 0, entry, index, payloadLength);
+            }
+
+            this.crc.reset();
+            this.crc.update(entry, ENTRY_HEADER_SIZE, length - ENTRY_HEADER_SIZE);
+            putInt(entry, 5, (int) this.crc.getValue());
+            entry[4] = PENDING;
+
+            /** the length goes in last, so an entry cut short by a crash reads as the end **/
+            final Segment segment = this.currentSegment;
+            final int offset = segment.buffer.position();
+            segment.buffer.position(offset + 4);
+            segment.buffer.put(entry, 4, length - 4);
+            segment.buffer.putInt(offset, length - 4);
+
+            segment.pendingEntries++;
+            this.uncommittedSegments.add(segment);
+            return entryId(segment.sequence, offset);
+        }
+    }
+
+    /**
+     * Marks an entry done, and deletes its segment if that was the last entry not done in a
+     * segment no longer appended to.
+     */
+    void complete(final long entryId) {
+        if (entryId == 0) {
+            return;
+        }
+        synchronized (this) {
+            final Segment segment = this.segments.get((int) (entryId >>> 32));
+            if (segment == null) {
+                return;
+            }
+            segment.buffer.put((int) entryId + 4, DONE);
+
+            if (--segment.pendingEntries == 0 && segment != this.currentSegment) {
+                this.segments.remove(segment.sequence);
+                this.uncommittedSegments.remove(segment);
+                this.deleteSegment(segment);
+            } else {
+                /** usually an older segment than the one appended to; its marker must reach the disk too **/
+                this.uncommittedSegments.add(segment);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of journaled notifications that are not done yet.
+     */
+    int getPendingEntries() {
+        synchronized (this) {
+            int pendingEntries = 0;
+            for (final Segment segment : this.segments.values()) {
+                pendingEntries += segment.pendingEntries;
+            }
+            return pendingEntries;
+        }
+    }
+
+    /**
+     * Forces every entry appended and every entry marked done so far to disk. Runs by itself
+     * every commit interval; call it to make a burst durable at once. The forces run outside the
+     * journal's lock, each under its segment's, so appends go on meanwhile and a segment closed
+     * at the same time is skipped instead of forced.
+     */
+    public void commit() {
+        final Segment[] segments;
+        synchronized (this) {
+            if (this.uncommittedSegments.isEmpty() || this.closed) {
+                return;
+            }
+            segments = this.uncommittedSegments.toArray(new Segment[this.uncommittedSegments.size()]);
+            this.uncommittedSegments.clear();
+        }
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                if (!segment.released) {
+                    segment.buffer.force();
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits, then stops journaling; notifications sent from now on go out without an entry.
+     * Segments with entries that are not done stay for the next start to recover.
+     */
+    @Override
+    public void close() throws IOException {
+        this.commitFuture.cancel(false);
+        this.commit();
+
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            for (final Segment segment : this.segments.values()) {
+                if (segment.pendingEntries == 0) {
+                    this.deleteSegment(segment);
+                } else {
+                    /** waits for a commit still forcing this segment **/
+                    synchronized (segment) {
+                        segment.buffer.force();
+                        segment.released = true;
+                        segment.randomAccessFile.close();
+                    }
+                }
+            }
+            this.segments.clear();
+            this.uncommittedSegments.clear();
+        }
+    }
+
+    /**
+     * Forces the full segment and starts a new one; must hold the lock.
+     */
+    private void rollOver() throws IOException {
+        final Segment fullSegment = this.currentSegment;
+        synchronized (fullSegment) {
+            fullSegment.buffer.force();
+        }
+        this.uncommittedSegments.remove(fullSegment);
+
+        this.currentSegment = this.newSegment(fullSegment.sequence + 1);
+        if (fullSegment.pendingEntries == 0) {
+            this.segments.remove(fullSegment.sequence);
+            this.deleteSegment(fullSegment);
+        }
+    }
+
+    private Segment newSegment(final int sequence) throws IOException {
+        final File file = new File(this.directory, String.format(Locale.ROOT, "%s%010d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        final Segment segment = openSegment(sequence, file, this.segmentSize);
+        this.segments.put(sequence, segment);
+        return segment;
+    }
+
+    private static Segment openSegment(final int sequence, final File file, final int size) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            /** mapping past the end grows a new file, zero-filled **/
+            final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(sequence, file, randomAccessFile, buffer);
+        } catch (final IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes and deletes a segment, after a commit still forcing it.
+     */
+    private void deleteSegment(final Segment segment) {
+        synchronized (segment) {
+            segment.released = true;
+            try {
+                segment.randomAccessFile.close();
+            } catch (final IOException e) {
+                logger.warn("Failed to close outbox journal segment {}.", segment.file, e);
+            }
+            if (!segment.file.delete()) {
+                logger.warn("Failed to delete outbox journal segment {}.", segment.file);
+            }
+        }
+    }
+
+    /**
+     * The segment's sequence number in the high half, the entry's offset in the low half; never
+     * 0, since sequence numbers start at 1.
+     */
+    private static long entryId(final int sequence, final int offset) {
+        return (long) sequence << 32 | offset;
+    }
+
+    private static byte[] encode(final String string) {
+        return string != null ? string.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int putBytes(final byte[] entry, final int index, final byte[] bytes) {
+        final int length = bytes != null ? bytes.length : -1;
+        entry[index] = (byte) (length >> 8);
+        entry[index + 1] = (byte) length;
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, entry, index + 2, bytes.length);
+        }
+        return index + 2 + Math.max(length, 0);
+    }
+
+    private static int putInt(final byte[] entry, final int index, final int value) {
+        entry[index] = (byte) (value >> 24);
+        entry[index + 1] = (byte) (value >> 16);
+        entry[index + 2] = (byte) (value >> 8);
+        entry[index + 3] = (byte) value;
+        return index + 4;
+    }
+
+    private static int putLong(final byte[] entry, final int index, final long value) {
+        putInt(entry, index, (int) (value >> 32));
+        return putInt(entry, index + 4, (int) value);
+    }
+}
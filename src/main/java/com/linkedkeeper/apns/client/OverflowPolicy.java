@@ -0,0 +1,28 @@
+package com.linkedkeeper.apns.client;
+
+/**
+ * What a client does with a new notification once its pending queue is full, i.e. once as many
+ * notifications wait for a stream as the queue holds on top of those already in flight.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The sending thread waits until a response frees room, for up to 30 seconds, after which
+     * the notification fails as with {@link #FAIL_FAST}. Sends made from an event loop thread,
+     * of the client's group or any other, can't wait and fail at once.
+     */
+    BLOCK,
+
+    /**
+     * The new notification fails at once with a
+     * {@link com.linkedkeeper.apns.exceptions.PendingQueueFullException}.
+     */
+    FAIL_FAST,
+
+    /**
+     * The oldest queued notification fails with a
+     * {@link com.linkedkeeper.apns.exceptions.PendingQueueFullException} to make room for the
+     * new one.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,193 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2EncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * One payload sent to many device tokens. The payload is encoded once, into a single direct
+ * buffer, and every notification of the broadcast shares it: each DATA frame is written from a
+ * retained duplicate of that buffer, so neither memory nor encoding grows with the recipients.
+ * <pre>
+ * try (PayloadBroadcast broadcast = new PayloadBroadcast(payload, "com.example.app")) {
+ *     broadcast.sendTo(pool, firstTokens);
+ *     broadcast.sendTo(pool, moreTokens);
+ * }
+ * </pre>
+ * Each send holds a reference to the buffer until all of its notifications are answered, so the
+ * broadcast may be closed as soon as nothing more is to be sent; the buffer goes back to the
+ * allocator after the last answer. A send is held to the connections' pending queues like any
+ * other batch, so a broadcast to more tokens than they hold goes out in slices.
+ */
+public class PayloadBroadcast implements Closeable {
+
+    private final ByteBuf payload;
+    private final String topic;
+
+    private volatile Date expiration;
+    private volatile DeliveryPriority priority = DeliveryPriority.IMMEDIATE;
+
+    /** guarded by this, so no send retains the payload after close() let go of it **/
+    private boolean closed = false;
+
+    /** gives the broadcast's reference to the payload back once a send is answered **/
+    private final GenericFutureListener<Future<Void>> releasePayloadListener = new GenericFutureListener<Future<Void>>() {
+        @Override
+        public void operationComplete(final Future<Void> future) throws Exception {
+            PayloadBroadcast.this.payload.release();
+        }
+    };
+
+    /**
+     * @param topic the topic of every notification, or {@code null} for the client's default
+     */
+    public PayloadBroadcast(final String payload, final String topic) {
+        this.payload = ApnsHttp2Properties.DEFAULT_ALLOCATOR.directBuffer(ByteBufUtil.utf8MaxBytes(payload));
+        ByteBufUtil.writeUtf8(this.payload, payload);
+        this.topic = topic;
+    }
+
+    /**
+     * @param payload the UTF-8 payload, copied once into the broadcast's direct buffer
+     * @param topic the topic of every notification, or {@code null} for the client's default
+     */
+    public PayloadBroadcast(final byte[] payload, final String topic) {
+        this.payload = ApnsHttp2Properties.DEFAULT_ALLOCATOR.directBuffer(payload.length).writeBytes(payload);
+        this.topic = topic;
+    }
+
+    /**
+     * Sets the expiration of the notifications sent from now on; none by default.
+     */
+    public void setExpiration(final Date expiration) {
+        this.expiration = expiration;
+    }
+
+    /**
+     * Sets the priority of the notifications sent from now on; immediate by default.
+     */
+    public void setPriority(final DeliveryPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Sends the payload to every token, spread over the pool's connections.
+     */
+    public BatchSendResult<ApnsPushNotification> sendTo(final ApnsHttp2ClientPool<ApnsPushNotification> pool, final Collection<String> tokens) {
+        final List<ApnsPushNotification> notifications = this.newNotifications(tokens);
+        this.retainPayload();
+        final BatchSendResult<ApnsPushNotification> batchSendResult;
+        try {
+            batchSendResult = pool.sendNotifications(notifications);
+        } catch (final RuntimeException e) {
+            this.payload.release();
+            throw e;
+        }
+        return this.releaseWhenDone(batchSendResult);
+    }
+
+    /**
+     * Sends the payload to every token over the client's connection.
+     */
+    public BatchSendResult<ApnsPushNotification> sendTo(final ApnsHttp2Client<ApnsPushNotification> client, final Collection<String> tokens) {
+        final List<ApnsPushNotification> notifications = this.newNotifications(tokens);
+        this.retainPayload();
+        final BatchSendResult<ApnsPushNotification> batchSendResult;
+        try {
+            batchSendResult = client.sendNotifications(notifications);
+        } catch (final RuntimeException e) {
+            this.payload.release();
+            throw e;
+        }
+        return this.releaseWhenDone(batchSendResult);
+    }
+
+    /**
+     * Sends the payload to one token through the pool, for callers that pace a broadcast
+     * themselves.
+     */
+    public Future<ApnsPushNotificationResponse<ApnsPushNotification>> sendTo(final ApnsHttp2ClientPool<ApnsPushNotification> pool, final String token) {
+        final ApnsPushNotification notification = this.newNotification(token);
+        this.retainPayload();
+        final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture;
+        try {
+            responseFuture = pool.sendNotification(notification);
+        } catch (final RuntimeException e) {
+            this.payload.release();
+            throw e;
+        }
+        responseFuture.addListener(new GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>>() {
+            @Override
+            public void operationComplete(final Future<ApnsPushNotificationResponse<ApnsPushNotification>> future) throws Exception {
+                PayloadBroadcast.this.payload.release();
+            }
+        });
+        return responseFuture;
+    }
+
+    /**
+     * @return the number of bytes every notification of the broadcast carries
+     */
+    public int getPayloadSize() {
+        return this.payload.readableBytes();
+    }
+
+    ByteBuf getPayloadBuffer() {
+        return this.payload;
+    }
+
+    /**
+     * Gives up the broadcast's own reference to the payload; sends still in flight keep theirs.
+     * Nothing can be sent once the broadcast is closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        this.payload.release();
+    }
+
+    private List<ApnsPushNotification> newNotifications(final Collection<String> tokens) {
+        final List<ApnsPushNotification> notifications = new ArrayList<>(tokens.size());
+        for (final String token : tokens) {
+            notifications.add(this.newNotification(token));
+        }
+        return notifications;
+    }
+
+    private ApnsPushNotification newNotification(final String token) {
+        /** every notification shares the one buffer, which the handler writes from a retained duplicate **/
+        return new ApnsHttp2EncodedPushNotification(token, this.topic, this.payload, this.expiration, this.priority);
+    }
+
+    /**
+     * Takes a reference for one send. Under the same lock as {@link #close()}, which only
+     * releases its own reference after setting {@code closed}, so the count never drops to zero
+     * between the check and the retain.
+     */
+    private synchronized void retainPayload() {
+        if (this.closed) {
+            throw new IllegalStateException("The broadcast has been closed.");
+        }
+        this.payload.retain();
+    }
+
+    private BatchSendResult<ApnsPushNotification> releaseWhenDone(final BatchSendResult<ApnsPushNotification> batchSendResult) {
+        batchSendResult.getBatchFuture().addListener(this.releasePayloadListener);
+        return batchSendResult;
+    }
+}
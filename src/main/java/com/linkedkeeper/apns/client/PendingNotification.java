@@ -0,0 +1,53 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * A notification on its way through a connection, together with the promise of its response.
+ * This is the message {@link ApnsHttp2Client} writes to the channel and the single slot
+ * {@link ApnsHttp2ClientHandler} keeps per stream until the response arrives.
+ */
+final class PendingNotification<T extends ApnsPushNotification> {
+
+    private final T notification;
+    private final Promise<ApnsPushNotificationResponse<T>> responsePromise;
+
+    /** the response status once the HEADERS frame arrived without ending the stream **/
+    int status;
+    /** the response body gathered so far when it spans several DATA frames, else null **/
+    ByteBuf responseBody;
+
+    /** how often the notification was sent again after a rejection **/
+    int retries;
+
+    /** System.nanoTime() at each stage, 0 when latencies are not recorded **/
+    final long sentNanos;
+    long writtenNanos;
+    long flushedNanos;
+
+    PendingNotification(final T notification, final Promise<ApnsPushNotificationResponse<T>> responsePromise) {
+        this(notification, responsePromise, 0);
+    }
+
+    PendingNotification(final T notification, final Promise<ApnsPushNotificationResponse<T>> responsePromise, final long sentNanos) {
+        this.notification = notification;
+        this.responsePromise = responsePromise;
+        this.sentNanos = sentNanos;
+    }
+
+    T getNotification() {
+        return this.notification;
+    }
+
+    Promise<ApnsPushNotificationResponse<T>> getResponsePromise() {
+        return this.responsePromise;
+    }
+
+    @Override
+    public String toString() {
+        return "PendingNotification [notification=" + this.notification + ", status=" + this.status + ", retries=" + this.retries + "]";
+    }
+}
@@ -0,0 +1,91 @@
+package com.linkedkeeper.apns.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often and after how long a client sends a notification again that APNs rejected for a
+ * passing reason, e.g. {@code TooManyRequests} or {@code ServiceUnavailable}. The n-th retry
+ * waits {@code initialDelay * multiplier^(n-1)}, at most {@code maxDelay}, shortened by a
+ * random share of up to {@code jitter} so that notifications rejected together don't come back
+ * together.
+ * <pre>
+ * client.setRetryPolicy(RetryPolicy.exponential(5, 100, 10_000, TimeUnit.MILLISECONDS));
+ * client.setRetryPolicy(RejectionReason.TOO_MANY_REQUESTS,
+ *         RetryPolicy.exponential(3, 1, 60, TimeUnit.SECONDS).withJitter(1.0));
+ * </pre>
+ * Instances are immutable.
+ * @see ApnsHttp2Client#setRetryPolicy(RetryPolicy)
+ */
+public final class RetryPolicy {
+
+    private static final double DEFAULT_MULTIPLIER = 2.0;
+    private static final double DEFAULT_JITTER = 0.5;
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    private RetryPolicy(final int maxAttempts, final long initialDelayMillis, final long maxDelayMillis, final double multiplier, final double jitter) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param maxAttempts the attempts a notification gets in total, the first one included
+     */
+    public static RetryPolicy exponential(final int maxAttempts, final long initialDelay, final long maxDelay, final TimeUnit unit) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("A notification needs at least one attempt.");
+        }
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Delays must not be negative, and the maximum must not be below the initial delay.");
+        }
+        return new RetryPolicy(maxAttempts, unit.toMillis(initialDelay), unit.toMillis(maxDelay), DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+    }
+
+    /**
+     * @return a copy of this policy whose delay grows by the given factor per retry; 2 by default
+     */
+    public RetryPolicy withMultiplier(final double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Multiplier must be at least 1.");
+        }
+        return new RetryPolicy(this.maxAttempts, this.initialDelayMillis, this.maxDelayMillis, multiplier, this.jitter);
+    }
+
+    /**
+     * @return a copy of this policy that takes up to the given share off each delay at random,
+     * from 0 for none to 1 for anything between zero and the full delay; 0.5 by default
+     */
+    public RetryPolicy withJitter(final double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+        }
+        return new RetryPolicy(this.maxAttempts, this.initialDelayMillis, this.maxDelayMillis, this.multiplier, jitter);
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * @param retry the retry to come, 1 for the first
+     * @return the delay before it, with jitter applied
+     */
+    long getDelayMillis(final int retry) {
+        final double delayMillis = Math.min(this.maxDelayMillis, this.initialDelayMillis * Math.pow(this.multiplier, retry - 1));
+        return (long) (delayMillis * (1 - this.jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy [maxAttempts=" + this.maxAttempts + ", initialDelayMillis=" + this.initialDelayMillis
+                + ", maxDelayMillis=" + this.maxDelayMillis + ", multiplier=" + this.multiplier + ", jitter=" + this.jitter + "]";
+    }
+}
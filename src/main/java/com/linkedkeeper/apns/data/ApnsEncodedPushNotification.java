@@ -0,0 +1,17 @@
+package com.linkedkeeper.apns.data;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A push notification whose payload is already UTF-8 encoded. The client writes the readable
+ * bytes of {@link #getPayloadBuffer()} as the DATA frame without copying them, through a
+ * retained duplicate, so the buffer's indexes and reference count are left as they were.
+ * <p/>
+ * The buffer must stay readable until the response future of the notification completes.
+ * {@link #getPayload()} decodes the buffer and is only meant for logging.
+ */
+public interface ApnsEncodedPushNotification extends ApnsPushNotification {
+
+    ByteBuf getPayloadBuffer();
+
+}
@@ -0,0 +1,154 @@
+package com.linkedkeeper.apns.data;
+
+import com.linkedkeeper.apns.client.DeliveryPriority;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * An {@link ApnsEncodedPushNotification} over a {@code byte[]} or a {@link ByteBuf}.
+ * <p/>
+ * A {@code byte[]} is wrapped, not copied, and must not change until the notification has been
+ * answered. A {@code ByteBuf} stays owned by the caller, who releases it once every
+ * notification sharing it has been answered; one buffer may back any number of notifications.
+ */
+public class ApnsHttp2EncodedPushNotification implements ApnsEncodedPushNotification {
+
+    private final String token;
+    private final ByteBuf payload;
+    private final Date invalidationTime;
+    private String topic;
+    private final DeliveryPriority priority;
+
+    public ApnsHttp2EncodedPushNotification(final String token, final String topic, final byte[] payload) {
+        this(token, topic, Unpooled.wrappedBuffer(payload), null, DeliveryPriority.IMMEDIATE);
+    }
+
+    public ApnsHttp2EncodedPushNotification(final String token, final String topic, final ByteBuf payload) {
+        this(token, topic, payload, null, DeliveryPriority.IMMEDIATE);
+    }
+
+    public ApnsHttp2EncodedPushNotification(final String token, final String topic, final byte[] payload, final Date invalidationTime, final DeliveryPriority priority) {
+        this(token, topic, Unpooled.wrappedBuffer(payload), invalidationTime, priority);
+    }
+
+    public ApnsHttp2EncodedPushNotification(final String token, final String topic, final ByteBuf payload, final Date invalidationTime, final DeliveryPriority priority) {
+        this.token = token;
+        this.payload = payload;
+        this.invalidationTime = invalidationTime;
+        this.topic = topic;
+        this.priority = priority;
+    }
+
+    @Override
+    public String getToken() {
+        return this.token;
+    }
+
+    @Override
+    public ByteBuf getPayloadBuffer() {
+        return this.payload;
+    }
+
+    @Override
+    public String getPayload() {
+        return this.payload.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Date getExpiration() {
+        return this.invalidationTime;
+    }
+
+    @Override
+    public DeliveryPriority getPriority() {
+        return this.priority;
+    }
+
+    @Override
+    public String getTopic() {
+        return this.topic;
+    }
+
+    @Override
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((this.invalidationTime == null) ? 0 : this.invalidationTime.hashCode());
+        result = prime * result + ((this.payload == null) ? 0 : this.payload.hashCode());
+        result = prime * result + ((this.priority == null) ? 0 : this.priority.hashCode());
+        result = prime * result + ((this.token == null) ? 0 : this.token.hashCode());
+        result = prime * result + ((this.topic == null) ? 0 : this.topic.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (!(obj instanceof ApnsHttp2EncodedPushNotification)) {
+            return false;
+        }
+        final ApnsHttp2EncodedPushNotification other = (ApnsHttp2EncodedPushNotification) obj;
+        if (this.invalidationTime == null) {
+            if (other.invalidationTime != null) {
+                return false;
+            }
+        } else if (!this.invalidationTime.equals(other.invalidationTime)) {
+            return false;
+        }
+        if (this.payload == null) {
+            if (other.payload != null) {
+                return false;
+            }
+        } else if (!this.payload.equals(other.payload)) {
+            return false;
+        }
+        if (this.priority != other.priority) {
+            return false;
+        }
+        if (this.token == null) {
+            if (other.token != null) {
+                return false;
+            }
+        } else if (!this.token.equals(other.token)) {
+            return false;
+        }
+        if (this.topic == null) {
+            if (other.topic != null) {
+                return false;
+            }
+        } else if (!this.topic.equals(other.topic)) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ApnsHttp2EncodedPushNotification [token=");
+        builder.append(this.token);
+        builder.append(", payload=");
+        builder.append(this.getPayload());
+        builder.append(", invalidationTime=");
+        builder.append(this.invalidationTime);
+        builder.append(", priority=");
+        builder.append(this.priority);
+        builder.append(", topic=");
+        builder.append(this.topic);
+        builder.append("]");
+        return builder.toString();
+    }
+}
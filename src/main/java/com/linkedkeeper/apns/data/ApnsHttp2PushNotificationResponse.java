@@ -10,12 +10,19 @@ public class ApnsHttp2PushNotificationResponse<T extends ApnsPushNotification> i
     private final T apnsPushNotification;
     private final boolean success;
     private final String rejectionReason;
+    private final RejectionReason rejectionReasonType;
     private final Date tokenExpirationTimestamp;
 
     public ApnsHttp2PushNotificationResponse(T apnsPushNotification, boolean success, String rejectionReason, Date tokenExpirationTimestamp) {
+        this(apnsPushNotification, success, rejectionReason,
+                success ? null : RejectionReason.fromReason(rejectionReason), tokenExpirationTimestamp);
+    }
+
+    public ApnsHttp2PushNotificationResponse(T apnsPushNotification, boolean success, String rejectionReason, RejectionReason rejectionReasonType, Date tokenExpirationTimestamp) {
         this.apnsPushNotification = apnsPushNotification;
         this.success = success;
         this.rejectionReason = rejectionReason;
+        this.rejectionReasonType = rejectionReasonType;
         this.tokenExpirationTimestamp = tokenExpirationTimestamp;
     }
 
@@ -34,6 +41,14 @@ public class ApnsHttp2PushNotificationResponse<T extends ApnsPushNotification> i
         return this.rejectionReason;
     }
 
+    /**
+     * @return the rejection reason as a constant, {@code null} if the notification was accepted;
+     * for other {@link ApnsPushNotificationResponse}s see {@link RejectionReason#fromReason(String)}
+     */
+    public RejectionReason getRejectionReasonType() {
+        return this.rejectionReasonType;
+    }
+
     @Override
     public Date getTokenInvalidationTimestamp() {
         return this.tokenExpirationTimestamp;
@@ -8,4 +8,11 @@ public final class Payload {
     public static PayloadBuilder newPayload() {
         return new PayloadBuilder();
     }
+
+    /**
+     * @return a builder that writes straight to bytes; keep it and {@link StreamingPayloadBuilder#reset()} it between payloads
+     */
+    public static StreamingPayloadBuilder newStreamingPayload() {
+        return new StreamingPayloadBuilder();
+    }
 }
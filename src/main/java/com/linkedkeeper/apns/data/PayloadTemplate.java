@@ -0,0 +1,341 @@
+package com.linkedkeeper.apns.data;
+
+import com.linkedkeeper.apns.exceptions.PayloadTooLargeException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A payload compiled once into constant UTF-8 segments and named slots, so rendering one
+ * recipient's payload only copies the segments and writes the slot values.
+ * <p/>
+ * Slots are written {@code ${name}} in the JSON text. A slot inside a JSON string is a string
+ * slot, and its value is JSON-escaped; a slot outside a string is a number slot and takes a
+ * {@link Number} or a {@link Boolean}. A name may appear several times but always as the same
+ * kind:
+ * <pre>
+ * PayloadTemplate template = PayloadTemplate.compile(
+ *         "{\"aps\":{\"alert\":\"Hi ${name}, your order shipped\",\"badge\":${badge}},\"order\":\"${order}\"}");
+ * ByteBuf payload = template.render(allocator, "Frank", 3, "1234567");
+ * </pre>
+ * Values are given in slot order, the order in which names first appear; see
+ * {@link #getSlotNames()}. A compiled template is immutable and may be shared between threads.
+ */
+public final class PayloadTemplate {
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[][] segments;
+    /** slot index written after each segment but the last **/
+    private final int[] slotAfterSegment;
+    private final boolean[] stringSlots;
+    private final List<String> slotNames;
+    private final int constantLength;
+    private final int maxPayloadSize;
+
+    private PayloadTemplate(final List<byte[]> segments, final List<Integer> slotAfterSegment, final List<String> slotNames, final List<Boolean> stringSlots, final int maxPayloadSize) {
+        this.segments = segments.toArray(new byte[segments.size()][]);
+
+        this.slotAfterSegment = new int[slotAfterSegment.size()];
+        for (int i = 0; i < this.slotAfterSegment.length; i++) {
+            this.slotAfterSegment[i] = slotAfterSegment.get(i);
+        }
+
+        this.stringSlots = new boolean[stringSlots.size()];
+        for (int i = 0; i < this.stringSlots.length; i++) {
+            this.stringSlots[i] = stringSlots.get(i);
+        }
+
+        int constantLength = 0;
+        for (final byte[] segment : this.segments) {
+            constantLength += segment.length;
+        }
+        this.constantLength = constantLength;
+
+        this.slotNames = Collections.unmodifiableList(new ArrayList<>(slotNames));
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    public static PayloadTemplate compile(final String template) {
+        return compile(template, StreamingPayloadBuilder.DEFAULT_MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * @param maxPayloadSize the largest rendered payload accepted, in bytes
+     * @throws IllegalArgumentException if a slot is not closed or a name is used as both kinds
+     */
+    public static PayloadTemplate compile(final String template, final int maxPayloadSize) {
+        final List<byte[]> segments = new ArrayList<>();
+        final List<Integer> slotAfterSegment = new ArrayList<>();
+        final List<String> slotNames = new ArrayList<>();
+        final List<Boolean> stringSlots = new ArrayList<>();
+
+        boolean inString = false;
+        int segmentStart = 0;
+
+        for (int i = 0; i < template.length(); i++) {
+            final char c = template.charAt(i);
+
+            if (inString && c == '\\') {
+                /** skip the escaped char so an escaped quote doesn't end the string **/
+                i++;
+            } else if (c == '"') {
+                inString = !inString;
+            } else if (c == '$' && i + 1 < template.length() && template.charAt(i + 1) == '{') {
+                final int end = template.indexOf('}', i + 2);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed slot at index " + i + " of payload template.");
+                }
+
+                final String name = template.substring(i + 2, end);
+                int slot = slotNames.indexOf(name);
+                if (slot < 0) {
+                    slot = slotNames.size();
+                    slotNames.add(name);
+                    stringSlots.add(inString);
+                } else if (stringSlots.get(slot) != inString) {
+                    throw new IllegalArgumentException("Slot " + name + " is used both inside and outside a JSON string.");
+                }
+
+                segments.add(template.substring(segmentStart, i).getBytes(StandardCharsets.UTF_8));
+                slotAfterSegment.add(slot);
+
+                segmentStart = end + 1;
+                i = end;
+            }
+        }
+        segments.add(template.substring(segmentStart).getBytes(StandardCharsets.UTF_8));
+
+        return new PayloadTemplate(segments, slotAfterSegment, slotNames, stringSlots, maxPayloadSize);
+    }
+
+    /**
+     * @return the slot names in the order their values are given to {@code render}
+     */
+    public List<String> getSlotNames() {
+        return this.slotNames;
+    }
+
+    /**
+     * @return {@code true} if the slot sits inside a JSON string and takes a string value,
+     * {@code false} if it takes a number or a boolean
+     */
+    public boolean isStringSlot(final int slot) {
+        return this.stringSlots[slot];
+    }
+
+    /**
+     * Renders the payload into a new buffer of exactly its length. The caller owns and releases
+     * the buffer.
+     *
+     * @param values one value per slot, in slot order
+     * @throws PayloadTooLargeException if the rendered payload exceeds the size limit
+     */
+    public ByteBuf render(final ByteBufAllocator allocator, final Object... values) {
+        final int length = this.renderedLength(values);
+        final ByteBuf payload = allocator.ioBuffer(length);
+        this.write(payload, values);
+        return payload;
+    }
+
+    /**
+     * @return the rendered payload in an array of exactly its length
+     * @throws PayloadTooLargeException if the rendered payload exceeds the size limit
+     */
+    public byte[] renderBytes(final Object... values) {
+        final byte[] payload = new byte[this.renderedLength(values)];
+        this.write(Unpooled.wrappedBuffer(payload).writerIndex(0), values);
+        return payload;
+    }
+
+    /**
+     * Appends the rendered payload to the given buffer.
+     *
+     * @param values one value per slot, in slot order
+     * @return the number of bytes written
+     * @throws PayloadTooLargeException if the rendered payload exceeds the size limit
+     */
+    public int render(final ByteBuf out, final Object... values) {
+        final int length = this.renderedLength(values);
+        out.ensureWritable(length);
+        this.write(out, values);
+        return length;
+    }
+
+    private void write(final ByteBuf out, final Object[] values) {
+        for (int i = 0; i < this.segments.length; i++) {
+            out.writeBytes(this.segments[i]);
+
+            if (i < this.slotAfterSegment.length) {
+                final int slot = this.slotAfterSegment[i];
+                if (this.stringSlots[slot]) {
+                    writeEscaped(out, (CharSequence) values[slot]);
+                } else {
+                    writeLiteral(out, values[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the values against the slots and sizes the rendered payload.
+     */
+    private int renderedLength(final Object[] values) {
+        if (values.length != this.stringSlots.length) {
+            throw new IllegalArgumentException("Payload template has " + this.stringSlots.length + " slots, got " + values.length + " values.");
+        }
+
+        int length = this.constantLength;
+        for (int i = 0; i < this.slotAfterSegment.length; i++) {
+            final int slot = this.slotAfterSegment[i];
+            final Object value = values[slot];
+
+            if (this.stringSlots[slot]) {
+                if (!(value instanceof CharSequence)) {
+                    throw new IllegalArgumentException("Slot " + this.slotNames.get(slot) + " takes a string, got " + value + ".");
+                }
+                length += escapedLength((CharSequence) value);
+            } else {
+                length += literalLength(value);
+            }
+        }
+
+        if (length > this.maxPayloadSize) {
+            throw new PayloadTooLargeException(length, this.maxPayloadSize);
+        }
+        return length;
+    }
+
+    private static int escapedLength(final CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') {
+                length += 2;
+            } else if (c < 0x20) {
+                length += 6;
+            } else if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                /** a lone surrogate has no UTF-8 form and is written as '?' **/
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeEscaped(final ByteBuf out, final CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.writeByte('\\').writeByte('"');
+                    break;
+                case '\\':
+                    out.writeByte('\\').writeByte('\\');
+                    break;
+                case '\b':
+                    out.writeByte('\\').writeByte('b');
+                    break;
+                case '\f':
+                    out.writeByte('\\').writeByte('f');
+                    break;
+                case '\n':
+                    out.writeByte('\\').writeByte('n');
+                    break;
+                case '\r':
+                    out.writeByte('\\').writeByte('r');
+                    break;
+                case '\t':
+                    out.writeByte('\\').writeByte('t');
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.writeByte('\\').writeByte('u').writeByte('0').writeByte('0')
+                                .writeByte(HEX_DIGITS[c >> 4]).writeByte(HEX_DIGITS[c & 0xf]);
+                    } else if (c < 0x80) {
+                        out.writeByte(c);
+                    } else if (c < 0x800) {
+                        out.writeByte(0xc0 | (c >> 6));
+                        out.writeByte(0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        out.writeByte(0xf0 | (codePoint >> 18));
+                        out.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                        out.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                        out.writeByte(0x80 | (codePoint & 0x3f));
+                    } else if (Character.isSurrogate(c)) {
+                        out.writeByte('?');
+                    } else {
+                        out.writeByte(0xe0 | (c >> 12));
+                        out.writeByte(0x80 | ((c >> 6) & 0x3f));
+                        out.writeByte(0x80 | (c & 0x3f));
+                    }
+            }
+        }
+    }
+
+    private static boolean isIntegral(final Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    private static int literalLength(final Object value) {
+        if (isIntegral(value)) {
+            final long number = ((Number) value).longValue();
+            if (number == Long.MIN_VALUE) {
+                return 20;
+            }
+            return number < 0 ? 1 + digitCount(-number) : digitCount(number);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString().length();
+        }
+        throw new IllegalArgumentException("Number slot takes a number or a boolean, got " + value + ".");
+    }
+
+    private static int digitCount(long number) {
+        int digits = 1;
+        while (number >= 10) {
+            number /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Writes integral numbers digit by digit; other numbers and booleans through toString.
+     */
+    private static void writeLiteral(final ByteBuf out, final Object value) {
+        if (!isIntegral(value) || ((Number) value).longValue() == Long.MIN_VALUE) {
+            ByteBufUtil.writeAscii(out, value.toString());
+            return;
+        }
+
+        long number = ((Number) value).longValue();
+        if (number < 0) {
+            out.writeByte('-');
+            number = -number;
+        }
+
+        final int end = out.writerIndex() + digitCount(number);
+        out.writerIndex(end);
+        int index = end;
+        do {
+            out.setByte(--index, (int) ('0' + number % 10));
+            number /= 10;
+        } while (number > 0);
+    }
+}
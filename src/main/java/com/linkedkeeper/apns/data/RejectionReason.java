@@ -0,0 +1,104 @@
+package com.linkedkeeper.apns.data;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The rejection reasons APNs documents for the {@code reason} field of an error response. The
+ * response decoder matches the raw bytes of the field against these constants, so a known reason
+ * costs no allocation; anything else is {@link #UNKNOWN}.
+ */
+public enum RejectionReason {
+
+    BAD_COLLAPSE_ID("BadCollapseId"),
+    BAD_DEVICE_TOKEN("BadDeviceToken"),
+    BAD_EXPIRATION_DATE("BadExpirationDate"),
+    BAD_MESSAGE_ID("BadMessageId"),
+    BAD_PRIORITY("BadPriority"),
+    BAD_TOPIC("BadTopic"),
+    DEVICE_TOKEN_NOT_FOR_TOPIC("DeviceTokenNotForTopic"),
+    DUPLICATE_HEADERS("DuplicateHeaders"),
+    IDLE_TIMEOUT("IdleTimeout"),
+    MISSING_DEVICE_TOKEN("MissingDeviceToken"),
+    MISSING_TOPIC("MissingTopic"),
+    PAYLOAD_EMPTY("PayloadEmpty"),
+    TOPIC_DISALLOWED("TopicDisallowed"),
+    BAD_CERTIFICATE("BadCertificate"),
+    BAD_CERTIFICATE_ENVIRONMENT("BadCertificateEnvironment"),
+    EXPIRED_PROVIDER_TOKEN("ExpiredProviderToken"),
+    FORBIDDEN("Forbidden"),
+    INVALID_PROVIDER_TOKEN("InvalidProviderToken"),
+    MISSING_PROVIDER_TOKEN("MissingProviderToken"),
+    BAD_PATH("BadPath"),
+    METHOD_NOT_ALLOWED("MethodNotAllowed"),
+    UNREGISTERED("Unregistered"),
+    PAYLOAD_TOO_LARGE("PayloadTooLarge"),
+    TOO_MANY_PROVIDER_TOKEN_UPDATES("TooManyProviderTokenUpdates"),
+    TOO_MANY_REQUESTS("TooManyRequests"),
+    INTERNAL_SERVER_ERROR("InternalServerError"),
+    SERVICE_UNAVAILABLE("ServiceUnavailable"),
+    SHUTDOWN("Shutdown"),
+    UNKNOWN(null);
+
+    private static final RejectionReason[] KNOWN_REASONS;
+
+    static {
+        final RejectionReason[] values = values();
+        KNOWN_REASONS = new RejectionReason[values.length - 1];
+        System.arraycopy(values, 0, KNOWN_REASONS, 0, KNOWN_REASONS.length);
+    }
+
+    private final String reason;
+    private final byte[] reasonBytes;
+
+    RejectionReason(final String reason) {
+        this.reason = reason;
+        this.reasonBytes = reason == null ? null : reason.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the reason as APNs spells it, or {@code null} for {@link #UNKNOWN}
+     */
+    public String getReason() {
+        return this.reason;
+    }
+
+    /**
+     * @return the reason APNs sends with the given spelling, {@link #UNKNOWN} if there is none
+     */
+    public static RejectionReason fromReason(final String reason) {
+        if (reason != null) {
+            for (final RejectionReason rejectionReason : KNOWN_REASONS) {
+                if (rejectionReason.reason.equals(reason)) {
+                    return rejectionReason;
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return the reason spelled by the given bytes of the buffer, {@link #UNKNOWN} if there is none
+     */
+    public static RejectionReason fromReason(final ByteBuf buffer, final int index, final int length) {
+        for (final RejectionReason rejectionReason : KNOWN_REASONS) {
+            if (rejectionReason.matches(buffer, index, length)) {
+                return rejectionReason;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private boolean matches(final ByteBuf buffer, final int index, final int length) {
+        if (this.reasonBytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.getByte(index + i) != this.reasonBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
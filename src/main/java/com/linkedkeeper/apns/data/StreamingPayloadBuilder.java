@@ -0,0 +1,238 @@
+package com.linkedkeeper.apns.data;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linkedkeeper.apns.exceptions.PayloadTooLargeException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * A {@link PayloadBuilder} counterpart that keeps no maps: the {@code aps} values are held in
+ * plain fields and the whole payload is written through a Jackson {@link JsonGenerator} into a
+ * buffer the builder keeps between payloads. The size limit is checked when building, so an
+ * oversized payload fails with a {@link PayloadTooLargeException} instead of a rejected stream.
+ * <p/>
+ * Meant to be kept and reused on one thread: {@link #reset()} clears the values but keeps the
+ * buffers. Not thread-safe.
+ */
+public final class StreamingPayloadBuilder {
+
+    /** APNs limit for regular remote notifications **/
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 4096;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory jsonFactory = mapper.getFactory();
+
+    private static final SerializedString APS_KEY = new SerializedString("aps");
+    private static final SerializedString ALERT_KEY = new SerializedString("alert");
+    private static final SerializedString BADGE_KEY = new SerializedString("badge");
+    private static final SerializedString SOUND_KEY = new SerializedString("sound");
+
+    private static final String DEFAULT_SOUND = "default";
+
+    private final int maxPayloadSize;
+
+    private String alertBody;
+    private boolean hasBadge;
+    private int badge;
+    private String sound;
+
+    private final ArrayList<String> fieldKeys = new ArrayList<>();
+    private final ArrayList<Object> fieldValues = new ArrayList<>();
+
+    private final ByteBuf buffer = Unpooled.buffer(512);
+    private final ByteBufOutputStream outputStream = new ByteBufOutputStream(this.buffer);
+
+    public StreamingPayloadBuilder() {
+        this(DEFAULT_MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * @param maxPayloadSize the largest payload {@code build} accepts, in bytes
+     */
+    public StreamingPayloadBuilder(final int maxPayloadSize) {
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    /**
+     * Sets the alert body text, the text the appears to the user,
+     * to the passed value
+     *
+     * @param alert the text to appear to the user
+     * @return this
+     */
+    public StreamingPayloadBuilder alertBody(final String alert) {
+        this.alertBody = alert;
+        return this;
+    }
+
+    /**
+     * Sets the notification badge to be displayed next to the
+     * application icon; a badge of 0 clears the badge indicator.
+     *
+     * @param badge the badge number to be displayed
+     * @return this
+     */
+    public StreamingPayloadBuilder badge(final int badge) {
+        this.hasBadge = true;
+        this.badge = badge;
+        return this;
+    }
+
+    /**
+     * Sets the default sound
+     *
+     * @return this
+     */
+    public StreamingPayloadBuilder sound() {
+        this.sound = DEFAULT_SOUND;
+        return this;
+    }
+
+    /**
+     * Sets the name of the sound file to play
+     *
+     * @param sound
+     * @return this
+     */
+    public StreamingPayloadBuilder sound(final String sound) {
+        this.sound = sound;
+        return this;
+    }
+
+    /**
+     * Adds a custom field next to {@code aps}; adding a key again replaces its value. Values
+     * other than strings, numbers and booleans are serialized with Jackson.
+     *
+     * @return this
+     */
+    public StreamingPayloadBuilder addField(final String key, final Object value) {
+        final int index = this.fieldKeys.indexOf(key);
+        if (index >= 0) {
+            this.fieldValues.set(index, value);
+        } else {
+            this.fieldKeys.add(key);
+            this.fieldValues.add(value);
+        }
+        return this;
+    }
+
+    public StreamingPayloadBuilder addField(final String key, final Map<String, Object> value) {
+        return this.addField(key, (Object) value);
+    }
+
+    /**
+     * Clears every value so the builder can start the next payload; the buffers are kept.
+     *
+     * @return this
+     */
+    public StreamingPayloadBuilder reset() {
+        this.alertBody = null;
+        this.hasBadge = false;
+        this.badge = 0;
+        this.sound = null;
+        this.fieldKeys.clear();
+        this.fieldValues.clear();
+        return this;
+    }
+
+    /**
+     * @return the JSON String representation of the payload
+     * @throws PayloadTooLargeException if the payload exceeds the size limit
+     */
+    public String build() {
+        return this.encode().toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the UTF-8 encoded payload in an array of exactly its length
+     * @throws PayloadTooLargeException if the payload exceeds the size limit
+     */
+    public byte[] buildBytes() {
+        final ByteBuf encoded = this.encode();
+        final byte[] bytes = new byte[encoded.readableBytes()];
+        encoded.getBytes(encoded.readerIndex(), bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the UTF-8 encoded payload into a new buffer of exactly its length, ready to back an
+     * {@link ApnsHttp2EncodedPushNotification}. The caller owns and releases the buffer.
+     *
+     * @throws PayloadTooLargeException if the payload exceeds the size limit
+     */
+    public ByteBuf buildBuffer(final ByteBufAllocator allocator) {
+        final ByteBuf encoded = this.encode();
+        final ByteBuf payload = allocator.ioBuffer(encoded.readableBytes());
+        payload.writeBytes(encoded, encoded.readerIndex(), encoded.readableBytes());
+        return payload;
+    }
+
+    /**
+     * Writes the payload into the reusable buffer and returns it; valid until the next build.
+     */
+    private ByteBuf encode() {
+        this.buffer.clear();
+
+        try {
+            final JsonGenerator generator = jsonFactory.createGenerator(this.outputStream, JsonEncoding.UTF8);
+
+            generator.writeStartObject();
+            generator.writeFieldName(APS_KEY);
+            generator.writeStartObject();
+            if (this.alertBody != null) {
+                generator.writeFieldName(ALERT_KEY);
+                generator.writeString(this.alertBody);
+            }
+            if (this.hasBadge) {
+                generator.writeFieldName(BADGE_KEY);
+                generator.writeNumber(this.badge);
+            }
+            if (this.sound != null) {
+                generator.writeFieldName(SOUND_KEY);
+                generator.writeString(this.sound);
+            }
+            generator.writeEndObject();
+
+            for (int i = 0; i < this.fieldKeys.size(); i++) {
+                generator.writeFieldName(this.fieldKeys.get(i));
+                writeValue(generator, this.fieldValues.get(i));
+            }
+            generator.writeEndObject();
+            generator.close();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (this.buffer.readableBytes() > this.maxPayloadSize) {
+            throw new PayloadTooLargeException(this.buffer.readableBytes(), this.maxPayloadSize);
+        }
+        return this.buffer;
+    }
+
+    private static void writeValue(final JsonGenerator generator, final Object value) throws IOException {
+        if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value == null) {
+            generator.writeNull();
+        } else {
+            generator.writeObject(value);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.linkedkeeper.apns.exceptions;
+
+/**
+ * Thrown when a built payload is larger than APNs accepts, before anything is sent.
+ */
+public class PayloadTooLargeException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int payloadSize;
+    private final int maxPayloadSize;
+
+    public PayloadTooLargeException(final int payloadSize, final int maxPayloadSize) {
+        super(String.format("Payload is %d bytes, the limit is %d bytes.", payloadSize, maxPayloadSize));
+
+        this.payloadSize = payloadSize;
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+}
@@ -0,0 +1,18 @@
+package com.linkedkeeper.apns.exceptions;
+
+/**
+ * Fails a notification that was refused or dropped because the client's pending queue was
+ * full.
+ */
+public class PendingQueueFullException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PendingQueueFullException() {
+        super();
+    }
+
+    public PendingQueueFullException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,18 @@
+package com.linkedkeeper.apns.exceptions;
+
+/**
+ * Fails a notification that was not sent because its device token had used up its rate; see
+ * {@link com.linkedkeeper.apns.client.DeviceTokenRateLimiter}.
+ */
+public class RateLimitExceededException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RateLimitExceededException() {
+        super();
+    }
+
+    public RateLimitExceededException(final String message) {
+        super(message);
+    }
+}
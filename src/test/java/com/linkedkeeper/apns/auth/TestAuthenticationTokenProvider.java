@@ -0,0 +1,245 @@
+package com.linkedkeeper.apns.auth;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+/**
+ * Checks the conversion of DER signatures into the JOSE form ES256 tokens carry, the layout of
+ * the signed tokens, and when {@link AuthenticationTokenProvider} rotates them, on a clock the
+ * test moves.
+ */
+public class TestAuthenticationTokenProvider {
+
+    private static final String TEAM_ID = "TEAM123456";
+    private static final String KEY_ID = "KEY1234567";
+
+    public static void main(String[] args) throws Exception {
+        checkDerToJose();
+
+        final KeyPair keyPair = newKeyPair();
+        final ApnsSigningKey signingKey = new ApnsSigningKey(TEAM_ID, KEY_ID, (ECPrivateKey) keyPair.getPrivate());
+        checkTokenLayout(signingKey, keyPair);
+        checkRotation(signingKey);
+    }
+
+    private static void checkDerToJose() throws SignatureException {
+        final byte[] r = filled(32, (byte) 0x11);
+        final byte[] s = filled(32, (byte) 0x22);
+
+        /** both coordinates 32 bytes, no sign byte **/
+        check(Arrays.equals(ApnsSigningKey.derToJose(der(r, s)), concat(r, s)), "32-byte coordinates should be copied as they are");
+
+        /** a high first byte gets a leading 0x00 in DER, which the JOSE form drops **/
+        final byte[] highR = filled(32, (byte) 0x81);
+        final byte[] highS = filled(32, (byte) 0xf0);
+        check(Arrays.equals(ApnsSigningKey.derToJose(der(concat(new byte[1], highR), concat(new byte[1], highS))), concat(highR, highS)),
+                "33-byte coordinates should lose their leading zero");
+
+        /** DER drops leading zeros of a small coordinate; JOSE pads it back to 32 bytes **/
+        final byte[] shortR = filled(31, (byte) 0x33);
+        final byte[] shortS = filled(20, (byte) 0x44);
+        check(Arrays.equals(ApnsSigningKey.derToJose(der(shortR, shortS)), concat(pad(shortR), pad(shortS))),
+                "short coordinates should be left-padded with zeros");
+        check(Arrays.equals(ApnsSigningKey.derToJose(der(concat(new byte[1], highR), shortS)), concat(highR, pad(shortS))),
+                "a long and a short coordinate should both land in their half");
+
+        expectSignatureException(new byte[]{0x31, 6, 0x02, 1, 1, 0x02, 1, 1}, "a sequence tag other than 0x30");
+        expectSignatureException(new byte[]{0x30, 6, 0x03, 1, 1, 0x02, 1, 1}, "an integer tag other than 0x02");
+        expectSignatureException(der(concat(new byte[]{1}, r), s), "a 33-byte coordinate without a leading zero");
+        expectSignatureException(new byte[]{0x30, 0}, "a truncated signature");
+
+        System.out.println("DER to JOSE: ok");
+    }
+
+    private static void checkTokenLayout(final ApnsSigningKey signingKey, final KeyPair keyPair) throws Exception {
+        final long issuedAtMillis = 1475254735123L;
+
+        /** half the DER coordinates carry a sign byte and about one in 128 signatures has a short one; sign plenty **/
+        for (int i = 0; i < 200; i++) {
+            final AuthenticationToken token = AuthenticationToken.sign(signingKey, issuedAtMillis);
+            final String[] parts = token.getToken().split("\\.", -1);
+            check(parts.length == 3, "a token should have a header, claims and a signature");
+
+            for (final String part : parts) {
+                check(part.matches("[A-Za-z0-9_-]+"), "every part should be base64url without padding: " + part);
+            }
+            check(new String(base64UrlDecode(parts[0]), StandardCharsets.UTF_8).equals("{\"alg\":\"ES256\",\"kid\":\"" + KEY_ID + "\"}"),
+                    "the header should name the algorithm and the key");
+            check(new String(base64UrlDecode(parts[1]), StandardCharsets.UTF_8).equals("{\"iss\":\"" + TEAM_ID + "\",\"iat\":1475254735}"),
+                    "the claims should name the team and the issue time in seconds");
+
+            final byte[] jose = base64UrlDecode(parts[2]);
+            check(jose.length == 64, "the signature should be r and s as 32 bytes each");
+
+            final Signature verifier = Signature.getInstance(ApnsSigningKey.SIGNATURE_ALGORITHM);
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+            check(verifier.verify(der(derInteger(Arrays.copyOfRange(jose, 0, 32)), derInteger(Arrays.copyOfRange(jose, 32, 64)))),
+                    "the signature should verify against the public key");
+
+            check(token.getAuthorizationHeader().toString().equals("bearer " + token.getToken()), "the header value should be the bearer token");
+            check(token.getIssuedAtMillis() == issuedAtMillis, "the token should keep its issue time");
+        }
+
+        System.out.println("token layout: ok");
+    }
+
+    private static void checkRotation(final ApnsSigningKey signingKey) throws SignatureException {
+        final long start = 1_000_000_000_000L;
+        final ManualClockTokenProvider provider = new ManualClockTokenProvider(signingKey, start);
+
+        final AuthenticationToken first = provider.getToken();
+        check(first.getIssuedAtMillis() == start, "the first token should be signed on construction");
+
+        /** the expiry report of a young token is ignored, as APNs refuses updates that fast **/
+        provider.advance(AuthenticationTokenProvider.MIN_ROTATE_INTERVAL_MILLIS / 2);
+        provider.onTokenExpired();
+        check(provider.getToken() == first, "a token younger than 20 minutes should not be replaced");
+
+        provider.advance(AuthenticationTokenProvider.ROTATE_AFTER_MILLIS - AuthenticationTokenProvider.MIN_ROTATE_INTERVAL_MILLIS / 2 - 1);
+        check(provider.getToken() == first, "a token younger than the rotation age should be kept");
+
+        provider.advance(1);
+        check(provider.getToken() == first, "the read that starts a rotation should still get the current token");
+        final AuthenticationToken second = provider.getToken();
+        check(second != first && second.getIssuedAtMillis() == start + AuthenticationTokenProvider.ROTATE_AFTER_MILLIS,
+                "the next read should get the token rotated in the background");
+
+        provider.advance(AuthenticationTokenProvider.MIN_ROTATE_INTERVAL_MILLIS - 1);
+        provider.onTokenExpired();
+        check(provider.getToken() == second, "an expiry report within 20 minutes should not rotate");
+        provider.advance(1);
+        provider.onTokenExpired();
+        final AuthenticationToken third = provider.getToken();
+        check(third != second && third.getIssuedAtMillis() == provider.currentTimeMillis(),
+                "an expiry report after 20 minutes should rotate");
+
+        /** a token left unused until it is almost expired is replaced before it is handed out **/
+        provider.advance(AuthenticationTokenProvider.EXPIRE_AFTER_MILLIS);
+        final AuthenticationToken fourth = provider.getToken();
+        check(fourth != third && fourth.getIssuedAtMillis() == provider.currentTimeMillis(),
+                "an almost expired token should be replaced on the reading thread");
+        check(provider.getAuthorizationHeader() == fourth.getAuthorizationHeader(), "the header should come from the current token");
+
+        System.out.println("rotation: ok");
+    }
+
+    /**
+     * Rotates on the reading thread, on a clock that only moves when told to.
+     */
+    private static class ManualClockTokenProvider extends AuthenticationTokenProvider {
+
+        /** static, as the super constructor signs the first token before this class's fields are set **/
+        private static long now;
+
+        ManualClockTokenProvider(final ApnsSigningKey signingKey, final long start) throws SignatureException {
+            super(signingKey, start(start));
+        }
+
+        private static ImmediateEventExecutor start(final long start) {
+            now = start;
+            return ImmediateEventExecutor.INSTANCE;
+        }
+
+        void advance(final long millis) {
+            now += millis;
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static KeyPair newKeyPair() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @return a DER sequence of the two coordinates, each taken as the bytes of a DER integer
+     */
+    private static byte[] der(final byte[] r, final byte[] s) {
+        final byte[] der = new byte[6 + r.length + s.length];
+        der[0] = 0x30;
+        der[1] = (byte) (4 + r.length + s.length);
+        der[2] = 0x02;
+        der[3] = (byte) r.length;
+        System.arraycopy(r, 0, der, 4, r.length);
+        der[4 + r.length] = 0x02;
+        der[5 + r.length] = (byte) s.length;
+        System.arraycopy(s, 0, der, 6 + r.length, s.length);
+        return der;
+    }
+
+    /**
+     * @return the DER integer bytes of an unsigned big-endian coordinate
+     */
+    private static byte[] derInteger(final byte[] coordinate) {
+        int start = 0;
+        while (start < coordinate.length - 1 && coordinate[start] == 0) {
+            start++;
+        }
+        final byte[] trimmed = Arrays.copyOfRange(coordinate, start, coordinate.length);
+        return (trimmed[0] & 0x80) != 0 ? concat(new byte[1], trimmed) : trimmed;
+    }
+
+    private static byte[] filled(final int length, final byte value) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+
+    private static byte[] pad(final byte[] coordinate) {
+        final byte[] padded = new byte[32];
+        System.arraycopy(coordinate, 0, padded, 32 - coordinate.length, coordinate.length);
+        return padded;
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        final byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    private static byte[] base64UrlDecode(final String base64Url) {
+        final StringBuilder base64 = new StringBuilder(base64Url.replace('-', '+').replace('_', '/'));
+        while (base64.length() % 4 != 0) {
+            base64.append('=');
+        }
+        final ByteBuf decoded = Base64.decode(Unpooled.copiedBuffer(base64, StandardCharsets.US_ASCII));
+        try {
+            final byte[] bytes = new byte[decoded.readableBytes()];
+            decoded.readBytes(bytes);
+            return bytes;
+        } finally {
+            decoded.release();
+        }
+    }
+
+    private static void expectSignatureException(final byte[] der, final String what) {
+        try {
+            ApnsSigningKey.derToJose(der);
+            throw new AssertionError(what + " should be refused");
+        } catch (final SignatureException expected) {
+        }
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
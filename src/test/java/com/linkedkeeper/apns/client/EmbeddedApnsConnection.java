@@ -0,0 +1,175 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An {@link ApnsHttp2ClientHandler} living in an {@link EmbeddedChannel}, answered with
+ * hand-encoded server frames, for tests that look at the handler's state between frames.
+ * Everything runs on the calling thread; the handler's scheduled flushes run on
+ * {@link #runPendingTasks()}.
+ */
+class EmbeddedApnsConnection<T extends ApnsPushNotification> {
+
+    static final String AUTHORITY = "api.push.apple.com";
+
+    private static final byte TYPE_DATA = 0x0;
+    private static final byte TYPE_HEADERS = 0x1;
+    private static final byte TYPE_RST_STREAM = 0x3;
+    private static final byte TYPE_SETTINGS = 0x4;
+    private static final byte TYPE_WINDOW_UPDATE = 0x8;
+
+    private static final byte FLAG_END_STREAM = 0x1;
+    private static final byte FLAG_END_HEADERS = 0x4;
+
+    /** HPACK literal header field without indexing, name from static table entry 8, ":status" **/
+    private static final byte LITERAL_STATUS = 0x08;
+
+    private final NioEventLoopGroup clientEventLoopGroup = new NioEventLoopGroup(1);
+    private final ApnsHttp2Client<T> apnsHttp2Client;
+    private final ApnsHttp2ClientHandler<T> handler;
+    private final EmbeddedChannel channel;
+
+    EmbeddedApnsConnection() {
+        this(ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_NOTIFICATIONS, ApnsHttp2Properties.DEFAULT_MAX_UNFLUSHED_BYTES);
+    }
+
+    EmbeddedApnsConnection(final int maxUnflushedNotifications, final int maxUnflushedBytes) {
+        this.apnsHttp2Client = new ApnsHttp2Client<>((SslContext) null, this.clientEventLoopGroup);
+
+        this.handler = new ApnsHttp2ClientHandler.ApnsHttp2ClientHandlerBuilder<T>()
+                .server(false)
+                .apnsHttp2Client(this.apnsHttp2Client)
+                .authority(AUTHORITY)
+                .maxUnflushedNotifications(maxUnflushedNotifications)
+                .maxUnflushedBytes(maxUnflushedBytes)
+                .encoderEnforceMaxConcurrentStreams(false)
+                .build();
+
+        this.channel = new EmbeddedChannel(this.handler);
+
+        /** server preface, then open the connection flow-control window as far as it goes **/
+        final ByteBuf serverPreface = Unpooled.buffer();
+        writeFrameHeader(serverPreface, 0, TYPE_SETTINGS, (byte) 0, 0);
+        writeFrameHeader(serverPreface, 4, TYPE_WINDOW_UPDATE, (byte) 0, 0);
+        serverPreface.writeInt(Integer.MAX_VALUE - 65535);
+        this.channel.writeInbound(serverPreface);
+        this.drainOutbound();
+    }
+
+    private static void writeFrameHeader(final ByteBuf buffer, final int length, final byte type, final byte flags, final int streamId) {
+        buffer.writeMedium(length);
+        buffer.writeByte(type);
+        buffer.writeByte(flags);
+        buffer.writeInt(streamId);
+    }
+
+    ApnsHttp2Client<T> client() {
+        return this.apnsHttp2Client;
+    }
+
+    ApnsHttp2ClientHandler<T> handler() {
+        return this.handler;
+    }
+
+    EmbeddedChannel channel() {
+        return this.channel;
+    }
+
+    /**
+     * Hands one notification to the handler without running the flush it schedules.
+     *
+     * @return the notification's response future
+     */
+    Future<ApnsPushNotificationResponse<T>> write(final T notification) {
+        final DefaultPromise<ApnsPushNotificationResponse<T>> responsePromise = new DefaultPromise<>(this.channel.eventLoop());
+        this.channel.write(new PendingNotification<>(notification, responsePromise));
+        return responsePromise;
+    }
+
+    /**
+     * Writes one notification, runs the scheduled flush and discards what the handler wrote.
+     */
+    Future<ApnsPushNotificationResponse<T>> send(final T notification) {
+        final Future<ApnsPushNotificationResponse<T>> responseFuture = this.write(notification);
+        this.runPendingTasks();
+        this.drainOutbound();
+        return responseFuture;
+    }
+
+    int lastStreamId() {
+        return this.handler.connection().local().lastStreamCreated();
+    }
+
+    void runPendingTasks() {
+        this.channel.runPendingTasks();
+    }
+
+    /**
+     * Answers the stream with a status and no body, in one HEADERS frame that ends the stream.
+     */
+    void respond(final int streamId, final int status) {
+        final ByteBuf frames = Unpooled.buffer();
+        writeStatusHeaders(frames, streamId, status, true);
+        this.writeInbound(frames);
+    }
+
+    /**
+     * Answers the stream with a status and a body, the body split over as many DATA frames as
+     * there are chunks.
+     */
+    void respond(final int streamId, final int status, final String... bodyChunks) {
+        final ByteBuf frames = Unpooled.buffer();
+        writeStatusHeaders(frames, streamId, status, false);
+        for (int i = 0; i < bodyChunks.length; i++) {
+            final byte[] chunk = bodyChunks[i].getBytes(StandardCharsets.UTF_8);
+            writeFrameHeader(frames, chunk.length, TYPE_DATA, i == bodyChunks.length - 1 ? FLAG_END_STREAM : 0, streamId);
+            frames.writeBytes(chunk);
+        }
+        this.writeInbound(frames);
+    }
+
+    void reset(final int streamId, final long errorCode) {
+        final ByteBuf frame = Unpooled.buffer();
+        writeFrameHeader(frame, 4, TYPE_RST_STREAM, (byte) 0, streamId);
+        frame.writeInt((int) errorCode);
+        this.writeInbound(frame);
+    }
+
+    private static void writeStatusHeaders(final ByteBuf frames, final int streamId, final int status, final boolean endOfStream) {
+        final byte[] statusBytes = Integer.toString(status).getBytes(StandardCharsets.US_ASCII);
+        writeFrameHeader(frames, 2 + statusBytes.length, TYPE_HEADERS,
+                (byte) (FLAG_END_HEADERS | (endOfStream ? FLAG_END_STREAM : 0)), streamId);
+        frames.writeByte(LITERAL_STATUS);
+        frames.writeByte(statusBytes.length);
+        frames.writeBytes(statusBytes);
+    }
+
+    private void writeInbound(final ByteBuf frames) {
+        this.channel.writeInbound(frames);
+        this.runPendingTasks();
+        this.drainOutbound();
+    }
+
+    void drainOutbound() {
+        Object message;
+        while ((message = this.channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    void close() {
+        this.channel.finishAndReleaseAll();
+        this.clientEventLoopGroup.shutdownGracefully();
+    }
+}
@@ -0,0 +1,103 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks that the request headers built from {@link ApnsHttp2RequestHeaders} templates carry
+ * the {@code :path} of their own notification: directly, and on the wire of a local
+ * {@link MockApnsServer} that allows one stream at a time, so that notifications sent back to
+ * back wait for a stream while later ones are being written.
+ */
+public class TestApnsHttp2RequestHeaders {
+
+    private static final int NOTIFICATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        checkHeaders();
+        checkHeadersOnTheWire(1);
+        checkHeadersOnTheWire(1000);
+    }
+
+    private static void checkHeaders() {
+        final ApnsHttp2RequestHeaders requestHeaders = new ApnsHttp2RequestHeaders(EmbeddedApnsConnection.AUTHORITY);
+
+        final Http2Headers first = requestHeaders.headersFor(newNotification(token(1)));
+        final Http2Headers second = requestHeaders.headersFor(newNotification(token(2)));
+
+        check(first != second, "two notifications should not share headers");
+        check(("/3/device/" + token(1)).contentEquals(first.path()), "the first headers should keep their path");
+        check(("/3/device/" + token(2)).contentEquals(second.path()), "the second headers should have their own path");
+        check(TestMockApnsServerLoad.TOPIC.contentEquals(first.get("apns-topic")), "the topic should come from the template");
+        check(first.size() == second.size(), "every notification of a topic should carry the same headers");
+
+        /** the reused template is overwritten by the next stream, but copies handed out before stay intact **/
+        final Http2Headers reused = requestHeaders.reusedHeadersFor(newNotification(token(3)));
+        check(requestHeaders.reusedHeadersFor(newNotification(token(4))) == reused, "a topic should reuse its template");
+        check(("/3/device/" + token(4)).contentEquals(reused.path()), "the reused template should carry the latest path");
+        check(("/3/device/" + token(1)).contentEquals(first.path()), "a copy should not follow the template");
+        check(reused.size() == first.size(), "the reused template should carry the same headers as a copy");
+
+        System.out.println("headers: ok");
+    }
+
+    private static void checkHeadersOnTheWire(final int maxConcurrentStreams) throws Exception {
+        final MockApnsServer server = new MockApnsServer();
+        server.setMaxConcurrentStreams(maxConcurrentStreams);
+        server.setRecordPaths(true);
+        server.start(0).sync();
+
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .build();
+        client.setMaxPendingNotifications(NOTIFICATIONS);
+
+        try {
+            client.connect("localhost", server.getPort()).sync();
+            client.waitForInitialSettings();
+
+            /** back to back on one topic, without waiting for any answer **/
+            final List<String> expectedPaths = new ArrayList<>(NOTIFICATIONS);
+            final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures = new ArrayList<>(NOTIFICATIONS);
+            for (int i = 0; i < NOTIFICATIONS; i++) {
+                expectedPaths.add("/3/device/" + token(i));
+                responseFutures.add(client.sendNotification(newNotification(token(i))));
+            }
+            for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : responseFutures) {
+                check(responseFuture.await().isSuccess() && responseFuture.getNow().isAccepted(), "every notification should be accepted");
+            }
+
+            final List<String> receivedPaths = server.getReceivedPaths();
+            check(receivedPaths.equals(expectedPaths), "each HEADERS frame should carry the path of its own notification, got " + receivedPaths);
+        } finally {
+            client.disconnect().await();
+            server.shutdown().await();
+        }
+
+        System.out.println(String.format("headers on the wire with %d concurrent streams: ok", maxConcurrentStreams));
+    }
+
+    private static ApnsPushNotification newNotification(final String token) {
+        return new ApnsHttp2PushNotification(token, TestMockApnsServerLoad.TOPIC,
+                Payload.newPayload().alertBody("Hello from the header test").build());
+    }
+
+    private static String token(final int i) {
+        return String.format(Locale.ROOT, "%064x", i);
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
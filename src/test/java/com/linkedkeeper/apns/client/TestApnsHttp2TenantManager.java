@@ -0,0 +1,143 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.concurrent.Future;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers many tenants over a few certificates with an {@link ApnsHttp2TenantManager} and
+ * sends for them to a local {@link MockApnsServer}: checks that tenants with the same
+ * certificate share an SSL context, that connections open on the first send and close once
+ * idle, and that the thread count doesn't grow with the tenants.
+ * <p/>
+ * Usage: {@code TestApnsHttp2TenantManager [tenants] [certificates]}.
+ */
+public class TestApnsHttp2TenantManager {
+
+    private static final String PASSWORD = "tenant";
+    private static final int EVENT_LOOP_THREADS = 2;
+    private static final int NOTIFICATIONS_PER_TENANT = 20;
+
+    public static void main(String[] args) throws Exception {
+        final int tenantCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int certificateCount = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final MockApnsServer server = new MockApnsServer();
+        server.start(0).sync();
+
+        final List<KeyStore> keyStores = new ArrayList<>(certificateCount);
+        for (int i = 0; i < certificateCount; i++) {
+            keyStores.add(newKeyStore());
+        }
+
+        /** a client built from a file parses it once and still connects **/
+        final File p12File = File.createTempFile("tenant", ".p12");
+        try (final OutputStream outputStream = new FileOutputStream(p12File)) {
+            keyStores.get(0).store(outputStream, PASSWORD.toCharArray());
+        }
+        final ApnsHttp2Client<ApnsPushNotification> fileClient = new ApnsHttp2Client<>(p12File, PASSWORD);
+        fileClient.disconnect().await();
+
+        final int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        final ApnsHttp2TenantManager manager = new ApnsHttp2TenantManager(EVENT_LOOP_THREADS);
+        manager.setTrustedServerCertificate(server.getCertificate());
+        manager.setApnsServer("localhost", server.getPort());
+        manager.setIdleTimeout(1, TimeUnit.MINUTES);
+
+        final long registerStart = System.nanoTime();
+        manager.register(tenant(0), p12File, PASSWORD);
+        for (int i = 1; i < tenantCount; i++) {
+            manager.register(tenant(i), keyStores.get(i % certificateCount), PASSWORD);
+        }
+        System.out.println(String.format("registered %d tenants over %d certificates in %d ms: %d SSL contexts",
+                tenantCount, certificateCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - registerStart), manager.getDistinctSslContexts()));
+        check(manager.getRegisteredTenants() == tenantCount, "every tenant should be registered");
+        check(manager.getDistinctSslContexts() == certificateCount, "tenants with the same certificate should share an SSL context");
+        check(manager.getConnectedTenants() == 0, "registering should connect nothing");
+
+        final long sendStart = System.nanoTime();
+        sendToEveryTenant(manager, tenantCount);
+        final int threadsConnected = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println(String.format("sent %d notifications for %d tenants in %d ms on %d connections, %d more threads",
+                tenantCount * NOTIFICATIONS_PER_TENANT, tenantCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendStart),
+                manager.getConnectedTenants(), threadsConnected - threadsBefore));
+        check(manager.getConnectedTenants() == tenantCount, "every tenant that sent should be connected");
+        /** the event loop threads plus a few shared executors, never one per tenant **/
+        check(threadsConnected - threadsBefore <= EVENT_LOOP_THREADS + 4, "threads should not grow with the tenants");
+        check(server.getConnections() == tenantCount, "each tenant should connect once");
+
+        manager.setIdleTimeout(200, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 40 && manager.getConnectedTenants() > 0; i++) {
+            Thread.sleep(50);
+        }
+        System.out.println(String.format("after the idle timeout: %d connected tenants", manager.getConnectedTenants()));
+        check(manager.getConnectedTenants() == 0, "idle tenants should be disconnected");
+
+        /** an evicted tenant reconnects on its next send **/
+        sendToEveryTenant(manager, certificateCount);
+        check(manager.getConnectedTenants() == certificateCount, "tenants should reconnect on their next send");
+
+        for (int i = 0; i < tenantCount; i += certificateCount) {
+            check(manager.unregister(tenant(i)), "a registered tenant should unregister");
+        }
+        check(!manager.unregister(tenant(0)), "an unregistered tenant should be gone");
+        check(manager.getDistinctSslContexts() == certificateCount - 1, "a certificate without tenants should drop its SSL context");
+        final Future<ApnsPushNotificationResponse<ApnsPushNotification>> unknown = manager.sendNotification(tenant(0), newNotification(0));
+        check(!unknown.isSuccess(), "an unregistered tenant should not send");
+
+        manager.disconnect().await();
+        server.shutdown().await();
+        check(p12File.delete(), "the key store file should be deletable");
+        System.out.println("tenant manager: ok");
+    }
+
+    private static void sendToEveryTenant(final ApnsHttp2TenantManager manager, final int tenantCount) throws InterruptedException {
+        final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures = new ArrayList<>();
+        for (int i = 0; i < tenantCount; i++) {
+            for (int j = 0; j < NOTIFICATIONS_PER_TENANT; j++) {
+                responseFutures.add(manager.sendNotification(tenant(i), newNotification(j)));
+            }
+        }
+        for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : responseFutures) {
+            check(responseFuture.await().isSuccess() && responseFuture.getNow().isAccepted(), "every notification should be accepted");
+        }
+    }
+
+    private static ApnsPushNotification newNotification(final int i) {
+        return new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC,
+                Payload.newPayload().alertBody("Hello tenant " + i).build());
+    }
+
+    private static KeyStore newKeyStore() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("tenant", certificate.key(), PASSWORD.toCharArray(), new Certificate[]{certificate.cert()});
+        certificate.delete();
+        return keyStore;
+    }
+
+    private static String tenant(final int i) {
+        return "tenant-" + i;
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
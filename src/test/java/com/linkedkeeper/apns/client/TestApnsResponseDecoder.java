@@ -0,0 +1,188 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotificationResponse;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.data.RejectionReason;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.Future;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Checks {@link ApnsResponseDecoder} against the bodies and statuses APNs may send, then the
+ * whole response path of {@link ApnsHttp2ClientHandler} with hand-encoded frames, including a
+ * body split over several DATA frames.
+ */
+public class TestApnsResponseDecoder {
+
+    private static final long TIMESTAMP = 1475254735000L;
+
+    public static void main(String[] args) throws Exception {
+        checkStatus();
+        checkReasons();
+        checkLayouts();
+        checkEscapes();
+        checkTimestamps();
+        checkResponses();
+    }
+
+    private static void checkStatus() {
+        check(ApnsResponseDecoder.parseStatus("200") == 200, "200 should parse");
+        check(ApnsResponseDecoder.parseStatus(new AsciiString("410")) == 410, "410 should parse from an AsciiString");
+        check(ApnsResponseDecoder.parseStatus("503") == 503, "503 should parse");
+        check(ApnsResponseDecoder.parseStatus(null) == 0, "a missing status should be 0");
+        check(ApnsResponseDecoder.parseStatus("20") == 0, "two digits should be 0");
+        check(ApnsResponseDecoder.parseStatus("2000") == 0, "four digits should be 0");
+        check(ApnsResponseDecoder.parseStatus("4x0") == 0, "a status with a letter should be 0");
+        check(ApnsResponseDecoder.parseStatus(" 20") == 0, "a status with a space should be 0");
+        System.out.println("status: ok");
+    }
+
+    private static void checkReasons() {
+        for (final RejectionReason reason : RejectionReason.values()) {
+            if (reason == RejectionReason.UNKNOWN) {
+                continue;
+            }
+            final ByteBuf body = body("{\"reason\":\"" + reason.getReason() + "\"}");
+            check(ApnsResponseDecoder.readReason(body) == reason, reason + " should be recognised");
+            check(reason.getReason().equals(ApnsResponseDecoder.readReasonString(body)), reason + " should decode to its spelling");
+        }
+
+        final ByteBuf unknown = body("{\"reason\":\"SomethingNew\"}");
+        check(ApnsResponseDecoder.readReason(unknown) == RejectionReason.UNKNOWN, "an unknown reason should be UNKNOWN");
+        check("SomethingNew".equals(ApnsResponseDecoder.readReasonString(unknown)), "an unknown reason should still decode");
+
+        /** a prefix or an extension of a known reason is not that reason **/
+        check(ApnsResponseDecoder.readReason(body("{\"reason\":\"BadDevice\"}")) == RejectionReason.UNKNOWN, "a prefix should be UNKNOWN");
+        check(ApnsResponseDecoder.readReason(body("{\"reason\":\"BadDeviceTokens\"}")) == RejectionReason.UNKNOWN, "an extension should be UNKNOWN");
+
+        final ByteBuf noReason = body("{}");
+        check(ApnsResponseDecoder.readReason(noReason) == RejectionReason.UNKNOWN, "a body without reason should be UNKNOWN");
+        check(ApnsResponseDecoder.readReasonString(noReason) == null, "a body without reason should have no reason string");
+        check(ApnsResponseDecoder.readReasonString(body("{\"reason\":null}")) == null, "a null reason should have no reason string");
+        check(ApnsResponseDecoder.readReason(body("")) == RejectionReason.UNKNOWN, "an empty body should be UNKNOWN");
+        System.out.println("reasons: ok");
+    }
+
+    private static void checkLayouts() {
+        final String[] bodies = {
+                "{\"reason\":\"Unregistered\",\"timestamp\":" + TIMESTAMP + "}",
+                "{\"timestamp\":" + TIMESTAMP + ",\"reason\":\"Unregistered\"}",
+                "{ \"reason\" : \"Unregistered\" , \"timestamp\" : " + TIMESTAMP + " }",
+                "{\n\t\"timestamp\":\t" + TIMESTAMP + ",\r\n\t\"reason\" :\"Unregistered\"\n}",
+        };
+        for (final String json : bodies) {
+            final ByteBuf body = body(json);
+            check(ApnsResponseDecoder.readReason(body) == RejectionReason.UNREGISTERED, "the reason should be found in " + json);
+            check(ApnsResponseDecoder.readTimestamp(body) == TIMESTAMP, "the timestamp should be found in " + json);
+        }
+
+        /** only the readable bytes count, wherever they sit in the buffer **/
+        final ByteBuf offset = Unpooled.copiedBuffer("xx\"reason\":\"BadTopic\"}{\"reason\":\"Unregistered\"}", StandardCharsets.UTF_8);
+        offset.readerIndex(offset.readableBytes() - "{\"reason\":\"Unregistered\"}".length());
+        check(ApnsResponseDecoder.readReason(offset) == RejectionReason.UNREGISTERED, "bytes before the reader index should be ignored");
+        check(offset.readerIndex() != 0 && offset.isReadable(), "the buffer's indexes should be left alone");
+        System.out.println("layouts: ok");
+    }
+
+    private static void checkEscapes() {
+        final ByteBuf quoted = body("{\"reason\":\"Bad\\\"Quote\\\\Slash\\/Tab\\tE\\u00e9\"}");
+        check(ApnsResponseDecoder.readReason(quoted) == RejectionReason.UNKNOWN, "an escaped unknown reason should be UNKNOWN");
+        check("Bad\"Quote\\Slash/Tab\tEé".equals(ApnsResponseDecoder.readReasonString(quoted)), "escapes should be resolved");
+
+        /** an escaped quote does not end the string, so the timestamp after it is still found **/
+        final ByteBuf trailing = body("{\"reason\":\"a\\\"b\",\"timestamp\":" + TIMESTAMP + "}");
+        check("a\"b".equals(ApnsResponseDecoder.readReasonString(trailing)), "an escaped quote should stay in the reason");
+        check(ApnsResponseDecoder.readTimestamp(trailing) == TIMESTAMP, "the timestamp should follow an escaped reason");
+
+        final ByteBuf escapedKnown = body("{\"reason\":\"Unre\\u0067istered\"}");
+        check("Unregistered".equals(ApnsResponseDecoder.readReasonString(escapedKnown)), "a \\u escape should be resolved");
+        check(RejectionReason.fromReason(ApnsResponseDecoder.readReasonString(escapedKnown)) == RejectionReason.UNREGISTERED,
+                "an escaped known reason should map to its constant");
+
+        check("a\\u00zz".equals(ApnsResponseDecoder.readReasonString(body("{\"reason\":\"a\\u00zz\"}"))), "a broken escape should be kept");
+        System.out.println("escapes: ok");
+    }
+
+    private static void checkTimestamps() {
+        check(ApnsResponseDecoder.readTimestamp(body("{\"reason\":\"BadDeviceToken\"}")) == ApnsResponseDecoder.NO_TIMESTAMP,
+                "a body without timestamp should have none");
+        check(ApnsResponseDecoder.readTimestamp(body("{\"reason\":\"Unregistered\",\"timestamp\":null}")) == ApnsResponseDecoder.NO_TIMESTAMP,
+                "a null timestamp should be none");
+        check(ApnsResponseDecoder.readTimestamp(body("{\"timestamp\":")) == ApnsResponseDecoder.NO_TIMESTAMP,
+                "a cut-off timestamp should be none");
+        check(ApnsResponseDecoder.readTimestamp(body("{\"timestamp\":0}")) == 0, "a zero timestamp should be kept");
+        System.out.println("timestamps: ok");
+    }
+
+    private static void checkResponses() {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>();
+        try {
+            final ApnsHttp2PushNotificationResponse<ApnsPushNotification> split = respond(connection, 410,
+                    "{\"reas", "on\":\"Unregis", "tered\",\"timest", "amp\":" + TIMESTAMP + "}");
+            check(!split.isAccepted() && split.getRejectionReasonType() == RejectionReason.UNREGISTERED,
+                    "a body split over DATA frames should decode as a whole");
+            check(new Date(TIMESTAMP).equals(split.getTokenInvalidationTimestamp()), "the split timestamp should decode");
+
+            final ApnsHttp2PushNotificationResponse<ApnsPushNotification> serverError = respond(connection, 500,
+                    "{\"reason\":\"InternalServerError\"}");
+            check(!serverError.isAccepted() && serverError.getRejectionReasonType() == RejectionReason.INTERNAL_SERVER_ERROR,
+                    "a 500 should be rejected with its reason");
+            check(serverError.getTokenInvalidationTimestamp() == null, "a body without timestamp should have none");
+
+            final ApnsHttp2PushNotificationResponse<ApnsPushNotification> unknown = respond(connection, 400,
+                    "{\"reason\":\"Som", "ethingNew\"}");
+            check(unknown.getRejectionReasonType() == RejectionReason.UNKNOWN && "SomethingNew".equals(unknown.getRejectionReason()),
+                    "an unknown reason should keep its spelling");
+
+            final ApnsHttp2PushNotificationResponse<ApnsPushNotification> escaped = respond(connection, 410,
+                    "{\"reason\":\"Unre\\u0067istered\"}");
+            check(escaped.getRejectionReasonType() == RejectionReason.UNREGISTERED, "an escaped known reason should map to its constant");
+
+            final ApnsHttp2PushNotificationResponse<ApnsPushNotification> headersOnly = respond(connection, 503);
+            check(!headersOnly.isAccepted() && headersOnly.getRejectionReasonType() == RejectionReason.UNKNOWN,
+                    "a non-200 status without body should be rejected as UNKNOWN");
+
+            final ApnsHttp2PushNotificationResponse<ApnsPushNotification> badStatus = respond(connection, 99, "{}");
+            check(!badStatus.isAccepted(), "an unparsable status should not be accepted");
+
+            final ApnsHttp2PushNotificationResponse<ApnsPushNotification> acceptedWithBody = respond(connection, 200, "");
+            check(acceptedWithBody.isAccepted() && acceptedWithBody.getRejectionReasonType() == null, "a 200 should be accepted");
+
+            check(connection.handler().getInFlightNotifications() == 0, "every stream should be answered");
+        } finally {
+            connection.close();
+        }
+        System.out.println("responses: ok");
+    }
+
+    private static ApnsHttp2PushNotificationResponse<ApnsPushNotification> respond(final EmbeddedApnsConnection<ApnsPushNotification> connection,
+                                                                                final int status, final String... bodyChunks) {
+        final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture = connection.send(
+                new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC,
+                        Payload.newPayload().alertBody("Hello from the decoder test").build()));
+        if (bodyChunks.length == 0) {
+            connection.respond(connection.lastStreamId(), status);
+        } else {
+            connection.respond(connection.lastStreamId(), status, bodyChunks);
+        }
+        check(responseFuture.isSuccess(), "the response with status " + status + " should complete the notification");
+        return (ApnsHttp2PushNotificationResponse<ApnsPushNotification>) responseFuture.getNow();
+    }
+
+    private static ByteBuf body(final String json) {
+        return Unpooled.copiedBuffer(json, StandardCharsets.UTF_8);
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
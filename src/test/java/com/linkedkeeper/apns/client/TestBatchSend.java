@@ -0,0 +1,160 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.exceptions.ClientNotConnectedException;
+import com.linkedkeeper.apns.exceptions.RateLimitExceededException;
+import com.linkedkeeper.apns.server.LatencyDistribution;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends batches through {@link ApnsHttp2Client#sendNotifications} to a local
+ * {@link MockApnsServer} that answers out of order, and checks that each response future sits
+ * at the position of its notification, that rejections don't fail the batch, and that a batch
+ * with some notifications that could not be sent fails with their cause while the rest are
+ * still answered.
+ */
+public class TestBatchSend {
+
+    private static final int BATCH_SIZE = 2_000;
+    private static final int UNREGISTERED_EVERY = 7;
+
+    public static void main(String[] args) throws Exception {
+        final MockApnsServer server = new MockApnsServer();
+        /** a wide spread of latencies, so responses come back in a different order than sent **/
+        server.setLatencyDistribution(LatencyDistribution.exponential(100, 2_000, TimeUnit.MICROSECONDS));
+        for (int i = 0; i < BATCH_SIZE; i += UNREGISTERED_EVERY) {
+            server.addUnregisteredToken(token(i));
+        }
+        server.start(0).sync();
+
+        try {
+            checkOrder(server);
+            checkPartialFailure(server);
+            checkEmptyAndDisconnected(server);
+        } finally {
+            server.shutdown().await();
+        }
+    }
+
+    private static void checkOrder(final MockApnsServer server) throws Exception {
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        try {
+            final List<ApnsPushNotification> notifications = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                notifications.add(newNotification(token(i)));
+            }
+
+            final BatchSendResult<ApnsPushNotification> result = client.sendNotifications(notifications);
+            check(result.size() == BATCH_SIZE, "the batch should have one future per notification");
+            check(result.getBatchFuture().await(10, TimeUnit.SECONDS), "the batch should complete");
+            check(result.getBatchFuture().isSuccess(), "rejections should not fail the batch");
+
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                final ApnsPushNotificationResponse<ApnsPushNotification> response = result.getResponseFutures().get(i).getNow();
+                check(response.getApnsPushNotification() == notifications.get(i), "response " + i + " belongs to another notification");
+                check(response.isAccepted() == (i % UNREGISTERED_EVERY != 0), "notification " + i + " got the wrong answer");
+            }
+
+            /** the iterator form keeps the iteration order too **/
+            final BatchSendResult<ApnsPushNotification> iteratorResult = client.sendNotifications(notifications.subList(0, 100).iterator());
+            iteratorResult.getBatchFuture().await();
+            for (int i = 0; i < 100; i++) {
+                check(iteratorResult.getResponseFutures().get(i).getNow().getApnsPushNotification() == notifications.get(i),
+                        "iterator response " + i + " belongs to another notification");
+            }
+        } finally {
+            client.disconnect().await();
+        }
+
+        System.out.println("batch order: ok");
+    }
+
+    private static void checkPartialFailure(final MockApnsServer server) throws Exception {
+        /** one notification per token and hour; a repeated token fails without being sent **/
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .deviceTokenRateLimiter(new DeviceTokenRateLimiter(1, 1, TimeUnit.HOURS))
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        try {
+            final List<ApnsPushNotification> notifications = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                /** every third notification repeats the token of the one before it **/
+                notifications.add(newNotification(token(i % 3 == 2 ? i - 1 : i)));
+            }
+
+            final BatchSendResult<ApnsPushNotification> result = client.sendNotifications(notifications);
+            check(result.getBatchFuture().await(10, TimeUnit.SECONDS), "the batch should complete");
+            check(result.getBatchFuture().cause() instanceof RateLimitExceededException,
+                    "the batch should fail with the cause of the notifications that could not be sent");
+
+            for (int i = 0; i < notifications.size(); i++) {
+                final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture = result.getResponseFutures().get(i);
+                check(responseFuture.isDone(), "every notification should be done with the batch");
+                if (i % 3 == 2) {
+                    check(responseFuture.cause() instanceof RateLimitExceededException, "notification " + i + " should have failed");
+                } else {
+                    check(responseFuture.isSuccess(), "notification " + i + " should have been answered");
+                    check(responseFuture.getNow().getApnsPushNotification() == notifications.get(i),
+                            "response " + i + " belongs to another notification");
+                }
+            }
+        } finally {
+            client.disconnect().await();
+        }
+
+        System.out.println("partial failure: ok");
+    }
+
+    private static void checkEmptyAndDisconnected(final MockApnsServer server) throws Exception {
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .build();
+
+        final BatchSendResult<ApnsPushNotification> empty = client.sendNotifications(Collections.<ApnsPushNotification>emptyList());
+        check(empty.size() == 0 && empty.getBatchFuture().isSuccess(), "an empty batch should succeed at once");
+
+        final BatchSendResult<ApnsPushNotification> result = client.sendNotifications(
+                Collections.nCopies(10, newNotification(token(1))));
+        check(result.getBatchFuture().await(1, TimeUnit.SECONDS), "a batch on a client that never connected should complete at once");
+        check(result.getBatchFuture().cause() instanceof ClientNotConnectedException, "the batch should fail as not connected");
+        for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : result.getResponseFutures()) {
+            check(responseFuture.cause() instanceof ClientNotConnectedException, "every notification should fail as not connected");
+        }
+        client.disconnect().await();
+
+        System.out.println("empty and disconnected batches: ok");
+    }
+
+    private static ApnsPushNotification newNotification(final String token) {
+        return new ApnsHttp2PushNotification(token, TestMockApnsServerLoad.TOPIC,
+                Payload.newPayload().alertBody("Hello from the batch test").build());
+    }
+
+    private static String token(final int i) {
+        return String.format(Locale.ROOT, "%064x", i);
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
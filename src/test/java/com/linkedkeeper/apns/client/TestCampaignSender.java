@@ -0,0 +1,152 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.PayloadTemplate;
+import com.linkedkeeper.apns.server.MockApnsServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link CampaignSender} over a generated token file against a local
+ * {@link MockApnsServer}: stops the first run part way, resumes it from its checkpoint, and
+ * checks that every token got a result, with small mapping windows so lines cross them.
+ * <p/>
+ * Usage: {@code TestCampaignSender [tokens] [maxInFlight]}.
+ */
+public class TestCampaignSender {
+
+    private static final int UNREGISTERED_EVERY = 1_000;
+    private static final int MALFORMED_EVERY = 997;
+
+    public static void main(String[] args) throws Exception {
+        final int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        final int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+
+        final File directory = Files.createTempDirectory("campaign").toFile();
+        final File tokenFile = new File(directory, "tokens.tsv");
+        final File resultFile = new File(directory, "results.tsv");
+        final File checkpointFile = new File(directory, "campaign.checkpoint");
+
+        final MockApnsServer server = new MockApnsServer();
+        try (final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tokenFile), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < tokens; i++) {
+                final String token = token(i);
+                if (i % UNREGISTERED_EVERY == 0) {
+                    server.addUnregisteredToken(token);
+                }
+                /** a badge that isn't a number fails its line only **/
+                final String badge = i % MALFORMED_EVERY == 0 ? "many" : Integer.toString(i % 100);
+                writer.write(token + "\tFrançois " + i + "\t" + badge + (i % 2 == 0 ? "\r\n" : "\n"));
+                if (i % 5_000 == 0) {
+                    writer.write("\n");
+                }
+            }
+        }
+        server.start(0).sync();
+
+        final ApnsHttp2ClientPool<ApnsPushNotification> pool = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .buildPool(4);
+        pool.connect("localhost", server.getPort()).sync();
+
+        final PayloadTemplate template = PayloadTemplate.compile("{\"aps\":{\"alert\":\"Hi ${name}\",\"badge\":${badge}}}");
+
+        /** the first run is stopped once about a third of the tokens are answered **/
+        final CampaignSender firstRun = newCampaign(pool, tokenFile, template, resultFile, checkpointFile, maxInFlight);
+        final Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (firstRun.getProgress().getCompletedNotifications() < tokens / 3) {
+                        Thread.sleep(1);
+                    }
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                firstRun.stop();
+            }
+        });
+        stopper.start();
+        final CampaignProgress firstProgress = firstRun.run();
+        stopper.join();
+        System.out.println("first run: " + firstProgress);
+        check(firstProgress.getInFlightNotifications() == 0, "a stopped run should wait for its notifications");
+        check(firstProgress.getCheckpointOffset() < tokenFile.length(), "the first run should have stopped part way");
+
+        final CampaignSender secondRun = newCampaign(pool, tokenFile, template, resultFile, checkpointFile, maxInFlight);
+        final CampaignProgress secondProgress = secondRun.run();
+        System.out.println("second run: " + secondProgress);
+        check(secondProgress.getCheckpointOffset() == tokenFile.length(), "the second run should finish the file");
+
+        pool.disconnect().await();
+        server.shutdown().await();
+
+        final Map<String, String> results = new HashMap<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(resultFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] columns = line.split("\t");
+                results.put(columns[0], columns[1]);
+            }
+        }
+
+        int accepted = 0;
+        int rejected = 0;
+        int failed = 0;
+        for (int i = 0; i < tokens; i++) {
+            final String result = results.get(token(i));
+            check(result != null, "token " + i + " should have a result");
+            if (i % MALFORMED_EVERY == 0) {
+                check(result.equals("FAILED"), "a malformed line should fail");
+                failed++;
+            } else if (i % UNREGISTERED_EVERY == 0) {
+                check(result.equals("REJECTED"), "an unregistered token should be rejected");
+                rejected++;
+            } else {
+                check(result.equals("ACCEPTED"), "token " + i + " should be accepted");
+                accepted++;
+            }
+        }
+        System.out.println(String.format("%d tokens: %d accepted, %d rejected, %d failed; %d sent twice after resuming",
+                tokens, accepted, rejected, failed, firstProgress.getSentNotifications() + secondProgress.getSentNotifications() - tokens));
+
+        for (final File file : directory.listFiles()) {
+            check(file.delete(), "campaign files should be deletable");
+        }
+        check(directory.delete(), "the campaign directory should be empty");
+    }
+
+    private static CampaignSender newCampaign(final ApnsHttp2ClientPool<ApnsPushNotification> pool, final File tokenFile, final PayloadTemplate template,
+                                              final File resultFile, final File checkpointFile, final int maxInFlight) {
+        final CampaignSender campaign = new CampaignSender(pool, tokenFile, template, TestMockApnsServerLoad.TOPIC);
+        campaign.setResultFile(resultFile);
+        campaign.setCheckpointFile(checkpointFile);
+        campaign.setMaxInFlight(maxInFlight);
+        campaign.setProgressInterval(500, TimeUnit.MILLISECONDS);
+        campaign.setWindowSize(64 * 1024);
+        return campaign;
+    }
+
+    private static String token(final int i) {
+        return String.format(Locale.ROOT, "%064x", i);
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
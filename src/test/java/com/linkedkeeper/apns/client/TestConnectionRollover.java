@@ -0,0 +1,82 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.LatencyDistribution;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a client with a low stream id rollover threshold against a local {@link MockApnsServer},
+ * so it hands over to a new connection many times during the run, and checks that no
+ * notification fails on the way.
+ * <p/>
+ * Usage: {@code TestConnectionRollover [notifications] [streamsPerConnection] [maxInFlight]}.
+ */
+public class TestConnectionRollover {
+
+    public static void main(String[] args) throws Exception {
+        final int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        final int streamsPerConnection = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        final int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+
+        final MockApnsServer server = new MockApnsServer();
+        server.setLatencyDistribution(LatencyDistribution.exponential(200, 300, TimeUnit.MICROSECONDS));
+        server.start(0).sync();
+
+        final CountingApnsClientMetricsListener metrics = new CountingApnsClientMetricsListener();
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .metricsListener(metrics)
+                .build();
+        client.setStreamIdRolloverThreshold(2L * streamsPerConnection + 1);
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        final String payload = Payload.newPayload().alertBody("Hello from the rollover test").badge(1).build();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicLong accepted = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseListener =
+                new GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>>() {
+                    @Override
+                    public void operationComplete(final Future<ApnsPushNotificationResponse<ApnsPushNotification>> future) throws Exception {
+                        if (future.isSuccess() && future.getNow().isAccepted()) {
+                            accepted.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                        inFlight.release();
+                    }
+                };
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < notifications; i++) {
+            inFlight.acquire();
+            client.sendNotification(new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC, payload))
+                    .addListener(responseListener);
+        }
+        inFlight.acquire(maxInFlight);
+        final long elapsedNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%d notifications in %d ms (%d/s): %d accepted, %d failed",
+                notifications, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                notifications * TimeUnit.SECONDS.toNanos(1) / elapsedNanos, accepted.get(), failed.get()));
+        System.out.println(String.format("connections: %d opened by the server, %d added, %d removed, %d failed",
+                server.getConnections(), metrics.getConnectionsAdded(), metrics.getConnectionsRemoved(), metrics.getConnectionFailures()));
+
+        client.disconnect().await();
+        server.shutdown().await();
+
+        if (failed.get() > 0) {
+            throw new AssertionError(failed.get() + " notifications failed during rollover.");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.exceptions.RateLimitExceededException;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link DeviceTokenRateLimiter} lets a burst through, paces the rest, forgets idle
+ * tokens within its fixed capacity, and that a client delays or fails notifications over the
+ * rate of their token against a local {@link MockApnsServer}.
+ */
+public class TestDeviceTokenRateLimiter {
+
+    public static void main(String[] args) throws Exception {
+        checkBurstAndRefill();
+        checkBoundedCapacity();
+        checkClientPacing();
+    }
+
+    private static void checkBurstAndRefill() throws InterruptedException {
+        final DeviceTokenRateLimiter limiter = new DeviceTokenRateLimiter(5, 1, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 5; i++) {
+            check(limiter.acquire(TestMockApnsServerLoad.TOKEN) == 0, "a burst of 5 should pass");
+        }
+        check(limiter.acquire(TestMockApnsServerLoad.TOKEN) < 0, "the 6th notification should fail");
+        check(limiter.acquire("another token") == 0, "another token should have its own bucket");
+
+        Thread.sleep(250);
+        check(limiter.acquire(TestMockApnsServerLoad.TOKEN) == 0, "a permit should refill after 200 ms");
+        check(limiter.acquire(TestMockApnsServerLoad.TOKEN) < 0, "only one permit should have refilled");
+
+        System.out.println("burst and refill: ok");
+    }
+
+    private static void checkBoundedCapacity() {
+        final DeviceTokenRateLimiter limiter = new DeviceTokenRateLimiter(1, 1, TimeUnit.HOURS);
+
+        /** far more tokens than slots; each new token must still get a bucket **/
+        for (int i = 0; i < 200_000; i++) {
+            check(limiter.acquire("token-" + i) == 0, "a new token should always pass");
+        }
+        check(limiter.acquire("token-199999") < 0, "a recent token should still be limited");
+
+        System.out.println("bounded capacity: ok");
+    }
+
+    private static void checkClientPacing() throws Exception {
+        final MockApnsServer server = new MockApnsServer();
+        server.start(0).sync();
+
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .deviceTokenRateLimiter(new DeviceTokenRateLimiter(10, 1000, 2000, TimeUnit.MILLISECONDS, 1024))
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        final String payload = Payload.newPayload().alertBody("Hello from the rate limiter test").build();
+        final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures = new ArrayList<>();
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 40; i++) {
+            responseFutures.add(client.sendNotification(
+                    new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC, payload)));
+        }
+
+        int accepted = 0;
+        int limited = 0;
+        for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : responseFutures) {
+            responseFuture.await();
+            if (responseFuture.isSuccess() && responseFuture.getNow().isAccepted()) {
+                accepted++;
+            } else if (responseFuture.cause() instanceof RateLimitExceededException) {
+                limited++;
+            }
+        }
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        client.disconnect().await();
+        server.shutdown().await();
+
+        System.out.println(String.format("client pacing: %d accepted, %d limited in %d ms", accepted, limited, elapsedMillis));
+
+        /** a burst of 10, then one per 100 ms for up to 2 s **/
+        check(accepted >= 30 && accepted <= 32, "about 30 notifications should be accepted");
+        check(accepted + limited == 40, "the rest should fail with RateLimitExceededException");
+        check(elapsedMillis >= 1900, "the last accepted notification should have waited about 2 s");
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2EncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the reference count of a caller's payload buffer behind
+ * {@link ApnsHttp2EncodedPushNotification}s: the handler writes each DATA frame from a
+ * retained duplicate and gives that reference back once the frame is written or dropped, so
+ * the caller's single reference is all that is left after an accepted, a rejected, a failed
+ * and a replayed notification.
+ */
+public class TestEncodedPayloadReferences {
+
+    public static void main(String[] args) throws Exception {
+        checkAnsweredAndFailed();
+        checkReplayed();
+    }
+
+    private static void checkAnsweredAndFailed() {
+        final ByteBuf payload = newPayload();
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>();
+        try {
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> accepted = connection.write(newNotification(payload));
+            final int acceptedStreamId = connection.lastStreamId();
+            connection.runPendingTasks();
+            check(payload.refCnt() == 2, "the DATA frame should hold one reference until it is written");
+            connection.drainOutbound();
+            check(payload.refCnt() == 1, "a written DATA frame should give its reference back");
+
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> rejected = connection.send(newNotification(payload));
+            connection.respond(connection.lastStreamId(), 400, "{\"reason\":\"BadDeviceToken\"}");
+            connection.respond(acceptedStreamId, 200);
+            check(accepted.isSuccess() && accepted.getNow().isAccepted(), "the first notification should be accepted");
+            check(rejected.isSuccess() && !rejected.getNow().isAccepted(), "the second notification should be rejected");
+            check(payload.refCnt() == 1, "answers should not touch the payload");
+
+            /** written but never flushed when the connection drops **/
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> failed = connection.write(newNotification(payload));
+            check(payload.refCnt() == 2, "an unflushed DATA frame should hold one reference");
+            connection.channel().unsafe().close(connection.channel().voidPromise());
+            connection.runPendingTasks();
+            check(!failed.isSuccess(), "the unflushed notification should fail");
+            check(payload.refCnt() == 1, "a dropped DATA frame should give its reference back");
+        } finally {
+            connection.close();
+        }
+
+        check(payload.release() && payload.refCnt() == 0, "the caller's reference should be the last one");
+        System.out.println("answered and failed: ok");
+    }
+
+    private static void checkReplayed() throws Exception {
+        final MockApnsServer server = new MockApnsServer();
+        /** every connection goes away after 50 streams, leaving later streams to be replayed **/
+        server.setGoAwayAfterStreams(50, "Shutdown");
+        server.start(0).sync();
+
+        final CountingApnsClientMetricsListener metrics = new CountingApnsClientMetricsListener();
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .metricsListener(metrics)
+                .build();
+        client.setMaxPendingNotifications(1_000);
+
+        final ByteBuf payload = newPayload();
+        try {
+            client.connect("localhost", server.getPort()).sync();
+            client.waitForInitialSettings();
+
+            final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                responseFutures.add(client.sendNotification(newNotification(payload)));
+            }
+            for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : responseFutures) {
+                check(responseFuture.await().isSuccess() && responseFuture.getNow().isAccepted(), "every notification should be accepted");
+            }
+
+            System.out.println(String.format("replayed %d of %d notifications over %d connections",
+                    metrics.getReplayedNotifications(), responseFutures.size(), server.getConnections()));
+            check(metrics.getReplayedNotifications() > 0, "some notifications should have been replayed");
+            check(payload.refCnt() == 1, "replayed notifications should leave only the caller's reference");
+        } finally {
+            client.disconnect().await();
+            server.shutdown().await();
+        }
+
+        check(payload.release() && payload.refCnt() == 0, "the caller's reference should be the last one");
+        System.out.println("replayed: ok");
+    }
+
+    private static ByteBuf newPayload() {
+        return ByteBufUtil.writeUtf8(PooledByteBufAllocator.DEFAULT,
+                Payload.newPayload().alertBody("Hello from the reference count test").build());
+    }
+
+    private static ApnsPushNotification newNotification(final ByteBuf payload) {
+        return new ApnsHttp2EncodedPushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC, payload);
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
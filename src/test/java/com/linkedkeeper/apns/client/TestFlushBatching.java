@@ -0,0 +1,124 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.Payload;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks when {@link ApnsHttp2ClientHandler} flushes: once the unflushed notifications reach
+ * the count cap or their payloads reach the byte cap, and otherwise in the single flush it
+ * schedules behind the writes the event loop is running now.
+ */
+public class TestFlushBatching {
+
+    private static final String PAYLOAD = Payload.newPayload().alertBody("Hello from the flush test").build();
+    private static final int PAYLOAD_BYTES = PAYLOAD.getBytes(StandardCharsets.UTF_8).length;
+
+    public static void main(String[] args) throws Exception {
+        checkCountCap();
+        checkByteCap();
+        checkScheduledFlush();
+    }
+
+    private static void checkCountCap() {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>(4, Integer.MAX_VALUE);
+        final RecordingMetricsListener metrics = new RecordingMetricsListener();
+        connection.client().setMetricsListener(metrics);
+        try {
+            for (int i = 0; i < 3; i++) {
+                connection.write(newNotification());
+            }
+            check(metrics.flushedNotifications.isEmpty(), "three notifications should stay below a cap of four");
+            check(connection.channel().outboundMessages().isEmpty(), "nothing should reach the channel before a flush");
+
+            for (int i = 0; i < 7; i++) {
+                connection.write(newNotification());
+            }
+            check(metrics.flushedNotifications.equals(Arrays.asList(4, 4)), "every fourth notification should flush, got " + metrics.flushedNotifications);
+            check(!connection.channel().outboundMessages().isEmpty(), "a flush should hand the frames to the channel");
+
+            connection.runPendingTasks();
+            check(metrics.flushedNotifications.equals(Arrays.asList(4, 4, 2)), "the scheduled flush should take the rest, got " + metrics.flushedNotifications);
+        } finally {
+            connection.close();
+        }
+        System.out.println("count cap: ok");
+    }
+
+    private static void checkByteCap() {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>(Integer.MAX_VALUE, 3 * PAYLOAD_BYTES);
+        final RecordingMetricsListener metrics = new RecordingMetricsListener();
+        connection.client().setMetricsListener(metrics);
+        try {
+            for (int i = 0; i < 7; i++) {
+                connection.write(newNotification());
+            }
+            check(metrics.flushedNotifications.equals(Arrays.asList(3, 3)), "every third payload should reach the byte cap, got " + metrics.flushedNotifications);
+            check(metrics.flushedBytes.equals(Arrays.asList(3 * PAYLOAD_BYTES, 3 * PAYLOAD_BYTES)), "a flush should report its payload bytes");
+
+            connection.runPendingTasks();
+            check(metrics.flushedNotifications.equals(Arrays.asList(3, 3, 1)), "the scheduled flush should take the rest, got " + metrics.flushedNotifications);
+            check(metrics.flushedBytes.get(2) == PAYLOAD_BYTES, "the last flush should count one payload");
+        } finally {
+            connection.close();
+        }
+        System.out.println("byte cap: ok");
+    }
+
+    private static void checkScheduledFlush() {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>();
+        final RecordingMetricsListener metrics = new RecordingMetricsListener();
+        connection.client().setMetricsListener(metrics);
+        try {
+            /** a burst under both caps goes out in one flush, however many writes it has **/
+            for (int i = 0; i < 50; i++) {
+                connection.write(newNotification());
+            }
+            check(metrics.flushedNotifications.isEmpty(), "a burst under the caps should wait for the scheduled flush");
+            connection.runPendingTasks();
+            check(metrics.flushedNotifications.equals(Arrays.asList(50)), "the burst should go out in one flush, got " + metrics.flushedNotifications);
+
+            connection.runPendingTasks();
+            check(metrics.flushedNotifications.size() == 1, "nothing left to write should not flush again");
+
+            connection.write(newNotification());
+            connection.runPendingTasks();
+            check(metrics.flushedNotifications.equals(Arrays.asList(50, 1)), "a later write should schedule a flush of its own");
+            check(metrics.getFlushes() == 2 && metrics.getMeanFlushNotifications() == 25.5, "the counters should see both flushes");
+        } finally {
+            connection.close();
+        }
+        System.out.println("scheduled flush: ok");
+    }
+
+    /**
+     * Keeps the size of every flush, in order.
+     */
+    private static class RecordingMetricsListener extends CountingApnsClientMetricsListener {
+
+        final List<Integer> flushedNotifications = new ArrayList<>();
+        final List<Integer> flushedBytes = new ArrayList<>();
+
+        @Override
+        public void handleFlush(final int notifications, final int payloadBytes) {
+            super.handleFlush(notifications, payloadBytes);
+            this.flushedNotifications.add(notifications);
+            this.flushedBytes.add(payloadBytes);
+        }
+    }
+
+    private static ApnsPushNotification newNotification() {
+        return new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC, PAYLOAD);
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.exceptions.ClientNotConnectedException;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.util.concurrent.Future;
+
+/**
+ * Drives an {@link ApnsHttp2ClientHandler} with hand-encoded gateway frames and checks that
+ * its stream-id keyed table of in-flight notifications loses each entry exactly when the
+ * stream ends: on an accepted or rejected response, on a reset from either side, and when
+ * the connection closes.
+ */
+public class TestInFlightNotifications {
+
+    public static void main(String[] args) throws Exception {
+        checkResponses();
+        checkResets();
+        checkClose();
+    }
+
+    private static void checkResponses() {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>();
+        try {
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> accepted = connection.send(newNotification());
+            final int acceptedStreamId = connection.lastStreamId();
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> rejected = connection.send(newNotification());
+            final int rejectedStreamId = connection.lastStreamId();
+            check(connection.handler().getInFlightNotifications() == 2, "each written notification should be in flight");
+
+            /** answered out of order, the rejection in a HEADERS and a DATA frame **/
+            connection.respond(rejectedStreamId, 400, "{\"reason\":\"BadDeviceToken\"}");
+            check(connection.handler().getInFlightNotifications() == 1, "a rejection should end its stream");
+            check(rejected.isSuccess() && !rejected.getNow().isAccepted(), "the rejection should complete its own notification");
+            check(!accepted.isDone(), "the other notification should still wait");
+
+            connection.respond(acceptedStreamId, 200);
+            check(connection.handler().getInFlightNotifications() == 0, "an accepted response should end its stream");
+            check(accepted.isSuccess() && accepted.getNow().isAccepted(), "the notification should be accepted");
+
+            /** a late frame for a finished stream must not bring anything back **/
+            connection.respond(acceptedStreamId, 200);
+            check(connection.handler().getInFlightNotifications() == 0, "a repeated response should not add an entry");
+        } finally {
+            connection.close();
+        }
+        System.out.println("responses: ok");
+    }
+
+    private static void checkResets() {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>();
+        try {
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> resetByGateway = connection.send(newNotification());
+            final int gatewayResetStreamId = connection.lastStreamId();
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> resetByClient = connection.send(newNotification());
+            final int clientResetStreamId = connection.lastStreamId();
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> answered = connection.send(newNotification());
+            final int answeredStreamId = connection.lastStreamId();
+
+            connection.reset(gatewayResetStreamId, Http2Error.REFUSED_STREAM.code());
+            check(connection.handler().getInFlightNotifications() == 2, "a stream reset by the gateway should leave the table");
+            check(resetByGateway.cause() instanceof Http2Exception
+                            && ((Http2Exception) resetByGateway.cause()).error() == Http2Error.REFUSED_STREAM,
+                    "a notification on a reset stream should fail with the gateway's error code");
+
+            /** a stream error found while reading a response makes the client reset the stream **/
+            connection.handler().onError(connection.channel().pipeline().firstContext(),
+                    Http2Exception.streamError(clientResetStreamId, Http2Error.PROTOCOL_ERROR, "Malformed response."));
+            connection.runPendingTasks();
+            connection.drainOutbound();
+            check(connection.handler().getInFlightNotifications() == 1, "a stream reset by the client should leave the table");
+            check(resetByClient.cause() instanceof Http2Exception, "a notification on a stream the client reset should fail");
+            check(connection.handler().connection().stream(clientResetStreamId) == null, "the stream should be closed");
+
+            check(!answered.isDone(), "a reset should not touch other streams");
+            connection.respond(answeredStreamId, 200);
+            check(connection.handler().getInFlightNotifications() == 0, "the remaining stream should still be answered");
+            check(answered.isSuccess() && answered.getNow().isAccepted(), "the remaining notification should be accepted");
+        } finally {
+            connection.close();
+        }
+        System.out.println("resets: ok");
+    }
+
+    private static void checkClose() {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>();
+        try {
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> first = connection.send(newNotification());
+            final Future<ApnsPushNotificationResponse<ApnsPushNotification>> second = connection.send(newNotification());
+
+            /** the connection drops under the handler, without its graceful close waiting for the streams **/
+            connection.channel().unsafe().close(connection.channel().voidPromise());
+            connection.runPendingTasks();
+            check(connection.handler().getInFlightNotifications() == 0, "losing the connection should empty the table");
+            check(first.cause() instanceof ClientNotConnectedException && second.cause() instanceof ClientNotConnectedException,
+                    "notifications in flight should fail as disconnected");
+        } finally {
+            connection.close();
+        }
+        System.out.println("close: ok");
+    }
+
+    private static ApnsPushNotification newNotification() {
+        return new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC,
+                Payload.newPayload().alertBody("Hello from the in-flight test").build());
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
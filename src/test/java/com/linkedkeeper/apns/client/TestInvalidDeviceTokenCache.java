@@ -0,0 +1,120 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.data.RejectionReason;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends several rounds of notifications to a set of tokens, some of which a local
+ * {@link MockApnsServer} answers with {@code Unregistered}, and checks that only the first
+ * notification to each dead token reaches the server, that the sink hears of each dead token
+ * once, and that a registered token is sent to again.
+ */
+public class TestInvalidDeviceTokenCache {
+
+    private static final int TOKENS = 100;
+    private static final int DEAD_TOKENS = 10;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        checkBoundedCapacity();
+
+        final List<String> tokens = new ArrayList<>(TOKENS);
+        for (int i = 0; i < TOKENS; i++) {
+            tokens.add(String.format(Locale.ROOT, "%064x", i + 1));
+        }
+
+        final MockApnsServer server = new MockApnsServer();
+        for (int i = 0; i < DEAD_TOKENS; i++) {
+            server.addUnregisteredToken(tokens.get(i));
+        }
+        server.start(0).sync();
+
+        final List<InvalidDeviceToken> reportedTokens = new CopyOnWriteArrayList<>();
+        final InvalidDeviceTokenCache cache = new InvalidDeviceTokenCache();
+        cache.setSink(new InvalidDeviceTokenSink() {
+            @Override
+            public void handleInvalidDeviceTokens(final List<InvalidDeviceToken> invalidDeviceTokens) {
+                check(invalidDeviceTokens.size() <= 4, "batches should hold at most 4 tokens");
+                reportedTokens.addAll(invalidDeviceTokens);
+            }
+        }, 4, 100, TimeUnit.MILLISECONDS);
+
+        final CountingApnsClientMetricsListener metrics = new CountingApnsClientMetricsListener();
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .metricsListener(metrics)
+                .invalidDeviceTokenCache(cache)
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        final String payload = Payload.newPayload().alertBody("Hello from the invalid token test").build();
+        int unregistered = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final List<ApnsPushNotification> notifications = new ArrayList<>(TOKENS);
+            for (final String token : tokens) {
+                notifications.add(new ApnsHttp2PushNotification(token, TestMockApnsServerLoad.TOPIC, payload));
+            }
+            for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture
+                    : client.sendNotifications(notifications).getResponseFutures()) {
+                final ApnsPushNotificationResponse<ApnsPushNotification> response = responseFuture.sync().getNow();
+                if (RejectionReason.fromReason(response.getRejectionReason()) == RejectionReason.UNREGISTERED) {
+                    check(response.getTokenInvalidationTimestamp() != null, "Unregistered should carry a timestamp");
+                    unregistered++;
+                }
+            }
+        }
+
+        System.out.println(String.format("%d sent, %d received by the server, %d skipped, %d unregistered",
+                TOKENS * ROUNDS, server.getReceivedNotifications(), metrics.getSkippedNotifications(), unregistered));
+        check(server.getReceivedNotifications() == TOKENS + (TOKENS - DEAD_TOKENS) * (ROUNDS - 1),
+                "only the first notification to a dead token should reach the server");
+        check(metrics.getSkippedNotifications() == DEAD_TOKENS * (ROUNDS - 1), "later ones should be skipped");
+        check(unregistered == DEAD_TOKENS * ROUNDS, "skipped notifications should complete as Unregistered");
+
+        Thread.sleep(300);
+        System.out.println(String.format("%d tokens reported to the sink", reportedTokens.size()));
+        check(reportedTokens.size() == DEAD_TOKENS, "each dead token should be reported once");
+
+        check(cache.handleTokenRegistered(tokens.get(0), new Date(System.currentTimeMillis() + 1000)), "a registration should clear the token");
+        final long received = server.getReceivedNotifications();
+        client.sendNotification(new ApnsHttp2PushNotification(tokens.get(0), TestMockApnsServerLoad.TOPIC, payload)).sync();
+        check(server.getReceivedNotifications() == received + 1, "a registered token should be sent to again");
+
+        client.disconnect().await();
+        server.shutdown().await();
+    }
+
+    private static void checkBoundedCapacity() {
+        final InvalidDeviceTokenCache cache = new InvalidDeviceTokenCache(1024, GlobalEventExecutor.INSTANCE);
+
+        for (int i = 0; i < 100_000; i++) {
+            cache.handleRejection("token-" + i, RejectionReason.UNREGISTERED, new Date(i));
+        }
+        check(cache.contains("token-99999"), "the latest token should be known");
+        check(!cache.contains("token-0"), "the earliest token should have made room");
+        cache.handleRejection("token-valid", RejectionReason.BAD_TOPIC, null);
+        check(!cache.contains("token-valid"), "other reasons should not be learned");
+
+        System.out.println("bounded capacity: ok");
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.data.RejectionReason;
+import com.linkedkeeper.apns.server.LatencyDistribution;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import javax.net.ssl.SSLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes notifications through an {@link ApnsHttp2ClientPool} into a local
+ * {@link MockApnsServer} and reports throughput; halfway through, the server sends GOAWAY on
+ * every connection so the run also shows how unprocessed notifications are replayed on new
+ * connections.
+ * <p/>
+ * Usage: {@code TestMockApnsServerLoad [notifications] [poolSize] [maxInFlight] [batchSize]};
+ * a batch size above one sends through {@link ApnsHttp2ClientPool#sendNotifications}.
+ */
+public class TestMockApnsServerLoad {
+
+    static final String TOKEN = "9d564a114490146deb03cc13e700e4071438ba6c74272e202fbd7548b10dc974";
+    static final String TOPIC = "com.linkedkeeper.apns.test";
+
+    /**
+     * An SSL context that trusts the mock server's self-signed certificate and presents no
+     * client certificate.
+     */
+    static SslContext newSslContext(final MockApnsServer server) throws SSLException {
+        return ApnsHttp2Client.getBaseSslContextBuilder()
+                .trustManager(server.getCertificate())
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        final int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+        final int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        final MockApnsServer server = new MockApnsServer();
+        server.setLatencyDistribution(LatencyDistribution.exponential(200, 300, TimeUnit.MICROSECONDS));
+        server.setRejections(0.05, MockApnsServer.Rejection.BAD_DEVICE_TOKEN, MockApnsServer.Rejection.UNREGISTERED);
+        server.start(0).sync();
+
+        final ApnsHttp2ClientPool<ApnsPushNotification> pool =
+                new ApnsHttp2ClientPool<>(newSslContext(server), null, poolSize, null);
+        final CountingApnsClientMetricsListener metrics = new CountingApnsClientMetricsListener();
+        pool.setMetricsListener(metrics);
+        pool.connect("localhost", server.getPort()).sync();
+
+        final String payload = Payload.newPayload().alertBody("Hello from the load test").badge(1).build();
+        final ApnsPushNotification notification = new ApnsHttp2PushNotification(TOKEN, TOPIC, payload);
+
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicLong accepted = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+
+        final GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseListener =
+                new GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>>() {
+                    @Override
+                    public void operationComplete(final Future<ApnsPushNotificationResponse<ApnsPushNotification>> future) throws Exception {
+                        if (!future.isSuccess()) {
+                            failed.incrementAndGet();
+                        } else if (future.getNow().isAccepted()) {
+                            accepted.incrementAndGet();
+                        } else {
+                            rejected.incrementAndGet();
+                        }
+                        inFlight.release();
+                    }
+                };
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < notifications; i += batchSize) {
+            if (i / batchSize == notifications / batchSize / 2) {
+                server.sendGoAway("Shutdown");
+            }
+            final int size = Math.min(batchSize, notifications - i);
+            inFlight.acquire(size);
+            if (!pool.isConnected()) {
+                /** the GOAWAY above closed every member; wait for one to come back **/
+                while (!pool.isConnected()) {
+                    Thread.sleep(10);
+                }
+            }
+            if (batchSize == 1) {
+                pool.sendNotification(new ApnsHttp2PushNotification(notification.getToken(), notification.getTopic(), notification.getPayload()))
+                        .addListener(responseListener);
+            } else {
+                final List<ApnsPushNotification> batch = new ArrayList<>(size);
+                for (int j = 0; j < size; j++) {
+                    batch.add(new ApnsHttp2PushNotification(notification.getToken(), notification.getTopic(), notification.getPayload()));
+                }
+                for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : pool.sendNotifications(batch).getResponseFutures()) {
+                    responseFuture.addListener(responseListener);
+                }
+            }
+        }
+        inFlight.acquire(maxInFlight);
+        final long elapsedNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%d notifications over %d connection(s) in %d ms: %.0f notifications/s",
+                notifications, poolSize, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), notifications * 1e9 / elapsedNanos));
+        System.out.println(String.format("accepted=%d, rejected=%d, failed=%d, server connections=%d",
+                accepted.get(), rejected.get(), failed.get(), server.getConnections()));
+        System.out.println(String.format("client metrics: written=%d, accepted=%d, rejected=%d (BadDeviceToken=%d, Unregistered=%d), failed=%d, replayed=%d, dropped=%d, flushes=%d of %.1f notifications / %.0f bytes, connections added=%d, removed=%d",
+                metrics.getWrittenNotifications(), metrics.getAcceptedNotifications(), metrics.getRejectedNotifications(),
+                metrics.getRejectedNotifications(RejectionReason.BAD_DEVICE_TOKEN), metrics.getRejectedNotifications(RejectionReason.UNREGISTERED),
+                metrics.getFailedNotifications(), metrics.getReplayedNotifications(), metrics.getDroppedNotifications(),
+                metrics.getFlushes(), metrics.getMeanFlushNotifications(), metrics.getMeanFlushPayloadBytes(),
+                metrics.getConnectionsAdded(), metrics.getConnectionsRemoved()));
+
+        pool.disconnect().await();
+        server.shutdown().await();
+    }
+}
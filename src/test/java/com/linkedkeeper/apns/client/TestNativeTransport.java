@@ -0,0 +1,89 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the NIO and the epoll transport against a local {@link MockApnsServer}: throughput
+ * with a window of notifications in flight, then the latency of one notification at a time,
+ * followed by the connection's latency breakdown over both phases. Epoll is skipped where it
+ * is not available.
+ * <p/>
+ * Usage: {@code TestNativeTransport [notifications] [maxInFlight]}.
+ */
+public class TestNativeTransport {
+
+    private static final int SEQUENTIAL_NOTIFICATIONS = 2_000;
+
+    public static void main(String[] args) throws Exception {
+        final int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        final int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+
+        final MockApnsServer server = new MockApnsServer();
+        server.start(0).sync();
+
+        run(server, false, notifications, maxInFlight);
+        if (ApnsHttp2Client.isNativeTransportAvailable()) {
+            run(server, true, notifications, maxInFlight);
+        } else {
+            System.out.println("epoll: not available on this platform, skipped.");
+        }
+
+        server.shutdown().await();
+    }
+
+    private static void run(final MockApnsServer server, final boolean useNativeTransport, final int notifications, final int maxInFlight) throws Exception {
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .useNativeTransport(useNativeTransport)
+                .latencyHistograms(true)
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        final String payload = Payload.newPayload().alertBody("Hello from the transport test").badge(1).build();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseListener =
+                new GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>>() {
+                    @Override
+                    public void operationComplete(final Future<ApnsPushNotificationResponse<ApnsPushNotification>> future) throws Exception {
+                        inFlight.release();
+                    }
+                };
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < notifications; i++) {
+            inFlight.acquire();
+            client.sendNotification(new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC, payload))
+                    .addListener(responseListener);
+        }
+        inFlight.acquire(maxInFlight);
+        final long elapsedNanos = System.nanoTime() - start;
+
+        final long[] latencies = new long[SEQUENTIAL_NOTIFICATIONS];
+        for (int i = 0; i < latencies.length; i++) {
+            final long sent = System.nanoTime();
+            client.sendNotification(new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC, payload)).await();
+            latencies[i] = System.nanoTime() - sent;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(String.format("%s: %.0f notifications/s, sequential latency p50=%d us, p99=%d us",
+                useNativeTransport ? "epoll" : "nio",
+                notifications * 1e9 / elapsedNanos,
+                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]),
+                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length * 99 / 100])));
+        System.out.print(client.getLatencyHistograms().snapshot());
+
+        client.disconnect().await();
+    }
+}
@@ -0,0 +1,207 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsEncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2EncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.LatencyDistribution;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that an {@link OutboxJournal} recovers exactly the notifications that were never
+ * answered, across segment rollovers, expirations and a damaged entry, and that notifications
+ * cut off by a client's disconnection from a local {@link MockApnsServer} are replayed after
+ * the journal is opened again. Also prints what an append costs.
+ */
+public class TestOutboxJournal {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        checkRecovery();
+        checkClientReplay();
+        measureAppends();
+    }
+
+    private static void checkRecovery() throws IOException, InterruptedException {
+        final File directory = Files.createTempDirectory("outbox").toFile();
+        final String payload = Payload.newPayload().alertBody("Hello from the outbox test").build();
+
+        OutboxJournal journal = newJournal(directory);
+        final List<ApnsPushNotification> pending = new ArrayList<>();
+        long lastEntryId = 0;
+        for (int i = 0; i < 2_000; i++) {
+            final String token = String.format(Locale.ROOT, "%064x", i);
+            final ApnsPushNotification notification;
+            if (i % 3 == 0) {
+                notification = new ApnsHttp2EncodedPushNotification(token, TestMockApnsServerLoad.TOPIC,
+                        payload.getBytes(StandardCharsets.UTF_8), null, DeliveryPriority.CONSERVE_POWER);
+            } else if (i % 3 == 1) {
+                notification = new ApnsHttp2PushNotification(token, null, payload, new Date(System.currentTimeMillis() + 100));
+            } else {
+                notification = new ApnsHttp2PushNotification(token, TestMockApnsServerLoad.TOPIC, payload);
+            }
+
+            final long entryId = journal.append(notification);
+            if (i % 10 == 0 && i % 3 != 1) {
+                pending.add(notification);
+                lastEntryId = entryId;
+            } else if (i % 10 != 0) {
+                journal.complete(entryId);
+            }
+        }
+        check(directory.list().length > 2, "2000 entries should span several segments");
+        journal.close();
+
+        /** damage the last pending entry's payload, as a crash in the middle of a write would **/
+        final File lastSegment = new File(directory, String.format(Locale.ROOT, "outbox-%010d.journal", lastEntryId >>> 32));
+        try (final RandomAccessFile file = new RandomAccessFile(lastSegment, "rw")) {
+            file.seek((int) lastEntryId + 120);
+            file.write(file.read() ^ 0xff);
+        }
+
+        Thread.sleep(200);
+        journal = newJournal(directory);
+        final List<ApnsPushNotification> recovered = journal.getRecoveredNotifications();
+        System.out.println(String.format("recovery: %d pending, %d recovered from %d segments",
+                pending.size(), recovered.size(), directory.list().length - 1));
+
+        check(recovered.size() == pending.size() - 1, "every pending entry but the damaged one should be recovered");
+        for (int i = 0; i < recovered.size(); i++) {
+            final ApnsPushNotification expected = pending.get(i);
+            final ApnsPushNotification actual = recovered.get(i);
+            check(expected.getToken().equals(actual.getToken()), "tokens should survive");
+            check(expected.getPayload().equals(actual.getPayload()), "payloads should survive");
+            check(expected.getPriority() == actual.getPriority(), "priorities should survive");
+            check(expected instanceof ApnsEncodedPushNotification == actual instanceof ApnsEncodedPushNotification, "encoded payloads should stay encoded");
+        }
+
+        /** sending a recovered notification again takes over its entry **/
+        for (final ApnsPushNotification notification : recovered) {
+            journal.complete(journal.append(notification));
+        }
+        check(journal.getPendingEntries() == 0, "every entry should be done");
+        journal.close();
+        check(directory.list().length == 0, "segments with nothing to replay should be deleted");
+        check(directory.delete(), "the journal directory should be empty");
+
+        System.out.println("recovery: ok");
+    }
+
+    private static void checkClientReplay() throws Exception {
+        final File directory = Files.createTempDirectory("outbox").toFile();
+        final int notifications = 1_000;
+
+        final MockApnsServer server = new MockApnsServer();
+        server.setLatencyDistribution(LatencyDistribution.fixed(200, TimeUnit.MILLISECONDS));
+        server.start(0).sync();
+
+        OutboxJournal journal = newJournal(directory);
+        ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .outboxJournal(journal)
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        final String payload = Payload.newPayload().alertBody("Hello from the outbox replay test").build();
+        final List<ApnsPushNotification> batch = new ArrayList<>(notifications);
+        for (int i = 0; i < notifications; i++) {
+            batch.add(new ApnsHttp2PushNotification(String.format(Locale.ROOT, "%064x", i), TestMockApnsServerLoad.TOPIC, payload));
+        }
+        final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures = client.sendNotifications(batch).getResponseFutures();
+
+        /** a crash: the client goes away at once while APNs still has every notification in hand **/
+        Thread.sleep(50);
+        client.setGracefulShutdownTimeout(0);
+        client.disconnect().await();
+        journal.close();
+
+        int cutOff = 0;
+        for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : responseFutures) {
+            if (!responseFuture.await().isSuccess()) {
+                cutOff++;
+            }
+        }
+
+        journal = newJournal(directory);
+        server.setLatencyDistribution(LatencyDistribution.NONE);
+        client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .outboxJournal(journal)
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        final List<ApnsPushNotification> recovered = journal.getRecoveredNotifications();
+        int accepted = 0;
+        for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture
+                : client.sendNotifications(recovered).getResponseFutures()) {
+            if (responseFuture.sync().getNow().isAccepted()) {
+                accepted++;
+            }
+        }
+
+        System.out.println(String.format("client replay: %d sent, %d cut off, %d recovered, %d accepted on replay",
+                notifications, cutOff, recovered.size(), accepted));
+        check(cutOff > 0, "notifications should have been in flight");
+        check(recovered.size() == cutOff, "every notification cut off should be recovered");
+        check(accepted == recovered.size(), "every recovered notification should be accepted");
+        /** entries are marked done by a listener that may run just after the futures wake us **/
+        for (int i = 0; i < 100 && journal.getPendingEntries() > 0; i++) {
+            Thread.sleep(10);
+        }
+        check(journal.getPendingEntries() == 0, "replayed notifications should be done");
+
+        client.disconnect().await();
+        server.shutdown().await();
+        journal.close();
+        check(directory.list().length == 0, "segments with nothing to replay should be deleted");
+        check(directory.delete(), "the journal directory should be empty");
+    }
+
+    private static void measureAppends() throws IOException {
+        final File directory = Files.createTempDirectory("outbox").toFile();
+        final OutboxJournal journal = new OutboxJournal(directory);
+        final ApnsPushNotification notification = new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN,
+                TestMockApnsServerLoad.TOPIC, Payload.newPayload().alertBody("Hello from the outbox benchmark").badge(1).build());
+
+        for (int round = 0; round < 3; round++) {
+            final int appends = 200_000;
+            final long start = System.nanoTime();
+            for (int i = 0; i < appends; i++) {
+                journal.complete(journal.append(notification));
+            }
+            System.out.println(String.format("append and complete: %d ns each", (System.nanoTime() - start) / appends));
+        }
+
+        journal.close();
+        check(directory.list().length == 0, "segments with nothing to replay should be deleted");
+        check(directory.delete(), "the journal directory should be empty");
+    }
+
+    private static OutboxJournal newJournal(final File directory) throws IOException {
+        return new OutboxJournal(directory, SEGMENT_SIZE, 10, TimeUnit.MILLISECONDS, GlobalEventExecutor.INSTANCE);
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
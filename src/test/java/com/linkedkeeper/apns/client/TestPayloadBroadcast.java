@@ -0,0 +1,307 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsEncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2EncodedPushNotification;
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Broadcasts one payload to many tokens through an {@link ApnsHttp2ClientPool} into a local
+ * {@link MockApnsServer}, checks every answer, that every notification carries the one shared
+ * payload buffer and that it is released once the broadcast is closed and answered, and
+ * compares the time per notification with sending the same payload as a string to each token.
+ * <p/>
+ * The time per notification is dominated by TLS and the mock server, so the gain shows in the
+ * buffers instead: on an embedded connection the broadcast's notifications are checked to
+ * allocate no payload buffer at all, where string payloads allocate one of the payload's size
+ * per recipient. Sends racing {@link PayloadBroadcast#close()} and sends that throw are checked
+ * to leave the payload's reference count as it was.
+ * <p/>
+ * Usage: {@code TestPayloadBroadcast [tokens] [poolSize]}.
+ */
+public class TestPayloadBroadcast {
+
+    private static final int UNREGISTERED_EVERY = 1_000;
+    /** slices small enough for the pending queues of the pool's connections **/
+    private static final int SLICE_SIZE = 500;
+    private static final int SLICES_IN_FLIGHT = 4;
+    private static final int EMBEDDED_NOTIFICATIONS = 1_000;
+
+    public static void main(String[] args) throws Exception {
+        final int tokenCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        final int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        final MockApnsServer server = new MockApnsServer();
+        final List<String> tokens = new ArrayList<>(tokenCount);
+        for (int i = 0; i < tokenCount; i++) {
+            final String token = String.format(Locale.ROOT, "%064x", i);
+            if (i % UNREGISTERED_EVERY == 0) {
+                server.addUnregisteredToken(token);
+            }
+            tokens.add(token);
+        }
+        server.start(0).sync();
+
+        final ApnsHttp2ClientPool<ApnsPushNotification> pool = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .buildPool(poolSize);
+        pool.connect("localhost", server.getPort()).sync();
+
+        final String payload = Payload.newPayload().alertBody("Flash sale: everything 50% off for the next hour, ünless it sells out")
+                .badge(1).sound("default").build();
+
+        checkAllocationsPerRecipient(payload);
+        checkReferencesOnCloseAndFailure(payload);
+
+        for (int round = 0; round < 3; round++) {
+            final long broadcastNanos = broadcast(pool, tokens, payload);
+            final long stringNanos = sendStrings(pool, tokens, payload);
+            System.out.println(String.format("%d tokens: broadcast %d ns, string payloads %d ns per notification",
+                    tokenCount, broadcastNanos / tokenCount, stringNanos / tokenCount));
+        }
+
+        pool.disconnect().await();
+        server.shutdown().await();
+    }
+
+    private static long broadcast(final ApnsHttp2ClientPool<ApnsPushNotification> pool, final List<String> tokens, final String payload) throws Exception {
+        final long start = System.nanoTime();
+        final PayloadBroadcast broadcast = new PayloadBroadcast(payload, TestMockApnsServerLoad.TOPIC);
+        final List<BatchSendResult<ApnsPushNotification>> results = new ArrayList<>();
+        final Semaphore permits = new Semaphore(SLICES_IN_FLIGHT);
+        for (int from = 0; from < tokens.size(); from += SLICE_SIZE) {
+            permits.acquire();
+            final BatchSendResult<ApnsPushNotification> result = broadcast.sendTo(pool, tokens.subList(from, Math.min(from + SLICE_SIZE, tokens.size())));
+            result.getBatchFuture().addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(final Future<Void> future) throws Exception {
+                    permits.release();
+                }
+            });
+            results.add(result);
+        }
+        broadcast.close();
+
+        try {
+            broadcast.sendTo(pool, tokens);
+            throw new AssertionError("a closed broadcast should not send");
+        } catch (final IllegalStateException expected) {
+        }
+
+        permits.acquire(SLICES_IN_FLIGHT);
+        final long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < results.size(); i++) {
+            checkAnswers(results.get(i), i * SLICE_SIZE);
+            for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : results.get(i).getResponseFutures()) {
+                final ApnsPushNotification notification = responseFuture.getNow().getApnsPushNotification();
+                check(notification instanceof ApnsEncodedPushNotification
+                                && ((ApnsEncodedPushNotification) notification).getPayloadBuffer() == broadcast.getPayloadBuffer(),
+                        "every notification of the broadcast should carry the shared payload buffer");
+            }
+        }
+        check(broadcast.getPayloadSize() == payload.getBytes("UTF-8").length, "the payload should be encoded as UTF-8");
+        /** the release runs in a listener that may run just after the batch future wakes us **/
+        for (int i = 0; i < 100 && broadcast.getPayloadBuffer().refCnt() > 0; i++) {
+            Thread.sleep(10);
+        }
+        check(broadcast.getPayloadBuffer().refCnt() == 0, "the shared payload should be released once every notification is answered");
+        return elapsed;
+    }
+
+    private static long sendStrings(final ApnsHttp2ClientPool<ApnsPushNotification> pool, final List<String> tokens, final String payload) throws Exception {
+        final long start = System.nanoTime();
+        final List<BatchSendResult<ApnsPushNotification>> results = new ArrayList<>();
+        final Semaphore permits = new Semaphore(SLICES_IN_FLIGHT);
+        for (int from = 0; from < tokens.size(); from += SLICE_SIZE) {
+            final List<ApnsPushNotification> notifications = new ArrayList<>(SLICE_SIZE);
+            for (final String token : tokens.subList(from, Math.min(from + SLICE_SIZE, tokens.size()))) {
+                notifications.add(new ApnsHttp2PushNotification(token, TestMockApnsServerLoad.TOPIC, payload));
+            }
+            permits.acquire();
+            final BatchSendResult<ApnsPushNotification> result = pool.sendNotifications(notifications);
+            result.getBatchFuture().addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(final Future<Void> future) throws Exception {
+                    permits.release();
+                }
+            });
+            results.add(result);
+        }
+        permits.acquire(SLICES_IN_FLIGHT);
+        final long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < results.size(); i++) {
+            checkAnswers(results.get(i), i * SLICE_SIZE);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Writes the same notifications once with the broadcast's shared buffer and once with a
+     * string payload, on embedded connections that count what their allocator hands out.
+     */
+    private static void checkAllocationsPerRecipient(final String payload) {
+        final PayloadBroadcast broadcast = new PayloadBroadcast(payload, TestMockApnsServerLoad.TOPIC);
+        final List<ApnsPushNotification> encodedNotifications = new ArrayList<>(EMBEDDED_NOTIFICATIONS);
+        final List<ApnsPushNotification> stringNotifications = new ArrayList<>(EMBEDDED_NOTIFICATIONS);
+        for (int i = 0; i < EMBEDDED_NOTIFICATIONS; i++) {
+            final String token = String.format(Locale.ROOT, "%064x", i);
+            encodedNotifications.add(new ApnsHttp2EncodedPushNotification(token, TestMockApnsServerLoad.TOPIC, broadcast.getPayloadBuffer()));
+            stringNotifications.add(new ApnsHttp2PushNotification(token, TestMockApnsServerLoad.TOPIC, payload));
+        }
+
+        try {
+            final CountingAllocator encoded = allocationsFor(encodedNotifications);
+            final CountingAllocator strings = allocationsFor(stringNotifications);
+            System.out.println(String.format("allocated per recipient: broadcast %.1f buffers of %.1f bytes, string payloads %.1f buffers of %.1f bytes",
+                    (double) encoded.buffers / EMBEDDED_NOTIFICATIONS, (double) encoded.bytes / EMBEDDED_NOTIFICATIONS,
+                    (double) strings.buffers / EMBEDDED_NOTIFICATIONS, (double) strings.bytes / EMBEDDED_NOTIFICATIONS));
+
+            check(strings.buffers - encoded.buffers == EMBEDDED_NOTIFICATIONS,
+                    "only string payloads should allocate a payload buffer per recipient");
+            check(strings.bytes - encoded.bytes == (long) EMBEDDED_NOTIFICATIONS * broadcast.getPayloadSize(),
+                    "a string payload should allocate exactly its encoded size per recipient");
+            check(broadcast.getPayloadBuffer().refCnt() == 1, "the written frames should give their references back");
+        } finally {
+            broadcast.close();
+        }
+    }
+
+    private static void checkReferencesOnCloseAndFailure(final String payload) throws InterruptedException {
+        final NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+        final List<String> tokens = Collections.singletonList(TestMockApnsServerLoad.TOKEN);
+        try {
+            /** a client that answers every batch at once, so each send gives its reference back right away **/
+            final ApnsHttp2Client<ApnsPushNotification> answering = new ApnsHttp2Client<ApnsPushNotification>((SslContext) null, eventLoopGroup) {
+                @Override
+                public BatchSendResult<ApnsPushNotification> sendNotifications(final Collection<ApnsPushNotification> notifications) {
+                    return new BatchSendResult<>(new ArrayList<Future<ApnsPushNotificationResponse<ApnsPushNotification>>>());
+                }
+            };
+            for (int i = 0; i < 200; i++) {
+                final PayloadBroadcast broadcast = new PayloadBroadcast(payload, TestMockApnsServerLoad.TOPIC);
+                final CountDownLatch started = new CountDownLatch(1);
+                final AtomicReference<Throwable> unexpected = new AtomicReference<>();
+                final Thread sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            for (int j = 0; j < 1_000; j++) {
+                                broadcast.sendTo(answering, tokens);
+                            }
+                        } catch (final IllegalStateException expected) {
+                        } catch (final Throwable t) {
+                            unexpected.set(t);
+                        }
+                    }
+                });
+                sender.start();
+                started.await();
+                broadcast.close();
+                sender.join();
+
+                check(unexpected.get() == null, "a send racing close() should only see the broadcast closed, got " + unexpected.get());
+                /** the batches give their references back in listeners on the global event executor **/
+                for (int j = 0; j < 100 && broadcast.getPayloadBuffer().refCnt() > 0; j++) {
+                    Thread.sleep(10);
+                }
+                check(broadcast.getPayloadBuffer().refCnt() == 0, "every reference should be given back after a race with close()");
+            }
+
+            final ApnsHttp2Client<ApnsPushNotification> throwing = new ApnsHttp2Client<ApnsPushNotification>((SslContext) null, eventLoopGroup) {
+                @Override
+                public BatchSendResult<ApnsPushNotification> sendNotifications(final Collection<ApnsPushNotification> notifications) {
+                    throw new IllegalArgumentException("Refused.");
+                }
+            };
+            final PayloadBroadcast broadcast = new PayloadBroadcast(payload, TestMockApnsServerLoad.TOPIC);
+            try {
+                broadcast.sendTo(throwing, tokens);
+                throw new AssertionError("the client's exception should reach the caller");
+            } catch (final IllegalArgumentException expected) {
+            }
+            check(broadcast.getPayloadBuffer().refCnt() == 1, "a send that throws should give its reference back");
+            broadcast.close();
+            check(broadcast.getPayloadBuffer().refCnt() == 0, "closing should release the last reference");
+        } finally {
+            eventLoopGroup.shutdownGracefully();
+        }
+        System.out.println("references on close and failure: ok");
+    }
+
+    private static CountingAllocator allocationsFor(final List<ApnsPushNotification> notifications) {
+        final EmbeddedApnsConnection<ApnsPushNotification> connection = new EmbeddedApnsConnection<>();
+        final CountingAllocator allocator = new CountingAllocator();
+        connection.channel().config().setAllocator(allocator);
+        try {
+            for (final ApnsPushNotification notification : notifications) {
+                connection.send(notification);
+            }
+        } finally {
+            connection.close();
+        }
+        return allocator;
+    }
+
+    /**
+     * Counts the buffers allocated through it and their initial capacities.
+     */
+    private static class CountingAllocator extends PooledByteBufAllocator {
+
+        long buffers;
+        long bytes;
+
+        CountingAllocator() {
+            super(true);
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(final int initialCapacity, final int maxCapacity) {
+            this.buffers++;
+            this.bytes += initialCapacity;
+            return super.newDirectBuffer(initialCapacity, maxCapacity);
+        }
+
+        @Override
+        protected ByteBuf newHeapBuffer(final int initialCapacity, final int maxCapacity) {
+            this.buffers++;
+            this.bytes += initialCapacity;
+            return super.newHeapBuffer(initialCapacity, maxCapacity);
+        }
+    }
+
+    private static void checkAnswers(final BatchSendResult<ApnsPushNotification> result, final int firstIndex) {
+        int index = firstIndex;
+        for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : result.getResponseFutures()) {
+            final boolean accepted = responseFuture.getNow().isAccepted();
+            check(accepted == (index % UNREGISTERED_EVERY != 0), "token " + index + " got the wrong answer");
+            index++;
+        }
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a client without a known MAX_CONCURRENT_STREAMS limit treats its pending
+ * capacity as unbounded instead of full: right after connecting, before the server's SETTINGS
+ * arrive, once the limit is reset as on a reconnect, and against a server that never announces
+ * one. Sends fail fast, so a wrongly full queue shows as a failed notification at once.
+ */
+public class TestPendingCapacity {
+
+    private static final int NOTIFICATIONS = 200;
+
+    public static void main(String[] args) throws Exception {
+        checkBeforeSettings();
+        checkWithoutMaxConcurrentStreams();
+    }
+
+    private static void checkBeforeSettings() throws Exception {
+        final MockApnsServer server = new MockApnsServer();
+        server.start(0).sync();
+        final ApnsHttp2Client<ApnsPushNotification> client = newClient(server);
+
+        try {
+            /** the ready promise completes before the server's SETTINGS are read **/
+            client.connect("localhost", server.getPort()).sync();
+            final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures = new ArrayList<>();
+            responseFutures.add(client.sendNotification(newNotification()));
+            responseFutures.add(client.sendNotification(newNotification()));
+            checkAccepted(responseFutures, "sent right after connecting");
+
+            /** the limit as connect() leaves it for a reconnect, while nothing tells the client otherwise **/
+            client.waitForInitialSettings();
+            client.setMaxConcurrentStreams(Long.MAX_VALUE);
+            responseFutures.clear();
+            for (int i = 0; i < NOTIFICATIONS; i++) {
+                responseFutures.add(client.sendNotification(newNotification()));
+            }
+            checkAccepted(responseFutures, "sent before the limit is known");
+        } finally {
+            client.disconnect().await();
+            server.shutdown().await();
+        }
+        System.out.println("before settings: ok");
+    }
+
+    private static void checkWithoutMaxConcurrentStreams() throws Exception {
+        final MockApnsServer server = new MockApnsServer();
+        server.setMaxConcurrentStreams(-1);
+        server.start(0).sync();
+        final ApnsHttp2Client<ApnsPushNotification> client = newClient(server);
+
+        try {
+            client.connect("localhost", server.getPort()).sync();
+            client.waitForInitialSettings();
+
+            final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures = new ArrayList<>();
+            for (int i = 0; i < NOTIFICATIONS; i++) {
+                responseFutures.add(client.sendNotification(newNotification()));
+            }
+            checkAccepted(responseFutures, "sent to a server without a stream limit");
+        } finally {
+            client.disconnect().await();
+            server.shutdown().await();
+        }
+        System.out.println("without MAX_CONCURRENT_STREAMS: ok");
+    }
+
+    private static ApnsHttp2Client<ApnsPushNotification> newClient(final MockApnsServer server) throws Exception {
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .build();
+        client.setOverflowPolicy(OverflowPolicy.FAIL_FAST);
+        client.setMaxPendingNotifications(10);
+        return client;
+    }
+
+    private static void checkAccepted(final List<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseFutures, final String what)
+            throws InterruptedException {
+        for (final Future<ApnsPushNotificationResponse<ApnsPushNotification>> responseFuture : responseFutures) {
+            check(responseFuture.await().isSuccess(), "every notification " + what + " should be sent, got " + responseFuture.cause());
+            check(responseFuture.getNow().isAccepted(), "every notification " + what + " should be accepted");
+        }
+    }
+
+    private static ApnsPushNotification newNotification() {
+        return new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC,
+                Payload.newPayload().alertBody("Hello from the pending capacity test").build());
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
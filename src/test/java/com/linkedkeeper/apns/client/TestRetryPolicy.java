@@ -0,0 +1,85 @@
+package com.linkedkeeper.apns.client;
+
+import com.linkedkeeper.apns.data.ApnsHttp2PushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotification;
+import com.linkedkeeper.apns.data.ApnsPushNotificationResponse;
+import com.linkedkeeper.apns.data.Payload;
+import com.linkedkeeper.apns.server.LatencyDistribution;
+import com.linkedkeeper.apns.server.MockApnsServer;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a client with a retry policy against a local {@link MockApnsServer} that answers a share
+ * of the notifications with {@code TooManyRequests}, {@code InternalServerError} or
+ * {@code ServiceUnavailable}, and checks that every notification is eventually accepted.
+ * <p/>
+ * Usage: {@code TestRetryPolicy [notifications] [rejectionRatio] [maxInFlight]}.
+ */
+public class TestRetryPolicy {
+
+    public static void main(String[] args) throws Exception {
+        final int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        final double rejectionRatio = args.length > 1 ? Double.parseDouble(args[1]) : 0.3;
+        final int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+
+        final MockApnsServer server = new MockApnsServer();
+        server.setLatencyDistribution(LatencyDistribution.exponential(200, 300, TimeUnit.MICROSECONDS));
+        server.setRejections(rejectionRatio, MockApnsServer.Rejection.TOO_MANY_REQUESTS,
+                MockApnsServer.Rejection.INTERNAL_SERVER_ERROR, MockApnsServer.Rejection.SERVICE_UNAVAILABLE);
+        server.start(0).sync();
+
+        final CountingApnsClientMetricsListener metrics = new CountingApnsClientMetricsListener();
+        final ApnsHttp2Client<ApnsPushNotification> client = new ApnsHttp2ClientBuilder<ApnsPushNotification>()
+                .sslContext(TestMockApnsServerLoad.newSslContext(server))
+                .metricsListener(metrics)
+                .retryPolicy(RetryPolicy.exponential(30, 1, 50, TimeUnit.MILLISECONDS))
+                .build();
+        client.connect("localhost", server.getPort()).sync();
+        client.waitForInitialSettings();
+
+        final String payload = Payload.newPayload().alertBody("Hello from the retry test").badge(1).build();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicLong accepted = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>> responseListener =
+                new GenericFutureListener<Future<ApnsPushNotificationResponse<ApnsPushNotification>>>() {
+                    @Override
+                    public void operationComplete(final Future<ApnsPushNotificationResponse<ApnsPushNotification>> future) throws Exception {
+                        if (future.isSuccess() && future.getNow().isAccepted()) {
+                            accepted.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                        inFlight.release();
+                    }
+                };
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < notifications; i++) {
+            inFlight.acquire();
+            client.sendNotification(new ApnsHttp2PushNotification(TestMockApnsServerLoad.TOKEN, TestMockApnsServerLoad.TOPIC, payload))
+                    .addListener(responseListener);
+        }
+        inFlight.acquire(maxInFlight);
+        final long elapsedNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%d notifications in %d ms: %d accepted, %d failed, %d retries for %d rejections by the server",
+                notifications, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), accepted.get(), failed.get(),
+                metrics.getRetriedNotifications(), server.getRejectedNotifications()));
+
+        client.disconnect().await();
+        server.shutdown().await();
+
+        if (failed.get() > 0) {
+            throw new AssertionError(failed.get() + " notifications failed despite retries.");
+        }
+        if (metrics.getRetriedNotifications() != server.getRejectedNotifications()) {
+            throw new AssertionError("Every rejection should have been retried.");
+        }
+    }
+}
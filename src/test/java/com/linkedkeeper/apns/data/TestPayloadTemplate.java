@@ -0,0 +1,36 @@
+package com.linkedkeeper.apns.data;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Checks that a {@link PayloadTemplate} finds its slots in order and renders string slots
+ * JSON-escaped and number slots as they are.
+ */
+public class TestPayloadTemplate {
+
+    public static void main(String[] args) {
+        PayloadTemplate template = PayloadTemplate.compile(
+                "{\"aps\":{\"alert\":\"Hi ${name}, your order shipped\",\"badge\":${badge}},\"order\":\"${order}\"}");
+        System.out.println(template.getSlotNames());
+        check(template.getSlotNames().equals(Arrays.asList("name", "badge", "order")), "the slots should come in the order they appear");
+        check(template.isStringSlot(0) && !template.isStringSlot(1) && template.isStringSlot(2), "only the slots inside strings should be string slots");
+
+        String rendered = new String(template.renderBytes("Fr\"ank\u00e9\n", -42, "1234567"), StandardCharsets.UTF_8);
+        System.out.println(rendered);
+        JsonObject payload = new JsonParser().parse(rendered).getAsJsonObject();
+        JsonObject aps = payload.getAsJsonObject("aps");
+        check(aps.get("alert").getAsString().equals("Hi Fr\"ank\u00e9\n, your order shipped"), "the string slot should be escaped, got " + rendered);
+        check(aps.get("badge").getAsInt() == -42, "the number slot should be written as it is");
+        check(payload.get("order").getAsString().equals("1234567"), "the last slot should be filled");
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.linkedkeeper.apns.data;
+
+import com.google.gson.JsonParser;
+import com.linkedkeeper.apns.exceptions.PayloadTooLargeException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks that {@link StreamingPayloadBuilder} writes the same JSON as the {@link PayloadBuilder},
+ * that a reset builder starts over, and that a payload over the limit is refused.
+ */
+public class TestStreamingPayloadBuilder {
+
+    public static void main(String[] args) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("a", 1);
+        data.put("b", 2);
+        data.put("c", "3");
+
+        String payload = Payload.newPayload()
+                .alertBody("alertContext")
+                .badge(1)
+                .sound()
+                .addField("test1", "abc")
+                .addField("test2", 123)
+                .addField("test3", data)
+                .build();
+
+        StreamingPayloadBuilder builder = Payload.newStreamingPayload();
+        String streamed = builder
+                .alertBody("alertContext")
+                .badge(1)
+                .sound()
+                .addField("test1", "abc")
+                .addField("test2", 123)
+                .addField("test3", data)
+                .build();
+
+        System.out.println(streamed);
+        check(new JsonParser().parse(streamed).equals(new JsonParser().parse(payload)), "the streamed payload should match the built one, got " + streamed);
+        check(new String(builder.buildBytes(), StandardCharsets.UTF_8).equals(streamed), "the bytes should hold the same payload");
+
+        String alertOnly = builder.reset().alertBody("alertContext").build();
+        check(alertOnly.equals("{\"aps\":{\"alert\":\"alertContext\"}}"), "a reset builder should start over, got " + alertOnly);
+
+        builder.reset().alertBody(new String(new char[StreamingPayloadBuilder.DEFAULT_MAX_PAYLOAD_SIZE]).replace('\0', 'x'));
+        try {
+            builder.build();
+            throw new AssertionError("a payload over the limit should be refused");
+        } catch (PayloadTooLargeException e) {
+            System.out.println(e.getMessage());
+            check(e.getMaxPayloadSize() == StreamingPayloadBuilder.DEFAULT_MAX_PAYLOAD_SIZE, "the limit should be the default one");
+            check(e.getPayloadSize() > e.getMaxPayloadSize(), "the refused payload should be over the limit");
+        }
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
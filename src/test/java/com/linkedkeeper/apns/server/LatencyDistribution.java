@@ -0,0 +1,53 @@
+package com.linkedkeeper.apns.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link MockApnsServer} waits before answering a stream.
+ */
+public abstract class LatencyDistribution {
+
+    public static final LatencyDistribution NONE = fixed(0, TimeUnit.NANOSECONDS);
+
+    /**
+     * @return the delay for the next stream, in nanoseconds
+     */
+    public abstract long nextDelayNanos();
+
+    public static LatencyDistribution fixed(final long delay, final TimeUnit unit) {
+        final long delayNanos = unit.toNanos(delay);
+        return new LatencyDistribution() {
+            @Override
+            public long nextDelayNanos() {
+                return delayNanos;
+            }
+        };
+    }
+
+    public static LatencyDistribution uniform(final long min, final long max, final TimeUnit unit) {
+        final long minNanos = unit.toNanos(min);
+        final long maxNanos = unit.toNanos(max);
+        return new LatencyDistribution() {
+            @Override
+            public long nextDelayNanos() {
+                return minNanos + (long) (ThreadLocalRandom.current().nextDouble() * (maxNanos - minNanos));
+            }
+        };
+    }
+
+    /**
+     * A long-tailed distribution: a fixed floor plus an exponentially distributed part with the
+     * given mean, which is a fair model of a remote gateway under load.
+     */
+    public static LatencyDistribution exponential(final long floor, final long mean, final TimeUnit unit) {
+        final long floorNanos = unit.toNanos(floor);
+        final double meanNanos = unit.toNanos(mean);
+        return new LatencyDistribution() {
+            @Override
+            public long nextDelayNanos() {
+                return floorNanos + (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * meanNanos);
+            }
+        };
+    }
+}
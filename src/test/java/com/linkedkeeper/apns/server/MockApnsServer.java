@@ -0,0 +1,546 @@
+package com.linkedkeeper.apns.server;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.*;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.AsciiString;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.SucceededFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An embeddable stand-in for the APNs gateway, for load and reconnect tests that must run
+ * without an Apple certificate or network access.
+ * <p/>
+ * The server speaks HTTP/2 over TLS with ALPN on a self-signed certificate and answers
+ * {@code POST /3/device/{token}} streams the way APNs does: {@code 200} with an
+ * {@code apns-id}, or an error status with a {@code {"reason": ...}} body. Latency, rejection
+ * ratio, MAX_CONCURRENT_STREAMS, GOAWAY and PING behaviour can be changed while it runs.
+ */
+public class MockApnsServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MockApnsServer.class);
+
+    public enum PingBehaviour {
+        /** acknowledge every PING, as APNs does **/
+        ACK,
+        /** swallow PING frames so the client's ping timeout fires **/
+        IGNORE
+    }
+
+    /**
+     * A status and reason the server answers with when it rejects a notification.
+     */
+    public static class Rejection {
+
+        public static final Rejection BAD_DEVICE_TOKEN = new Rejection(HttpResponseStatus.BAD_REQUEST, "BadDeviceToken");
+        public static final Rejection PAYLOAD_EMPTY = new Rejection(HttpResponseStatus.BAD_REQUEST, "PayloadEmpty");
+        public static final Rejection PAYLOAD_TOO_LARGE = new Rejection(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "PayloadTooLarge");
+        public static final Rejection UNREGISTERED = new Rejection(HttpResponseStatus.GONE, "Unregistered");
+        public static final Rejection TOO_MANY_REQUESTS = new Rejection(HttpResponseStatus.TOO_MANY_REQUESTS, "TooManyRequests");
+        public static final Rejection INTERNAL_SERVER_ERROR = new Rejection(HttpResponseStatus.INTERNAL_SERVER_ERROR, "InternalServerError");
+        public static final Rejection SERVICE_UNAVAILABLE = new Rejection(HttpResponseStatus.SERVICE_UNAVAILABLE, "ServiceUnavailable");
+
+        private final HttpResponseStatus status;
+        private final String reason;
+
+        public Rejection(final HttpResponseStatus status, final String reason) {
+            this.status = status;
+            this.reason = reason;
+        }
+
+        public HttpResponseStatus getStatus() {
+            return status;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        byte[] body() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("{\"reason\":\"").append(this.reason).append('"');
+            if (HttpResponseStatus.GONE.equals(this.status)) {
+                builder.append(",\"timestamp\":").append(System.currentTimeMillis());
+            }
+            builder.append('}');
+            return builder.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    static final int MAX_PAYLOAD_SIZE = 4096;
+    private static final String APNS_PATH_PREFIX = "/3/device/";
+    /** how long a connection keeps reading after it sent GOAWAY before it starts closing **/
+    private static final long GOAWAY_CLOSE_DELAY_MILLIS = 200;
+    private static final AsciiString APNS_ID_HEADER = new AsciiString("apns-id");
+
+    private final SelfSignedCertificate certificate;
+    private final SslContext sslContext;
+    private final EventLoopGroup eventLoopGroup;
+    private final boolean shouldShutDownEventLoopGroup;
+    private final ChannelGroup allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    private Channel serverChannel;
+
+    private volatile long maxConcurrentStreams = 1000;
+    private volatile LatencyDistribution latencyDistribution = LatencyDistribution.NONE;
+    private volatile double rejectionRatio = 0;
+    private volatile Rejection[] rejections = {Rejection.BAD_DEVICE_TOKEN};
+    private volatile PingBehaviour pingBehaviour = PingBehaviour.ACK;
+    private volatile int goAwayAfterStreams = 0;
+    private volatile String goAwayReason = "Shutdown";
+    private final Set<String> unregisteredTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** null unless paths are recorded **/
+    private volatile Queue<String> receivedPaths;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong receivedNotifications = new AtomicLong();
+    private final AtomicLong acceptedNotifications = new AtomicLong();
+    private final AtomicLong rejectedNotifications = new AtomicLong();
+
+    public MockApnsServer() throws SSLException, CertificateException {
+        this(null);
+    }
+
+    public MockApnsServer(final EventLoopGroup eventLoopGroup) throws SSLException, CertificateException {
+        this.certificate = new SelfSignedCertificate();
+        this.sslContext = SslContextBuilder.forServer(this.certificate.certificate(), this.certificate.privateKey())
+                .sslProvider(OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK)
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(
+                        new ApplicationProtocolConfig(Protocol.ALPN,
+                                SelectorFailureBehavior.NO_ADVERTISE,
+                                SelectedListenerFailureBehavior.ACCEPT,
+                                ApplicationProtocolNames.HTTP_2))
+                .build();
+
+        if (eventLoopGroup != null) {
+            this.eventLoopGroup = eventLoopGroup;
+            this.shouldShutDownEventLoopGroup = false;
+        } else {
+            this.eventLoopGroup = new NioEventLoopGroup(1);
+            this.shouldShutDownEventLoopGroup = true;
+        }
+    }
+
+    /**
+     * @return the self-signed certificate the server presents, for clients that want to trust it
+     */
+    public X509Certificate getCertificate() {
+        return this.certificate.cert();
+    }
+
+    /**
+     * Starts listening on the loopback interface; pass {@code 0} to pick a free port.
+     */
+    public ChannelFuture start(final int port) {
+        final ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(this.eventLoopGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(final SocketChannel channel) throws Exception {
+                        MockApnsServer.this.allChannels.add(channel);
+                        MockApnsServer.this.connections.incrementAndGet();
+
+                        channel.pipeline().addLast(MockApnsServer.this.sslContext.newHandler(channel.alloc()));
+                        channel.pipeline().addLast(new ApplicationProtocolNegotiationHandler("") {
+                            @Override
+                            protected void configurePipeline(final ChannelHandlerContext context, final String protocol) {
+                                if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                    context.pipeline().addLast(MockApnsServer.this.newHandler());
+                                } else {
+                                    logger.error("Unexpected protocol: {}", protocol);
+                                    context.close();
+                                }
+                            }
+                        });
+                    }
+                });
+
+        final ChannelFuture bindFuture = bootstrap.bind("127.0.0.1", port);
+        this.serverChannel = bindFuture.channel();
+        return bindFuture;
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) this.serverChannel.localAddress()).getPort();
+    }
+
+    public Future<Void> shutdown() {
+        if (this.serverChannel != null) {
+            this.serverChannel.close().awaitUninterruptibly();
+        }
+        this.allChannels.close().awaitUninterruptibly();
+
+        if (this.shouldShutDownEventLoopGroup) {
+            @SuppressWarnings("unchecked")
+            final Future<Void> terminationFuture = (Future<Void>) this.eventLoopGroup.shutdownGracefully();
+            return terminationFuture;
+        }
+        return new SucceededFuture<>(GlobalEventExecutor.INSTANCE, null);
+    }
+
+    /**
+     * The MAX_CONCURRENT_STREAMS setting advertised to connections opened from now on; a
+     * negative value leaves it out of the SETTINGS frame, so clients see no limit.
+     */
+    public void setMaxConcurrentStreams(final long maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    public void setLatencyDistribution(final LatencyDistribution latencyDistribution) {
+        this.latencyDistribution = latencyDistribution;
+    }
+
+    /**
+     * Rejects the given share of otherwise valid notifications, choosing uniformly among the
+     * given rejections.
+     */
+    public void setRejections(final double rejectionRatio, final Rejection... rejections) {
+        if (rejections.length == 0) {
+            throw new IllegalArgumentException("At least one rejection is needed.");
+        }
+        this.rejections = rejections;
+        this.rejectionRatio = rejectionRatio;
+    }
+
+    /**
+     * Answers every notification to the given token with {@code 410 Unregistered}.
+     */
+    public void addUnregisteredToken(final String token) {
+        this.unregisteredTokens.add(token);
+    }
+
+    /**
+     * Records the {@code :path} of every HEADERS frame received from now on, in the order they
+     * arrive; off by default, as load tests would only fill memory with them.
+     */
+    public void setRecordPaths(final boolean recordPaths) {
+        this.receivedPaths = recordPaths ? new ConcurrentLinkedQueue<String>() : null;
+    }
+
+    /**
+     * @return the recorded paths, in the order their HEADERS frames arrived
+     */
+    public List<String> getReceivedPaths() {
+        final Queue<String> receivedPaths = this.receivedPaths;
+        return receivedPaths != null ? new ArrayList<>(receivedPaths) : Collections.<String>emptyList();
+    }
+
+    public void setPingBehaviour(final PingBehaviour pingBehaviour) {
+        this.pingBehaviour = pingBehaviour;
+    }
+
+    /**
+     * Makes every connection send GOAWAY with the given reason after it has accepted the given
+     * number of streams; {@code 0} turns this off.
+     */
+    public void setGoAwayAfterStreams(final int goAwayAfterStreams, final String reason) {
+        this.goAwayAfterStreams = goAwayAfterStreams;
+        this.goAwayReason = reason;
+    }
+
+    /**
+     * Sends GOAWAY with the given reason on every open connection, then closes each one once its
+     * streams have been answered.
+     */
+    public void sendGoAway(final String reason) {
+        for (final Channel channel : this.allChannels) {
+            final MockApnsServerHandler handler = channel.pipeline().get(MockApnsServerHandler.class);
+            if (handler != null) {
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.sendGoAway(reason);
+                    }
+                });
+            }
+        }
+    }
+
+    public long getConnections() {
+        return this.connections.get();
+    }
+
+    public long getReceivedNotifications() {
+        return this.receivedNotifications.get();
+    }
+
+    public long getAcceptedNotifications() {
+        return this.acceptedNotifications.get();
+    }
+
+    public long getRejectedNotifications() {
+        return this.rejectedNotifications.get();
+    }
+
+    private MockApnsServerHandler newHandler() {
+        final Http2Connection connection = new DefaultHttp2Connection(true);
+        final Http2ConnectionEncoder encoder = new DefaultHttp2ConnectionEncoder(connection, new DefaultHttp2FrameWriter());
+        final Http2ConnectionDecoder decoder = new DefaultHttp2ConnectionDecoder(connection, encoder, new PingFilteringFrameReader());
+
+        final Http2Settings initialSettings = new Http2Settings();
+        if (this.maxConcurrentStreams >= 0) {
+            initialSettings.maxConcurrentStreams(this.maxConcurrentStreams);
+        }
+        return new MockApnsServerHandlerBuilder()
+                .codec(decoder, encoder)
+                .initialSettings(initialSettings)
+                .build();
+    }
+
+    private class PingFilteringFrameReader extends DefaultHttp2FrameReader {
+        @Override
+        public void readFrame(final ChannelHandlerContext context, final ByteBuf input, final Http2FrameListener listener) throws Http2Exception {
+            super.readFrame(context, input, new Http2FrameListenerDecorator(listener) {
+                @Override
+                public void onPingRead(final ChannelHandlerContext context, final ByteBuf data) throws Http2Exception {
+                    if (MockApnsServer.this.pingBehaviour == PingBehaviour.ACK) {
+                        super.onPingRead(context, data);
+                    } else {
+                        logger.debug("Ignoring PING from client.");
+                    }
+                }
+            });
+        }
+    }
+
+    private class MockApnsServerHandlerBuilder extends AbstractHttp2ConnectionHandlerBuilder<MockApnsServerHandler, MockApnsServerHandlerBuilder> {
+
+        @Override
+        protected MockApnsServerHandlerBuilder codec(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder) {
+            return super.codec(decoder, encoder);
+        }
+
+        @Override
+        protected MockApnsServerHandlerBuilder initialSettings(final Http2Settings settings) {
+            return super.initialSettings(settings);
+        }
+
+        @Override
+        protected MockApnsServerHandler build() {
+            return super.build();
+        }
+
+        @Override
+        protected MockApnsServerHandler build(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder, final Http2Settings initialSettings) {
+            final MockApnsServerHandler handler = new MockApnsServerHandler(decoder, encoder, initialSettings);
+            this.frameListener(handler.new MockApnsServerFrameAdapter());
+            return handler;
+        }
+    }
+
+    private class MockApnsServerHandler extends Http2ConnectionHandler {
+
+        /** the verdict for streams whose HEADERS arrived and whose DATA is still outstanding **/
+        private final IntObjectMap<Rejection> rejectionsByStreamId = new IntObjectHashMap<>();
+
+        private ChannelHandlerContext context;
+        private int acceptedStreams = 0;
+        private boolean flushScheduled = false;
+
+        private final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                MockApnsServerHandler.this.flushScheduled = false;
+                try {
+                    MockApnsServerHandler.this.flush(MockApnsServerHandler.this.context);
+                } catch (final Http2Exception e) {
+                    MockApnsServerHandler.this.onError(MockApnsServerHandler.this.context, e);
+                }
+            }
+        };
+
+        MockApnsServerHandler(final Http2ConnectionDecoder decoder, final Http2ConnectionEncoder encoder, final Http2Settings initialSettings) {
+            super(decoder, encoder, initialSettings);
+        }
+
+        @Override
+        public void handlerAdded(final ChannelHandlerContext context) throws Exception {
+            this.context = context;
+            super.handlerAdded(context);
+        }
+
+        private class MockApnsServerFrameAdapter extends Http2FrameAdapter {
+
+            @Override
+            public void onHeadersRead(final ChannelHandlerContext context, final int streamId, final Http2Headers headers, final int streamDependency, final short weight, final boolean exclusive, final int padding, final boolean endOfStream) throws Http2Exception {
+                this.onHeadersRead(context, streamId, headers, padding, endOfStream);
+            }
+
+            @Override
+            public void onHeadersRead(final ChannelHandlerContext context, final int streamId, final Http2Headers headers, final int padding, final boolean endOfStream) throws Http2Exception {
+                MockApnsServer.this.receivedNotifications.incrementAndGet();
+
+                final Rejection rejection;
+                final CharSequence path = headers.path();
+
+                final Queue<String> receivedPaths = MockApnsServer.this.receivedPaths;
+                if (receivedPaths != null) {
+                    receivedPaths.add(String.valueOf(path));
+                }
+                if (!HttpMethod.POST.asciiName().contentEquals(headers.method())) {
+                    rejection = new Rejection(HttpResponseStatus.METHOD_NOT_ALLOWED, "MethodNotAllowed");
+                } else if (path == null || !path.toString().startsWith(APNS_PATH_PREFIX) || !isHexToken(path, APNS_PATH_PREFIX.length())) {
+                    rejection = Rejection.BAD_DEVICE_TOKEN;
+                } else if (MockApnsServer.this.unregisteredTokens.contains(path.subSequence(APNS_PATH_PREFIX.length(), path.length()).toString())) {
+                    rejection = Rejection.UNREGISTERED;
+                } else if (endOfStream) {
+                    rejection = Rejection.PAYLOAD_EMPTY;
+                } else {
+                    rejection = null;
+                }
+
+                if (endOfStream) {
+                    MockApnsServerHandler.this.respond(streamId, rejection);
+                } else {
+                    MockApnsServerHandler.this.rejectionsByStreamId.put(streamId, rejection);
+                }
+            }
+
+            @Override
+            public int onDataRead(final ChannelHandlerContext context, final int streamId, final ByteBuf data, final int padding, final boolean endOfStream) throws Http2Exception {
+                final int bytesProcessed = data.readableBytes() + padding;
+
+                if (endOfStream) {
+                    Rejection rejection = MockApnsServerHandler.this.rejectionsByStreamId.remove(streamId);
+
+                    if (rejection == null) {
+                        if (data.readableBytes() > MAX_PAYLOAD_SIZE) {
+                            rejection = Rejection.PAYLOAD_TOO_LARGE;
+                        } else if (MockApnsServer.this.rejectionRatio > 0 && ThreadLocalRandom.current().nextDouble() < MockApnsServer.this.rejectionRatio) {
+                            final Rejection[] rejections = MockApnsServer.this.rejections;
+                            rejection = rejections[ThreadLocalRandom.current().nextInt(rejections.length)];
+                        }
+                    }
+                    MockApnsServerHandler.this.respond(streamId, rejection);
+                }
+                return bytesProcessed;
+            }
+        }
+
+        private void respond(final int streamId, final Rejection rejection) {
+            final long delayNanos = MockApnsServer.this.latencyDistribution.nextDelayNanos();
+
+            if (delayNanos <= 0) {
+                this.writeResponse(streamId, rejection);
+            } else {
+                this.context.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        MockApnsServerHandler.this.writeResponse(streamId, rejection);
+                        MockApnsServerHandler.this.scheduleFlush();
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            final int goAwayAfterStreams = MockApnsServer.this.goAwayAfterStreams;
+            if (goAwayAfterStreams > 0 && ++this.acceptedStreams == goAwayAfterStreams) {
+                this.sendGoAway(MockApnsServer.this.goAwayReason);
+            }
+        }
+
+        private void writeResponse(final int streamId, final Rejection rejection) {
+            if (this.connection().stream(streamId) == null) {
+                return;
+            }
+            final Http2Headers headers = new DefaultHttp2Headers()
+                    .add(APNS_ID_HEADER, UUID.randomUUID().toString());
+
+            if (rejection == null) {
+                MockApnsServer.this.acceptedNotifications.incrementAndGet();
+                headers.status(HttpResponseStatus.OK.codeAsText());
+                this.encoder().writeHeaders(this.context, streamId, headers, 0, true, this.context.newPromise());
+            } else {
+                MockApnsServer.this.rejectedNotifications.incrementAndGet();
+                headers.status(rejection.getStatus().codeAsText());
+                this.encoder().writeHeaders(this.context, streamId, headers, 0, false, this.context.newPromise());
+
+                final ByteBuf body = this.context.alloc().ioBuffer();
+                body.writeBytes(rejection.body());
+                this.encoder().writeData(this.context, streamId, body, 0, true, this.context.newPromise());
+            }
+        }
+
+        private void scheduleFlush() {
+            if (!this.flushScheduled) {
+                this.flushScheduled = true;
+                this.context.executor().execute(this.flushTask);
+            }
+        }
+
+        private void sendGoAway(final String reason) {
+            if (this.connection().goAwaySent() || !this.context.channel().isActive()) {
+                return;
+            }
+            logger.info("Sending GOAWAY ({}) after stream {}.", reason, this.connection().remote().lastStreamCreated());
+
+            final ByteBuf debugData = this.context.alloc().ioBuffer();
+            debugData.writeBytes(("{\"reason\":\"" + reason + "\"}").getBytes(StandardCharsets.UTF_8));
+
+            this.goAway(this.context, this.connection().remote().lastStreamCreated(), Http2Error.NO_ERROR.code(), debugData, this.context.newPromise());
+            this.context.flush();
+
+            /**
+             * give frames the client sent before reading the GOAWAY time to arrive, as RFC 7540 6.8
+             * suggests; closing with them unread would reset the connection and lose the GOAWAY.
+             * The handler's own close then waits for the streams at or below lastStreamId.
+             **/
+            this.context.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        MockApnsServerHandler.this.close(MockApnsServerHandler.this.context, MockApnsServerHandler.this.context.newPromise());
+                    } catch (final Exception e) {
+                        logger.warn("Failed to close connection after GOAWAY.", e);
+                        MockApnsServerHandler.this.context.close();
+                    }
+                }
+            }, GOAWAY_CLOSE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean isHexToken(final CharSequence path, final int start) {
+        if (path.length() == start) {
+            return false;
+        }
+        for (int i = start; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}